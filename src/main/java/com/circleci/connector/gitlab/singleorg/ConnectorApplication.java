@@ -1,22 +1,52 @@
 package com.circleci.connector.gitlab.singleorg;
 
 import com.circleci.client.v2.ApiClient;
-import com.circleci.client.v2.Configuration;
 import com.circleci.client.v2.api.DefaultApi;
+import com.circleci.client.v2.model.Workflow;
+import com.circleci.connector.gitlab.singleorg.api.PushHook;
+import com.circleci.connector.gitlab.singleorg.client.AsyncCircleCi;
 import com.circleci.connector.gitlab.singleorg.client.CircleCi;
+import com.circleci.connector.gitlab.singleorg.client.CircleCiLimiter;
+import com.circleci.connector.gitlab.singleorg.client.CircleCiTransport;
+import com.circleci.connector.gitlab.singleorg.client.ConfigCache;
 import com.circleci.connector.gitlab.singleorg.client.GitLab;
+import com.circleci.connector.gitlab.singleorg.client.MissingConfigCache;
+import com.circleci.connector.gitlab.singleorg.client.PipelinePollers;
+import com.circleci.connector.gitlab.singleorg.client.PollBudget;
+import com.circleci.connector.gitlab.singleorg.client.SingleFlightCache;
+import com.circleci.connector.gitlab.singleorg.client.WorkflowDurations;
 import com.circleci.connector.gitlab.singleorg.health.CircleCiApiHealthCheck;
 import com.circleci.connector.gitlab.singleorg.health.GitLabApiHealthCheck;
+import com.circleci.connector.gitlab.singleorg.journal.HookJournal;
+import com.circleci.connector.gitlab.singleorg.resources.CircleCiHookResource;
 import com.circleci.connector.gitlab.singleorg.resources.HookResource;
+import com.circleci.connector.gitlab.singleorg.resources.PushHookProcessor;
+import com.circleci.connector.gitlab.singleorg.scheduler.BoundedExecutor;
+import com.circleci.connector.gitlab.singleorg.scheduler.JobScheduler;
+import com.circleci.connector.gitlab.singleorg.scheduler.VirtualThreads;
+import com.circleci.connector.gitlab.singleorg.state.FilePollerStateStore;
+import com.circleci.connector.gitlab.singleorg.state.InMemoryPollerStateStore;
+import com.circleci.connector.gitlab.singleorg.state.PollerStateStore;
 import com.codahale.metrics.MetricRegistry;
 import com.readytalk.metrics.StatsDReporter;
 import io.dropwizard.Application;
 import io.dropwizard.configuration.ConfigurationSourceProvider;
 import io.dropwizard.configuration.EnvironmentVariableSubstitutor;
 import io.dropwizard.configuration.SubstitutingSourceProvider;
+import io.dropwizard.lifecycle.ExecutorServiceManager;
 import io.dropwizard.setup.Bootstrap;
 import io.dropwizard.setup.Environment;
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.TimeUnit;
+import javax.ws.rs.client.Client;
 import org.gitlab4j.api.GitLabApi;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -43,13 +73,251 @@ class ConnectorApplication extends Application<ConnectorConfiguration> {
     }
   }
 
-  /** Create and configure a CircleCI client, but don't execute any connections. */
-  private DefaultApi circleCiClient(ConnectorConfiguration config) {
-    ApiClient apiClient = Configuration.getDefaultApiClient();
-    apiClient.setApiKey(config.getCircleCi().getApiToken());
+  /**
+   * Create and configure a CircleCI client, but don't execute any connections. The client is our
+   * own rather than the library's shared default, and calls CircleCI over a pool of connections.
+   */
+  private DefaultApi circleCiClient(ConnectorConfiguration config, Environment environment) {
+    ConnectorConfiguration.CircleCi circleCi = config.getCircleCi();
+    ApiClient apiClient = new ApiClient();
+    apiClient.setApiKey(circleCi.getApiToken());
+
+    Client libraryClient = apiClient.getHttpClient();
+    CircleCiTransport transport =
+        new CircleCiTransport(
+            libraryClient.getConfiguration(),
+            circleCi.getMaxConnections(),
+            circleCi.getConnectTimeoutMillis(),
+            circleCi.getReadTimeoutMillis(),
+            circleCi.getKeepAliveSeconds(),
+            environment.metrics());
+    apiClient.setHttpClient(transport.getClient());
+    libraryClient.close();
+    environment.lifecycle().manage(transport);
     return new DefaultApi(apiClient);
   }
 
+  /**
+   * Build the client which polls CircleCI without holding a thread while it waits, or return null
+   * if the pollers should use the library's client.
+   */
+  private AsyncCircleCi asyncCircleCi(ConnectorConfiguration config, String basePath) {
+    ConnectorConfiguration.CircleCi circleCi = config.getCircleCi();
+    if (!circleCi.isAsyncClient()) {
+      return null;
+    }
+    HttpClient.Builder httpClient = HttpClient.newBuilder();
+    if (config.isVirtualThreads()) {
+      // Responses are handled on these threads, including the GitLab updates which follow a poll
+      httpClient.executor(VirtualThreads.newExecutor("circleci-http-"));
+    }
+    if (circleCi.getConnectTimeoutMillis() > 0) {
+      httpClient.connectTimeout(Duration.ofMillis(circleCi.getConnectTimeoutMillis()));
+    }
+    return new AsyncCircleCi(
+        httpClient.build(),
+        basePath,
+        circleCi.getApiToken(),
+        Duration.ofMillis(circleCi.getReadTimeoutMillis()));
+  }
+
+  /**
+   * Build the limiter shared by everything which polls CircleCI, or return null if it's disabled.
+   */
+  private CircleCiLimiter circleCiLimiter(ConnectorConfiguration config, Environment environment) {
+    ConnectorConfiguration.CircleCi circleCi = config.getCircleCi();
+    if (circleCi.getMaxConcurrentRefreshes() == 0) {
+      return null;
+    }
+    return new CircleCiLimiter(
+        circleCi.getMaxConcurrentRefreshes(),
+        circleCi.getBreakerFailureThreshold(),
+        Duration.ofMillis(circleCi.getBreakerOpenMillis()),
+        environment.metrics());
+  }
+
+  /**
+   * Build the scheduler for polling jobs. A single timer thread turning a timing wheel fires the
+   * jobs and a bounded pool of worker threads runs them, so that blocking API calls never hold up
+   * the timer.
+   */
+  private JobScheduler jobScheduler(ConnectorConfiguration config, Environment environment) {
+    ConnectorConfiguration.Scheduler scheduler = config.getScheduler();
+    ExecutorService workers;
+    if (config.isVirtualThreads()) {
+      workers =
+          virtualThreadExecutor(
+              environment,
+              "job-worker-",
+              scheduler.getWorkerThreads() + scheduler.getWorkerQueueSize());
+    } else {
+      workers =
+          environment
+              .lifecycle()
+              .executorService("job-worker-%d")
+              .minThreads(scheduler.getWorkerThreads())
+              .maxThreads(scheduler.getWorkerThreads())
+              .workQueue(new ArrayBlockingQueue<>(scheduler.getWorkerQueueSize()))
+              .build();
+    }
+    var jobScheduler =
+        new JobScheduler(
+            workers,
+            scheduler.getTickMillis(),
+            scheduler.getTicksPerWheel(),
+            scheduler.getDispatchBatchSize(),
+            environment.metrics());
+    environment.lifecycle().manage(jobScheduler);
+    return jobScheduler;
+  }
+
+  /**
+   * Build the pool shared by all pipelines for fetching their workflows, or return null if
+   * workflows should be fetched one at a time. The pool has no queue: when every thread is busy a
+   * refresh fetches its remaining workflows on its own thread instead of waiting for one.
+   */
+  private ExecutorService workflowFetchers(ConnectorConfiguration config, Environment environment) {
+    ConnectorConfiguration.CircleCi circleCi = config.getCircleCi();
+    if (circleCi.getWorkflowFetchesPerPipeline() == 1) {
+      return null;
+    }
+    return environment
+        .lifecycle()
+        .executorService("workflow-fetcher-%d")
+        .minThreads(circleCi.getWorkflowFetchThreads())
+        .maxThreads(circleCi.getWorkflowFetchThreads())
+        .workQueue(new SynchronousQueue<>())
+        .build();
+  }
+
+  /** Build the layer which shares workflow reads, or return null if it is disabled. */
+  private SingleFlightCache<UUID, Workflow> workflowReads(
+      ConnectorConfiguration config, Environment environment) {
+    int ttlMillis = config.getCircleCi().getWorkflowReadTtlMillis();
+    if (ttlMillis == 0) {
+      return null;
+    }
+    return new SingleFlightCache<>(
+        "workflows", Duration.ofMillis(ttlMillis), environment.metrics());
+  }
+
+  /**
+   * Build the bounded pool which processes queued push hooks, or return null if hooks should be
+   * processed on the request thread.
+   */
+  private ExecutorService hookWorkers(ConnectorConfiguration config, Environment environment) {
+    ConnectorConfiguration.Hooks hooks = config.getHooks();
+    if (!hooks.isAsyncProcessing()) {
+      return null;
+    }
+    if (config.isVirtualThreads()) {
+      LOGGER.info(
+          "Processing up to {} hooks at once asynchronously on virtual threads",
+          hooks.getWorkerThreads() + hooks.getQueueSize());
+      return virtualThreadExecutor(
+          environment, "hook-worker-", hooks.getWorkerThreads() + hooks.getQueueSize());
+    }
+    LOGGER.info(
+        "Processing hooks asynchronously on {} threads with a queue of {}",
+        hooks.getWorkerThreads(),
+        hooks.getQueueSize());
+    return environment
+        .lifecycle()
+        .executorService("hook-worker-%d")
+        .minThreads(hooks.getWorkerThreads())
+        .maxThreads(hooks.getWorkerThreads())
+        .workQueue(new ArrayBlockingQueue<>(hooks.getQueueSize()))
+        .build();
+  }
+
+  /**
+   * Build an executor which runs each task on a virtual thread of its own, rejecting tasks once too
+   * many are in flight as a pool with a full queue would, and shuts down with the application.
+   */
+  private ExecutorService virtualThreadExecutor(
+      Environment environment, String namePrefix, int maxInFlight) {
+    ExecutorService executor =
+        new BoundedExecutor(VirtualThreads.newExecutor(namePrefix), maxInFlight);
+    environment
+        .lifecycle()
+        .manage(
+            new ExecutorServiceManager(
+                executor, io.dropwizard.util.Duration.seconds(5), namePrefix + "virtual"));
+    return executor;
+  }
+
+  /** Build the cache of extended CircleCI configs, or return null if it is disabled. */
+  private ConfigCache configCache(ConnectorConfiguration config, Environment environment) {
+    long maxBytes = config.getGitlab().getConfigCacheMaxBytes();
+    if (maxBytes == 0) {
+      return null;
+    }
+    return new ConfigCache(maxBytes, environment.metrics());
+  }
+
+  /** Build the cache of commits without a CircleCI config, or return null if it is disabled. */
+  private MissingConfigCache missingConfigCache(
+      ConnectorConfiguration config, Environment environment) {
+    ConnectorConfiguration.GitLab gitLab = config.getGitlab();
+    if (gitLab.getMissingConfigTtlSeconds() == 0) {
+      return null;
+    }
+    return new MissingConfigCache(
+        Duration.ofSeconds(gitLab.getMissingConfigTtlSeconds()),
+        gitLab.getMissingConfigMaxEntries(),
+        environment.metrics());
+  }
+
+  /** Build the history of workflow durations, or return null if polls aren't predicted. */
+  private WorkflowDurations workflowDurations(
+      ConnectorConfiguration config, Environment environment) {
+    ConnectorConfiguration.Polling polling = config.getPolling();
+    if (!polling.isPredictive()) {
+      return null;
+    }
+    return new WorkflowDurations(
+        polling.getDurationHistoryMaxEntries(),
+        polling.getDurationHistoryWeight(),
+        polling.getMaxPredictedDelayMillis(),
+        environment.metrics());
+  }
+
+  /** Build the budget for polls, or return null if they are neither limited nor jittered. */
+  private PollBudget pollBudget(ConnectorConfiguration config, Environment environment) {
+    ConnectorConfiguration.Polling polling = config.getPolling();
+    if (polling.getPollsPerSecond() == 0 && polling.getJitterRatio() == 0) {
+      return null;
+    }
+    return new PollBudget(
+        polling.getPollsPerSecond(),
+        polling.getPollBurst(),
+        polling.getJitterRatio(),
+        environment.metrics());
+  }
+
+  /** Build the store of poller state, or return null if it is disabled. */
+  private PollerStateStore pollerStateStore(ConnectorConfiguration config) throws IOException {
+    ConnectorConfiguration.Polling polling = config.getPolling();
+    if (polling.getStateStore() == ConnectorConfiguration.Polling.StateStore.NONE) {
+      return null;
+    }
+    if (!polling.isConsolidated()) {
+      LOGGER.warn("Poller state is only recorded if polling.consolidated is true");
+    }
+    switch (polling.getStateStore()) {
+      case MEMORY:
+        return new InMemoryPollerStateStore();
+      case FILE:
+        if (polling.getStateDirectory() == null) {
+          throw new IllegalArgumentException(
+              "polling.stateDirectory must be set to keep the poller state in files");
+        }
+        return new FilePollerStateStore(Paths.get(polling.getStateDirectory()));
+      default:
+        throw new IllegalArgumentException("Unknown state store " + polling.getStateStore());
+    }
+  }
+
   private GitLabApi gitLabApi(ConnectorConfiguration config) {
     String gitLabAuthToken = config.getGitlab().getAuthToken();
     return new GitLabApi(config.getGitlab().getHost(), gitLabAuthToken);
@@ -73,17 +341,78 @@ class ConnectorApplication extends Application<ConnectorConfiguration> {
    * Main entry point for the GitLab Single Org Connector. See Dropwizard documentation for details
    * of how any of this works.
    */
-  public void run(ConnectorConfiguration config, Environment environment) {
-    DefaultApi circleCiApi = circleCiClient(config);
-    CircleCi circleCi = new CircleCi(circleCiApi);
+  public void run(ConnectorConfiguration config, Environment environment) throws IOException {
+    DefaultApi circleCiApi = circleCiClient(config, environment);
+    CircleCi circleCi =
+        new CircleCi(
+            circleCiApi,
+            workflowFetchers(config, environment),
+            config.getCircleCi().getWorkflowFetchesPerPipeline(),
+            workflowReads(config, environment),
+            asyncCircleCi(config, circleCiApi.getApiClient().getBasePath()),
+            circleCiLimiter(config, environment));
     GitLabApi gitLabApi = gitLabApi(config);
-    GitLab gitLab = new GitLab(gitLabApi);
+    GitLab gitLab =
+        new GitLab(
+            gitLabApi,
+            configCache(config, environment),
+            missingConfigCache(config, environment),
+            config.getGitlab().getMaxConfigBytes());
 
-    var scheduledJobRunner =
-        environment.lifecycle().scheduledExecutorService("scheduled-job-%d", true).build();
+    JobScheduler jobScheduler = jobScheduler(config, environment);
     environment.healthChecks().register("CircleCI API", new CircleCiApiHealthCheck(circleCiApi));
     environment.healthChecks().register("GitLab API", new GitLabApiHealthCheck(gitLabApi));
-    environment.jersey().register(new HookResource(gitLab, circleCi, scheduledJobRunner, config));
+    HookJournal journal = null;
+    List<PushHook> unfinishedHooks = List.of();
+    ConnectorConfiguration.Journal journalConfig = config.getJournal();
+    if (journalConfig.getDirectory() != null) {
+      journal =
+          new HookJournal(
+              Paths.get(journalConfig.getDirectory()), journalConfig.getSegmentSizeBytes());
+      unfinishedHooks = journal.recover();
+      environment.lifecycle().manage(journal);
+    }
+
+    PollerStateStore stateStore = pollerStateStore(config);
+    String webhookSecret = config.getCircleCi().getWebhookSecret();
+    PipelinePollers pollers =
+        new PipelinePollers(
+            circleCi,
+            gitLab,
+            jobScheduler,
+            config.getPolling().isConsolidated(),
+            stateStore,
+            webhookSecret != null ? config.getCircleCi().getWebhookFallbackPollMillis() : 0,
+            workflowDurations(config, environment),
+            pollBudget(config, environment));
+    PushHookProcessor pushHookProcessor =
+        new PushHookProcessor(gitLab, circleCi, jobScheduler, pollers, journal, config);
+    HookResource hookResource =
+        new HookResource(
+            pushHookProcessor,
+            hookWorkers(config, environment),
+            jobScheduler,
+            environment.metrics(),
+            config);
+    environment.jersey().register(hookResource);
+    if (webhookSecret != null) {
+      if (!config.getPolling().isConsolidated()) {
+        LOGGER.warn("CircleCI webhooks are only used if polling.consolidated is true");
+      }
+      environment
+          .jersey()
+          .register(
+              new CircleCiHookResource(
+                  pollers, webhookSecret, config.getHooks().getMaxPayloadBytes()));
+    }
+
+    // Finish the hooks which were accepted before we last stopped but never processed
+    hookResource.replay(unfinishedHooks);
+
+    // Pick up polling the pipelines we were polling before we last stopped
+    if (stateStore != null) {
+      pollers.resume(stateStore.loadAll(), config.getPolling().getResumeSpreadMillis());
+    }
 
     maybeConfigureStatsdMetrics(config, environment.metrics());
   }
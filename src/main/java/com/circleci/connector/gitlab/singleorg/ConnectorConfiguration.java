@@ -2,9 +2,13 @@ package com.circleci.connector.gitlab.singleorg;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
 import io.dropwizard.Configuration;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import javax.validation.Valid;
+import javax.validation.constraints.DecimalMax;
+import javax.validation.constraints.DecimalMin;
 import javax.validation.constraints.NotEmpty;
 import javax.validation.constraints.NotNull;
 import javax.validation.constraints.Pattern;
@@ -19,6 +23,27 @@ public class ConnectorConfiguration extends Configuration {
 
   @Valid private DomainMapping domainMapping;
 
+  @Valid private Scheduler scheduler;
+
+  @Valid private Hooks hooks;
+
+  @Valid private Journal journal;
+
+  @Valid private RateLimits rateLimits;
+
+  @Valid private Filters filters;
+
+  @Valid private Polling polling;
+
+  @Valid private AutoCancel autoCancel;
+
+  /**
+   * If true, process hooks and run polls on virtual threads rather than on pools of platform
+   * threads. The sizes of the pools and their queues then only limit how much work may be in
+   * flight.
+   */
+  private boolean virtualThreads = false;
+
   public ConnectorConfiguration() {}
 
   CircleCi getCircleCi() {
@@ -65,10 +90,154 @@ public class ConnectorConfiguration extends Configuration {
     this.domainMapping = domainMapping;
   }
 
+  Scheduler getScheduler() {
+    if (scheduler == null) {
+      return new Scheduler();
+    }
+    return scheduler;
+  }
+
+  void setScheduler(Scheduler s) {
+    scheduler = s;
+  }
+
+  public Hooks getHooks() {
+    if (hooks == null) {
+      return new Hooks();
+    }
+    return hooks;
+  }
+
+  void setHooks(Hooks h) {
+    hooks = h;
+  }
+
+  Journal getJournal() {
+    if (journal == null) {
+      return new Journal();
+    }
+    return journal;
+  }
+
+  void setJournal(Journal j) {
+    journal = j;
+  }
+
+  public RateLimits getRateLimits() {
+    if (rateLimits == null) {
+      return new RateLimits();
+    }
+    return rateLimits;
+  }
+
+  void setRateLimits(RateLimits r) {
+    rateLimits = r;
+  }
+
+  public Filters getFilters() {
+    if (filters == null) {
+      return new Filters();
+    }
+    return filters;
+  }
+
+  void setFilters(Filters f) {
+    filters = f;
+  }
+
+  public Polling getPolling() {
+    if (polling == null) {
+      return new Polling();
+    }
+    return polling;
+  }
+
+  void setPolling(Polling p) {
+    polling = p;
+  }
+
+  public AutoCancel getAutoCancel() {
+    if (autoCancel == null) {
+      return new AutoCancel();
+    }
+    return autoCancel;
+  }
+
+  void setAutoCancel(AutoCancel a) {
+    autoCancel = a;
+  }
+
+  @JsonProperty
+  boolean isVirtualThreads() {
+    return virtualThreads;
+  }
+
+  @JsonProperty
+  void setVirtualThreads(boolean v) {
+    virtualThreads = v;
+  }
+
   static class CircleCi {
 
     @NotEmpty @NotNull private String apiToken;
 
+    /** Threads shared by all pipelines for fetching their workflows in parallel. */
+    @Range(min = 1)
+    private int workflowFetchThreads = 8;
+
+    /** The most workflows of one pipeline to fetch at once. 1 to fetch them one at a time. */
+    @Range(min = 1)
+    private int workflowFetchesPerPipeline = 4;
+
+    /**
+     * How long a workflow read is shared with any identical reads which follow it. Keep this well
+     * under a second, the shortest polling interval. 0 to disable.
+     */
+    @Range(min = 0)
+    private int workflowReadTtlMillis = 250;
+
+    /** The most connections to keep open to CircleCI. */
+    @Range(min = 1)
+    private int maxConnections = 20;
+
+    @Range(min = 0)
+    private int connectTimeoutMillis = 5000;
+
+    @Range(min = 0)
+    private int readTimeoutMillis = 30000;
+
+    /** How long to keep reusing a connection to CircleCI before replacing it. */
+    @Range(min = 1)
+    private int keepAliveSeconds = 60;
+
+    /** Poll CircleCI with a client which doesn't hold a thread while waiting for a response. */
+    private boolean asyncClient = false;
+
+    /**
+     * The most pipeline and workflow refreshes to have in flight at once. The limit is lowered
+     * while CircleCI is struggling. 0 to disable the limit and the circuit breaker.
+     */
+    @Range(min = 0)
+    private int maxConcurrentRefreshes = 32;
+
+    /** How many refreshes must fail in a row to stop calling CircleCI for a while. */
+    @Range(min = 1)
+    private int breakerFailureThreshold = 5;
+
+    /** How long to stop calling CircleCI for, unless it says how long in a Retry-After header. */
+    @Range(min = 0)
+    private int breakerOpenMillis = 10000;
+
+    /**
+     * The secret CircleCI signs its webhooks with. If set, webhooks are accepted at /circleci-hook
+     * and consolidated polls slow down to webhookFallbackPollMillis.
+     */
+    private String webhookSecret;
+
+    /** The shortest time between polls of a pipeline while webhooks are accepted. */
+    @Range(min = 0)
+    private int webhookFallbackPollMillis = 60000;
+
     public CircleCi() {}
 
     @JsonProperty
@@ -80,6 +249,136 @@ public class ConnectorConfiguration extends Configuration {
     void setApiToken(String token) {
       apiToken = token;
     }
+
+    @JsonProperty
+    int getWorkflowFetchThreads() {
+      return workflowFetchThreads;
+    }
+
+    @JsonProperty
+    void setWorkflowFetchThreads(int threads) {
+      workflowFetchThreads = threads;
+    }
+
+    @JsonProperty
+    int getWorkflowFetchesPerPipeline() {
+      return workflowFetchesPerPipeline;
+    }
+
+    @JsonProperty
+    void setWorkflowFetchesPerPipeline(int fetches) {
+      workflowFetchesPerPipeline = fetches;
+    }
+
+    @JsonProperty
+    int getWorkflowReadTtlMillis() {
+      return workflowReadTtlMillis;
+    }
+
+    @JsonProperty
+    void setWorkflowReadTtlMillis(int millis) {
+      workflowReadTtlMillis = millis;
+    }
+
+    @JsonProperty
+    int getMaxConnections() {
+      return maxConnections;
+    }
+
+    @JsonProperty
+    void setMaxConnections(int connections) {
+      maxConnections = connections;
+    }
+
+    @JsonProperty
+    int getConnectTimeoutMillis() {
+      return connectTimeoutMillis;
+    }
+
+    @JsonProperty
+    void setConnectTimeoutMillis(int millis) {
+      connectTimeoutMillis = millis;
+    }
+
+    @JsonProperty
+    int getReadTimeoutMillis() {
+      return readTimeoutMillis;
+    }
+
+    @JsonProperty
+    void setReadTimeoutMillis(int millis) {
+      readTimeoutMillis = millis;
+    }
+
+    @JsonProperty
+    int getKeepAliveSeconds() {
+      return keepAliveSeconds;
+    }
+
+    @JsonProperty
+    void setKeepAliveSeconds(int seconds) {
+      keepAliveSeconds = seconds;
+    }
+
+    @JsonProperty
+    boolean isAsyncClient() {
+      return asyncClient;
+    }
+
+    @JsonProperty
+    void setAsyncClient(boolean async) {
+      asyncClient = async;
+    }
+
+    @JsonProperty
+    int getMaxConcurrentRefreshes() {
+      return maxConcurrentRefreshes;
+    }
+
+    @JsonProperty
+    void setMaxConcurrentRefreshes(int refreshes) {
+      maxConcurrentRefreshes = refreshes;
+    }
+
+    @JsonProperty
+    int getBreakerFailureThreshold() {
+      return breakerFailureThreshold;
+    }
+
+    @JsonProperty
+    void setBreakerFailureThreshold(int failures) {
+      breakerFailureThreshold = failures;
+    }
+
+    @JsonProperty
+    int getBreakerOpenMillis() {
+      return breakerOpenMillis;
+    }
+
+    @JsonProperty
+    void setBreakerOpenMillis(int millis) {
+      breakerOpenMillis = millis;
+    }
+
+    @JsonProperty
+    String getWebhookSecret() {
+      return webhookSecret;
+    }
+
+    @JsonProperty
+    void setWebhookSecret(String secret) {
+      webhookSecret = secret;
+    }
+
+    @JsonProperty
+    int getWebhookFallbackPollMillis() {
+      return webhookFallbackPollMillis;
+    }
+
+    @JsonProperty
+    void setWebhookFallbackPollMillis(int millis) {
+      webhookFallbackPollMillis = millis;
+    }
   }
 
   public static class GitLab {
@@ -89,6 +388,21 @@ public class ConnectorConfiguration extends Configuration {
 
     @NotEmpty @NotNull private String authToken;
 
+    /** The most heap to spend caching extended CircleCI configs. 0 to disable the cache. */
+    @Range(min = 0)
+    private long configCacheMaxBytes = 32 * 1024 * 1024;
+
+    /** How long to remember that a commit has no CircleCI config. 0 to disable. */
+    @Range(min = 0)
+    private int missingConfigTtlSeconds = 600;
+
+    @Range(min = 1)
+    private int missingConfigMaxEntries = 10000;
+
+    /** The largest CircleCI config we will download. Anything bigger is treated as missing. */
+    @Range(min = 1024)
+    private long maxConfigBytes = 4 * 1024 * 1024;
+
     GitLab() {}
 
     @JsonProperty
@@ -120,6 +434,46 @@ public class ConnectorConfiguration extends Configuration {
     public void setAuthToken(String authToken) {
       this.authToken = authToken;
     }
+
+    @JsonProperty
+    long getConfigCacheMaxBytes() {
+      return configCacheMaxBytes;
+    }
+
+    @JsonProperty
+    void setConfigCacheMaxBytes(long bytes) {
+      configCacheMaxBytes = bytes;
+    }
+
+    @JsonProperty
+    int getMissingConfigTtlSeconds() {
+      return missingConfigTtlSeconds;
+    }
+
+    @JsonProperty
+    void setMissingConfigTtlSeconds(int seconds) {
+      missingConfigTtlSeconds = seconds;
+    }
+
+    @JsonProperty
+    int getMissingConfigMaxEntries() {
+      return missingConfigMaxEntries;
+    }
+
+    @JsonProperty
+    void setMissingConfigMaxEntries(int entries) {
+      missingConfigMaxEntries = entries;
+    }
+
+    @JsonProperty
+    long getMaxConfigBytes() {
+      return maxConfigBytes;
+    }
+
+    @JsonProperty
+    void setMaxConfigBytes(long bytes) {
+      maxConfigBytes = bytes;
+    }
   }
 
   static class Statsd {
@@ -195,4 +549,651 @@ public class ConnectorConfiguration extends Configuration {
       this.sshFingerprints = sshFingerprints;
     }
   }
+
+  /** Sizing for the pool of threads which make the blocking calls to CircleCI and GitLab. */
+  static class Scheduler {
+    @Range(min = 1)
+    private int workerThreads = 16;
+
+    @Range(min = 1)
+    private int workerQueueSize = 10000;
+
+    /** How often the timer checks for due jobs. Jobs run up to this much later than asked. */
+    @Range(min = 1, max = 1000)
+    private int tickMillis = 10;
+
+    /**
+     * How many ticks the timer holds. Jobs due further ahead than this go round it again, so it
+     * should cover the usual delay between polls.
+     */
+    @Range(min = 1, max = 1 << 20)
+    private int ticksPerWheel = 1024;
+
+    /**
+     * The most due jobs to hand to a worker at once. They run one after another, so only raise this
+     * if polls don't block, as with circleCi.asyncClient.
+     */
+    @Range(min = 1)
+    private int dispatchBatchSize = 1;
+
+    public Scheduler() {}
+
+    @JsonProperty
+    int getWorkerThreads() {
+      return workerThreads;
+    }
+
+    @JsonProperty
+    void setWorkerThreads(int threads) {
+      workerThreads = threads;
+    }
+
+    @JsonProperty
+    int getWorkerQueueSize() {
+      return workerQueueSize;
+    }
+
+    @JsonProperty
+    void setWorkerQueueSize(int size) {
+      workerQueueSize = size;
+    }
+
+    @JsonProperty
+    int getTickMillis() {
+      return tickMillis;
+    }
+
+    @JsonProperty
+    void setTickMillis(int millis) {
+      tickMillis = millis;
+    }
+
+    @JsonProperty
+    int getTicksPerWheel() {
+      return ticksPerWheel;
+    }
+
+    @JsonProperty
+    void setTicksPerWheel(int ticks) {
+      ticksPerWheel = ticks;
+    }
+
+    @JsonProperty
+    int getDispatchBatchSize() {
+      return dispatchBatchSize;
+    }
+
+    @JsonProperty
+    void setDispatchBatchSize(int size) {
+      dispatchBatchSize = size;
+    }
+  }
+
+  /** How push hooks are processed once they have been accepted. */
+  public static class Hooks {
+    /** If true, return 202 as soon as a hook is queued rather than after triggering a pipeline. */
+    private boolean asyncProcessing = false;
+
+    @Range(min = 1)
+    private int workerThreads = 4;
+
+    @Range(min = 1)
+    private int queueSize = 1000;
+
+    /** How long to remember a push for, so that redeliveries of it are ignored. 0 to disable. */
+    @Range(min = 0)
+    private int deduplicationWindowSeconds = 600;
+
+    @Range(min = 1)
+    private int deduplicationMaxEntries = 10000;
+
+    /**
+     * How long to hold a push before processing it, so that any further pushes to the same branch
+     * in that time replace it and only the newest commit is built. 0 to disable.
+     */
+    @Range(min = 0)
+    private long coalescingWindowMillis = 0;
+
+    /** Hooks with a larger body than this are rejected with a 413. */
+    @Range(min = 1024)
+    private int maxPayloadBytes = 5 * 1024 * 1024;
+
+    public Hooks() {}
+
+    @JsonProperty
+    boolean isAsyncProcessing() {
+      return asyncProcessing;
+    }
+
+    @JsonProperty
+    void setAsyncProcessing(boolean async) {
+      asyncProcessing = async;
+    }
+
+    @JsonProperty
+    int getWorkerThreads() {
+      return workerThreads;
+    }
+
+    @JsonProperty
+    void setWorkerThreads(int threads) {
+      workerThreads = threads;
+    }
+
+    @JsonProperty
+    int getQueueSize() {
+      return queueSize;
+    }
+
+    @JsonProperty
+    void setQueueSize(int size) {
+      queueSize = size;
+    }
+
+    @JsonProperty
+    public int getDeduplicationWindowSeconds() {
+      return deduplicationWindowSeconds;
+    }
+
+    @JsonProperty
+    void setDeduplicationWindowSeconds(int seconds) {
+      deduplicationWindowSeconds = seconds;
+    }
+
+    @JsonProperty
+    public int getDeduplicationMaxEntries() {
+      return deduplicationMaxEntries;
+    }
+
+    @JsonProperty
+    void setDeduplicationMaxEntries(int entries) {
+      deduplicationMaxEntries = entries;
+    }
+
+    @JsonProperty
+    public long getCoalescingWindowMillis() {
+      return coalescingWindowMillis;
+    }
+
+    @JsonProperty
+    void setCoalescingWindowMillis(long millis) {
+      coalescingWindowMillis = millis;
+    }
+
+    @JsonProperty
+    public int getMaxPayloadBytes() {
+      return maxPayloadBytes;
+    }
+
+    @JsonProperty
+    void setMaxPayloadBytes(int bytes) {
+      maxPayloadBytes = bytes;
+    }
+  }
+
+  /**
+   * Where to keep the journal of accepted hooks. The journal is disabled if no directory is set.
+   */
+  static class Journal {
+    private String directory;
+
+    @Range(min = 4096)
+    private int segmentSizeBytes = 8 * 1024 * 1024;
+
+    public Journal() {}
+
+    @JsonProperty
+    String getDirectory() {
+      return directory;
+    }
+
+    @JsonProperty
+    void setDirectory(String dir) {
+      directory = dir;
+    }
+
+    @JsonProperty
+    int getSegmentSizeBytes() {
+      return segmentSizeBytes;
+    }
+
+    @JsonProperty
+    void setSegmentSizeBytes(int bytes) {
+      segmentSizeBytes = bytes;
+    }
+  }
+
+  /**
+   * Limits on how fast we accept push hooks, both in total and from each GitLab project. Projects
+   * may be given their own limit in place of the per-project default. Hooks over a limit are
+   * rejected with a 429.
+   */
+  public static class RateLimits {
+    @Valid private RateLimit global;
+
+    @Valid private RateLimit perProject;
+
+    private Map<@Range(min = 0) Integer, @Valid RateLimit> projects;
+
+    public RateLimits() {}
+
+    @JsonProperty
+    public RateLimit getGlobal() {
+      if (global == null) {
+        return new RateLimit();
+      }
+      return global;
+    }
+
+    @JsonProperty
+    void setGlobal(RateLimit limit) {
+      global = limit;
+    }
+
+    @JsonProperty
+    public RateLimit getPerProject() {
+      if (perProject == null) {
+        return new RateLimit();
+      }
+      return perProject;
+    }
+
+    @JsonProperty
+    void setPerProject(RateLimit limit) {
+      perProject = limit;
+    }
+
+    /** @return The limit for the given GitLab project. */
+    public RateLimit forProject(int projectId) {
+      if (projects != null && projects.containsKey(projectId)) {
+        return projects.get(projectId);
+      }
+      return getPerProject();
+    }
+
+    @JsonProperty
+    Map<Integer, RateLimit> getProjects() {
+      if (projects == null) {
+        return new HashMap<>();
+      }
+      return projects;
+    }
+
+    @JsonProperty
+    void setProjects(Map<Integer, RateLimit> p) {
+      projects = p;
+    }
+  }
+
+  /** A token bucket. A rate of 0 hooks per second means there is no limit. */
+  public static class RateLimit {
+    @DecimalMin("0")
+    private double hooksPerSecond = 0;
+
+    /** How many hooks may arrive at once after a quiet spell. */
+    @Range(min = 1)
+    private int burst = 1;
+
+    public RateLimit() {}
+
+    @JsonProperty
+    public double getHooksPerSecond() {
+      return hooksPerSecond;
+    }
+
+    @JsonProperty
+    void setHooksPerSecond(double rate) {
+      hooksPerSecond = rate;
+    }
+
+    @JsonProperty
+    public int getBurst() {
+      return burst;
+    }
+
+    @JsonProperty
+    void setBurst(int b) {
+      burst = b;
+    }
+  }
+
+  /**
+   * Rules for deciding from a push hook alone that a push should not be built. Projects may be
+   * given their own rules in place of the defaults.
+   */
+  public static class Filters {
+    @Valid private FilterRules defaults;
+
+    private Map<@Range(min = 0) Integer, @Valid FilterRules> projects;
+
+    public Filters() {}
+
+    @JsonProperty
+    public FilterRules getDefaults() {
+      if (defaults == null) {
+        return new FilterRules();
+      }
+      return defaults;
+    }
+
+    @JsonProperty
+    void setDefaults(FilterRules rules) {
+      defaults = rules;
+    }
+
+    @JsonProperty
+    public Map<Integer, FilterRules> getProjects() {
+      if (projects == null) {
+        return new HashMap<>();
+      }
+      return projects;
+    }
+
+    @JsonProperty
+    void setProjects(Map<Integer, FilterRules> p) {
+      projects = p;
+    }
+  }
+
+  /**
+   * Branch and path rules are globs, where * matches within a path segment and ** matches across
+   * segments. An empty include list includes everything.
+   */
+  public static class FilterRules {
+    private List<@NotEmpty String> includeBranches = new ArrayList<>();
+
+    private List<@NotEmpty String> excludeBranches = new ArrayList<>();
+
+    /** Pushes are skipped unless they change at least one matching file. */
+    private List<@NotEmpty String> includePaths = new ArrayList<>();
+
+    /** Pushes are skipped if they only change matching files. */
+    private List<@NotEmpty String> excludePaths = new ArrayList<>();
+
+    /** Skip pushes whose head commit message contains [ci skip] or [skip ci]. */
+    private boolean honorCiSkip = true;
+
+    /** Skip pushes which delete the branch. */
+    private boolean skipBranchDeletions = true;
+
+    public FilterRules() {}
+
+    @JsonProperty
+    public List<String> getIncludeBranches() {
+      return includeBranches;
+    }
+
+    @JsonProperty
+    void setIncludeBranches(List<String> globs) {
+      includeBranches = globs;
+    }
+
+    @JsonProperty
+    public List<String> getExcludeBranches() {
+      return excludeBranches;
+    }
+
+    @JsonProperty
+    void setExcludeBranches(List<String> globs) {
+      excludeBranches = globs;
+    }
+
+    @JsonProperty
+    public List<String> getIncludePaths() {
+      return includePaths;
+    }
+
+    @JsonProperty
+    void setIncludePaths(List<String> globs) {
+      includePaths = globs;
+    }
+
+    @JsonProperty
+    public List<String> getExcludePaths() {
+      return excludePaths;
+    }
+
+    @JsonProperty
+    void setExcludePaths(List<String> globs) {
+      excludePaths = globs;
+    }
+
+    @JsonProperty
+    public boolean isHonorCiSkip() {
+      return honorCiSkip;
+    }
+
+    @JsonProperty
+    void setHonorCiSkip(boolean honor) {
+      honorCiSkip = honor;
+    }
+
+    @JsonProperty
+    public boolean isSkipBranchDeletions() {
+      return skipBranchDeletions;
+    }
+
+    @JsonProperty
+    void setSkipBranchDeletions(boolean skip) {
+      skipBranchDeletions = skip;
+    }
+  }
+
+  /**
+   * Whether a push to a branch cancels the pipeline we triggered for the previous push to it, if
+   * that is still running. Projects may be given their own setting in place of the default.
+   */
+  public static class AutoCancel {
+    private boolean enabled = false;
+
+    private Map<@Range(min = 0) Integer, Boolean> projects;
+
+    public AutoCancel() {}
+
+    @JsonProperty
+    boolean isEnabled() {
+      return enabled;
+    }
+
+    @JsonProperty
+    void setEnabled(boolean e) {
+      enabled = e;
+    }
+
+    /** @return True if pushes to the given GitLab project cancel the pipelines they supersede. */
+    public boolean isEnabledFor(int projectId) {
+      if (projects != null && projects.containsKey(projectId)) {
+        return projects.get(projectId);
+      }
+      return enabled;
+    }
+
+    @JsonProperty
+    Map<Integer, Boolean> getProjects() {
+      if (projects == null) {
+        return new HashMap<>();
+      }
+      return projects;
+    }
+
+    @JsonProperty
+    void setProjects(Map<Integer, Boolean> p) {
+      projects = p;
+    }
+  }
+
+  /** How we poll CircleCI for the state of the pipelines we trigger. */
+  public static class Polling {
+    /** Where to keep the state of the pipelines being polled. */
+    public enum StateStore {
+      /** Nowhere, so polls are abandoned when we stop. */
+      NONE,
+      /** On the heap, which is only useful when the connector is embedded in something else. */
+      MEMORY,
+      /** In files in the state directory, so that polls are resumed after a restart. */
+      FILE
+    }
+
+    /**
+     * If true, poll each pipeline alone and update GitLab with the workflows which changed between
+     * polls, rather than also polling every workflow separately. This halves the calls to CircleCI.
+     */
+    private boolean consolidated = false;
+
+    /** Only used with consolidated polling, which keeps the state of a pipeline in one place. */
+    @NotNull private StateStore stateStore = StateStore.NONE;
+
+    private String stateDirectory;
+
+    /** The time to spread resumed polls over after a restart, so they don't all happen at once. */
+    @Range(min = 0)
+    private long resumeSpreadMillis = 30000;
+
+    /**
+     * If true, remember how long each project's workflows usually take and poll them less often
+     * until they are expected to finish.
+     */
+    private boolean predictive = false;
+
+    /** The most project and workflow name pairs to remember durations for. */
+    @Range(min = 1)
+    private long durationHistoryMaxEntries = 10000;
+
+    /** How much each run moves the average duration of a workflow. */
+    @DecimalMin(value = "0", inclusive = false)
+    @DecimalMax("1")
+    private double durationHistoryWeight = 0.25;
+
+    /** The longest to wait between polls of a workflow which isn't expected to finish yet. */
+    @Range(min = 1000)
+    private long maxPredictedDelayMillis = 30000;
+
+    /** The most polls of CircleCI to make a second across every poller. 0 means no limit. */
+    @DecimalMin("0")
+    private double pollsPerSecond = 0;
+
+    /** How many polls may be made at once after a quiet spell. */
+    @Range(min = 1)
+    private int pollBurst = 1;
+
+    /**
+     * The most to move each reschedule by, as a fraction of its delay, so that pollers started
+     * together drift apart. 0, the default, leaves reschedules alone.
+     */
+    @DecimalMin("0")
+    @DecimalMax(value = "1", inclusive = false)
+    private double jitterRatio = 0;
+
+    public Polling() {}
+
+    @JsonProperty
+    public boolean isConsolidated() {
+      return consolidated;
+    }
+
+    @JsonProperty
+    void setConsolidated(boolean c) {
+      consolidated = c;
+    }
+
+    @JsonProperty
+    StateStore getStateStore() {
+      return stateStore;
+    }
+
+    @JsonProperty
+    void setStateStore(StateStore store) {
+      stateStore = store;
+    }
+
+    @JsonProperty
+    String getStateDirectory() {
+      return stateDirectory;
+    }
+
+    @JsonProperty
+    void setStateDirectory(String dir) {
+      stateDirectory = dir;
+    }
+
+    @JsonProperty
+    long getResumeSpreadMillis() {
+      return resumeSpreadMillis;
+    }
+
+    @JsonProperty
+    void setResumeSpreadMillis(long millis) {
+      resumeSpreadMillis = millis;
+    }
+
+    @JsonProperty
+    boolean isPredictive() {
+      return predictive;
+    }
+
+    @JsonProperty
+    void setPredictive(boolean p) {
+      predictive = p;
+    }
+
+    @JsonProperty
+    long getDurationHistoryMaxEntries() {
+      return durationHistoryMaxEntries;
+    }
+
+    @JsonProperty
+    void setDurationHistoryMaxEntries(long entries) {
+      durationHistoryMaxEntries = entries;
+    }
+
+    @JsonProperty
+    double getDurationHistoryWeight() {
+      return durationHistoryWeight;
+    }
+
+    @JsonProperty
+    void setDurationHistoryWeight(double weight) {
+      durationHistoryWeight = weight;
+    }
+
+    @JsonProperty
+    long getMaxPredictedDelayMillis() {
+      return maxPredictedDelayMillis;
+    }
+
+    @JsonProperty
+    void setMaxPredictedDelayMillis(long millis) {
+      maxPredictedDelayMillis = millis;
+    }
+
+    @JsonProperty
+    double getPollsPerSecond() {
+      return pollsPerSecond;
+    }
+
+    @JsonProperty
+    void setPollsPerSecond(double rate) {
+      pollsPerSecond = rate;
+    }
+
+    @JsonProperty
+    int getPollBurst() {
+      return pollBurst;
+    }
+
+    @JsonProperty
+    void setPollBurst(int burst) {
+      pollBurst = burst;
+    }
+
+    @JsonProperty
+    double getJitterRatio() {
+      return jitterRatio;
+    }
+
+    @JsonProperty
+    void setJitterRatio(double ratio) {
+      jitterRatio = ratio;
+    }
+  }
 }
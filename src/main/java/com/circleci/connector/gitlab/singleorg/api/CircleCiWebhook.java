@@ -0,0 +1,48 @@
+package com.circleci.connector.gitlab.singleorg.api;
+
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import java.util.UUID;
+import javax.annotation.Nullable;
+import org.immutables.value.Value;
+
+/**
+ * The parts of a CircleCI webhook which we use to tell GitLab about a workflow. CircleCI sends one
+ * when a workflow or a job completes.
+ */
+@Value.Immutable
+@JsonSerialize(as = ImmutableCircleCiWebhook.class)
+@JsonDeserialize(as = ImmutableCircleCiWebhook.class)
+public abstract class CircleCiWebhook {
+  public static final String WORKFLOW_COMPLETED = "workflow-completed";
+  public static final String JOB_COMPLETED = "job-completed";
+
+  /** @return The id of the event, which stays the same if CircleCI redelivers it. */
+  public abstract UUID id();
+
+  public abstract String type();
+
+  public abstract HookWorkflow workflow();
+
+  public abstract HookPipeline pipeline();
+
+  @Value.Immutable
+  @JsonSerialize(as = ImmutableHookWorkflow.class)
+  @JsonDeserialize(as = ImmutableHookWorkflow.class)
+  public abstract static class HookWorkflow {
+    public abstract UUID id();
+
+    public abstract String name();
+
+    /** @return The status the workflow finished with. Only set for a completed workflow. */
+    @Nullable
+    public abstract String status();
+  }
+
+  @Value.Immutable
+  @JsonSerialize(as = ImmutableHookPipeline.class)
+  @JsonDeserialize(as = ImmutableHookPipeline.class)
+  public abstract static class HookPipeline {
+    public abstract UUID id();
+  }
+}
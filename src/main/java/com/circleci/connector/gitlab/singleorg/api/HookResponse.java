@@ -12,7 +12,8 @@ import org.immutables.value.Value;
 public abstract class HookResponse {
   public enum Status {
     SUBMITTED,
-    IGNORED
+    IGNORED,
+    QUEUED
   }
 
   @JsonProperty
@@ -4,6 +4,8 @@ import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import java.util.List;
+import java.util.Optional;
 import java.util.UUID;
 import javax.validation.constraints.NotEmpty;
 import javax.validation.constraints.NotNull;
@@ -18,12 +20,27 @@ public abstract class PushHook {
     push
   }
 
-  @Value.Derived
+  /**
+   * @return An id for this delivery of the hook. This is random unless set explicitly, for example
+   *     when a hook is replayed from the journal.
+   */
+  @Value.Default
   @JsonIgnore
   public UUID id() {
     return UUID.randomUUID();
   }
 
+  /**
+   * @return When we received the hook, in milliseconds since the epoch, for telling which of two
+   *     pushes to a branch is the newer. GitLab doesn't send this; it is kept in the journal so
+   *     that a replayed hook keeps its place.
+   */
+  @Value.Default
+  @JsonProperty("received_at_millis")
+  public long receivedAtMillis() {
+    return System.currentTimeMillis();
+  }
+
   @Value.Derived
   @JsonIgnore
   public String branch() {
@@ -38,7 +55,7 @@ public abstract class PushHook {
   abstract ObjectKind objectKind();
 
   @NotEmpty
-  abstract String before();
+  public abstract String before();
 
   @NotEmpty
   public abstract String after();
@@ -65,6 +82,36 @@ public abstract class PushHook {
   @NotNull
   public abstract Project project();
 
+  /** @return Up to the first 20 commits in the push. GitLab leaves out any beyond that. */
+  public abstract List<Commit> commits();
+
+  /** @return The number of commits in the push, which may be more than are listed. */
+  @JsonProperty("total_commits_count")
+  @Value.Default
+  public int totalCommitsCount() {
+    return commits().size();
+  }
+
+  /** @return True if this push deleted the branch. */
+  @Value.Derived
+  @JsonIgnore
+  public boolean isBranchDeletion() {
+    return after().chars().allMatch(c -> c == '0');
+  }
+
+  /** @return True if this push created the branch. */
+  @Value.Derived
+  @JsonIgnore
+  public boolean isBranchCreation() {
+    return before().chars().allMatch(c -> c == '0');
+  }
+
+  /** @return The commit at the head of the push, if it is listed. */
+  @JsonIgnore
+  public Optional<Commit> headCommit() {
+    return commits().stream().filter(c -> after().equals(c.id())).findFirst();
+  }
+
   @Value.Immutable
   @JsonSerialize(as = ImmutableProject.class)
   @JsonDeserialize(as = ImmutableProject.class)
@@ -79,4 +126,20 @@ public abstract class PushHook {
     @NotEmpty
     public abstract String gitSshUrl();
   }
+
+  /** The parts of a commit we look at to decide whether to build a push. */
+  @Value.Immutable
+  @JsonSerialize(as = ImmutableCommit.class)
+  @JsonDeserialize(as = ImmutableCommit.class)
+  public abstract static class Commit {
+    public abstract String id();
+
+    public abstract String message();
+
+    public abstract List<String> added();
+
+    public abstract List<String> modified();
+
+    public abstract List<String> removed();
+  }
 }
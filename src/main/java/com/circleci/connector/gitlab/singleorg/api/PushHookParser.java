@@ -0,0 +1,180 @@
+package com.circleci.connector.gitlab.singleorg.api;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import io.dropwizard.jackson.Jackson;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Reads a push hook straight from a stream, pulling out only the fields which {@link PushHook}
+ * uses. Everything else, including most of each commit and the repository description, is skipped
+ * without being copied into memory.
+ */
+public final class PushHookParser {
+  private static final JsonFactory FACTORY = Jackson.newObjectMapper().getFactory();
+
+  private PushHookParser() {}
+
+  /**
+   * @param in The JSON body of a push hook. This is closed once the hook has been read.
+   * @return The push hook.
+   * @throws JsonMappingException If the hook is missing a field or a field has the wrong type.
+   * @throws IOException If the stream can't be read or does not contain valid JSON.
+   */
+  public static PushHook parse(InputStream in) throws IOException {
+    try (JsonParser parser = FACTORY.createParser(in)) {
+      expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+      ImmutablePushHook.Builder hook = ImmutablePushHook.builder();
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String field = parser.getCurrentName();
+        if (parser.nextToken() == JsonToken.VALUE_NULL) {
+          continue;
+        }
+        switch (field) {
+          case "object_kind":
+            hook.objectKind(objectKind(parser));
+            break;
+          case "before":
+            hook.before(text(parser));
+            break;
+          case "after":
+            hook.after(text(parser));
+            break;
+          case "ref":
+            hook.ref(text(parser));
+            break;
+          case "user_id":
+            hook.userId(parser.getIntValue());
+            break;
+          case "user_name":
+            hook.userName(text(parser));
+            break;
+          case "user_username":
+            hook.userUsername(text(parser));
+            break;
+          case "user_email":
+            hook.userEmail(text(parser));
+            break;
+          case "project":
+            hook.project(project(parser));
+            break;
+          case "commits":
+            expect(parser, parser.currentToken(), JsonToken.START_ARRAY);
+            while (parser.nextToken() != JsonToken.END_ARRAY) {
+              hook.addCommits(commit(parser));
+            }
+            break;
+          case "total_commits_count":
+            hook.totalCommitsCount(parser.getIntValue());
+            break;
+          default:
+            parser.skipChildren();
+        }
+      }
+      return build(parser, hook::build);
+    }
+  }
+
+  private static PushHook.Project project(JsonParser parser) throws IOException {
+    expect(parser, parser.currentToken(), JsonToken.START_OBJECT);
+    ImmutableProject.Builder project = ImmutableProject.builder();
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = parser.getCurrentName();
+      if (parser.nextToken() == JsonToken.VALUE_NULL) {
+        continue;
+      }
+      switch (field) {
+        case "id":
+          project.id(parser.getIntValue());
+          break;
+        case "name":
+          project.name(text(parser));
+          break;
+        case "git_ssh_url":
+          project.gitSshUrl(text(parser));
+          break;
+        default:
+          parser.skipChildren();
+      }
+    }
+    return build(parser, project::build);
+  }
+
+  private static PushHook.Commit commit(JsonParser parser) throws IOException {
+    expect(parser, parser.currentToken(), JsonToken.START_OBJECT);
+    ImmutableCommit.Builder commit = ImmutableCommit.builder();
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = parser.getCurrentName();
+      if (parser.nextToken() == JsonToken.VALUE_NULL) {
+        continue;
+      }
+      switch (field) {
+        case "id":
+          commit.id(text(parser));
+          break;
+        case "message":
+          commit.message(text(parser));
+          break;
+        case "added":
+          commit.addAllAdded(texts(parser));
+          break;
+        case "modified":
+          commit.addAllModified(texts(parser));
+          break;
+        case "removed":
+          commit.addAllRemoved(texts(parser));
+          break;
+        default:
+          parser.skipChildren();
+      }
+    }
+    return build(parser, commit::build);
+  }
+
+  private static PushHook.ObjectKind objectKind(JsonParser parser) throws IOException {
+    String kind = text(parser);
+    try {
+      return PushHook.ObjectKind.valueOf(kind);
+    } catch (IllegalArgumentException e) {
+      throw JsonMappingException.from(parser, "Unexpected object_kind: " + kind, e);
+    }
+  }
+
+  private static String text(JsonParser parser) throws IOException {
+    expect(parser, parser.currentToken(), JsonToken.VALUE_STRING);
+    return parser.getText();
+  }
+
+  private static List<String> texts(JsonParser parser) throws IOException {
+    expect(parser, parser.currentToken(), JsonToken.START_ARRAY);
+    List<String> texts = new ArrayList<>();
+    while (parser.nextToken() != JsonToken.END_ARRAY) {
+      texts.add(text(parser));
+    }
+    return texts;
+  }
+
+  private static void expect(JsonParser parser, JsonToken actual, JsonToken expected)
+      throws JsonMappingException {
+    if (actual != expected) {
+      throw JsonMappingException.from(
+          parser,
+          "Expected " + expected + " for " + parser.getParsingContext() + " but got " + actual);
+    }
+  }
+
+  /** Immutables reports missing fields with an IllegalStateException. */
+  private static <T> T build(JsonParser parser, Supplier<T> builder) throws JsonMappingException {
+    try {
+      return builder.get();
+    } catch (IllegalStateException e) {
+      throw JsonMappingException.from(parser, e.getMessage(), e);
+    }
+  }
+}
@@ -0,0 +1,221 @@
+package com.circleci.connector.gitlab.singleorg.client;
+
+import com.circleci.client.v2.ApiException;
+import com.circleci.client.v2.model.PipelineLight;
+import com.circleci.client.v2.model.PipelineWithWorkflows;
+import com.circleci.client.v2.model.PipelineWithWorkflowsWorkflows;
+import com.circleci.connector.gitlab.singleorg.model.ImmutablePipeline;
+import com.circleci.connector.gitlab.singleorg.model.Pipeline;
+import com.circleci.connector.gitlab.singleorg.model.Workflow;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.dropwizard.jackson.Jackson;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Collectors;
+import javax.annotation.Nullable;
+import javax.validation.constraints.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Calls the CircleCI REST API without blocking. Every call returns as soon as its request is sent,
+ * and the response is handled on one of the HTTP client's own threads, so callers can chain on the
+ * result without holding a thread of their own while CircleCI responds.
+ *
+ * <p>Failures are the same as those of the equivalent methods on {@link CircleCi}, delivered by
+ * completing the future exceptionally rather than by throwing.
+ */
+public class AsyncCircleCi {
+  private static final Logger LOGGER = LoggerFactory.getLogger(AsyncCircleCi.class);
+
+  private static final ObjectMapper MAPPER =
+      Jackson.newObjectMapper()
+          .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES)
+          .setSerializationInclusion(JsonInclude.Include.NON_NULL);
+
+  @NotNull private final HttpClient httpClient;
+
+  /** The root of the API, such as https://circleci.com/api/v2 */
+  @NotNull private final String basePath;
+
+  @NotNull private final String apiToken;
+
+  /** How long to wait for each response, zero to wait for as long as it takes. */
+  @NotNull private final Duration requestTimeout;
+
+  public AsyncCircleCi(
+      HttpClient httpClient, String basePath, String apiToken, Duration requestTimeout) {
+    this.httpClient = httpClient;
+    this.basePath = basePath;
+    this.apiToken = apiToken;
+    this.requestTimeout = requestTimeout;
+  }
+
+  /**
+   * Refresh a pipeline, fetching all of its workflows at once.
+   *
+   * <p>A workflow we fail to fetch is left out of the result, and the whole refresh fails if
+   * CircleCI throttles us or is struggling, as it does in {@link
+   * CircleCi#refreshPipeline(Pipeline)}.
+   */
+  public CompletableFuture<Pipeline> refreshPipeline(Pipeline pipeline) {
+    return send(request("pipeline/" + pipeline.id()).GET())
+        .thenApply(
+            response -> {
+              if (!isSuccessful(response)) {
+                ApiException e = apiException(response);
+                LOGGER.error("Failed to fetch pipeline", e);
+                throw new RuntimeException(e);
+              }
+              return read(response.body(), PipelineWithWorkflows.class);
+            })
+        .thenCompose(
+            pipelineWithWorkflows -> {
+              CircleCi.checkPipeline(pipeline, pipelineWithWorkflows);
+
+              List<CompletableFuture<Workflow>> fetches = new ArrayList<>();
+              for (PipelineWithWorkflowsWorkflows circleCiWorkflow :
+                  pipelineWithWorkflows.getWorkflows()) {
+                UUID id = circleCiWorkflow.getId();
+                fetches.add(
+                    fetchWorkflow(id)
+                        .exceptionally(
+                            e -> {
+                              if (CircleCiLimiter.isStruggling(e)) {
+                                throw e instanceof CompletionException
+                                    ? (CompletionException) e
+                                    : new CompletionException(e);
+                              }
+                              LOGGER.warn("Leaving workflow {} out of this refresh", id, e);
+                              return null;
+                            }));
+              }
+              return CompletableFuture.allOf(fetches.toArray(new CompletableFuture<?>[0]))
+                  .thenApply(
+                      done ->
+                          ImmutablePipeline.copyOf(pipeline)
+                              .withWorkflows(
+                                  fetches.stream()
+                                      .map(CompletableFuture::join)
+                                      .filter(Objects::nonNull)
+                                      .collect(Collectors.toSet())));
+            });
+  }
+
+  public CompletableFuture<Workflow> refreshWorkflow(Workflow workflow) {
+    return fetchWorkflow(workflow.id());
+  }
+
+  /**
+   * Trigger a pipeline. A 4xx response from CircleCI fails the future with a {@link
+   * javax.ws.rs.ClientErrorException} carrying CircleCI's message, as {@link
+   * CircleCi#triggerPipeline} throws.
+   */
+  public CompletableFuture<Pipeline> triggerPipeline(
+      Pipeline pipeline,
+      String circleCiConfig,
+      String userId,
+      String login,
+      String projectSlug,
+      String sshFingerprint,
+      String gitSshUrl) {
+    if (pipeline.triggered()) {
+      return CompletableFuture.failedFuture(
+          new IllegalStateException("This pipeline was already triggered."));
+    }
+
+    String body;
+    try {
+      body =
+          MAPPER.writeValueAsString(
+              CircleCi.triggerParameters(pipeline, circleCiConfig, sshFingerprint, gitSshUrl));
+    } catch (JsonProcessingException e) {
+      return CompletableFuture.failedFuture(new RuntimeException(e));
+    }
+
+    HttpRequest.Builder request =
+        request("project/" + projectSlug + "/pipeline")
+            .header("Content-Type", "application/json")
+            .POST(HttpRequest.BodyPublishers.ofString(body));
+    if (login != null) {
+      request.header("x-attribution-login", login);
+    }
+    if (userId != null) {
+      request.header("x-attribution-actor-id", userId);
+    }
+
+    return send(request)
+        .thenApply(
+            response -> {
+              if (!isSuccessful(response)) {
+                ApiException e = apiException(response);
+                LOGGER.error("Failed to trigger pipeline", e);
+                throw CircleCi.triggerFailure(e);
+              }
+              PipelineLight pipelineLight = read(response.body(), PipelineLight.class);
+              return ImmutablePipeline.builder().from(pipeline).id(pipelineLight.getId()).build();
+            });
+  }
+
+  private CompletableFuture<Workflow> fetchWorkflow(UUID circleCiWorkflowId) {
+    return send(request("workflow/" + circleCiWorkflowId).GET())
+        .thenApply(
+            response -> {
+              if (!isSuccessful(response)) {
+                ApiException e = apiException(response);
+                LOGGER.error("Failed to fetch workflow", e);
+                throw new RuntimeException(e);
+              }
+              return CircleCi.toWorkflow(
+                  circleCiWorkflowId,
+                  read(response.body(), com.circleci.client.v2.model.Workflow.class));
+            });
+  }
+
+  private HttpRequest.Builder request(String path) {
+    HttpRequest.Builder request =
+        HttpRequest.newBuilder(URI.create(basePath + "/" + path))
+            .header("Circle-Token", apiToken)
+            .header("Accept", "application/json");
+    if (!requestTimeout.isZero()) {
+      request.timeout(requestTimeout);
+    }
+    return request;
+  }
+
+  private CompletableFuture<HttpResponse<String>> send(HttpRequest.Builder request) {
+    return httpClient.sendAsync(request.build(), HttpResponse.BodyHandlers.ofString());
+  }
+
+  private static boolean isSuccessful(HttpResponse<?> response) {
+    return response.statusCode() >= 200 && response.statusCode() < 300;
+  }
+
+  /** Describe a failed call the same way the CircleCI API library does. */
+  private static ApiException apiException(HttpResponse<String> response) {
+    return new ApiException(
+        response.statusCode(), response.body(), response.headers().map(), response.body());
+  }
+
+  private static <T> T read(@Nullable String body, Class<T> type) {
+    try {
+      return MAPPER.readValue(body, type);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
@@ -14,12 +14,23 @@ import com.circleci.connector.gitlab.singleorg.model.Workflow;
 import com.circleci.connector.gitlab.singleorg.model.Workflow.State;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.Futures;
 import io.dropwizard.jackson.Jackson;
-import java.util.HashSet;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
 import javax.annotation.Nullable;
 import javax.validation.constraints.NotNull;
 import javax.ws.rs.ClientErrorException;
@@ -35,8 +46,42 @@ public class CircleCi {
   /** The CircleCI API library, configured to call the CircleCI REST API. */
   @NotNull private final DefaultApi circleCiApi;
 
+  /** Threads shared by all pipelines for fetching workflows, or null to fetch them serially. */
+  @Nullable private final ExecutorService workflowFetchers;
+
+  /** The most workflows of a single pipeline to fetch at once, including on the caller. */
+  private final int fetchesPerPipeline;
+
+  /**
+   * Shares workflow reads between the pipeline and workflow pollers, null if every poll should call
+   * CircleCI.
+   */
+  @Nullable
+  private final SingleFlightCache<UUID, com.circleci.client.v2.model.Workflow> workflowReads;
+
+  /** Calls CircleCI without blocking for the pollers, or null if they should use the library. */
+  @Nullable private final AsyncCircleCi asyncClient;
+
+  /** Holds back refreshes when CircleCI is struggling, or null to always call it. */
+  @Nullable private final CircleCiLimiter limiter;
+
   public CircleCi(@NotNull DefaultApi circleCiApi) {
+    this(circleCiApi, null, 1, null, null, null);
+  }
+
+  public CircleCi(
+      @NotNull DefaultApi circleCiApi,
+      @Nullable ExecutorService workflowFetchers,
+      int fetchesPerPipeline,
+      @Nullable SingleFlightCache<UUID, com.circleci.client.v2.model.Workflow> workflowReads,
+      @Nullable AsyncCircleCi asyncClient,
+      @Nullable CircleCiLimiter limiter) {
     this.circleCiApi = circleCiApi;
+    this.workflowFetchers = workflowFetchers;
+    this.fetchesPerPipeline = fetchesPerPipeline;
+    this.workflowReads = workflowReads;
+    this.asyncClient = asyncClient;
+    this.limiter = limiter;
   }
 
   public static final Map<StatusEnum, State> CIRCLECI_TO_WORKFLOW_STATE_MAP =
@@ -58,7 +103,7 @@ public class CircleCi {
    * @param e An ApiException as thrown by the CircleCI API.
    * @return The error message from the exception, possibly unwrapped from JSON.
    */
-  private static String maybeGetCircleCiApiErrorMessage(ApiException e) {
+  static String maybeGetCircleCiApiErrorMessage(ApiException e) {
     try {
       return MAPPER.readValue(e.getMessage(), CircleCiErrorResponse.class).getMessage();
     } catch (Exception _e) {
@@ -66,6 +111,68 @@ public class CircleCi {
     }
   }
 
+  /**
+   * Check that CircleCI gave us the pipeline we asked for.
+   *
+   * @throws IllegalArgumentException If it's a different pipeline, or for a different revision.
+   */
+  static void checkPipeline(Pipeline pipeline, PipelineWithWorkflows pipelineWithWorkflows) {
+    if (pipeline.id() != null && !pipeline.id().equals(pipelineWithWorkflows.getId())) {
+      throw new IllegalArgumentException(
+          String.format(
+              "Unexpected id %s in triggered pipeline %s",
+              pipelineWithWorkflows.getId(), pipeline));
+    }
+
+    if (!pipeline.revision().equals(pipelineWithWorkflows.getVcs().getRevision())) {
+      throw new IllegalArgumentException(
+          String.format("Unexpected revision in triggered pipeline %s", pipeline));
+    }
+  }
+
+  /**
+   * Convert a workflow from the CircleCI API to our own model.
+   *
+   * @throws IllegalArgumentException If the workflow is in a state we don't know about.
+   */
+  static Workflow toWorkflow(
+      UUID circleCiWorkflowId, com.circleci.client.v2.model.Workflow circleCiWorkflow) {
+    StatusEnum circleCiState = circleCiWorkflow.getStatus();
+
+    if (circleCiState == null || !CIRCLECI_TO_WORKFLOW_STATE_MAP.containsKey(circleCiState)) {
+      throw new IllegalArgumentException(
+          String.format("Unknown workflow state %s", circleCiState.name()));
+    }
+
+    State workflowState = CIRCLECI_TO_WORKFLOW_STATE_MAP.get(circleCiState);
+
+    return ImmutableWorkflow.of(circleCiWorkflowId, circleCiWorkflow.getName(), workflowState);
+  }
+
+  /** Build the parameters for triggering a pipeline with the given config. */
+  static TriggerPipelineWithConfigParameters triggerParameters(
+      Pipeline pipeline, String circleCiConfig, String sshFingerprint, String gitSshUrl) {
+    var params = new TriggerPipelineWithConfigParameters();
+    params.setConfig(circleCiConfig);
+    params.setBranch(pipeline.branch());
+    params.setRevision(pipeline.revision());
+    params.setParameters(
+        Map.of("gitlab_ssh_fingerprint", sshFingerprint, "gitlab_git_uri", gitSshUrl));
+    return params;
+  }
+
+  /**
+   * Map a failure to trigger a pipeline to the exception we throw for it. 4xx responses are passed
+   * through verbatim for ease of debugging.
+   */
+  static RuntimeException triggerFailure(ApiException e) {
+    if (e.getCode() >= 400 && e.getCode() < 500) {
+      return new ClientErrorException(
+          maybeGetCircleCiApiErrorMessage(e), Response.Status.fromStatusCode(e.getCode()));
+    }
+    return new RuntimeException(e);
+  }
+
   public Pipeline refreshPipeline(Pipeline pipeline) {
     PipelineWithWorkflows pipelineWithWorkflows;
 
@@ -76,46 +183,107 @@ public class CircleCi {
       throw new RuntimeException(e);
     }
 
-    if (pipeline.id() != null && !pipeline.id().equals(pipelineWithWorkflows.getId())) {
-      throw new IllegalArgumentException(
-          String.format(
-              "Unexpected id %s in triggered pipeline %s",
-              pipelineWithWorkflows.getId(), pipeline));
+    checkPipeline(pipeline, pipelineWithWorkflows);
+
+    Queue<UUID> workflowIds = new ConcurrentLinkedQueue<>();
+    for (PipelineWithWorkflowsWorkflows circleCiWorkflow : pipelineWithWorkflows.getWorkflows()) {
+      workflowIds.add(circleCiWorkflow.getId());
     }
 
-    if (!pipeline.revision().equals(pipelineWithWorkflows.getVcs().getRevision())) {
-      throw new IllegalArgumentException(
-          String.format("Unexpected revision in triggered pipeline %s", pipeline));
+    return ImmutablePipeline.copyOf(pipeline).withWorkflows(fetchWorkflows(workflowIds));
+  }
+
+  /**
+   * Fetch workflows, up to {@link #fetchesPerPipeline} at a time. The calling thread fetches
+   * workflows too, and does all of the work itself if the shared fetchers are all busy.
+   *
+   * <p>A workflow we fail to fetch is left out of the result, so that one bad workflow doesn't stop
+   * us reporting on the others. Pollers will pick it up again on the next refresh. If CircleCI
+   * throttles us or is struggling though, the whole refresh fails, so that the limiter hears about
+   * it and backs off.
+   */
+  private Set<Workflow> fetchWorkflows(Queue<UUID> workflowIds) {
+    Set<Workflow> workflows = ConcurrentHashMap.newKeySet();
+    AtomicReference<RuntimeException> struggling = new AtomicReference<>();
+    Runnable fetcher =
+        () -> {
+          for (UUID id = workflowIds.poll(); id != null; id = workflowIds.poll()) {
+            try {
+              workflows.add(fetchWorkflow(id));
+            } catch (RuntimeException e) {
+              if (CircleCiLimiter.isStruggling(e)) {
+                struggling.compareAndSet(null, e);
+                workflowIds.clear();
+              } else {
+                LOGGER.warn("Leaving workflow {} out of this refresh", id, e);
+              }
+            }
+          }
+        };
+
+    List<Helper> helpers = new ArrayList<>();
+    if (workflowFetchers != null) {
+      int wanted = Math.min(fetchesPerPipeline, workflowIds.size()) - 1;
+      try {
+        for (int i = 0; i < wanted; i++) {
+          Helper helper = new Helper(fetcher);
+          helper.future = workflowFetchers.submit(helper);
+          helpers.add(helper);
+        }
+      } catch (RejectedExecutionException e) {
+        // Everyone is busy, so do the rest ourselves
+      }
     }
 
-    List<PipelineWithWorkflowsWorkflows> circleCiWorkflows = pipelineWithWorkflows.getWorkflows();
-    Set<Workflow> workflows = new HashSet<>();
-    for (PipelineWithWorkflowsWorkflows circleCiWorkflow : circleCiWorkflows) {
-      workflows.add(fetchWorkflow(circleCiWorkflow.getId()));
+    fetcher.run();
+
+    // Wait for the helpers which are still fetching. Ones which never got a thread will find
+    // nothing left to do.
+    for (Helper helper : helpers) {
+      if (!helper.claimed.compareAndSet(false, true)) {
+        Futures.getUnchecked(helper.future);
+      }
+    }
+    if (struggling.get() != null) {
+      throw struggling.get();
+    }
+    return workflows;
+  }
+
+  /** A share of a refresh, which does nothing if the refresh finished before it started. */
+  private static final class Helper implements Runnable {
+    private final AtomicBoolean claimed = new AtomicBoolean();
+    private final Runnable fetcher;
+    private Future<?> future;
+
+    Helper(Runnable fetcher) {
+      this.fetcher = fetcher;
     }
 
-    return ImmutablePipeline.copyOf(pipeline).withWorkflows(workflows);
+    @Override
+    public void run() {
+      if (claimed.compareAndSet(false, true)) {
+        fetcher.run();
+      }
+    }
   }
 
   private Workflow fetchWorkflow(UUID circleCiWorkflowId) {
     com.circleci.client.v2.model.Workflow circleCiWorkflow = null;
     try {
-      circleCiWorkflow = circleCiApi.getWorkflowById(circleCiWorkflowId);
+      if (workflowReads == null) {
+        circleCiWorkflow = circleCiApi.getWorkflowById(circleCiWorkflowId);
+      } else {
+        circleCiWorkflow =
+            workflowReads.get(
+                circleCiWorkflowId, () -> circleCiApi.getWorkflowById(circleCiWorkflowId));
+      }
     } catch (ApiException e) {
       LOGGER.error("Failed to fetch workflow", e);
       throw new RuntimeException(e);
     }
 
-    StatusEnum circleCiState = circleCiWorkflow.getStatus();
-
-    if (circleCiState == null || !CIRCLECI_TO_WORKFLOW_STATE_MAP.containsKey(circleCiState)) {
-      throw new IllegalArgumentException(
-          String.format("Unknown workflow state %s", circleCiState.name()));
-    }
-
-    State workflowState = CIRCLECI_TO_WORKFLOW_STATE_MAP.get(circleCiState);
-
-    return ImmutableWorkflow.of(circleCiWorkflowId, circleCiWorkflow.getName(), workflowState);
+    return toWorkflow(circleCiWorkflowId, circleCiWorkflow);
   }
 
   public Pipeline triggerPipeline(
@@ -130,23 +298,12 @@ public class CircleCi {
       throw new IllegalStateException("This pipeline was already triggered.");
     }
     try {
-      var params = new TriggerPipelineWithConfigParameters();
-      params.setConfig(circleCiConfig);
-      params.setBranch(pipeline.branch());
-      params.setRevision(pipeline.revision());
-      params.setParameters(
-          Map.of("gitlab_ssh_fingerprint", sshFingerprint, "gitlab_git_uri", gitSshUrl));
+      var params = triggerParameters(pipeline, circleCiConfig, sshFingerprint, gitSshUrl);
       PipelineLight pipelineLight = circleCiApi.triggerPipeline(projectSlug, login, userId, params);
       return ImmutablePipeline.builder().from(pipeline).id(pipelineLight.getId()).build();
     } catch (ApiException e) {
       LOGGER.error("Failed to trigger pipeline", e);
-
-      // Pass through 4xx responses verbatim for ease of debugging.
-      if (e.getCode() >= 400 && e.getCode() < 500) {
-        throw new ClientErrorException(
-            maybeGetCircleCiApiErrorMessage(e), Response.Status.fromStatusCode(e.getCode()));
-      }
-      throw new RuntimeException(e);
+      throw triggerFailure(e);
     }
   }
 
@@ -154,6 +311,64 @@ public class CircleCi {
     return fetchWorkflow(workflow.id());
   }
 
+  /**
+   * Cancel a running workflow.
+   *
+   * @throws RuntimeException If CircleCI refused or failed to cancel it.
+   */
+  public void cancelWorkflow(Workflow workflow) {
+    try {
+      circleCiApi.cancelWorkflow(workflow.id());
+    } catch (ApiException e) {
+      LOGGER.error("Failed to cancel workflow {}", workflow.id(), e);
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Refresh a pipeline without holding a thread while CircleCI responds. Without a non-blocking
+   * client the refresh happens on the calling thread, as {@link #refreshPipeline(Pipeline)}.
+   *
+   * @return The refreshed pipeline, or the same failure {@link #refreshPipeline(Pipeline)} throws.
+   *     Fails with a {@link CircleCiLimiter.DeferredException} if CircleCI wasn't called because
+   *     it's struggling.
+   */
+  public CompletableFuture<Pipeline> refreshPipelineAsync(Pipeline pipeline) {
+    return limited(
+        () ->
+            asyncClient != null
+                ? asyncClient.refreshPipeline(pipeline)
+                : onCallingThread(() -> refreshPipeline(pipeline)));
+  }
+
+  /**
+   * Refresh a workflow without holding a thread while CircleCI responds. Without a non-blocking
+   * client the refresh happens on the calling thread, as {@link #refreshWorkflow(Workflow)}.
+   *
+   * @return The refreshed workflow, or the same failure {@link #refreshWorkflow(Workflow)} throws.
+   *     Fails with a {@link CircleCiLimiter.DeferredException} if CircleCI wasn't called because
+   *     it's struggling.
+   */
+  public CompletableFuture<Workflow> refreshWorkflowAsync(Workflow workflow) {
+    return limited(
+        () ->
+            asyncClient != null
+                ? asyncClient.refreshWorkflow(workflow)
+                : onCallingThread(() -> refreshWorkflow(workflow)));
+  }
+
+  private <T> CompletableFuture<T> limited(Supplier<CompletableFuture<T>> call) {
+    return limiter != null ? limiter.call(call) : call.get();
+  }
+
+  private static <T> CompletableFuture<T> onCallingThread(Supplier<T> call) {
+    try {
+      return CompletableFuture.completedFuture(call.get());
+    } catch (RuntimeException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+  }
+
   static class TriggerPipelineWithConfigParameters extends TriggerPipelineParameters {
 
     @JsonProperty private String config;
@@ -0,0 +1,328 @@
+package com.circleci.connector.gitlab.singleorg.client;
+
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import javax.annotation.Nullable;
+import org.yaml.snakeyaml.DumperOptions.FlowStyle;
+import org.yaml.snakeyaml.error.YAMLException;
+import org.yaml.snakeyaml.events.CollectionEndEvent;
+import org.yaml.snakeyaml.events.CollectionStartEvent;
+import org.yaml.snakeyaml.events.DocumentEndEvent;
+import org.yaml.snakeyaml.events.DocumentStartEvent;
+import org.yaml.snakeyaml.events.Event;
+import org.yaml.snakeyaml.events.MappingEndEvent;
+import org.yaml.snakeyaml.events.MappingStartEvent;
+import org.yaml.snakeyaml.events.ScalarEvent;
+import org.yaml.snakeyaml.events.StreamEndEvent;
+import org.yaml.snakeyaml.events.StreamStartEvent;
+import org.yaml.snakeyaml.parser.Parser;
+import org.yaml.snakeyaml.parser.ParserImpl;
+import org.yaml.snakeyaml.reader.StreamReader;
+
+/**
+ * Adds the git-checkout command and the GitLab pipeline parameters to a CircleCI config by
+ * inserting text into the user's YAML, rather than parsing it into a tree and writing the whole
+ * tree out again. The config is only run through the YAML parser's event stream to find where the
+ * new entries belong, so the rest of the document, comments and all, is passed through untouched.
+ * The parser reads the config straight from the stream it is fetched on, and the text is kept as it
+ * goes by, so the config is read only once.
+ *
+ * <p>Only the common shape of config is handled: a single document whose root is a block mapping,
+ * with {@code parameters} and {@code commands} either absent or block mappings which don't already
+ * define the entries we add. For anything else {@link #splice} returns null and the caller should
+ * fall back to {@link GitLab#extendCircleCiConfig}.
+ */
+final class CircleCiConfigSplicer {
+  private static final String INDENT = "  ";
+
+  private static final List<String> PARAMETERS =
+      List.of("gitlab_ssh_fingerprint", "gitlab_git_uri");
+  private static final List<String> COMMANDS = List.of("git-checkout");
+
+  private CircleCiConfigSplicer() {}
+
+  /**
+   * @param yaml The user's CircleCI config.
+   * @return The config with our parameters and command added, or null if it can't be spliced.
+   */
+  @Nullable
+  static String splice(String yaml) {
+    try {
+      return splice(new StringReader(yaml)).spliced;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Read a config to the end, splicing our additions into it as it is read.
+   *
+   * @param reader The user's CircleCI config.
+   * @return The config as read, and the spliced config if it could be spliced.
+   * @throws IOException If the config couldn't be read.
+   */
+  static Result splice(Reader reader) throws IOException {
+    RecordingReader recorder = new RecordingReader(reader);
+    String spliced;
+    try {
+      spliced = new Scan(recorder.text, recorder).splice();
+    } catch (YAMLException | UnsupportedShapeException e) {
+      // The parser reports read failures as YAML errors, so reading what it left throws them again
+      spliced = null;
+    }
+    recorder.drain();
+    return new Result(recorder.text.toString(), spliced);
+  }
+
+  /** A config as it was read, and with our additions spliced in. */
+  static final class Result {
+    /** The config as read. */
+    final String yaml;
+
+    /** The config with our additions, or null if it couldn't be spliced. */
+    @Nullable final String spliced;
+
+    private Result(String yaml, @Nullable String spliced) {
+      this.yaml = yaml;
+      this.spliced = spliced;
+    }
+  }
+
+  /** Keeps the text which passes through it, for copying into the spliced config. */
+  private static final class RecordingReader extends FilterReader {
+    private final StringBuilder text = new StringBuilder();
+
+    RecordingReader(Reader in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int c = super.read();
+      if (c >= 0) {
+        text.append((char) c);
+      }
+      return c;
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+      int n = super.read(cbuf, off, len);
+      if (n > 0) {
+        text.append(cbuf, off, n);
+      }
+      return n;
+    }
+
+    /** Read whatever the parser didn't. */
+    void drain() throws IOException {
+      char[] buffer = new char[8192];
+      while (read(buffer, 0, buffer.length) >= 0) {}
+    }
+  }
+
+  private static List<String> parameterLines() {
+    List<String> lines = new ArrayList<>();
+    for (String parameter : PARAMETERS) {
+      lines.add(parameter + ": " + GitLab.STRING_PARAMETER_YAML);
+    }
+    return lines;
+  }
+
+  private static List<String> commandLines() {
+    List<String> lines = new ArrayList<>();
+    lines.add(COMMANDS.get(0) + ":");
+    for (String line : GitLab.GIT_CHECKOUT_COMMAND_YAML.split("\n")) {
+      lines.add(INDENT + line);
+    }
+    return lines;
+  }
+
+  /** Render lines to go before a key which starts at the given column. */
+  private static String render(List<String> lines, int column) {
+    String indent = " ".repeat(column);
+    StringBuilder text = new StringBuilder();
+    for (String line : lines) {
+      text.append(line).append('\n').append(indent);
+    }
+    return text.toString();
+  }
+
+  /** Thrown when the config is valid YAML but not in a shape we know how to splice. */
+  private static final class UnsupportedShapeException extends Exception {
+    UnsupportedShapeException() {
+      super(null, null, false, false);
+    }
+  }
+
+  /** One pass over the events of a config, remembering where to insert our entries. */
+  private static final class Scan {
+    /** The text the parser has read so far, which is all of it once the stream has ended. */
+    private final StringBuilder yaml;
+
+    private final Parser parser;
+
+    /** Text to insert, keyed by the code point index to insert it at. */
+    private final TreeMap<Integer, String> insertions = new TreeMap<>();
+
+    Scan(StringBuilder yaml, Reader reader) {
+      this.yaml = yaml;
+      this.parser = new ParserImpl(new StreamReader(reader));
+    }
+
+    String splice() throws UnsupportedShapeException {
+      expect(StreamStartEvent.class);
+      expect(DocumentStartEvent.class);
+      Event root = parser.getEvent();
+      if (!isBlockMapping(root)) {
+        throw new UnsupportedShapeException();
+      }
+
+      ScalarEvent firstKey = null;
+      boolean sawParameters = false;
+      boolean sawCommands = false;
+      for (Event key = parser.getEvent();
+          !(key instanceof MappingEndEvent);
+          key = parser.getEvent()) {
+        ScalarEvent scalarKey = startOfLine(key);
+        if (firstKey == null) {
+          firstKey = scalarKey;
+        }
+        String name = scalarKey.getValue();
+        if ("parameters".equals(name) && !sawParameters) {
+          sawParameters = true;
+          insertIntoSection(PARAMETERS, parameterLines());
+        } else if ("commands".equals(name) && !sawCommands) {
+          sawCommands = true;
+          insertIntoSection(COMMANDS, commandLines());
+        } else if ("parameters".equals(name) || "commands".equals(name)) {
+          throw new UnsupportedShapeException();
+        } else {
+          skipNode(parser.getEvent());
+        }
+      }
+      expect(DocumentEndEvent.class);
+      expect(StreamEndEvent.class);
+      if (firstKey == null) {
+        throw new UnsupportedShapeException();
+      }
+
+      int column = firstKey.getStartMark().getColumn();
+      if (!sawParameters) {
+        addSection(firstKey, "parameters", parameterLines(), column);
+      }
+      if (!sawCommands) {
+        addSection(firstKey, "commands", commandLines(), column);
+      }
+      return applyInsertions();
+    }
+
+    /** Add entries before the first key of the block mapping which comes next. */
+    private void insertIntoSection(List<String> names, List<String> lines)
+        throws UnsupportedShapeException {
+      if (!isBlockMapping(parser.getEvent())) {
+        throw new UnsupportedShapeException();
+      }
+      Set<String> keys = new HashSet<>();
+      ScalarEvent firstKey = null;
+      for (Event key = parser.getEvent();
+          !(key instanceof MappingEndEvent);
+          key = parser.getEvent()) {
+        ScalarEvent scalarKey = startOfLine(key);
+        if (firstKey == null) {
+          firstKey = scalarKey;
+        }
+        keys.add(scalarKey.getValue());
+        skipNode(parser.getEvent());
+      }
+      if (firstKey == null || names.stream().anyMatch(keys::contains)) {
+        throw new UnsupportedShapeException();
+      }
+      insert(firstKey, render(lines, firstKey.getStartMark().getColumn()));
+    }
+
+    /** Add a whole new top-level section before the first top-level key. */
+    private void addSection(ScalarEvent firstKey, String name, List<String> lines, int column) {
+      List<String> section = new ArrayList<>();
+      section.add(name + ":");
+      for (String line : lines) {
+        section.add(INDENT + line);
+      }
+      insert(firstKey, render(section, column));
+    }
+
+    private void insert(Event before, String text) {
+      insertions.merge(before.getStartMark().getIndex(), text, String::concat);
+    }
+
+    private String applyInsertions() {
+      StringBuilder spliced = new StringBuilder(yaml.length() + 512);
+      int copied = 0;
+      for (var insertion : insertions.entrySet()) {
+        int offset = yaml.offsetByCodePoints(0, insertion.getKey());
+        spliced.append(yaml, copied, offset).append(insertion.getValue());
+        copied = offset;
+      }
+      return spliced.append(yaml, copied, yaml.length()).toString();
+    }
+
+    /**
+     * @return The key as a scalar, if it is a plain mapping key with only indentation before it on
+     *     its line, so that text inserted before it can reuse that indentation.
+     */
+    private ScalarEvent startOfLine(Event key) throws UnsupportedShapeException {
+      if (!(key instanceof ScalarEvent)) {
+        throw new UnsupportedShapeException();
+      }
+      int offset = yaml.offsetByCodePoints(0, key.getStartMark().getIndex());
+      int column = key.getStartMark().getColumn();
+      if (offset < column) {
+        throw new UnsupportedShapeException();
+      }
+      for (int i = offset - column; i < offset; i++) {
+        if (yaml.charAt(i) != ' ') {
+          throw new UnsupportedShapeException();
+        }
+      }
+      if (offset - column > 0 && yaml.charAt(offset - column - 1) != '\n') {
+        throw new UnsupportedShapeException();
+      }
+      return (ScalarEvent) key;
+    }
+
+    /** Consume the rest of the node which starts with the given event. */
+    private void skipNode(Event start) {
+      if (!(start instanceof CollectionStartEvent)) {
+        return;
+      }
+      int depth = 1;
+      while (depth > 0) {
+        Event event = parser.getEvent();
+        if (event instanceof CollectionStartEvent) {
+          depth++;
+        } else if (event instanceof CollectionEndEvent) {
+          depth--;
+        }
+      }
+    }
+
+    private void expect(Class<? extends Event> type) throws UnsupportedShapeException {
+      if (!type.isInstance(parser.getEvent())) {
+        throw new UnsupportedShapeException();
+      }
+    }
+
+    private static boolean isBlockMapping(Event event) {
+      return event instanceof MappingStartEvent
+          && ((MappingStartEvent) event).getFlowStyle() == FlowStyle.BLOCK;
+    }
+  }
+}
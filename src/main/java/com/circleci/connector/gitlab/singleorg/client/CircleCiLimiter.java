@@ -0,0 +1,330 @@
+package com.circleci.connector.gitlab.singleorg.client;
+
+import com.circleci.client.v2.ApiException;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
+import com.google.common.base.Ticker;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import javax.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Shares the load we put on CircleCI between all of the pollers. It limits how many calls may be in
+ * flight at once, adjusting the limit to how CircleCI is coping: the limit grows slowly while calls
+ * succeed, and is halved whenever CircleCI throttles us, fails or times out.
+ *
+ * <p>It is also a circuit breaker. Enough failures in a row, or a single 429, stop all calls for a
+ * while, for as long as CircleCI asked in its Retry-After header if it did. After that a single
+ * call is let through to see whether CircleCI has recovered.
+ *
+ * <p>A call which isn't let through fails with a {@link DeferredException} without calling
+ * CircleCI, saying how long to wait before trying again. Pollers treat this as a reason to poll
+ * later, not as an error.
+ */
+public class CircleCiLimiter {
+  private static final Logger LOGGER = LoggerFactory.getLogger(CircleCiLimiter.class);
+
+  /** How long to defer a call which was turned away because too many calls are in flight. */
+  private static final long BUSY_RETRY_MILLIS = 1000;
+
+  /** Returned by {@link #tryAcquire()} for the call which checks whether CircleCI has recovered. */
+  private static final long PROBE = -1;
+
+  /** The fraction of the limit to keep when CircleCI is struggling. */
+  private static final double BACKOFF_RATIO = 0.5;
+
+  public enum State {
+    /** Calls are let through, up to the limit. */
+    CLOSED,
+    /** A single call is let through to see whether CircleCI has recovered. */
+    HALF_OPEN,
+    /** No calls are let through. */
+    OPEN
+  }
+
+  /** What a call told us about how CircleCI is coping. */
+  private enum Outcome {
+    SUCCESS,
+    THROTTLED,
+    FAILED,
+    /** The call failed for a reason which says nothing about CircleCI's health. */
+    IGNORED
+  }
+
+  private final int maxLimit;
+  private final int failureThreshold;
+  private final long openNanos;
+  private final Ticker ticker;
+
+  private final Meter deferred;
+
+  // All guarded by this
+  private double limit;
+  private int inFlight;
+  private State state = State.CLOSED;
+  private int consecutiveFailures;
+  private long openUntil;
+  private boolean probeInFlight;
+
+  /**
+   * @param maxLimit The most calls to have in flight at once, and the limit we start at.
+   * @param failureThreshold How many calls must fail in a row to open the circuit.
+   * @param openDuration How long to keep the circuit open if CircleCI didn't say how long to wait.
+   * @param metrics Where to report the current limit and the state of the circuit.
+   */
+  public CircleCiLimiter(
+      int maxLimit, int failureThreshold, Duration openDuration, MetricRegistry metrics) {
+    this(maxLimit, failureThreshold, openDuration, metrics, Ticker.systemTicker());
+  }
+
+  @VisibleForTesting
+  CircleCiLimiter(
+      int maxLimit,
+      int failureThreshold,
+      Duration openDuration,
+      MetricRegistry metrics,
+      Ticker ticker) {
+    this.maxLimit = maxLimit;
+    this.failureThreshold = failureThreshold;
+    this.openNanos = openDuration.toNanos();
+    this.ticker = ticker;
+    limit = maxLimit;
+
+    deferred = metrics.meter(MetricRegistry.name(CircleCiLimiter.class, "deferred"));
+    Gauge<Integer> limitGauge = this::getLimit;
+    Gauge<Integer> inFlightGauge = this::getInFlight;
+    Gauge<Integer> stateGauge = () -> getState().ordinal();
+    metrics.gauge(MetricRegistry.name(CircleCiLimiter.class, "limit"), () -> limitGauge);
+    metrics.gauge(MetricRegistry.name(CircleCiLimiter.class, "in-flight"), () -> inFlightGauge);
+    metrics.gauge(MetricRegistry.name(CircleCiLimiter.class, "state"), () -> stateGauge);
+  }
+
+  /**
+   * Make a call to CircleCI if the limit and the circuit allow it.
+   *
+   * @param call Starts the call.
+   * @return The result of the call, or a {@link DeferredException} if it wasn't let through.
+   */
+  <T> CompletableFuture<T> call(Supplier<CompletableFuture<T>> call) {
+    long acquired = tryAcquire();
+    if (acquired > 0) {
+      deferred.mark();
+      return CompletableFuture.failedFuture(new DeferredException(acquired));
+    }
+    boolean probe = acquired == PROBE;
+
+    CompletableFuture<T> result;
+    try {
+      result = call.get();
+    } catch (RuntimeException e) {
+      result = CompletableFuture.failedFuture(e);
+    }
+    return result.whenComplete((value, e) -> release(e, probe));
+  }
+
+  /**
+   * @return Zero if the call may go ahead, {@link #PROBE} if it may go ahead to see whether
+   *     CircleCI has recovered, or how many milliseconds to defer it for.
+   */
+  private synchronized long tryAcquire() {
+    long now = ticker.read();
+    if (state == State.OPEN) {
+      if (now - openUntil < 0) {
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(openUntil - now));
+      }
+      state = State.HALF_OPEN;
+      LOGGER.info("Letting a call to CircleCI through to see whether it has recovered");
+    }
+    if (state == State.HALF_OPEN) {
+      if (probeInFlight) {
+        return BUSY_RETRY_MILLIS;
+      }
+      probeInFlight = true;
+      inFlight++;
+      return PROBE;
+    }
+    if (inFlight >= getLimit()) {
+      return BUSY_RETRY_MILLIS;
+    }
+    inFlight++;
+    return 0;
+  }
+
+  private synchronized void release(@Nullable Throwable failure, boolean probe) {
+    inFlight--;
+    if (probe) {
+      probeInFlight = false;
+    }
+
+    Outcome outcome = classify(failure);
+    switch (outcome) {
+      case SUCCESS:
+        consecutiveFailures = 0;
+        limit = Math.min(maxLimit, limit + 1 / limit);
+        if (probe) {
+          state = State.CLOSED;
+          LOGGER.info("CircleCI has recovered, closing the circuit");
+        }
+        break;
+      case THROTTLED:
+      case FAILED:
+        consecutiveFailures++;
+        limit = Math.max(1, limit * BACKOFF_RATIO);
+        Long retryAfterNanos = outcome == Outcome.THROTTLED ? retryAfterNanos(failure) : null;
+        if (outcome == Outcome.THROTTLED || probe || consecutiveFailures >= failureThreshold) {
+          open(retryAfterNanos != null ? Math.max(retryAfterNanos, 0) : openNanos);
+        }
+        break;
+      case IGNORED:
+        // We learnt nothing, so if this was the probe the next call will be one too
+        break;
+      default:
+        throw new IllegalStateException("Unknown outcome " + outcome);
+    }
+  }
+
+  /** Stop letting calls through. Only ever extends a circuit which is already open. */
+  private void open(long durationNanos) {
+    long until = ticker.read() + durationNanos;
+    if (state != State.OPEN || until - openUntil > 0) {
+      openUntil = until;
+    }
+    if (state != State.OPEN) {
+      LOGGER.warn(
+          "CircleCI is struggling, not calling it for {}ms",
+          TimeUnit.NANOSECONDS.toMillis(durationNanos));
+    }
+    state = State.OPEN;
+  }
+
+  private static Outcome classify(@Nullable Throwable failure) {
+    if (failure == null) {
+      return Outcome.SUCCESS;
+    }
+    for (Throwable cause : Throwables.getCausalChain(failure)) {
+      if (cause instanceof ApiException) {
+        int code = ((ApiException) cause).getCode();
+        if (code == 429) {
+          return Outcome.THROTTLED;
+        }
+        if (code >= 500) {
+          return Outcome.FAILED;
+        }
+        // CircleCI answered, it just didn't like the question
+        return code >= 400 ? Outcome.SUCCESS : Outcome.FAILED;
+      }
+      if (cause instanceof IOException) {
+        return Outcome.FAILED;
+      }
+    }
+    return Outcome.IGNORED;
+  }
+
+  /**
+   * @return Whether a failure says CircleCI is throttling us or struggling, so that a call which
+   *     would otherwise work around it should fail instead, for the limiter to back off.
+   */
+  static boolean isStruggling(Throwable failure) {
+    Outcome outcome = classify(failure);
+    return outcome == Outcome.THROTTLED || outcome == Outcome.FAILED;
+  }
+
+  /** @return How long CircleCI asked us to wait, or null if it didn't say. */
+  @Nullable
+  private Long retryAfterNanos(Throwable failure) {
+    for (Throwable cause : Throwables.getCausalChain(failure)) {
+      if (cause instanceof ApiException) {
+        return retryAfterNanos(((ApiException) cause).getResponseHeaders());
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Parse a Retry-After header, which is either a number of seconds or a date.
+   *
+   * @return How long to wait, or null if there was no usable header.
+   */
+  @VisibleForTesting
+  @Nullable
+  static Long retryAfterNanos(@Nullable Map<String, List<String>> headers) {
+    if (headers == null) {
+      return null;
+    }
+    for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+      if (!"Retry-After".equalsIgnoreCase(header.getKey()) || header.getValue().isEmpty()) {
+        continue;
+      }
+      String value = header.getValue().get(0).trim();
+      try {
+        return TimeUnit.SECONDS.toNanos(Long.parseLong(value));
+      } catch (NumberFormatException e) {
+        // Not a number of seconds, so it should be a date
+      }
+      try {
+        Instant until =
+            ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+        return Duration.between(Instant.now(), until).toNanos();
+      } catch (DateTimeParseException e) {
+        LOGGER.warn("Ignoring unparseable Retry-After header {}", value);
+      }
+    }
+    return null;
+  }
+
+  /** @return The number of calls currently allowed in flight. */
+  synchronized int getLimit() {
+    return (int) limit;
+  }
+
+  synchronized int getInFlight() {
+    return inFlight;
+  }
+
+  synchronized State getState() {
+    if (state == State.OPEN && ticker.read() - openUntil >= 0) {
+      return State.HALF_OPEN;
+    }
+    return state;
+  }
+
+  /** A call which wasn't made, and should be tried again later. */
+  public static class DeferredException extends RuntimeException {
+    private final long retryAfterMillis;
+
+    DeferredException(long retryAfterMillis) {
+      super("CircleCI calls are being held back", null, false, false);
+      this.retryAfterMillis = retryAfterMillis;
+    }
+
+    /** @return How many milliseconds to wait before trying again. */
+    public long getRetryAfterMillis() {
+      return retryAfterMillis;
+    }
+
+    /** @return The deferral which caused a failure, or null if it wasn't caused by one. */
+    @Nullable
+    public static DeferredException from(Throwable failure) {
+      for (Throwable cause : Throwables.getCausalChain(failure)) {
+        if (cause instanceof DeferredException) {
+          return (DeferredException) cause;
+        }
+      }
+      return null;
+    }
+  }
+}
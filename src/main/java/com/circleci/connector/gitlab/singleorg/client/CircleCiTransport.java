@@ -0,0 +1,88 @@
+package com.circleci.connector.gitlab.singleorg.client;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.RatioGauge;
+import io.dropwizard.lifecycle.Managed;
+import java.util.concurrent.TimeUnit;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.core.Configuration;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.glassfish.jersey.apache.connector.ApacheClientProperties;
+import org.glassfish.jersey.apache.connector.ApacheConnectorProvider;
+import org.glassfish.jersey.client.ClientConfig;
+import org.glassfish.jersey.client.ClientProperties;
+
+/**
+ * The HTTP client we call CircleCI with. The CircleCI API library builds a client which opens a new
+ * connection, with a new TLS handshake, for most requests. This one keeps a pool of connections
+ * open for reuse, and reports on how busy the pool is.
+ *
+ * <p>Closing the client when the service stops closes any connections left in the pool.
+ */
+public class CircleCiTransport implements Managed {
+  private final PoolingHttpClientConnectionManager pool;
+  private final Client client;
+
+  /**
+   * @param base The configuration of the client built by the CircleCI API library, so that we keep
+   *     its JSON handling and any other features it registered.
+   * @param maxConnections The most connections to have open to CircleCI at once.
+   * @param connectTimeoutMillis How long to wait for a connection to be established.
+   * @param readTimeoutMillis How long to wait for data once connected.
+   * @param keepAliveSeconds How long to keep reusing a connection before opening a new one.
+   * @param metrics Where to report the state of the connection pool.
+   */
+  public CircleCiTransport(
+      Configuration base,
+      int maxConnections,
+      int connectTimeoutMillis,
+      int readTimeoutMillis,
+      int keepAliveSeconds,
+      MetricRegistry metrics) {
+    pool = new PoolingHttpClientConnectionManager(keepAliveSeconds, TimeUnit.SECONDS);
+    pool.setMaxTotal(maxConnections);
+    // We only ever talk to one host
+    pool.setDefaultMaxPerRoute(maxConnections);
+    pool.setValidateAfterInactivity(1000);
+
+    client =
+        ClientBuilder.newClient(
+            new ClientConfig()
+                .loadFrom(base)
+                .connectorProvider(new ApacheConnectorProvider())
+                .property(ApacheClientProperties.CONNECTION_MANAGER, pool)
+                .property(ClientProperties.CONNECT_TIMEOUT, connectTimeoutMillis)
+                .property(ClientProperties.READ_TIMEOUT, readTimeoutMillis));
+
+    Gauge<Integer> leased = () -> pool.getTotalStats().getLeased();
+    Gauge<Integer> available = () -> pool.getTotalStats().getAvailable();
+    Gauge<Integer> pending = () -> pool.getTotalStats().getPending();
+    RatioGauge utilization =
+        new RatioGauge() {
+          @Override
+          protected Ratio getRatio() {
+            return Ratio.of(pool.getTotalStats().getLeased(), pool.getMaxTotal());
+          }
+        };
+    metrics.gauge(MetricRegistry.name(CircleCiTransport.class, "leased"), () -> leased);
+    metrics.gauge(MetricRegistry.name(CircleCiTransport.class, "available"), () -> available);
+    metrics.gauge(MetricRegistry.name(CircleCiTransport.class, "pending"), () -> pending);
+    metrics.gauge(MetricRegistry.name(CircleCiTransport.class, "utilization"), () -> utilization);
+  }
+
+  /** @return The client to give to the CircleCI API library. */
+  public Client getClient() {
+    return client;
+  }
+
+  @Override
+  public void start() {}
+
+  @Override
+  public void stop() {
+    client.close();
+    pool.shutdown();
+  }
+}
@@ -0,0 +1,67 @@
+package com.circleci.connector.gitlab.singleorg.client;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import javax.annotation.Nullable;
+
+/**
+ * Holds extended CircleCI configs keyed by the git blob id of the config file they were made from.
+ * A blob id is a hash of the file's contents, so an entry never goes stale and is shared by every
+ * branch and project with the same config.
+ *
+ * <p>The cache is bounded by the approximate number of bytes its keys and values take up on the
+ * heap, and evicts the least recently used entries first.
+ */
+public class ConfigCache {
+  private final Cache<String, String> configs;
+  private final Meter hits;
+  private final Meter misses;
+  private final Meter evictions;
+
+  /**
+   * @param maxBytes The most heap the cached configs should take up.
+   * @param metrics Where to report hits, misses and evictions.
+   */
+  public ConfigCache(long maxBytes, MetricRegistry metrics) {
+    hits = metrics.meter(MetricRegistry.name(ConfigCache.class, "hits"));
+    misses = metrics.meter(MetricRegistry.name(ConfigCache.class, "misses"));
+    evictions = metrics.meter(MetricRegistry.name(ConfigCache.class, "evictions"));
+    configs =
+        CacheBuilder.newBuilder()
+            .maximumWeight(maxBytes)
+            .weigher(ConfigCache::weigh)
+            .<String, String>removalListener(
+                notification -> {
+                  if (notification.wasEvicted()) {
+                    evictions.mark();
+                  }
+                })
+            .build();
+    Gauge<Long> entries = configs::size;
+    metrics.gauge(MetricRegistry.name(ConfigCache.class, "entries"), () -> entries);
+  }
+
+  /** Strings are UTF-16 at worst, so count two bytes a character. */
+  private static int weigh(String blobId, String config) {
+    return 2 * (blobId.length() + config.length());
+  }
+
+  /** @return The extended config made from the given blob, or null if we don't have it. */
+  @Nullable
+  String get(String blobId) {
+    String config = configs.getIfPresent(blobId);
+    if (config == null) {
+      misses.mark();
+    } else {
+      hits.mark();
+    }
+    return config;
+  }
+
+  void put(String blobId, String config) {
+    configs.put(blobId, config);
+  }
+}
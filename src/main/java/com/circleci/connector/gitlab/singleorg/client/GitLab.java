@@ -1,5 +1,8 @@
 package com.circleci.connector.gitlab.singleorg.client;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.circleci.connector.gitlab.singleorg.io.LimitedInputStream;
 import com.circleci.connector.gitlab.singleorg.model.Pipeline;
 import com.circleci.connector.gitlab.singleorg.model.Workflow;
 import com.circleci.connector.gitlab.singleorg.model.Workflow.State;
@@ -10,12 +13,17 @@ import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
 import com.google.common.annotations.VisibleForTesting;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.UncheckedIOException;
 import java.util.Optional;
+import javax.annotation.Nullable;
 import org.gitlab4j.api.Constants.CommitBuildState;
 import org.gitlab4j.api.GitLabApi;
 import org.gitlab4j.api.GitLabApiException;
+import org.gitlab4j.api.RepositoryFileApi;
 import org.gitlab4j.api.models.CommitStatus;
+import org.gitlab4j.api.models.RepositoryFile;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -24,17 +32,46 @@ public class GitLab {
   private static final ObjectMapper YAML_MAPPER = new ObjectMapper(new YAMLFactory());
   private GitLabApi gitLabApi;
 
+  /** Extended configs we have already made, null if caching is disabled. */
+  @Nullable private final ConfigCache configCache;
+
+  /** Commits known to have no usable config, null if caching is disabled. */
+  @Nullable private final MissingConfigCache missingConfigs;
+
+  /** The largest config file we are prepared to download and parse. */
+  private final long maxConfigBytes;
+
   public GitLab(GitLabApi gitLabApi) {
+    this(gitLabApi, null, null);
+  }
+
+  public GitLab(
+      GitLabApi gitLabApi,
+      @Nullable ConfigCache configCache,
+      @Nullable MissingConfigCache missingConfigs) {
+    this(gitLabApi, configCache, missingConfigs, DEFAULT_MAX_CONFIG_BYTES);
+  }
+
+  public GitLab(
+      GitLabApi gitLabApi,
+      @Nullable ConfigCache configCache,
+      @Nullable MissingConfigCache missingConfigs,
+      long maxConfigBytes) {
     this.gitLabApi = gitLabApi;
+    this.configCache = configCache;
+    this.missingConfigs = missingConfigs;
+    this.maxConfigBytes = maxConfigBytes;
   }
 
+  public static final long DEFAULT_MAX_CONFIG_BYTES = 4 * 1024 * 1024;
+
   static final String CIRCLECI_CONFIG_PATH = ".circleci/config.yml";
-  private static final String STRING_PARAMETER_YAML = "{type: string, default: ''}";
-  private static final String GIT_CHECKOUT_COMMAND_YAML =
+  static final String STRING_PARAMETER_YAML = "{type: string, default: ''}";
+  static final String GIT_CHECKOUT_COMMAND_YAML =
       "steps:\n"
           + "  - add_ssh_keys:\n"
           + "      fingerprints: [<< pipeline.parameters.gitlab_ssh_fingerprint >>]\n"
-          + "  - run: |\n"
+          + "  - run: |-\n"
           + "      mkdir -p ~/.ssh\n"
           + "      ssh-keyscan gitlab.com >> ~/.ssh/known_hosts\n"
           + "      git clone --single-branch --branch $CIRCLE_BRANCH "
@@ -117,27 +154,122 @@ public class GitLab {
   /**
    * Get CircleCI config contents from GitLab project at ref
    *
+   * <p>If there is a config cache, we first ask GitLab only for the blob id of the config file, and
+   * download and extend the file only if we haven't already cached the result for that blob. The
+   * file is then downloaded by its blob id rather than from the ref, which may have moved on since,
+   * so that what we cache is always the config of the blob it is cached under.
+   *
    * @param projectId GitLab project id
    * @return A string with the contents of CircleCI configuration file
    */
   public Optional<String> fetchCircleCiConfig(int projectId, String ref) {
-    LOGGER.info("Fetching CircleCI config for project {} at ref {}", projectId, ref);
+    return fetchCircleCiConfig(projectId, ref, null, null);
+  }
+
+  /**
+   * Get CircleCI config contents from GitLab project at the given commit, or at the head of ref if
+   * the commit isn't known, skipping the call to GitLab if we already know there is no usable
+   * config at that commit.
+   *
+   * @param projectId GitLab project id
+   * @param commit The commit at the head of the ref, or null if not known.
+   * @param unchangedSince An earlier commit whose config is known to be the same as the config at
+   *     {@code commit}, or null if there isn't one. If there was no config at that commit then
+   *     there is none at this one either.
+   * @return A string with the contents of CircleCI configuration file
+   */
+  public Optional<String> fetchCircleCiConfig(
+      int projectId, String ref, @Nullable String commit, @Nullable String unchangedSince) {
+    boolean remember = missingConfigs != null && commit != null;
+    if (remember
+        && (missingConfigs.isMissing(projectId, ref, commit)
+            || (unchangedSince != null
+                && missingConfigs.isMissing(projectId, ref, unchangedSince)))) {
+      LOGGER.info("Project {} has no CircleCI config at {} on ref {}", projectId, commit, ref);
+      missingConfigs.recordMissing(projectId, ref, commit);
+      return Optional.empty();
+    }
+
+    // Read at the commit rather than the ref, which may have moved on, so what we remember about
+    // the commit is what we actually read there
+    String at = commit != null ? commit : ref;
+    LOGGER.info("Fetching CircleCI config for project {} at {} on ref {}", projectId, at, ref);
     try {
-      String config =
-          gitLabApi
-              .getRepositoryFileApi()
-              .getFile(projectId, CIRCLECI_CONFIG_PATH, ref)
-              .getDecodedContentAsString();
-
-      return readYamlAsObject(config)
-          .map(this::extendCircleCiConfig)
-          .map(this::safeWriteValueAsString);
+      RepositoryFileApi files = gitLabApi.getRepositoryFileApi();
+      String blobId = null;
+      if (configCache != null) {
+        RepositoryFile info = files.getFileInfo(projectId, CIRCLECI_CONFIG_PATH, at);
+        blobId = info.getBlobId();
+        String cached = blobId == null ? null : configCache.get(blobId);
+        if (cached != null) {
+          return Optional.of(cached);
+        }
+        if (info.getSize() != null && info.getSize() > maxConfigBytes) {
+          LOGGER.warn(
+              "CircleCI config for project {} is {} bytes, more than the limit of {}",
+              projectId,
+              info.getSize(),
+              maxConfigBytes);
+          if (remember) {
+            missingConfigs.recordMissing(projectId, ref, commit);
+          }
+          return Optional.empty();
+        }
+      }
+
+      CircleCiConfigSplicer.Result read;
+      try (InputStream raw =
+          blobId != null
+              ? gitLabApi.getRepositoryApi().getRawBlobContent(projectId, blobId)
+              : files.getRawFile(projectId, at, CIRCLECI_CONFIG_PATH)) {
+        read =
+            CircleCiConfigSplicer.splice(
+                new InputStreamReader(new LimitedInputStream(raw, maxConfigBytes), UTF_8));
+      }
+      Optional<String> config = extendCircleCiConfig(read);
+      if (config.isEmpty()) {
+        if (remember) {
+          missingConfigs.recordMissing(projectId, ref, commit);
+        }
+        return Optional.empty();
+      }
+      if (blobId != null) {
+        String key = blobId;
+        config.ifPresent(c -> configCache.put(key, c));
+      }
+      return config;
     } catch (GitLabApiException e) {
-      LOGGER.warn("Error fetching CircleCI config", e);
+      if (e.getHttpStatus() == 404) {
+        LOGGER.info("Project {} has no CircleCI config on ref {}", projectId, ref);
+        if (remember) {
+          missingConfigs.recordMissing(projectId, ref, commit);
+        }
+      } else {
+        LOGGER.warn("Error fetching CircleCI config", e);
+      }
+    } catch (IOException e) {
+      LOGGER.warn("Error reading CircleCI config", e);
     }
     return Optional.empty();
   }
 
+  /**
+   * Extends a CircleCI config which the splicer has read. Our additions were spliced into the YAML
+   * text where it could, which leaves the rest of the user's config exactly as they wrote it.
+   * Configs the splicer can't handle go through {@link #extendCircleCiConfig(ObjectNode)} instead.
+   *
+   * @param read the config as fetched from GitLab, spliced if it could be
+   * @return The extended config, or {@code Optional.empty} if it isn't a valid YAML object
+   */
+  private Optional<String> extendCircleCiConfig(CircleCiConfigSplicer.Result read) {
+    if (read.spliced != null) {
+      return Optional.of(read.spliced);
+    }
+    return readYamlAsObject(read.yaml)
+        .map(this::extendCircleCiConfig)
+        .map(this::safeWriteValueAsString);
+  }
+
   /**
    * Reads a YAML string as an {@link ObjectNode}. If parsing fails or the YAML does not represent
    * an object, returns {@code Optional.empty}.
@@ -147,12 +279,15 @@ public class GitLab {
    */
   private Optional<ObjectNode> readYamlAsObject(String yaml) {
     try {
-      ObjectNode objectNode = (ObjectNode) YAML_MAPPER.readTree(yaml);
-      return Optional.of(objectNode);
-    } catch (ClassCastException | IOException e) {
+      JsonNode node = YAML_MAPPER.readTree(yaml);
+      if (node instanceof ObjectNode) {
+        return Optional.of((ObjectNode) node);
+      }
+      LOGGER.warn("CircleCI config is not a YAML mapping");
+    } catch (IOException e) {
       LOGGER.warn("Error parsing CircleCI config", e);
-      return Optional.empty();
     }
+    return Optional.empty();
   }
 
   /**
@@ -0,0 +1,69 @@
+package com.circleci.connector.gitlab.singleorg.client;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.time.Duration;
+import java.util.Objects;
+
+/**
+ * Remembers the commits at which a project had no usable CircleCI config, so that pushes to
+ * branches without a config don't each cost a call to GitLab. Entries expire after a while in case
+ * we were wrong, for example because a project was moved.
+ */
+public class MissingConfigCache {
+  private final Cache<Key, Boolean> missing;
+  private final Meter hits;
+
+  /**
+   * @param ttl How long to remember a missing config for.
+   * @param maxEntries The most commits to remember.
+   * @param metrics Where to report the API calls we avoided.
+   */
+  public MissingConfigCache(Duration ttl, long maxEntries, MetricRegistry metrics) {
+    missing = CacheBuilder.newBuilder().expireAfterWrite(ttl).maximumSize(maxEntries).build();
+    hits = metrics.meter(MetricRegistry.name(MissingConfigCache.class, "hits"));
+  }
+
+  boolean isMissing(int projectId, String ref, String commit) {
+    boolean isMissing = missing.getIfPresent(new Key(projectId, ref, commit)) != null;
+    if (isMissing) {
+      hits.mark();
+    }
+    return isMissing;
+  }
+
+  void recordMissing(int projectId, String ref, String commit) {
+    missing.put(new Key(projectId, ref, commit), Boolean.TRUE);
+  }
+
+  private static final class Key {
+    private final int projectId;
+    private final String ref;
+    private final String commit;
+
+    Key(int projectId, String ref, String commit) {
+      this.projectId = projectId;
+      this.ref = ref;
+      this.commit = commit;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return projectId == other.projectId && ref.equals(other.ref) && commit.equals(other.commit);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(projectId, ref, commit);
+    }
+  }
+}
@@ -1,15 +1,25 @@
 package com.circleci.connector.gitlab.singleorg.client;
 
-import static java.util.concurrent.TimeUnit.MILLISECONDS;
-
+import com.circleci.connector.gitlab.singleorg.model.ImmutableWorkflow;
 import com.circleci.connector.gitlab.singleorg.model.Pipeline;
 import com.circleci.connector.gitlab.singleorg.model.Workflow;
+import com.circleci.connector.gitlab.singleorg.model.Workflow.State;
+import com.circleci.connector.gitlab.singleorg.scheduler.JobScheduler;
+import com.circleci.connector.gitlab.singleorg.scheduler.TimingWheel;
+import com.circleci.connector.gitlab.singleorg.state.ImmutablePollerState;
+import com.circleci.connector.gitlab.singleorg.state.PollerState;
+import com.circleci.connector.gitlab.singleorg.state.PollerStateStore;
 import com.google.common.annotations.VisibleForTesting;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.annotation.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -32,78 +42,564 @@ public class PipelinePoller {
   /** State to manage the sleep and retry policy of this poller instance. */
   private final RetryPolicy retryPolicy;
 
-  public HashMap<UUID, WorkflowPoller> getWorkflowPollers() {
+  public Map<UUID, WorkflowPoller> getWorkflowPollers() {
     return workflowPollers;
   }
 
   /** WorkflowPollers by workflow ID */
-  private HashMap<UUID, WorkflowPoller> workflowPollers;
+  private final Map<UUID, WorkflowPoller> workflowPollers;
 
   /** We get passed a reference to this in order to allow us to re-schedule a job to run later. */
-  private final ScheduledExecutorService jobRunner;
+  private final JobScheduler jobScheduler;
+
+  /** The pollers of every pipeline we track, which we leave when we stop. */
+  private final PipelinePollers pollers;
+
+  /**
+   * If true we report on the workflows ourselves from each refresh of the pipeline, rather than
+   * starting a WorkflowPoller for each of them.
+   */
+  private final boolean consolidated;
+
+  /**
+   * The state of each workflow we have seen, as last reported to GitLab. Null if we failed to
+   * report it. Only used when consolidated, and guarded by lock.
+   */
+  private final Map<UUID, State> reportedStates = new HashMap<>();
+
+  /**
+   * Where to record our state whenever GitLab is told something new, so that polling can be resumed
+   * after a restart. Null if not configured. Only used when consolidated.
+   */
+  @Nullable private final PollerStateStore stateStore;
+
+  /**
+   * The shortest time to wait between consolidated polls. Non-zero when CircleCI sends us webhooks,
+   * so that polls are only a fallback for events which never arrive.
+   */
+  private final long minPollMillis;
+
+  /** How long workflows usually take, to decide when to poll. Null if not configured. */
+  @Nullable private final WorkflowDurations durations;
+
+  /** Caps the rate of polls and spreads them out. Null if not configured. */
+  @Nullable private final PollBudget budget;
+
+  /**
+   * When we first saw each workflow which hasn't succeeded yet, for recording how long it took.
+   * Workflows we were already polling before a restart are left out, since we don't know when they
+   * started. Only used when consolidated, and guarded by lock.
+   */
+  private final Map<UUID, Long> firstSeenNanos = new HashMap<>();
+
+  /** Whether we have told GitLab anything since we last saved our state. Guarded by lock. */
+  private boolean unsaved = true;
+
+  /** When the next poll is due, in milliseconds since the epoch. Guarded by lock. */
+  private long nextPollMillis;
+
+  /** The next poll, for cancelling it if we stop early. Guarded by lock. */
+  @Nullable private TimingWheel.Timeout nextPoll;
+
+  /** Guarded by lock. */
+  private boolean stopped;
+
+  /**
+   * Whether the limiter held back the last poll, so that its delay is the least we may wait. Only
+   * touched by the poll in flight.
+   */
+  private boolean deferred;
+
+  /**
+   * Whether a newer pipeline superseded ours, so that a poll in flight should tell nobody what it
+   * found. Guarded by lock.
+   */
+  private boolean cancelled;
+
+  /**
+   * Guards our state. It is held while we call GitLab and the state store, so it is a lock rather
+   * than a monitor, which would pin a virtual thread to its carrier while it waits on them.
+   */
+  private final ReentrantLock lock = new ReentrantLock();
 
   public PipelinePoller(
-      Pipeline pipeline, CircleCi circleCi, GitLab gitLab, ScheduledExecutorService jobRunner) {
+      Pipeline pipeline, CircleCi circleCi, GitLab gitLab, JobScheduler jobScheduler) {
+    this(pipeline, new PipelinePollers(circleCi, gitLab, jobScheduler, false, null, 0));
+  }
+
+  /** Make a poller with the same clients and settings as the rest of a set of pollers. */
+  PipelinePoller(Pipeline pipeline, PipelinePollers pollers) {
     this.pipeline = pipeline;
-    this.circleCi = circleCi;
-    this.gitLab = gitLab;
-    this.jobRunner = jobRunner;
+    this.pollers = pollers;
+    this.circleCi = pollers.getCircleCi();
+    this.gitLab = pollers.getGitLab();
+    this.jobScheduler = pollers.getJobScheduler();
+    this.consolidated = pollers.isConsolidated();
+    this.stateStore = consolidated ? pollers.getStateStore() : null;
+    this.minPollMillis = consolidated ? pollers.getMinPollMillis() : 0;
+    this.durations = pollers.getDurations();
+    this.budget = pollers.getBudget();
     retryPolicy = new RetryPolicy();
-    workflowPollers = new HashMap<>();
+    workflowPollers = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * Pick up where a poller left off before a restart, so that GitLab is only told about workflows
+   * whose state has changed since then.
+   */
+  void restore(PollerState state) {
+    lock.lock();
+    try {
+      reportedStates.putAll(state.reportedStates());
+      // It's already saved, and saving it again for every resumed pipeline would slow the restart
+      unsaved = false;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public Pipeline getPipeline() {
+    return pipeline;
   }
 
   /** Start polling the CircleCI API and continue polling until we get to a terminal state. */
   public void start() {
-    schedule(INITIAL_DELAY_MILLIS);
+    start(INITIAL_DELAY_MILLIS);
   }
 
   /**
-   * Poll the CircleCI API and create WorkflowPollers for any new workflows
+   * Start polling the CircleCI API after the given delay.
+   *
+   * @param delayMillis The number of milliseconds to delay before the first poll.
+   */
+  public void start(long delayMillis) {
+    lock.lock();
+    try {
+      schedule(delayMillis, false);
+      saveState();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Stop polling, and forget our state. A poll which is already in flight still completes, but
+   * nothing is scheduled after it.
+   */
+  public void stop() {
+    lock.lock();
+    try {
+      if (stopped) {
+        return;
+      }
+      stopped = true;
+      if (nextPoll != null) {
+        nextPoll.cancel();
+      }
+      if (stateStore != null) {
+        stateStore.remove(pipeline.id());
+      }
+      pollers.stopped(this);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Stop polling the pipeline and each of its workflows now, because a newer pipeline has
+   * superseded it, then cancel whichever of its workflows are still running on CircleCI. That takes
+   * a few calls, so it happens on the job scheduler rather than holding up the caller.
+   */
+  public void cancel() {
+    lock.lock();
+    try {
+      cancelled = true;
+      stop();
+    } finally {
+      lock.unlock();
+    }
+    for (WorkflowPoller workflowPoller : workflowPollers.values()) {
+      workflowPoller.stop();
+    }
+    jobScheduler.schedule(this::cancelWorkflows, 0);
+  }
+
+  /**
+   * Cancel every workflow of the pipeline which is still running. We have stopped polling, so
+   * GitLab is told that each of them was cancelled rather than left thinking they still run. A
+   * workflow which fails to cancel is left alone; it finishes as it would have done anyway. A
+   * workflow which finished since we last polled it has its final state reported instead.
+   *
+   * <p>The refresh goes through the limiter like any poll, and is tried again when the limiter says
+   * if it is held back.
+   */
+  @VisibleForTesting
+  void cancelWorkflows() {
+    Pipeline refreshed;
+    try {
+      refreshed = circleCi.refreshPipelineAsync(pipeline).join();
+    } catch (RuntimeException e) {
+      CircleCiLimiter.DeferredException deferral = CircleCiLimiter.DeferredException.from(e);
+      if (deferral != null) {
+        LOGGER.info(
+            "Deferring the cancellation of superseded pipeline {} for {}ms",
+            pipeline.id(),
+            deferral.getRetryAfterMillis());
+        jobScheduler.schedule(this::cancelWorkflows, deferral.getRetryAfterMillis());
+        return;
+      }
+      LOGGER.error("Failed to fetch the workflows of superseded pipeline {}", pipeline.id(), e);
+      return;
+    }
+    for (Workflow workflow : refreshed.workflows()) {
+      if (workflow.state().isTerminal()) {
+        if (workflow.state() != reportedState(workflow.id())) {
+          gitLab.updateCommitStatus(pipeline, workflow);
+        }
+        continue;
+      }
+      try {
+        circleCi.cancelWorkflow(workflow);
+      } catch (RuntimeException e) {
+        LOGGER.error(
+            "Failed to cancel workflow {} of superseded pipeline {}",
+            workflow.id(),
+            pipeline.id(),
+            e);
+        continue;
+      }
+      LOGGER.info("Cancelled workflow {} of superseded pipeline {}", workflow.id(), pipeline.id());
+      gitLab.updateCommitStatus(
+          pipeline, ImmutableWorkflow.copyOf(workflow).withState(State.CANCELED));
+    }
+  }
+
+  /** @return The state GitLab was last told a workflow is in, or null if it hasn't been told. */
+  @Nullable
+  private State reportedState(UUID workflowId) {
+    lock.lock();
+    try {
+      State reported = reportedStates.get(workflowId);
+      if (reported != null) {
+        return reported;
+      }
+    } finally {
+      lock.unlock();
+    }
+    WorkflowPoller workflowPoller = workflowPollers.get(workflowId);
+    return workflowPoller != null ? workflowPoller.getReportedState() : null;
+  }
+
+  /**
+   * @return True once neither we nor any of the workflow pollers we started are polling any more.
+   */
+  boolean isFinished() {
+    lock.lock();
+    try {
+      if (!stopped) {
+        return false;
+      }
+    } finally {
+      lock.unlock();
+    }
+    return workflowPollers.values().stream().allMatch(WorkflowPoller::isStopped);
+  }
+
+  /** Let the other pollers know if the last of our workflow pollers has stopped. */
+  private void workflowPollerStopped() {
+    if (isFinished()) {
+      pollers.finished(this);
+    }
+  }
+
+  /**
+   * Update GitLab with the state of a workflow which CircleCI told us about, rather than waiting
+   * for the next poll to find it. Only a consolidated poller takes events. We stop polling if this
+   * was the last workflow to finish.
+   *
+   * @return True if GitLab was told something new.
+   */
+  public boolean report(Workflow workflow) {
+    lock.lock();
+    try {
+      if (!consolidated || stopped) {
+        return false;
+      }
+      boolean changed = reportChangedStates(Set.of(workflow));
+      if (allFinished()) {
+        LOGGER.info("Every workflow of CircleCI pipeline {} has finished", pipeline.id());
+        stop();
+      } else if (changed) {
+        saveState();
+      }
+      return changed;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Poll the CircleCI API and create WorkflowPollers for any new workflows. No thread is held while
+   * we wait for CircleCI to respond.
+   *
+   * <p>When consolidated, update GitLab with the state of any workflows which changed since the
+   * last poll instead, and keep polling until every workflow has finished.
+   *
+   * <p>A poll which is held back because CircleCI is struggling is tried again when the limiter
+   * says, without counting as an error.
    *
    * @return The number of milliseconds to delay before polling again, or a negative number if we
    *     wish to stop polling.
    */
   @VisibleForTesting
-  long poll() {
+  CompletableFuture<Long> poll() {
     LOGGER.info("Polling for the status of CircleCI pipeline {}", pipeline.id());
-    Pipeline p;
-    try {
-      p = circleCi.refreshPipeline(pipeline);
-    } catch (RuntimeException e) {
-      LOGGER.error(
-          "Caught error while polling for the status of CircleCI pipeline {}", pipeline.id(), e);
-      return retryPolicy.delayFor(null);
+    return circleCi
+        .refreshPipelineAsync(pipeline)
+        .handle(
+            (p, e) -> {
+              deferred = false;
+              if (e != null) {
+                CircleCiLimiter.DeferredException deferral =
+                    CircleCiLimiter.DeferredException.from(e);
+                if (deferral != null) {
+                  deferred = true;
+                  LOGGER.info(
+                      "Deferring the poll of CircleCI pipeline {} for {}ms",
+                      pipeline.id(),
+                      deferral.getRetryAfterMillis());
+                  return deferral.getRetryAfterMillis();
+                }
+                LOGGER.error(
+                    "Caught error while polling for the status of CircleCI pipeline {}",
+                    pipeline.id(),
+                    e);
+                return retryPolicy.delayFor(null);
+              }
+
+              if (consolidated) {
+                if (p.workflows().isEmpty()) {
+                  return retryPolicy.delayFor(p.workflows());
+                }
+                lock.lock();
+                try {
+                  if (cancelled) {
+                    return -1L;
+                  }
+                  boolean changed = reportChangedStates(p.workflows());
+                  long delay = retryPolicy.delayUntilFinished(changed, allFinished());
+                  return delay < 0 ? delay : predictDelay(p.workflows(), delay);
+                } finally {
+                  lock.unlock();
+                }
+              }
+
+              lock.lock();
+              try {
+                // Otherwise a poll in flight when we were cancelled would start new pollers
+                if (cancelled) {
+                  return -1L;
+                }
+                for (Workflow workflow : p.workflows()) {
+                  workflowPollers.computeIfAbsent(
+                      workflow.id(),
+                      id -> {
+                        WorkflowPoller workflowPoller =
+                            new WorkflowPoller(
+                                pipeline,
+                                workflow,
+                                circleCi,
+                                gitLab,
+                                jobScheduler,
+                                durations,
+                                budget);
+                        workflowPoller.onStop(this::workflowPollerStopped);
+                        workflowPoller.start();
+                        return workflowPoller;
+                      });
+                }
+              } finally {
+                lock.unlock();
+              }
+
+              return retryPolicy.delayFor(p.workflows());
+            });
+  }
+
+  /**
+   * Update GitLab with the state of every workflow which changed since we last reported it. Once
+   * GitLab knows a workflow has finished we never report it again, since a refresh which was in
+   * flight when an event arrived may have an older state.
+   *
+   * @return True if any workflow changed state.
+   */
+  private boolean reportChangedStates(Set<Workflow> workflows) {
+    boolean changed = false;
+    for (Workflow workflow : workflows) {
+      State reported = reportedStates.get(workflow.id());
+      if (workflow.state() == reported || (reported != null && reported.isTerminal())) {
+        continue;
+      }
+      changed = true;
+      if (!reportedStates.containsKey(workflow.id())) {
+        firstSeenNanos.put(workflow.id(), System.nanoTime());
+      }
+      Long firstSeen = firstSeenNanos.get(workflow.id());
+      if (workflow.state() == State.SUCCESS && firstSeen != null && durations != null) {
+        durations.record(
+            pipeline.projectId(),
+            workflow.name(),
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - firstSeen));
+      }
+      if (workflow.state().isTerminal()) {
+        firstSeenNanos.remove(workflow.id());
+      }
+      LOGGER.info("Workflow {} is in state {}", workflow.id(), workflow.state());
+      // A failed update is recorded as null, so that we try again on the next poll
+      reportedStates.put(workflow.id(), gitLab.updateCommitStatus(pipeline, workflow));
+      unsaved = true;
     }
+    return changed;
+  }
 
-    for (Workflow workflow : p.workflows()) {
-      if (!workflowPollers.containsKey(workflow.id())) {
-        WorkflowPoller workflowPoller =
-            new WorkflowPoller(pipeline, workflow, circleCi, gitLab, jobRunner);
-        workflowPoller.start();
-        workflowPollers.put(workflow.id(), workflowPoller);
+  /**
+   * Work out when to poll next from how long the running workflows usually take. We poll as soon as
+   * any of them is expected to finish.
+   *
+   * @param delay The delay the retry policy chose.
+   * @return The delay to use, which is the retry policy's unless every running workflow has a
+   *     history which it is still within.
+   */
+  private long predictDelay(Set<Workflow> workflows, long delay) {
+    if (durations == null) {
+      return delay;
+    }
+    long predicted = Long.MAX_VALUE;
+    for (Workflow workflow : workflows) {
+      if (workflow.state().isTerminal()) {
+        continue;
+      }
+      Long firstSeen = firstSeenNanos.get(workflow.id());
+      if (firstSeen == null) {
+        return delay;
+      }
+      long workflowDelay =
+          durations.delayMillis(
+              pipeline.projectId(),
+              workflow.name(),
+              TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - firstSeen));
+      if (workflowDelay < 0) {
+        return delay;
       }
+      predicted = Math.min(predicted, workflowDelay);
+    }
+    return predicted == Long.MAX_VALUE ? delay : predicted;
+  }
+
+  /**
+   * Record our state if there is anywhere to record it and GitLab has been told something new since
+   * we last did.
+   */
+  private void saveState() {
+    if (stateStore == null || !unsaved) {
+      return;
     }
+    ImmutablePollerState.Builder builder =
+        ImmutablePollerState.builder()
+            .pipelineId(pipeline.id())
+            .projectId(pipeline.projectId())
+            .revision(pipeline.revision())
+            .branch(pipeline.branch())
+            .nextPollMillis(nextPollMillis)
+            .receivedAtMillis(pipeline.receivedAtMillis());
+    reportedStates.forEach(
+        (id, state) -> {
+          if (state != null) {
+            builder.putReportedStates(id, state);
+          }
+        });
+    stateStore.save(builder.build());
+    unsaved = false;
+  }
 
-    return retryPolicy.delayFor(p.workflows());
+  /**
+   * @return True if GitLab knows that every workflow we have seen has finished. A workflow missing
+   *     from the latest refresh keeps its last state, so we keep polling until we see it finish.
+   */
+  private boolean allFinished() {
+    return !reportedStates.isEmpty()
+        && reportedStates.values().stream().allMatch(state -> state != null && state.isTerminal());
   }
 
   /**
-   * Schedule the polling on the jobRunner.
+   * Schedule the polling on the jobScheduler. The next poll is scheduled once this one completes.
    *
    * @param delayMillis The number of milliseconds to delay before running the job once.
+   * @param atLeast True if we must not poll any sooner, so the delay may only be lengthened.
    */
-  private void schedule(long delayMillis) {
-    LOGGER.info(
-        "Scheduling a poll of CircleCI pipeline {} in {}ms from now", pipeline.id(), delayMillis);
-    jobRunner.schedule(
-        () -> {
-          long rescheduleAfter = poll();
-          if (rescheduleAfter >= 0) {
-            schedule(rescheduleAfter);
-          }
-        },
-        delayMillis,
-        MILLISECONDS);
+  private void schedule(long delayMillis, boolean atLeast) {
+    lock.lock();
+    try {
+      if (stopped) {
+        return;
+      }
+      if (budget != null) {
+        delayMillis = atLeast ? budget.jitterUp(delayMillis) : budget.jitter(delayMillis);
+      }
+      LOGGER.info(
+          "Scheduling a poll of CircleCI pipeline {} in {}ms from now", pipeline.id(), delayMillis);
+      nextPollMillis = System.currentTimeMillis() + delayMillis;
+      nextPoll = jobScheduler.schedule(this::pollWithinBudget, delayMillis);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Poll now if the budget allows, otherwise wait for the slot it reserved for us. */
+  private void pollWithinBudget() {
+    long waitMillis = budget != null ? budget.reserve() : 0;
+    if (waitMillis == 0) {
+      pollAndReschedule();
+      return;
+    }
+    lock.lock();
+    try {
+      if (stopped) {
+        return;
+      }
+      LOGGER.info(
+          "Deferring the poll of CircleCI pipeline {} for {}ms to stay within the poll budget",
+          pipeline.id(),
+          waitMillis);
+      nextPollMillis = System.currentTimeMillis() + waitMillis;
+      nextPoll = jobScheduler.schedule(this::pollAndReschedule, waitMillis);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void pollAndReschedule() {
+    poll()
+        .whenComplete(
+            (rescheduleAfter, e) -> {
+              if (e != null) {
+                LOGGER.error("Stopped polling CircleCI pipeline {}", pipeline.id(), e);
+                stop();
+              } else if (rescheduleAfter < 0) {
+                stop();
+              } else {
+                lock.lock();
+                try {
+                  // Neither a deferral nor the minimum interval may be jittered earlier
+                  schedule(
+                      Math.max(rescheduleAfter, minPollMillis),
+                      deferred || rescheduleAfter < minPollMillis);
+                  saveState();
+                } finally {
+                  lock.unlock();
+                }
+              }
+            });
   }
 
   static class RetryPolicy {
@@ -171,5 +667,25 @@ public class PipelinePoller {
       lastDelay = POLLING_INTERVAL_MS;
       return lastDelay;
     }
+
+    /**
+     * Compute the delay until the next poll when we report on the workflows ourselves. We poll
+     * however long the workflows take, backing off while nothing changes.
+     *
+     * @param changed True if any workflow changed state since the last poll.
+     * @param finished True if GitLab knows that every workflow has finished.
+     * @return The number of milliseconds to sleep before the next poll, or -1 to stop polling.
+     */
+    long delayUntilFinished(boolean changed, boolean finished) {
+      consecutiveErrors = 0;
+      if (finished) {
+        return -1;
+      }
+      if (changed) {
+        lastDelay = POLLING_INTERVAL_MS;
+        return lastDelay;
+      }
+      return sleepLonger();
+    }
   }
 }
@@ -0,0 +1,277 @@
+package com.circleci.connector.gitlab.singleorg.client;
+
+import com.circleci.connector.gitlab.singleorg.model.Pipeline;
+import com.circleci.connector.gitlab.singleorg.scheduler.JobScheduler;
+import com.circleci.connector.gitlab.singleorg.state.PollerState;
+import com.circleci.connector.gitlab.singleorg.state.PollerStateStore;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.Nullable;
+import javax.validation.constraints.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Starts the pollers for the pipelines we trigger and keeps track of them until they stop, so that
+ * news about a pipeline from elsewhere can be handed to its poller.
+ *
+ * <p>We also keep track of the latest pipeline on each branch until it and its workflows have all
+ * finished, so that it can be cancelled when a newer push to the branch supersedes it. Pipelines
+ * may be started out of order, by the hook workers, a replay of the journal or a restart, so the
+ * latest is the one whose push we received last, and a pipeline is only ever cancelled for one we
+ * know to be newer.
+ */
+public class PipelinePollers {
+  private static final Logger LOGGER = LoggerFactory.getLogger(PipelinePollers.class);
+
+  @NotNull private final CircleCi circleCi;
+  @NotNull private final GitLab gitLab;
+  @NotNull private final JobScheduler jobScheduler;
+  private final boolean consolidated;
+  @Nullable private final PollerStateStore stateStore;
+  private final long minPollMillis;
+  @Nullable private final WorkflowDurations durations;
+  @Nullable private final PollBudget budget;
+
+  /** The pollers which haven't stopped yet, by pipeline id. */
+  private final Map<UUID, PipelinePoller> pollers = new ConcurrentHashMap<>();
+
+  /** The poller of the latest pipeline on each branch, until it and its workflows finish. */
+  private final Map<Branch, PipelinePoller> latest = new ConcurrentHashMap<>();
+
+  /**
+   * @param consolidated If true, each pipeline is polled alone rather than also polling each of its
+   *     workflows separately.
+   * @param stateStore Where consolidated pollers record their state so they can be resumed after a
+   *     restart, null if not configured.
+   * @param minPollMillis The shortest time to wait between consolidated polls.
+   */
+  public PipelinePollers(
+      CircleCi circleCi,
+      GitLab gitLab,
+      JobScheduler jobScheduler,
+      boolean consolidated,
+      @Nullable PollerStateStore stateStore,
+      long minPollMillis) {
+    this(circleCi, gitLab, jobScheduler, consolidated, stateStore, minPollMillis, null, null);
+  }
+
+  /**
+   * @param durations How long workflows usually take, so that they can be polled less often until
+   *     they are expected to finish. Null to always poll at the same pace.
+   * @param budget Caps the rate of polls and spreads them out. Null to poll as soon as each is due.
+   */
+  public PipelinePollers(
+      CircleCi circleCi,
+      GitLab gitLab,
+      JobScheduler jobScheduler,
+      boolean consolidated,
+      @Nullable PollerStateStore stateStore,
+      long minPollMillis,
+      @Nullable WorkflowDurations durations,
+      @Nullable PollBudget budget) {
+    this.circleCi = circleCi;
+    this.gitLab = gitLab;
+    this.jobScheduler = jobScheduler;
+    this.consolidated = consolidated;
+    this.stateStore = stateStore;
+    this.minPollMillis = minPollMillis;
+    this.durations = durations;
+    this.budget = budget;
+  }
+
+  /** Start polling a pipeline we have just triggered. */
+  public PipelinePoller start(Pipeline pipeline) {
+    return start(pipeline, false);
+  }
+
+  /**
+   * Start polling a pipeline we have just triggered.
+   *
+   * @param cancelSuperseded If true, and there is an unfinished pipeline on the same branch, cancel
+   *     its running workflows and stop polling it if this one is newer, or cancel this one at once
+   *     if it is older.
+   */
+  public PipelinePoller start(Pipeline pipeline, boolean cancelSuperseded) {
+    PipelinePoller poller = new PipelinePoller(pipeline, this);
+    pollers.put(pipeline.id(), poller);
+    PipelinePoller other = register(poller);
+    poller.start();
+    if (cancelSuperseded && other != null) {
+      if (isOlder(other.getPipeline(), pipeline)) {
+        cancel(other, pipeline);
+      } else if (isOlder(pipeline, other.getPipeline())) {
+        cancel(poller, other.getPipeline());
+      }
+    }
+    return poller;
+  }
+
+  /**
+   * Make a poller the latest on its branch, unless we know that the latest is newer.
+   *
+   * @return The poller it displaced, or the newer one which is still the latest. Null if there was
+   *     nothing else on the branch.
+   */
+  @Nullable
+  private PipelinePoller register(PipelinePoller poller) {
+    PipelinePoller[] other = new PipelinePoller[1];
+    latest.compute(
+        new Branch(poller.getPipeline()),
+        (branch, previous) -> {
+          other[0] = previous;
+          return previous != null && isOlder(poller.getPipeline(), previous.getPipeline())
+              ? previous
+              : poller;
+        });
+    return other[0];
+  }
+
+  /** @return True if we know that a pipeline was triggered by an older push than another. */
+  private static boolean isOlder(Pipeline pipeline, Pipeline than) {
+    return pipeline.receivedAtMillis() > 0 && pipeline.receivedAtMillis() < than.receivedAtMillis();
+  }
+
+  private static void cancel(PipelinePoller superseded, Pipeline newer) {
+    if (superseded.isFinished()) {
+      return;
+    }
+    LOGGER.info(
+        "Cancelling pipeline {}, which pipeline {} supersedes",
+        superseded.getPipeline().id(),
+        newer.id());
+    superseded.cancel();
+  }
+
+  /**
+   * Resume polling pipelines we were polling before a restart, most overdue first. Polls which fell
+   * due while we were down would otherwise all be made at once, so they are spread out.
+   *
+   * @param states The state of each poller as it was last recorded.
+   * @param spreadMillis The time to spread the resumed polls over.
+   */
+  public void resume(List<PollerState> states, long spreadMillis) {
+    if (states.isEmpty()) {
+      return;
+    }
+    List<PollerState> sorted = new ArrayList<>(states);
+    sorted.sort(Comparator.comparingLong(PollerState::nextPollMillis));
+    LOGGER.info("Resuming the polls of {} pipelines over {}ms", sorted.size(), spreadMillis);
+    long now = System.currentTimeMillis();
+    for (int i = 0; i < sorted.size(); i++) {
+      PollerState state = sorted.get(i);
+      PipelinePoller poller = new PipelinePoller(state.pipeline(), this);
+      poller.restore(state);
+      pollers.put(state.pipelineId(), poller);
+      register(poller);
+      poller.start(resumeDelayMillis(state.nextPollMillis(), now, i, sorted.size(), spreadMillis));
+    }
+  }
+
+  /**
+   * Work out how long to wait before resuming the poll of a pipeline after a restart. Every resumed
+   * poll is pushed back by its share of the spread, in the order they are resumed.
+   *
+   * @param nextPollMillis When the poll was due, in milliseconds since the epoch.
+   * @param nowMillis The current time, in milliseconds since the epoch.
+   * @param index The position of this poll among those being resumed.
+   * @param count How many polls are being resumed.
+   * @param spreadMillis The time to spread the resumed polls over.
+   * @return The number of milliseconds to delay before the first poll.
+   */
+  static long resumeDelayMillis(
+      long nextPollMillis, long nowMillis, int index, int count, long spreadMillis) {
+    return Math.max(0, nextPollMillis - nowMillis) + spreadMillis * index / Math.max(1, count);
+  }
+
+  /** @return The poller of a pipeline, or null if we aren't polling it. */
+  @Nullable
+  public PipelinePoller get(UUID pipelineId) {
+    return pollers.get(pipelineId);
+  }
+
+  /** @return How many pipelines we are polling. */
+  public int size() {
+    return pollers.size();
+  }
+
+  /** Forget a poller which has stopped. */
+  void stopped(PipelinePoller poller) {
+    pollers.remove(poller.getPipeline().id(), poller);
+    if (poller.isFinished()) {
+      finished(poller);
+    }
+  }
+
+  /** Forget a poller which has stopped, as have all of the workflow pollers it started. */
+  void finished(PipelinePoller poller) {
+    latest.remove(new Branch(poller.getPipeline()), poller);
+  }
+
+  CircleCi getCircleCi() {
+    return circleCi;
+  }
+
+  GitLab getGitLab() {
+    return gitLab;
+  }
+
+  JobScheduler getJobScheduler() {
+    return jobScheduler;
+  }
+
+  boolean isConsolidated() {
+    return consolidated;
+  }
+
+  @Nullable
+  PollerStateStore getStateStore() {
+    return stateStore;
+  }
+
+  long getMinPollMillis() {
+    return minPollMillis;
+  }
+
+  @Nullable
+  WorkflowDurations getDurations() {
+    return durations;
+  }
+
+  @Nullable
+  PollBudget getBudget() {
+    return budget;
+  }
+
+  private static final class Branch {
+    private final int projectId;
+    private final String name;
+
+    Branch(Pipeline pipeline) {
+      projectId = pipeline.projectId();
+      name = pipeline.branch();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Branch)) {
+        return false;
+      }
+      Branch other = (Branch) o;
+      return projectId == other.projectId && name.equals(other.name);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(projectId, name);
+    }
+  }
+}
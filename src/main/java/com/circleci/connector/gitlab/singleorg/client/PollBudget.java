@@ -0,0 +1,123 @@
+package com.circleci.connector.gitlab.singleorg.client;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+
+/**
+ * Caps the rate of polls across every poller, and spreads them out so that pollers started at the
+ * same moment don't keep polling in lockstep.
+ *
+ * <p>Each poll reserves the next free slot in the budget when it falls due. A poll which can't go
+ * straight away is deferred until its slot rather than dropped, and slots are handed out in the
+ * order polls ask for them. A poller only asks again once its last poll has completed, so the
+ * budget is shared round robin between the pipelines being polled and none of them can starve.
+ *
+ * <p>Every reschedule is also moved by a random fraction of its delay, either way, unless it is the
+ * least we were asked to wait, in which case it is only ever lengthened.
+ */
+public class PollBudget {
+  private final long intervalNanos;
+  private final long burstNanos;
+  private final double jitterRatio;
+  private final Ticker ticker;
+  /** Null to use the current thread's random number generator. */
+  @Nullable private final Random random;
+
+  private final Meter deferred;
+
+  /** When the next slot after those already reserved is free. Guarded by this. */
+  private long nextFreeNanos;
+
+  /**
+   * @param pollsPerSecond The most polls to make a second. 0 means there is no limit.
+   * @param burst How many polls may be made at once after a quiet spell.
+   * @param jitterRatio The most to move a reschedule by, as a fraction of its delay.
+   * @param metrics Where to report the polls we deferred.
+   */
+  public PollBudget(double pollsPerSecond, int burst, double jitterRatio, MetricRegistry metrics) {
+    this(pollsPerSecond, burst, jitterRatio, metrics, Ticker.systemTicker(), null);
+  }
+
+  @VisibleForTesting
+  PollBudget(
+      double pollsPerSecond,
+      int burst,
+      double jitterRatio,
+      MetricRegistry metrics,
+      Ticker ticker,
+      @Nullable Random random) {
+    if (pollsPerSecond < 0 || burst < 1 || jitterRatio < 0 || jitterRatio >= 1) {
+      throw new IllegalArgumentException(
+          "The rate must not be negative, the burst must be positive and the jitter less than 1");
+    }
+    intervalNanos = pollsPerSecond > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / pollsPerSecond) : 0;
+    burstNanos = intervalNanos * (burst - 1);
+    this.jitterRatio = jitterRatio;
+    this.ticker = ticker;
+    this.random = random;
+    // Start with the whole burst free
+    nextFreeNanos = ticker.read() - burstNanos;
+    deferred = metrics.meter(MetricRegistry.name(PollBudget.class, "deferred"));
+  }
+
+  /**
+   * Reserve a slot for a poll which is due now.
+   *
+   * @return Zero if the poll may go ahead now, otherwise how many milliseconds to defer it for. The
+   *     slot is held for it, so it must not ask again when it runs.
+   */
+  long reserve() {
+    if (intervalNanos == 0) {
+      return 0;
+    }
+    long waitNanos;
+    synchronized (this) {
+      long now = ticker.read();
+      // Unused slots from a quiet spell are kept, up to the burst
+      long slot = Math.max(nextFreeNanos, now - burstNanos);
+      nextFreeNanos = slot + intervalNanos;
+      waitNanos = slot - now;
+    }
+    if (waitNanos <= 0) {
+      return 0;
+    }
+    deferred.mark();
+    // Round up, so that the poll doesn't run before its slot
+    return TimeUnit.NANOSECONDS.toMillis(waitNanos + TimeUnit.MILLISECONDS.toNanos(1) - 1);
+  }
+
+  /**
+   * Move a delay by a random amount.
+   *
+   * @param delayMillis The delay before the next poll.
+   * @return A delay within the jitter ratio of the one given.
+   */
+  long jitter(long delayMillis) {
+    return jitter(delayMillis, -1);
+  }
+
+  /**
+   * Lengthen a delay by a random amount, for a delay which is the least we were asked to wait.
+   *
+   * @param delayMillis The delay before the next poll.
+   * @return A delay no shorter than the one given, and within the jitter ratio of it.
+   */
+  long jitterUp(long delayMillis) {
+    return jitter(delayMillis, 0);
+  }
+
+  /** @param from The least to move the delay by, as a fraction of the jitter ratio. */
+  private long jitter(long delayMillis, double from) {
+    if (jitterRatio == 0 || delayMillis <= 0) {
+      return delayMillis;
+    }
+    double fraction = (random != null ? random : ThreadLocalRandom.current()).nextDouble();
+    return Math.round(delayMillis * (1 + jitterRatio * (from + (1 - from) * fraction)));
+  }
+}
@@ -0,0 +1,148 @@
+package com.circleci.connector.gitlab.singleorg.client;
+
+import com.circleci.client.v2.ApiException;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.RatioGauge;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
+import com.google.common.base.Ticker;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collapses identical reads from the CircleCI API. A read which arrives while the same read is
+ * already in flight waits for that call to finish and shares its result, and a read which arrives
+ * shortly after a call finished gets the same result without calling CircleCI again.
+ *
+ * <p>The time to live should be short, well under the interval at which anything polls, so that a
+ * poller never sees a result it has already seen. Failed calls are not remembered.
+ *
+ * @param <K> What identifies a read, such as the id of the workflow being read.
+ * @param <V> The result of the read.
+ */
+public class SingleFlightCache<K, V> {
+  /** A call to the CircleCI API. */
+  interface Read<T> {
+    T call() throws ApiException;
+  }
+
+  private final ConcurrentMap<K, Flight> flights = new ConcurrentHashMap<>();
+  private final long ttlNanos;
+  private final Ticker ticker;
+  private final AtomicLong lastSweep;
+
+  private final Meter requests;
+  private final Meter calls;
+
+  /**
+   * @param name What is being read, to name the metrics.
+   * @param ttl How long to keep serving a result after the call which got it.
+   * @param metrics Where to report how many reads were served without calling CircleCI.
+   */
+  public SingleFlightCache(String name, Duration ttl, MetricRegistry metrics) {
+    this(name, ttl, metrics, Ticker.systemTicker());
+  }
+
+  @VisibleForTesting
+  SingleFlightCache(String name, Duration ttl, MetricRegistry metrics, Ticker ticker) {
+    this.ttlNanos = ttl.toNanos();
+    this.ticker = ticker;
+    lastSweep = new AtomicLong(ticker.read());
+    requests = metrics.meter(MetricRegistry.name(SingleFlightCache.class, name, "requests"));
+    calls = metrics.meter(MetricRegistry.name(SingleFlightCache.class, name, "calls"));
+    RatioGauge dedupRatio =
+        new RatioGauge() {
+          @Override
+          protected Ratio getRatio() {
+            double rate = requests.getOneMinuteRate();
+            return Ratio.of(rate - calls.getOneMinuteRate(), rate);
+          }
+        };
+    metrics.gauge(
+        MetricRegistry.name(SingleFlightCache.class, name, "dedupRatio"), () -> dedupRatio);
+  }
+
+  /**
+   * Get the result of a read, sharing a call with any identical reads in flight or just finished.
+   *
+   * @param key What identifies the read.
+   * @param read Calls CircleCI, if there is no call to share.
+   * @throws ApiException If the call we shared failed.
+   */
+  V get(K key, Read<V> read) throws ApiException {
+    requests.mark();
+    long now = ticker.read();
+    Flight mine = new Flight();
+    Flight flight =
+        flights.compute(
+            key, (k, existing) -> existing == null || existing.isStale(now) ? mine : existing);
+    if (flight != mine) {
+      return flight.await();
+    }
+
+    calls.mark();
+    try {
+      V value = read.call();
+      mine.complete(value, ticker.read());
+      return value;
+    } catch (Throwable e) {
+      flights.remove(key, mine);
+      mine.fail(e);
+      throw e;
+    } finally {
+      maybeSweep(now);
+    }
+  }
+
+  /** Every so often, forget results which have gone stale and won't be read again. */
+  private void maybeSweep(long now) {
+    long last = lastSweep.get();
+    if (now - last > Math.max(ttlNanos, TimeUnit.SECONDS.toNanos(1))
+        && lastSweep.compareAndSet(last, now)) {
+      flights.values().removeIf(flight -> flight.isStale(now));
+    }
+  }
+
+  @VisibleForTesting
+  int size() {
+    return flights.size();
+  }
+
+  /** One call to CircleCI, which may still be in flight. */
+  private final class Flight {
+    private final CompletableFuture<V> result = new CompletableFuture<>();
+    private volatile long completedAt;
+
+    void complete(V value, long now) {
+      completedAt = now;
+      result.complete(value);
+    }
+
+    void fail(Throwable e) {
+      result.completeExceptionally(e);
+    }
+
+    boolean isStale(long now) {
+      return result.isDone() && (result.isCompletedExceptionally() || now - completedAt > ttlNanos);
+    }
+
+    V await() throws ApiException {
+      try {
+        return result.join();
+      } catch (CompletionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof ApiException) {
+          throw (ApiException) cause;
+        }
+        Throwables.throwIfUnchecked(cause);
+        throw e;
+      }
+    }
+  }
+}
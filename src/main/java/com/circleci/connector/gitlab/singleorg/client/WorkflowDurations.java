@@ -0,0 +1,157 @@
+package com.circleci.connector.gitlab.singleorg.client;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.util.Objects;
+
+/**
+ * Remembers how long the workflows of each project usually take, so that a workflow can be polled
+ * sparsely while it is unlikely to have finished and more often around when it is expected to.
+ *
+ * <p>For each project and workflow name we keep an exponentially weighted moving average of how
+ * long the workflow took to succeed, and of how far each run was from that average. A workflow is
+ * expected to finish within two deviations of the average. Before that window each poll halves the
+ * remaining time to it, within the window we poll a fixed number of times however wide it is, and
+ * after it we fall back to the usual backoff. Failed and cancelled runs are not recorded, since
+ * they often end early and say little about when the next run will succeed.
+ *
+ * <p>We never poll more often than the retry policies do for a running workflow, so that a steady
+ * workload costs fewer polls than it would without a history.
+ */
+public class WorkflowDurations {
+  /** The most often we poll, which is as often as the retry policies poll a running workflow. */
+  static final long MIN_POLL_MILLIS = 1000;
+
+  /** How many deviations either side of the average a workflow is expected to finish in. */
+  private static final double WINDOW_DEVIATIONS = 2;
+
+  /** How many times to poll while a workflow is expected to finish at any moment. */
+  private static final int POLLS_PER_WINDOW = 8;
+
+  /**
+   * The deviation of a workflow we have only seen once, as a fraction of how long it took. A single
+   * run says nothing about the variation, so we assume it is small rather than polling around a
+   * window as wide as the run itself.
+   */
+  private static final double FIRST_DEVIATION_RATIO = 0.1;
+
+  private final Cache<Key, Estimate> estimates;
+  private final double weight;
+  private final long maxDelayMillis;
+  private final Meter predicted;
+
+  /**
+   * @param maxEntries The most project and workflow name pairs to remember.
+   * @param weight How much each run moves the average, between 0 and 1.
+   * @param maxDelayMillis The longest to wait between polls before a workflow is expected to
+   *     finish, in case it fails early.
+   * @param metrics Where to report the polls we scheduled from the history.
+   */
+  public WorkflowDurations(
+      long maxEntries, double weight, long maxDelayMillis, MetricRegistry metrics) {
+    if (weight <= 0 || weight > 1) {
+      throw new IllegalArgumentException("The weight must be greater than 0 and at most 1");
+    }
+    estimates = CacheBuilder.newBuilder().maximumSize(maxEntries).build();
+    this.weight = weight;
+    this.maxDelayMillis = Math.max(MIN_POLL_MILLIS, maxDelayMillis);
+    predicted = metrics.meter(MetricRegistry.name(WorkflowDurations.class, "predicted"));
+    Gauge<Long> size = estimates::size;
+    metrics.gauge(MetricRegistry.name(WorkflowDurations.class, "size"), () -> size);
+  }
+
+  /**
+   * Record how long a workflow took to succeed.
+   *
+   * @param projectId The GitLab project the workflow ran for.
+   * @param workflowName The name of the workflow, which is the same from run to run.
+   * @param durationMillis How long it took, from when we first saw it to when we saw it succeed.
+   */
+  void record(int projectId, String workflowName, long durationMillis) {
+    estimates
+        .asMap()
+        .compute(
+            new Key(projectId, workflowName),
+            (key, estimate) ->
+                estimate == null
+                    ? new Estimate(durationMillis, durationMillis * FIRST_DEVIATION_RATIO)
+                    : estimate.update(durationMillis, weight));
+  }
+
+  /**
+   * Work out when to next poll a workflow which is still running.
+   *
+   * @param projectId The GitLab project the workflow is running for.
+   * @param workflowName The name of the workflow.
+   * @param elapsedMillis How long it has been running for.
+   * @return The number of milliseconds to wait before polling it again, or a negative number if we
+   *     have no history for it or it has overrun what we expected.
+   */
+  long delayMillis(int projectId, String workflowName, long elapsedMillis) {
+    Estimate estimate = estimates.getIfPresent(new Key(projectId, workflowName));
+    if (estimate == null) {
+      return -1;
+    }
+    double windowStart = estimate.average - WINDOW_DEVIATIONS * estimate.deviation;
+    double windowEnd = estimate.average + WINDOW_DEVIATIONS * estimate.deviation;
+    if (elapsedMillis > windowEnd) {
+      return -1;
+    }
+    predicted.mark();
+    if (elapsedMillis >= windowStart) {
+      return clamp((windowEnd - windowStart) / POLLS_PER_WINDOW);
+    }
+    return clamp((windowStart - elapsedMillis) / 2);
+  }
+
+  private long clamp(double delayMillis) {
+    return Math.max(MIN_POLL_MILLIS, Math.min(maxDelayMillis, (long) delayMillis));
+  }
+
+  /** How long a workflow usually takes, and how much that varies. Both in milliseconds. */
+  private static final class Estimate {
+    private final double average;
+    private final double deviation;
+
+    Estimate(double average, double deviation) {
+      this.average = average;
+      this.deviation = deviation;
+    }
+
+    Estimate update(long durationMillis, double weight) {
+      double error = durationMillis - average;
+      return new Estimate(
+          average + weight * error, deviation + weight * (Math.abs(error) - deviation));
+    }
+  }
+
+  private static final class Key {
+    private final int projectId;
+    private final String workflowName;
+
+    Key(int projectId, String workflowName) {
+      this.projectId = projectId;
+      this.workflowName = workflowName;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return projectId == other.projectId && workflowName.equals(other.workflowName);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(projectId, workflowName);
+    }
+  }
+}
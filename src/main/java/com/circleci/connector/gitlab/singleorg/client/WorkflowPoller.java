@@ -1,12 +1,14 @@
 package com.circleci.connector.gitlab.singleorg.client;
 
-import static java.util.concurrent.TimeUnit.MILLISECONDS;
-
 import com.circleci.connector.gitlab.singleorg.model.Pipeline;
 import com.circleci.connector.gitlab.singleorg.model.Workflow;
 import com.circleci.connector.gitlab.singleorg.model.Workflow.State;
+import com.circleci.connector.gitlab.singleorg.scheduler.JobScheduler;
+import com.circleci.connector.gitlab.singleorg.scheduler.TimingWheel;
 import com.google.common.annotations.VisibleForTesting;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 import javax.annotation.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -20,9 +22,42 @@ public class WorkflowPoller {
   private final Pipeline pipeline;
   private final CircleCi circleCi;
   private final GitLab gitLab;
-  private final ScheduledExecutorService jobRunner;
+  private final JobScheduler jobScheduler;
   private final RetryPolicy retryPolicy;
+
+  /** How long workflows usually take, to decide when to poll. Null if not configured. */
+  @Nullable private final WorkflowDurations durations;
+
+  /** Caps the rate of polls and spreads them out. Null if not configured. */
+  @Nullable private final PollBudget budget;
+
+  /** When we first saw the workflow, which is as close as we get to when it started. */
+  private final long startNanos = System.nanoTime();
+
+  /** Run once we stop polling, null if nobody needs to know. Set before we start. */
+  @Nullable private Runnable onStop;
+
+  /** The next poll, for cancelling it if we are stopped early. Guarded by this. */
+  @Nullable private TimingWheel.Timeout nextPoll;
+
+  /** Guarded by this. */
+  private boolean stopped;
+
+  /**
+   * Held while a poll tells GitLab what it found, so that it can't race with stopping. It is a lock
+   * rather than a monitor because it is held while we call GitLab, which would pin a virtual thread
+   * to its carrier.
+   */
+  private final ReentrantLock reporting = new ReentrantLock();
+
+  /**
+   * Whether the limiter held back the last poll, so that its delay is the least we may wait. Only
+   * touched by the poll in flight.
+   */
+  private boolean deferred;
+
   private Workflow workflow;
+  /** Guarded by reporting. */
   private State gitlabState;
 
   public WorkflowPoller(
@@ -30,69 +65,208 @@ public class WorkflowPoller {
       Workflow workflow,
       CircleCi circleCi,
       GitLab gitLab,
-      ScheduledExecutorService jobRunner) {
+      JobScheduler jobScheduler) {
+    this(pipeline, workflow, circleCi, gitLab, jobScheduler, null, null);
+  }
+
+  /**
+   * @param durations How long workflows usually take, so that we can poll less often until this one
+   *     is expected to finish. Null to always poll at the same pace.
+   */
+  public WorkflowPoller(
+      Pipeline pipeline,
+      Workflow workflow,
+      CircleCi circleCi,
+      GitLab gitLab,
+      JobScheduler jobScheduler,
+      @Nullable WorkflowDurations durations,
+      @Nullable PollBudget budget) {
     this.pipeline = pipeline;
     this.workflow = workflow;
     this.circleCi = circleCi;
     this.gitLab = gitLab;
-    this.jobRunner = jobRunner;
+    this.jobScheduler = jobScheduler;
+    this.durations = durations;
+    this.budget = budget;
     retryPolicy = new RetryPolicy();
   }
 
   public void start() {
-    schedule(INITIAL_DELAY_MILLIS);
+    schedule(INITIAL_DELAY_MILLIS, false);
+  }
+
+  /**
+   * Stop polling. A poll which is already in flight still completes, but GitLab isn't told what it
+   * found and nothing is scheduled after it. If the poll is already telling GitLab, we wait for it
+   * to finish, so that nothing we report afterwards can be overwritten.
+   */
+  public void stop() {
+    reporting.lock();
+    try {
+      synchronized (this) {
+        if (stopped) {
+          return;
+        }
+        stopped = true;
+        if (nextPoll != null) {
+          nextPoll.cancel();
+        }
+      }
+    } finally {
+      reporting.unlock();
+    }
+    if (onStop != null) {
+      onStop.run();
+    }
+  }
+
+  /** @return The state GitLab was last told the workflow is in, or null if it hasn't been told. */
+  @Nullable
+  State getReportedState() {
+    reporting.lock();
+    try {
+      return gitlabState;
+    } finally {
+      reporting.unlock();
+    }
+  }
+
+  /** @return True once we have stopped polling, for whatever reason. */
+  public synchronized boolean isStopped() {
+    return stopped;
+  }
+
+  /** Have a callback run once we stop polling. Call this before starting. */
+  void onStop(Runnable callback) {
+    onStop = callback;
   }
 
   /**
-   * Schedule the polling on the jobRunner.
+   * Schedule the polling on the jobScheduler. The next poll is scheduled once this one completes.
    *
    * @param delayMillis The number of milliseconds to delay before running the job once.
+   * @param atLeast True if we must not poll any sooner, so the delay may only be lengthened.
    */
-  private void schedule(long delayMillis) {
+  private synchronized void schedule(long delayMillis, boolean atLeast) {
+    if (stopped) {
+      return;
+    }
+    if (budget != null) {
+      delayMillis = atLeast ? budget.jitterUp(delayMillis) : budget.jitter(delayMillis);
+    }
     LOGGER.info(
         "Scheduling a poll of CircleCI workflow {} in {}ms from now", workflow.id(), delayMillis);
-    jobRunner.schedule(
-        () -> {
-          long rescheduleAfter = poll();
-          if (rescheduleAfter >= 0) {
-            schedule(rescheduleAfter);
-          }
-        },
-        delayMillis,
-        MILLISECONDS);
+    nextPoll = jobScheduler.schedule(this::pollWithinBudget, delayMillis);
+  }
+
+  /** Poll now if the budget allows, otherwise wait for the slot it reserved for us. */
+  private void pollWithinBudget() {
+    long waitMillis = budget != null ? budget.reserve() : 0;
+    if (waitMillis == 0) {
+      pollAndReschedule();
+      return;
+    }
+    synchronized (this) {
+      if (stopped) {
+        return;
+      }
+      LOGGER.info(
+          "Deferring the poll of CircleCI workflow {} for {}ms to stay within the poll budget",
+          workflow.id(),
+          waitMillis);
+      nextPoll = jobScheduler.schedule(this::pollAndReschedule, waitMillis);
+    }
+  }
+
+  private void pollAndReschedule() {
+    poll()
+        .whenComplete(
+            (rescheduleAfter, e) -> {
+              if (e != null) {
+                LOGGER.error("Stopped polling CircleCI workflow {}", workflow.id(), e);
+                stop();
+              } else if (rescheduleAfter < 0) {
+                stop();
+              } else {
+                schedule(rescheduleAfter, deferred);
+              }
+            });
   }
 
   /**
-   * Poll the CircleCI API and update GitLab with the status of the workflow
+   * Poll the CircleCI API and update GitLab with the status of the workflow. No thread is held
+   * while we wait for CircleCI to respond, and GitLab is updated on whichever thread completes the
+   * refresh.
+   *
+   * <p>A poll which is held back because CircleCI is struggling is tried again when the limiter
+   * says, without counting as an error.
    *
    * @return The number of milliseconds to delay before polling again, or a negative number if we
    *     wish to stop polling.
    */
   @VisibleForTesting
-  long poll() {
+  CompletableFuture<Long> poll() {
     LOGGER.info("Polling for the status of CircleCI workflow {}", workflow.id());
-    Workflow refreshedWorkflow;
-    try {
-      refreshedWorkflow = circleCi.refreshWorkflow(this.workflow);
-    } catch (RuntimeException e) {
-      LOGGER.error(
-          "Caught error while polling for the status of CircleCI workflow {}",
-          this.workflow.id(),
-          e);
-      return retryPolicy.delayFor(null);
-    }
+    return circleCi
+        .refreshWorkflowAsync(this.workflow)
+        .handle(
+            (refreshedWorkflow, e) -> {
+              deferred = false;
+              if (e != null) {
+                CircleCiLimiter.DeferredException deferral =
+                    CircleCiLimiter.DeferredException.from(e);
+                if (deferral != null) {
+                  deferred = true;
+                  LOGGER.info(
+                      "Deferring the poll of CircleCI workflow {} for {}ms",
+                      this.workflow.id(),
+                      deferral.getRetryAfterMillis());
+                  return deferral.getRetryAfterMillis();
+                }
+                LOGGER.error(
+                    "Caught error while polling for the status of CircleCI workflow {}",
+                    this.workflow.id(),
+                    e);
+                return retryPolicy.delayFor(null);
+              }
 
-    workflow = refreshedWorkflow;
+              State state;
+              reporting.lock();
+              try {
+                if (isStopped()) {
+                  return -1L;
+                }
 
-    LOGGER.info("Workflow {} is in state {}", workflow.id(), workflow.state());
+                workflow = refreshedWorkflow;
 
-    State state = refreshedWorkflow.state();
-    if (state != gitlabState) {
-      state = gitLab.updateCommitStatus(pipeline, workflow);
-      gitlabState = state;
-    }
+                LOGGER.info("Workflow {} is in state {}", workflow.id(), workflow.state());
+
+                state = refreshedWorkflow.state();
+                if (state != gitlabState) {
+                  if (durations != null && state == State.SUCCESS) {
+                    durations.record(pipeline.projectId(), workflow.name(), elapsedMillis());
+                  }
+                  state = gitLab.updateCommitStatus(pipeline, workflow);
+                  gitlabState = state;
+                }
+              } finally {
+                reporting.unlock();
+              }
+
+              long delay = retryPolicy.delayFor(state);
+              if (durations != null && state == State.RUNNING) {
+                long predicted =
+                    durations.delayMillis(pipeline.projectId(), workflow.name(), elapsedMillis());
+                if (predicted >= 0) {
+                  return predicted;
+                }
+              }
+              return delay;
+            });
+  }
 
-    return retryPolicy.delayFor(state);
+  private long elapsedMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
   }
 
   /** Parcel up the retry delays and policy in a single, testable place. */
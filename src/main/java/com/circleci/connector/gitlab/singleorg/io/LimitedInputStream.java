@@ -0,0 +1,51 @@
+package com.circleci.connector.gitlab.singleorg.io;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Fails the read as soon as more than a given number of bytes have come through, so that an
+ * oversized body is never read into memory in full.
+ */
+public final class LimitedInputStream extends FilterInputStream {
+  private final long limit;
+  private long count;
+
+  public LimitedInputStream(InputStream in, long limit) {
+    super(in);
+    this.limit = limit;
+  }
+
+  @Override
+  public int read() throws IOException {
+    int b = super.read();
+    if (b >= 0) {
+      count(1);
+    }
+    return b;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    int n = super.read(b, off, len);
+    if (n > 0) {
+      count(n);
+    }
+    return n;
+  }
+
+  private void count(int n) throws LimitExceededException {
+    count += n;
+    if (count > limit) {
+      throw new LimitExceededException(limit);
+    }
+  }
+
+  /** Thrown by a read which takes the stream past its limit. */
+  public static final class LimitExceededException extends IOException {
+    public LimitExceededException(long limit) {
+      super("Read more than the limit of " + limit + " bytes");
+    }
+  }
+}
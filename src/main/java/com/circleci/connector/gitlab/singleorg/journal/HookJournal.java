@@ -0,0 +1,400 @@
+package com.circleci.connector.gitlab.singleorg.journal;
+
+import com.circleci.connector.gitlab.singleorg.api.ImmutablePushHook;
+import com.circleci.connector.gitlab.singleorg.api.PushHook;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.dropwizard.jackson.Jackson;
+import io.dropwizard.lifecycle.Managed;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import javax.validation.constraints.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An append-only, on-disk record of accepted push hooks, so that a hook which was acknowledged to
+ * GitLab but not yet turned into a pipeline survives a restart.
+ *
+ * <p>The journal is a sequence of fixed-size, memory-mapped segment files. Each record is:
+ *
+ * <pre>
+ *   int length | byte type | long idMsb | long idLsb | payload | int crc32
+ * </pre>
+ *
+ * <p>where the length covers everything after itself and a zero length marks the end of the written
+ * part of a segment. Appending a hook only returns once the hook is on disk, but concurrent appends
+ * share a single {@code force()} (group commit). Marking a hook as done is not forced: at worst a
+ * crash means a finished hook is replayed.
+ *
+ * <p>A sealed segment is deleted once it, and every segment before it, has no unfinished hooks. On
+ * startup {@link #recover()} copies any unfinished hooks into a fresh segment and deletes the old
+ * ones.
+ */
+public class HookJournal implements Managed {
+  private static final Logger LOGGER = LoggerFactory.getLogger(HookJournal.class);
+  private static final ObjectMapper MAPPER = Jackson.newObjectMapper();
+
+  private static final byte HOOK = 1;
+  private static final byte DONE = 2;
+
+  /** type + id */
+  private static final int HEADER_BYTES = 1 + 16;
+
+  /** length + crc32, plus room for the zero length which terminates a segment. */
+  private static final int FRAMING_BYTES = 4 + 4 + 4;
+
+  private static final String SEGMENT_PREFIX = "hooks-";
+  private static final String SEGMENT_SUFFIX = ".journal";
+
+  @NotNull private final Path directory;
+  private final int segmentSizeBytes;
+
+  /** Guards everything to do with writing records and the set of segments. */
+  private final ReentrantLock writeLock = new ReentrantLock();
+
+  /** Guards the group commit state. Never held while holding the write lock. */
+  private final ReentrantLock commitLock = new ReentrantLock();
+
+  private final Condition committed = commitLock.newCondition();
+
+  /** The segment being appended to. */
+  private Segment active;
+
+  /** Sealed segments, oldest first. */
+  private final Deque<Segment> sealed = new ArrayDeque<>();
+
+  /** The segment holding each unfinished hook. */
+  private final Map<UUID, Segment> unfinished = new HashMap<>();
+
+  private long nextSegmentNumber;
+
+  /** The number of hook records written. Guarded by the write lock. */
+  private long written;
+
+  /** The number of hook records known to be on disk. Guarded by the commit lock. */
+  private long durable;
+
+  /** Whether some thread is currently forcing the active segment. Guarded by the commit lock. */
+  private boolean flushing;
+
+  /**
+   * @param directory The directory to keep the segment files in. It will be created if necessary.
+   * @param segmentSizeBytes The size of each segment file.
+   */
+  public HookJournal(Path directory, int segmentSizeBytes) {
+    this.directory = directory;
+    this.segmentSizeBytes = segmentSizeBytes;
+  }
+
+  /**
+   * Read any existing segments, compact the hooks which were never marked as done into a fresh
+   * segment and open that segment for appending. This must be called before anything else.
+   *
+   * @return The unfinished hooks, oldest first, with the same ids they were appended with.
+   */
+  public List<PushHook> recover() throws IOException {
+    writeLock.lock();
+    try {
+      Files.createDirectories(directory);
+      List<Path> existing = listSegments();
+
+      Map<UUID, byte[]> pending = new LinkedHashMap<>();
+      for (Path path : existing) {
+        readSegment(path, pending);
+        nextSegmentNumber = Math.max(nextSegmentNumber, segmentNumber(path) + 1);
+      }
+
+      active = openSegment();
+      List<PushHook> hooks = new ArrayList<>();
+      for (Map.Entry<UUID, byte[]> entry : pending.entrySet()) {
+        try {
+          PushHook hook = MAPPER.readValue(entry.getValue(), ImmutablePushHook.class);
+          hooks.add(ImmutablePushHook.copyOf(hook).withId(entry.getKey()));
+          write(HOOK, entry.getKey(), entry.getValue());
+        } catch (IOException e) {
+          LOGGER.error("Dropping unreadable journal entry {}", entry.getKey(), e);
+        }
+      }
+      active.buffer.force();
+      durable = written;
+
+      for (Path path : existing) {
+        Files.delete(path);
+      }
+      LOGGER.info(
+          "Recovered {} unfinished hooks from {} journal segments in {}",
+          hooks.size(),
+          existing.size(),
+          directory);
+      return hooks;
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /**
+   * Durably record a hook which we have accepted but not yet processed. When this returns the hook
+   * is on disk.
+   */
+  public void append(PushHook hook) {
+    long sequence;
+    try {
+      byte[] payload = MAPPER.writeValueAsBytes(hook);
+      writeLock.lock();
+      try {
+        write(HOOK, hook.id(), payload);
+        sequence = written;
+      } finally {
+        writeLock.unlock();
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    awaitDurable(sequence);
+  }
+
+  /** Record that a hook has been processed and no longer needs to be replayed. */
+  public void markDone(UUID id) {
+    writeLock.lock();
+    try {
+      Segment segment = unfinished.remove(id);
+      if (segment == null) {
+        return;
+      }
+      write(DONE, id, new byte[0]);
+      segment.unfinished.remove(id);
+      deleteFinishedSegments();
+    } catch (IOException e) {
+      LOGGER.error("Failed to mark journal entry {} as done", id, e);
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  @Override
+  public void start() {}
+
+  @Override
+  public void stop() throws IOException {
+    writeLock.lock();
+    try {
+      if (active != null) {
+        active.buffer.force();
+        active.channel.close();
+      }
+      for (Segment segment : sealed) {
+        segment.channel.close();
+      }
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /**
+   * Wait until the record with the given sequence number is on disk. The first thread to find that
+   * nobody is flushing forces the active segment on behalf of every record written so far; the
+   * others wait for it.
+   */
+  private void awaitDurable(long sequence) {
+    commitLock.lock();
+    try {
+      while (durable < sequence) {
+        if (!flushing) {
+          flushing = true;
+          break;
+        }
+        committed.awaitUninterruptibly();
+      }
+      if (durable >= sequence) {
+        return;
+      }
+    } finally {
+      commitLock.unlock();
+    }
+
+    long target;
+    MappedByteBuffer buffer;
+    writeLock.lock();
+    try {
+      target = written;
+      buffer = active.buffer;
+    } finally {
+      writeLock.unlock();
+    }
+
+    boolean forced = false;
+    try {
+      buffer.force();
+      forced = true;
+    } finally {
+      commitLock.lock();
+      try {
+        flushing = false;
+        if (forced) {
+          durable = Math.max(durable, target);
+        }
+        committed.signalAll();
+      } finally {
+        commitLock.unlock();
+      }
+    }
+  }
+
+  /** Write a record to the active segment, rolling to a new segment if it is full. */
+  private void write(byte type, UUID id, byte[] payload) throws IOException {
+    ByteBuffer body = ByteBuffer.allocate(HEADER_BYTES + payload.length);
+    body.put(type).putLong(id.getMostSignificantBits()).putLong(id.getLeastSignificantBits());
+    body.put(payload);
+    body.flip();
+    CRC32 crc = new CRC32();
+    crc.update(body.duplicate());
+
+    int recordBytes = body.remaining() + FRAMING_BYTES;
+    if (recordBytes > segmentSizeBytes) {
+      throw new IOException(
+          String.format(
+              "Journal record of %d bytes does not fit in a segment of %d bytes",
+              recordBytes, segmentSizeBytes));
+    }
+    if (active.position + recordBytes > segmentSizeBytes) {
+      roll();
+    }
+
+    // Write the length last so that a partially written record reads as the end of the segment.
+    ByteBuffer out = active.buffer.duplicate();
+    out.position(active.position + 4);
+    out.put(body);
+    out.putInt((int) crc.getValue());
+    active.buffer.putInt(active.position, out.position() - active.position - 4);
+    active.position = out.position();
+
+    if (type == HOOK) {
+      active.unfinished.add(id);
+      unfinished.put(id, active);
+      written++;
+    }
+  }
+
+  /** Seal the active segment and start a new one. */
+  private void roll() throws IOException {
+    active.buffer.force();
+    sealed.addLast(active);
+    active = openSegment();
+    deleteFinishedSegments();
+  }
+
+  /**
+   * Delete sealed segments from the oldest onwards for as long as they have no unfinished hooks. We
+   * stop at the first segment with unfinished hooks because a later segment may hold the done
+   * markers for it.
+   */
+  private void deleteFinishedSegments() throws IOException {
+    while (!sealed.isEmpty() && sealed.peekFirst().unfinished.isEmpty()) {
+      Segment segment = sealed.removeFirst();
+      segment.channel.close();
+      Files.deleteIfExists(segment.path);
+    }
+  }
+
+  private Segment openSegment() throws IOException {
+    Path path =
+        directory.resolve(
+            String.format("%s%020d%s", SEGMENT_PREFIX, nextSegmentNumber++, SEGMENT_SUFFIX));
+    FileChannel channel =
+        FileChannel.open(
+            path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSizeBytes);
+    return new Segment(path, channel, buffer);
+  }
+
+  private List<Path> listSegments() throws IOException {
+    try (Stream<Path> paths = Files.list(directory)) {
+      return paths
+          .filter(
+              p -> {
+                String name = p.getFileName().toString();
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+              })
+          .sorted()
+          .collect(Collectors.toList());
+    }
+  }
+
+  private static long segmentNumber(Path path) {
+    String name = path.getFileName().toString();
+    return Long.parseLong(
+        name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+  }
+
+  /**
+   * Apply the records in a segment to the map of unfinished hooks, stopping at the end of the
+   * written data or at the first damaged record.
+   */
+  private static void readSegment(Path path, Map<UUID, byte[]> pending) throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+    while (buffer.remaining() >= 4) {
+      int length = buffer.getInt();
+      if (length == 0) {
+        return;
+      }
+      if (length < HEADER_BYTES + 4 || length > buffer.remaining()) {
+        LOGGER.warn("Ignoring the rest of journal segment {} after a bad record length", path);
+        return;
+      }
+      ByteBuffer body = buffer.slice();
+      body.limit(length - 4);
+      buffer.position(buffer.position() + length - 4);
+      CRC32 crc = new CRC32();
+      crc.update(body.duplicate());
+      if ((int) crc.getValue() != buffer.getInt()) {
+        LOGGER.warn("Ignoring the rest of journal segment {} after a bad checksum", path);
+        return;
+      }
+
+      byte type = body.get();
+      UUID id = new UUID(body.getLong(), body.getLong());
+      if (type == HOOK) {
+        byte[] payload = new byte[body.remaining()];
+        body.get(payload);
+        pending.put(id, payload);
+      } else if (type == DONE) {
+        pending.remove(id);
+      }
+    }
+  }
+
+  private static class Segment {
+    private final Path path;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final Set<UUID> unfinished = new HashSet<>();
+    private int position = 0;
+
+    Segment(Path path, FileChannel channel, MappedByteBuffer buffer) {
+      this.path = path;
+      this.channel = channel;
+      this.buffer = buffer;
+    }
+  }
+}
@@ -23,6 +23,15 @@ public abstract class Pipeline {
   @Value.Parameter
   public abstract String branch();
 
+  /**
+   * @return When we received the push which triggered the pipeline, in milliseconds since the
+   *     epoch, or 0 if we don't know.
+   */
+  @Value.Default
+  public long receivedAtMillis() {
+    return 0;
+  }
+
   @Derived
   public boolean triggered() {
     return (this.id() != null);
@@ -10,7 +10,12 @@ public abstract class Workflow {
     RUNNING,
     SUCCESS,
     FAILED,
-    CANCELED
+    CANCELED;
+
+    /** @return True if the workflow has finished and its state won't change again. */
+    public boolean isTerminal() {
+      return this != RUNNING;
+    }
   }
 
   public abstract UUID id();
@@ -0,0 +1,153 @@
+package com.circleci.connector.gitlab.singleorg.resources;
+
+import com.circleci.client.v2.model.Workflow.StatusEnum;
+import com.circleci.connector.gitlab.singleorg.api.CircleCiWebhook;
+import com.circleci.connector.gitlab.singleorg.api.HookResponse;
+import com.circleci.connector.gitlab.singleorg.api.ImmutableHookResponse;
+import com.circleci.connector.gitlab.singleorg.client.CircleCi;
+import com.circleci.connector.gitlab.singleorg.client.PipelinePoller;
+import com.circleci.connector.gitlab.singleorg.client.PipelinePollers;
+import com.circleci.connector.gitlab.singleorg.io.LimitedInputStream;
+import com.circleci.connector.gitlab.singleorg.model.ImmutableWorkflow;
+import com.circleci.connector.gitlab.singleorg.model.Workflow;
+import com.codahale.metrics.annotation.Timed;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.hash.Hashing;
+import io.dropwizard.jackson.Jackson;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import javax.validation.constraints.NotNull;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Consume CircleCI webhooks, so that GitLab hears about a workflow as soon as CircleCI has news of
+ * it rather than when we next poll. Only consolidated pollers take the news, and once a pipeline's
+ * workflows have all finished its poller stops.
+ *
+ * <p>Each webhook is signed with a secret we share with CircleCI: the circleci-signature header
+ * holds one or more {@code v1=<hex>} HMAC-SHA256s of the body.
+ */
+@Path("/circleci-hook")
+@Produces(MediaType.APPLICATION_JSON)
+@Consumes(MediaType.APPLICATION_JSON)
+public class CircleCiHookResource {
+  private static final Logger LOGGER = LoggerFactory.getLogger(CircleCiHookResource.class);
+  private static final ObjectMapper MAPPER =
+      Jackson.newObjectMapper().disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+
+  private static final String SIGNATURE_VERSION = "v1=";
+
+  /** The pollers of the pipelines we are tracking. */
+  @NotNull private final PipelinePollers pollers;
+
+  @NotNull private final byte[] secret;
+
+  private final int maxPayloadBytes;
+
+  /**
+   * @param pollers The pollers of the pipelines we are tracking.
+   * @param secret The secret CircleCI signs its webhooks with.
+   * @param maxPayloadBytes Webhooks with a larger body than this are rejected with a 413.
+   */
+  public CircleCiHookResource(PipelinePollers pollers, String secret, int maxPayloadBytes) {
+    this.pollers = pollers;
+    this.secret = secret.getBytes(StandardCharsets.UTF_8);
+    this.maxPayloadBytes = maxPayloadBytes;
+  }
+
+  /** Consume a webhook about a workflow or job which has completed. */
+  @POST
+  @Timed
+  public Response processHook(InputStream body, @HeaderParam("circleci-signature") String signature)
+      throws IOException {
+    byte[] payload;
+    try {
+      payload = new LimitedInputStream(body, maxPayloadBytes).readAllBytes();
+    } catch (LimitedInputStream.LimitExceededException e) {
+      throw new WebApplicationException(
+          "Webhook body is too large", Response.Status.REQUEST_ENTITY_TOO_LARGE);
+    }
+    validateSignature(payload, signature);
+    CircleCiWebhook hook = MAPPER.readValue(payload, CircleCiWebhook.class);
+    LOGGER.debug("Received CircleCI webhook {} of type \"{}\"", hook.id(), hook.type());
+
+    HookResponse.Status status = HookResponse.Status.IGNORED;
+    PipelinePoller poller = pollers.get(hook.pipeline().id());
+    Workflow workflow = toWorkflow(hook);
+    if (poller != null && workflow != null && poller.report(workflow)) {
+      status = HookResponse.Status.SUBMITTED;
+    }
+    return Response.ok(ImmutableHookResponse.builder().id(hook.id()).status(status).build())
+        .build();
+  }
+
+  /**
+   * Work out the state of the workflow a webhook is about. A workflow with a job which has just
+   * completed is still running, unless CircleCI says otherwise.
+   *
+   * @return The workflow, or null if the webhook is of a type we don't use.
+   */
+  @VisibleForTesting
+  static Workflow toWorkflow(CircleCiWebhook hook) {
+    CircleCiWebhook.HookWorkflow workflow = hook.workflow();
+    Workflow.State state;
+    if (CircleCiWebhook.WORKFLOW_COMPLETED.equals(hook.type()) && workflow.status() != null) {
+      StatusEnum status;
+      try {
+        status = StatusEnum.fromValue(workflow.status());
+      } catch (IllegalArgumentException e) {
+        status = null;
+      }
+      state = status == null ? null : CircleCi.CIRCLECI_TO_WORKFLOW_STATE_MAP.get(status);
+      if (state == null) {
+        LOGGER.warn("Ignoring workflow {} in unknown state {}", workflow.id(), workflow.status());
+        return null;
+      }
+    } else if (CircleCiWebhook.JOB_COMPLETED.equals(hook.type())) {
+      state = Workflow.State.RUNNING;
+    } else {
+      return null;
+    }
+    return ImmutableWorkflow.of(workflow.id(), workflow.name(), state);
+  }
+
+  /**
+   * Throw a 403 unless one of the signatures in the circleci-signature header is the HMAC-SHA256 of
+   * the body with our secret.
+   */
+  private void validateSignature(byte[] payload, String header) {
+    if (header != null) {
+      byte[] expected =
+          Hashing.hmacSha256(secret)
+              .hashBytes(payload)
+              .toString()
+              .getBytes(StandardCharsets.US_ASCII);
+      for (String signature : header.split(",")) {
+        signature = signature.trim();
+        if (signature.startsWith(SIGNATURE_VERSION)
+            && MessageDigest.isEqual(
+                expected,
+                signature
+                    .substring(SIGNATURE_VERSION.length())
+                    .getBytes(StandardCharsets.US_ASCII))) {
+          return;
+        }
+      }
+    }
+    throw new WebApplicationException(
+        "Missing or invalid circleci-signature header", Response.Status.FORBIDDEN);
+  }
+}
@@ -0,0 +1,92 @@
+package com.circleci.connector.gitlab.singleorg.resources;
+
+import com.circleci.connector.gitlab.singleorg.api.HookResponse;
+import com.circleci.connector.gitlab.singleorg.api.PushHook;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+
+/**
+ * Remembers the response to each recently seen push so that GitLab's redeliveries of a hook are
+ * answered without fetching the config or triggering another pipeline.
+ *
+ * <p>A push is identified by its project, ref and before/after commits, since GitLab gives us
+ * nothing better. The index is bounded in both size and age and is split into independently locked
+ * segments, so lookups for different pushes don't contend. Concurrent deliveries of the same push
+ * wait for the first one and share its response. Failures are not remembered, so a redelivery of a
+ * push we failed to process is processed again.
+ */
+class HookDeduplicator {
+  private static final int CONCURRENCY_LEVEL = 16;
+
+  private final Cache<Key, HookResponse> responses;
+
+  /**
+   * @param window How long to remember a push for.
+   * @param maxEntries The maximum number of pushes to remember.
+   */
+  HookDeduplicator(Duration window, long maxEntries) {
+    responses =
+        CacheBuilder.newBuilder()
+            .expireAfterWrite(window)
+            .maximumSize(maxEntries)
+            .concurrencyLevel(CONCURRENCY_LEVEL)
+            .build();
+  }
+
+  /**
+   * Return the response we gave to an earlier delivery of this push, or process it if we haven't
+   * seen it.
+   *
+   * @param hook The push hook.
+   * @param process Processes the hook if it is not a duplicate.
+   * @return The response to the first delivery of this push.
+   */
+  HookResponse deduplicate(PushHook hook, Supplier<HookResponse> process) {
+    try {
+      return responses.get(new Key(hook), process::get);
+    } catch (ExecutionException | UncheckedExecutionException e) {
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  private static final class Key {
+    private final int projectId;
+    private final String ref;
+    private final String before;
+    private final String after;
+
+    Key(PushHook hook) {
+      projectId = hook.project().id();
+      ref = hook.ref();
+      before = hook.before();
+      after = hook.after();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return projectId == other.projectId
+          && ref.equals(other.ref)
+          && before.equals(other.before)
+          && after.equals(other.after);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(projectId, ref, before, after);
+    }
+  }
+}
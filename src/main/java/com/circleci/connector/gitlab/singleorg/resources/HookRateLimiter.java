@@ -0,0 +1,144 @@
+package com.circleci.connector.gitlab.singleorg.resources;
+
+import com.circleci.connector.gitlab.singleorg.ConnectorConfiguration;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Admits push hooks at no more than a configured rate, both from each GitLab project and in total,
+ * so that one project pushing in a loop can't use up our CircleCI quota for everyone else.
+ *
+ * <p>Each limit is a token bucket. A hook takes a token from its project's bucket and then from the
+ * global bucket, and is rejected if either is empty. A hook which the global bucket rejects gives
+ * its project's token back, so that it only counts against its project once both admit it. Only
+ * projects in the domain mapping get this far, so there is at most one bucket per mapped project.
+ */
+class HookRateLimiter {
+  private static final Logger LOGGER = LoggerFactory.getLogger(HookRateLimiter.class);
+
+  private final ConnectorConfiguration.RateLimits limits;
+  private final MetricRegistry metrics;
+  private final Ticker ticker;
+
+  /** Null if there is no global limit. */
+  @Nullable private final TokenBucket global;
+
+  private final Meter globalRejections;
+
+  private final ConcurrentMap<Integer, TokenBucket> projects = new ConcurrentHashMap<>();
+
+  HookRateLimiter(ConnectorConfiguration.RateLimits limits, MetricRegistry metrics) {
+    this(limits, metrics, Ticker.systemTicker());
+  }
+
+  @VisibleForTesting
+  HookRateLimiter(ConnectorConfiguration.RateLimits limits, MetricRegistry metrics, Ticker ticker) {
+    this.limits = limits;
+    this.metrics = metrics;
+    this.ticker = ticker;
+    global = TokenBucket.of(limits.getGlobal(), ticker);
+    globalRejections =
+        metrics.meter(MetricRegistry.name(HookRateLimiter.class, "rejected", "global"));
+  }
+
+  /**
+   * Take a token for a hook from the given project.
+   *
+   * @throws WebApplicationException A 429 with a Retry-After header if the project or the service
+   *     as a whole is over its limit.
+   */
+  void admit(int projectId) {
+    ConnectorConfiguration.RateLimit limit = limits.forProject(projectId);
+    TokenBucket bucket = null;
+    if (limit.getHooksPerSecond() > 0) {
+      bucket = projects.computeIfAbsent(projectId, id -> TokenBucket.of(limit, ticker));
+      long waitNanos = bucket.tryAcquire();
+      if (waitNanos > 0) {
+        metrics
+            .meter(
+                MetricRegistry.name(
+                    HookRateLimiter.class, "rejected", "project", Integer.toString(projectId)))
+            .mark();
+        LOGGER.warn("Project {} is over its hook rate limit", projectId);
+        throw tooManyRequests(waitNanos);
+      }
+    }
+
+    if (global != null) {
+      long waitNanos = global.tryAcquire();
+      if (waitNanos > 0) {
+        if (bucket != null) {
+          bucket.release();
+        }
+        globalRejections.mark();
+        LOGGER.warn("Over the global hook rate limit, rejecting hook for project {}", projectId);
+        throw tooManyRequests(waitNanos);
+      }
+    }
+  }
+
+  private static WebApplicationException tooManyRequests(long waitNanos) {
+    // Round up, so that a retry at the time we give will be admitted
+    long retryAfterSeconds =
+        TimeUnit.NANOSECONDS.toSeconds(waitNanos + TimeUnit.SECONDS.toNanos(1) - 1);
+    return new WebApplicationException(
+        "Too many hooks",
+        Response.status(Response.Status.TOO_MANY_REQUESTS)
+            .header(HttpHeaders.RETRY_AFTER, retryAfterSeconds)
+            .build());
+  }
+
+  /** A bucket which refills continuously at a fixed rate up to its burst size. */
+  private static final class TokenBucket {
+    private final double tokensPerNano;
+    private final double capacity;
+    private final Ticker ticker;
+
+    private double tokens;
+    private long lastRefill;
+
+    private TokenBucket(double tokensPerSecond, int capacity, Ticker ticker) {
+      this.tokensPerNano = tokensPerSecond / TimeUnit.SECONDS.toNanos(1);
+      this.capacity = capacity;
+      this.ticker = ticker;
+      tokens = capacity;
+      lastRefill = ticker.read();
+    }
+
+    @Nullable
+    static TokenBucket of(ConnectorConfiguration.RateLimit limit, Ticker ticker) {
+      if (limit.getHooksPerSecond() <= 0) {
+        return null;
+      }
+      return new TokenBucket(limit.getHooksPerSecond(), limit.getBurst(), ticker);
+    }
+
+    /** @return 0 if a token was taken, otherwise how many nanoseconds until one will be free. */
+    synchronized long tryAcquire() {
+      long now = ticker.read();
+      tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+      lastRefill = now;
+      if (tokens >= 1) {
+        tokens -= 1;
+        return 0;
+      }
+      return (long) Math.ceil((1 - tokens) / tokensPerNano);
+    }
+
+    /** Give back a token taken for a hook which was rejected after all. */
+    synchronized void release() {
+      tokens = Math.min(capacity, tokens + 1);
+    }
+  }
+}
@@ -3,28 +3,30 @@ package com.circleci.connector.gitlab.singleorg.resources;
 import com.circleci.connector.gitlab.singleorg.ConnectorConfiguration;
 import com.circleci.connector.gitlab.singleorg.api.HookResponse;
 import com.circleci.connector.gitlab.singleorg.api.ImmutableHookResponse;
-import com.circleci.connector.gitlab.singleorg.api.ImmutablePushHook;
 import com.circleci.connector.gitlab.singleorg.api.PushHook;
+import com.circleci.connector.gitlab.singleorg.api.PushHookParser;
 import com.circleci.connector.gitlab.singleorg.client.CircleCi;
 import com.circleci.connector.gitlab.singleorg.client.GitLab;
-import com.circleci.connector.gitlab.singleorg.client.PipelinePoller;
-import com.circleci.connector.gitlab.singleorg.model.ImmutablePipeline;
-import com.circleci.connector.gitlab.singleorg.model.Pipeline;
+import com.circleci.connector.gitlab.singleorg.io.LimitedInputStream;
+import com.circleci.connector.gitlab.singleorg.scheduler.JobScheduler;
+import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.annotation.Timed;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import io.dropwizard.jackson.Jackson;
-import java.util.Optional;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.List;
 import java.util.UUID;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import javax.annotation.Nullable;
 import javax.validation.constraints.NotNull;
 import javax.ws.rs.BadRequestException;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.HeaderParam;
-import javax.ws.rs.NotFoundException;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import org.slf4j.Logger;
@@ -35,19 +37,35 @@ import org.slf4j.LoggerFactory;
 @Produces(MediaType.APPLICATION_JSON)
 @Consumes(MediaType.APPLICATION_JSON)
 public class HookResource {
-  private static final ObjectMapper MAPPER = Jackson.newObjectMapper();
   private static final Logger LOGGER = LoggerFactory.getLogger(HookResource.class);
 
-  @NotNull private final CircleCi circleCiClient;
+  /** How long GitLab should wait before redelivering a hook we had no room to queue. */
+  private static final int QUEUE_FULL_RETRY_AFTER_SECONDS = 10;
 
-  /** A configured GitLab API client. */
-  @NotNull private final GitLab gitLabClient;
+  /** Does the slow work of turning a push hook into a pipeline. */
+  @NotNull private final PushHookProcessor pushHookProcessor;
+
+  /** Runs the push hook processor when hooks are processed asynchronously, null otherwise. */
+  @Nullable private final ExecutorService hookWorkers;
+
+  /** Answers redeliveries of a push without processing it again, null if disabled. */
+  @Nullable private final HookDeduplicator deduplicator;
+
+  /** Picks out pushes which we can tell from the hook alone should not be built. */
+  @NotNull private final PushFilter filter;
+
+  /** Rejects push hooks which arrive faster than the configured limits. */
+  @NotNull private final HookRateLimiter rateLimiter;
+
+  /** Collapses rapid pushes to the same branch into one, null if disabled. */
+  @Nullable private final PushCoalescer coalescer;
+
+  /** Processes coalesced pushes, and replayed hooks if there is no coalescer. */
+  @NotNull private final JobScheduler jobScheduler;
 
   /** The configuration for this service. */
   @NotNull private final ConnectorConfiguration config;
 
-  @NotNull private final ScheduledExecutorService scheduledJobRunner;
-
   /**
    * @param gitLabClient A configured GitLab API client.
    * @param config The configuration for this service.
@@ -55,31 +73,73 @@ public class HookResource {
   public HookResource(
       GitLab gitLabClient,
       CircleCi circleCiClient,
-      ScheduledExecutorService scheduledJobRunner,
+      JobScheduler jobScheduler,
+      ConnectorConfiguration config) {
+    this(
+        new PushHookProcessor(gitLabClient, circleCiClient, jobScheduler, config),
+        null,
+        jobScheduler,
+        new MetricRegistry(),
+        config);
+  }
+
+  /**
+   * @param pushHookProcessor Does the slow work of turning a push hook into a pipeline.
+   * @param hookWorkers If not null, push hooks are queued on this and processed asynchronously.
+   * @param jobScheduler Processes coalesced pushes when their window closes.
+   * @param metrics Where to report rate limit rejections.
+   * @param config The configuration for this service.
+   */
+  public HookResource(
+      PushHookProcessor pushHookProcessor,
+      @Nullable ExecutorService hookWorkers,
+      JobScheduler jobScheduler,
+      MetricRegistry metrics,
       ConnectorConfiguration config) {
-    this.circleCiClient = circleCiClient;
-    this.gitLabClient = gitLabClient;
-    this.scheduledJobRunner = scheduledJobRunner;
+    this.pushHookProcessor = pushHookProcessor;
+    this.hookWorkers = hookWorkers;
+    this.jobScheduler = jobScheduler;
     this.config = config;
+
+    filter = new PushFilter(config.getFilters());
+    rateLimiter = new HookRateLimiter(config.getRateLimits(), metrics);
+
+    ConnectorConfiguration.Hooks hooks = config.getHooks();
+    if (hooks.getDeduplicationWindowSeconds() > 0) {
+      deduplicator =
+          new HookDeduplicator(
+              Duration.ofSeconds(hooks.getDeduplicationWindowSeconds()),
+              hooks.getDeduplicationMaxEntries());
+    } else {
+      deduplicator = null;
+    }
+    if (hooks.getCoalescingWindowMillis() > 0) {
+      coalescer =
+          new PushCoalescer(pushHookProcessor, jobScheduler, hooks.getCoalescingWindowMillis());
+    } else {
+      coalescer = null;
+    }
   }
 
   /** Consume all hooks. */
   @POST
   @Timed
-  public HookResponse processHook(
-      String body,
+  public Response processHook(
+      InputStream body,
       @HeaderParam("X-Gitlab-Event") String type,
       @HeaderParam("X-Gitlab-Token") String token)
       throws Exception {
-    LOGGER.debug("Received hook type \"{}\" raw body: {}", type, body);
+    LOGGER.debug("Received hook type \"{}\"", type);
     maybeValidateGitLabToken(token);
 
     if ("Push Hook".equals(type)) {
       return processPushHook(body);
     } else if (type != null) {
-      return ImmutableHookResponse.builder()
-          .id(UUID.randomUUID())
-          .status(HookResponse.Status.IGNORED)
+      return Response.ok(
+              ImmutableHookResponse.builder()
+                  .id(UUID.randomUUID())
+                  .status(HookResponse.Status.IGNORED)
+                  .build())
           .build();
     } else {
       throw new BadRequestException("Expected X-Gitlab-Event header");
@@ -87,47 +147,116 @@ public class HookResource {
   }
 
   /** Consume push hooks. */
-  private HookResponse processPushHook(String body) throws Exception {
-    // Parse the hook
-    PushHook hook = MAPPER.readValue(body, ImmutablePushHook.class);
+  private Response processPushHook(InputStream body) throws Exception {
+    // Parse the hook, reading no more of the body than we're prepared to accept
+    PushHook hook;
+    try {
+      hook =
+          PushHookParser.parse(
+              new LimitedInputStream(body, config.getHooks().getMaxPayloadBytes()));
+    } catch (LimitedInputStream.LimitExceededException e) {
+      throw new WebApplicationException(
+          "Hook body is too large", Response.Status.REQUEST_ENTITY_TOO_LARGE);
+    }
     LOGGER.info("Received a hook: {}", hook);
-    int projectId = hook.project().id();
 
-    ImmutableHookResponse.Builder responseBuilder = ImmutableHookResponse.builder().id(hook.id());
+    // Fail fast on hooks for projects we don't know about
+    pushHookProcessor.projectSlug(hook);
+
+    // Skip pushes which the filters rule out before spending anything on them
+    String skipReason = filter.skipReason(hook);
+    if (skipReason != null) {
+      LOGGER.info("Ignoring hook {} because {}", hook.id(), skipReason);
+      return Response.ok(
+              ImmutableHookResponse.builder()
+                  .id(hook.id())
+                  .status(HookResponse.Status.IGNORED)
+                  .build())
+          .build();
+    }
+
+    // Redeliveries of a push we have already accepted are answered without using up the limits
+    HookResponse response;
+    if (deduplicator == null) {
+      response = admitPushHook(hook);
+    } else {
+      response = deduplicator.deduplicate(hook, () -> admitPushHook(hook));
+      if (!response.id().equals(hook.id())) {
+        LOGGER.info("Hook {} is a redelivery of hook {}", hook.id(), response.id());
+      }
+    }
 
-    // Find the slug for the GitHub project which we're using as a fake for the GitLab project
-    // referred to in the push hook.
-    String projectSlug = config.getDomainMapping().getRepositories().getOrDefault(projectId, null);
-    if (projectSlug == null) {
-      throw new NotFoundException("No project found with ID " + projectId);
+    if (response.status() == HookResponse.Status.QUEUED) {
+      return Response.accepted(response).build();
     }
+    return Response.ok(response).build();
+  }
 
-    String sshFingerprint =
-        config.getDomainMapping().getSshFingerprints().getOrDefault(projectId, "");
+  /**
+   * Accept a hook if it is within the rate limits.
+   *
+   * @throws WebApplicationException A 429 if it is over them.
+   */
+  private HookResponse admitPushHook(PushHook hook) {
+    rateLimiter.admit(hook.project().id());
+    return acceptPushHook(hook);
+  }
+
+  /**
+   * Journal the hook and then either hold it for coalescing, process it now or queue it for
+   * processing.
+   */
+  private HookResponse acceptPushHook(PushHook hook) {
+    pushHookProcessor.accept(hook);
+    if (coalescer != null) {
+      coalescer.submit(hook);
+      return ImmutableHookResponse.builder()
+          .id(hook.id())
+          .status(HookResponse.Status.QUEUED)
+          .build();
+    }
+    if (hookWorkers == null) {
+      return pushHookProcessor.process(hook);
+    }
+    return enqueuePushHook(hook);
+  }
 
-    // Fetch the config from GitLab
-    Optional<String> circleCiConfig = gitLabClient.fetchCircleCiConfig(projectId, hook.ref());
-    if (circleCiConfig.isEmpty()) {
-      LOGGER.info("Ignoring hook referring to project id {} without config", projectId);
-      return responseBuilder.status(HookResponse.Status.IGNORED).build();
+  /**
+   * Process the hooks which were accepted before we last stopped but never processed. They take the
+   * same path as hooks arriving now, in the order they arrived then, so that the coalescer can
+   * supersede the older pushes to a branch. Without a coalescer they are started one after another
+   * on the job scheduler in that order, but a hook which fails is retried later and may then be
+   * overtaken by the ones after it.
+   */
+  public void replay(List<PushHook> hooks) {
+    if (hooks.isEmpty()) {
+      return;
+    }
+    LOGGER.info("Replaying {} unfinished hooks from the journal", hooks.size());
+    if (coalescer != null) {
+      hooks.forEach(coalescer::submit);
+    } else {
+      jobScheduler.schedule(() -> hooks.forEach(pushHookProcessor::processInBackground), 0);
     }
+  }
 
-    Pipeline pipeline = ImmutablePipeline.of(null, projectId, hook.after(), hook.branch());
-    // Trigger a Pipeline on CircleCI
-    pipeline =
-        circleCiClient.triggerPipeline(
-            pipeline,
-            circleCiConfig.get(),
-            Integer.toString(hook.userId()),
-            hook.userEmail(),
-            projectSlug,
-            sshFingerprint,
-            hook.project().gitSshUrl());
-
-    // Poll the CircleCI API for status updates to the pipeline and update GitLab appropriately
-    (new PipelinePoller(pipeline, circleCiClient, gitLabClient, scheduledJobRunner)).start();
-
-    return responseBuilder.status(HookResponse.Status.SUBMITTED).pipeline(pipeline).build();
+  /**
+   * Queue a push hook for processing on a hook worker.
+   *
+   * @throws WebApplicationException A 503 if the queue is full.
+   */
+  private HookResponse enqueuePushHook(PushHook hook) {
+    try {
+      hookWorkers.execute(() -> pushHookProcessor.processInBackground(hook));
+    } catch (RejectedExecutionException e) {
+      LOGGER.warn("Hook queue is full, rejecting hook {}", hook.id());
+      throw new WebApplicationException(
+          "Too many hooks queued for processing",
+          Response.status(Response.Status.SERVICE_UNAVAILABLE)
+              .header(HttpHeaders.RETRY_AFTER, QUEUE_FULL_RETRY_AFTER_SECONDS)
+              .build());
+    }
+    return ImmutableHookResponse.builder().id(hook.id()).status(HookResponse.Status.QUEUED).build();
   }
 
   /**
@@ -0,0 +1,103 @@
+package com.circleci.connector.gitlab.singleorg.resources;
+
+import com.circleci.connector.gitlab.singleorg.api.PushHook;
+import com.circleci.connector.gitlab.singleorg.scheduler.JobScheduler;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.validation.constraints.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collapses rapid successive pushes to the same branch so that only the newest commit gets a
+ * pipeline.
+ *
+ * <p>The first push to a branch opens a window. Any further pushes to that branch which arrive
+ * before the window closes replace the held push, and when the window closes the newest push is
+ * processed. The window is not extended by later pushes, so a busy branch still gets a pipeline at
+ * least once per window.
+ */
+class PushCoalescer {
+  private static final Logger LOGGER = LoggerFactory.getLogger(PushCoalescer.class);
+
+  @NotNull private final PushHookProcessor pushHookProcessor;
+
+  @NotNull private final JobScheduler jobScheduler;
+
+  private final long windowMillis;
+
+  /** The newest push held for each branch whose window is open. */
+  private final ConcurrentMap<Key, PushHook> held = new ConcurrentHashMap<>();
+
+  PushCoalescer(PushHookProcessor pushHookProcessor, JobScheduler jobScheduler, long windowMillis) {
+    this.pushHookProcessor = pushHookProcessor;
+    this.jobScheduler = jobScheduler;
+    this.windowMillis = windowMillis;
+  }
+
+  /** Hold a push until the window for its branch closes. */
+  void submit(PushHook hook) {
+    Key key = new Key(hook.project().id(), hook.branch());
+    PushHook[] superseded = new PushHook[1];
+    PushHook newest =
+        held.compute(
+            key,
+            (k, previous) -> {
+              if (previous == null) {
+                return hook;
+              }
+              // GitLab usually delivers in order, but if this push is the parent of the one we
+              // hold then it is the older of the two.
+              if (hook.after().equals(previous.before())) {
+                superseded[0] = hook;
+                return previous;
+              }
+              superseded[0] = previous;
+              return hook;
+            });
+
+    if (superseded[0] == null) {
+      jobScheduler.schedule(() -> flush(key), windowMillis);
+    } else {
+      LOGGER.info(
+          "Push {} to {} superseded by push {}", superseded[0].after(), key.branch, newest.after());
+      pushHookProcessor.discard(superseded[0]);
+    }
+  }
+
+  /** Close the window for a branch and process the newest push to it. */
+  private void flush(Key key) {
+    PushHook newest = held.remove(key);
+    if (newest != null) {
+      pushHookProcessor.processInBackground(newest);
+    }
+  }
+
+  private static final class Key {
+    private final int projectId;
+    private final String branch;
+
+    Key(int projectId, String branch) {
+      this.projectId = projectId;
+      this.branch = branch;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return projectId == other.projectId && branch.equals(other.branch);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(projectId, branch);
+    }
+  }
+}
@@ -0,0 +1,162 @@
+package com.circleci.connector.gitlab.singleorg.resources;
+
+import com.circleci.connector.gitlab.singleorg.ConnectorConfiguration;
+import com.circleci.connector.gitlab.singleorg.api.PushHook;
+import com.google.common.annotations.VisibleForTesting;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.regex.Pattern;
+import javax.annotation.Nullable;
+
+/**
+ * Decides from the contents of a push hook alone whether a push is worth building, so that pushes
+ * we would skip cost no calls to GitLab or CircleCI.
+ *
+ * <p>The rules for every project are compiled when this is constructed. Each set of globs becomes a
+ * single regular expression, so checking a push allocates little beyond a matcher per path.
+ */
+class PushFilter {
+  private static final Pattern CI_SKIP =
+      Pattern.compile("\\[(?:ci skip|skip ci)]", Pattern.CASE_INSENSITIVE);
+
+  private final Rules defaults;
+  private final Map<Integer, Rules> projects = new HashMap<>();
+
+  PushFilter(ConnectorConfiguration.Filters filters) {
+    defaults = new Rules(filters.getDefaults());
+    filters.getProjects().forEach((id, rules) -> projects.put(id, new Rules(rules)));
+  }
+
+  /** @return Why the push should not be built, or null if it should. */
+  @Nullable
+  String skipReason(PushHook hook) {
+    return projects.getOrDefault(hook.project().id(), defaults).skipReason(hook);
+  }
+
+  /**
+   * Translate a glob into a regular expression. A * matches anything but a /, ** matches anything
+   * and **&#47; matches any number of whole directories, including none.
+   */
+  @VisibleForTesting
+  static String globToRegex(String glob) {
+    StringBuilder regex = new StringBuilder();
+    for (int i = 0; i < glob.length(); i++) {
+      char c = glob.charAt(i);
+      if (c == '*') {
+        if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+          i++;
+          if (i + 1 < glob.length() && glob.charAt(i + 1) == '/') {
+            i++;
+            regex.append("(?:.*/)?");
+          } else {
+            regex.append(".*");
+          }
+        } else {
+          regex.append("[^/]*");
+        }
+      } else if (c == '?') {
+        regex.append("[^/]");
+      } else {
+        if ("\\.[]{}()+-^$|".indexOf(c) >= 0) {
+          regex.append('\\');
+        }
+        regex.append(c);
+      }
+    }
+    return regex.toString();
+  }
+
+  /** @return A pattern matching any of the globs, or null if there are none. */
+  @Nullable
+  private static Pattern compile(List<String> globs) {
+    if (globs.isEmpty()) {
+      return null;
+    }
+    StringBuilder regex = new StringBuilder();
+    for (String glob : globs) {
+      if (regex.length() > 0) {
+        regex.append('|');
+      }
+      regex.append("(?:").append(globToRegex(glob)).append(')');
+    }
+    return Pattern.compile(regex.toString());
+  }
+
+  private static final class Rules {
+    @Nullable private final Pattern includeBranches;
+    @Nullable private final Pattern excludeBranches;
+    @Nullable private final Pattern includePaths;
+    @Nullable private final Pattern excludePaths;
+    private final boolean honorCiSkip;
+    private final boolean skipBranchDeletions;
+
+    Rules(ConnectorConfiguration.FilterRules rules) {
+      includeBranches = compile(rules.getIncludeBranches());
+      excludeBranches = compile(rules.getExcludeBranches());
+      includePaths = compile(rules.getIncludePaths());
+      excludePaths = compile(rules.getExcludePaths());
+      honorCiSkip = rules.isHonorCiSkip();
+      skipBranchDeletions = rules.isSkipBranchDeletions();
+    }
+
+    @Nullable
+    String skipReason(PushHook hook) {
+      if (hook.isBranchDeletion()) {
+        return skipBranchDeletions ? "the branch was deleted" : null;
+      }
+
+      String branch = hook.branch();
+      if (includeBranches != null && !includeBranches.matcher(branch).matches()) {
+        return "the branch is not included";
+      }
+      if (excludeBranches != null && excludeBranches.matcher(branch).matches()) {
+        return "the branch is excluded";
+      }
+
+      if (honorCiSkip) {
+        Optional<PushHook.Commit> head = hook.headCommit();
+        if (head.isPresent() && CI_SKIP.matcher(head.get().message()).find()) {
+          return "the commit message asks for CI to be skipped";
+        }
+      }
+
+      if ((includePaths != null || excludePaths != null) && !changesRelevantPaths(hook)) {
+        return "no included files were changed";
+      }
+      return null;
+    }
+
+    /**
+     * @return True if any commit in the push changes a path which is included and not excluded, or
+     *     if we can't tell because GitLab didn't list every commit.
+     */
+    private boolean changesRelevantPaths(PushHook hook) {
+      List<PushHook.Commit> commits = hook.commits();
+      if (commits.isEmpty() || hook.totalCommitsCount() > commits.size()) {
+        return true;
+      }
+      for (PushHook.Commit commit : commits) {
+        if (anyRelevant(commit.added())
+            || anyRelevant(commit.modified())
+            || anyRelevant(commit.removed())) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private boolean anyRelevant(List<String> paths) {
+      for (String path : paths) {
+        if (excludePaths != null && excludePaths.matcher(path).matches()) {
+          continue;
+        }
+        if (includePaths == null || includePaths.matcher(path).matches()) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+}
@@ -0,0 +1,242 @@
+package com.circleci.connector.gitlab.singleorg.resources;
+
+import com.circleci.connector.gitlab.singleorg.ConnectorConfiguration;
+import com.circleci.connector.gitlab.singleorg.api.HookResponse;
+import com.circleci.connector.gitlab.singleorg.api.ImmutableHookResponse;
+import com.circleci.connector.gitlab.singleorg.api.PushHook;
+import com.circleci.connector.gitlab.singleorg.client.CircleCi;
+import com.circleci.connector.gitlab.singleorg.client.GitLab;
+import com.circleci.connector.gitlab.singleorg.client.PipelinePollers;
+import com.circleci.connector.gitlab.singleorg.journal.HookJournal;
+import com.circleci.connector.gitlab.singleorg.model.ImmutablePipeline;
+import com.circleci.connector.gitlab.singleorg.model.Pipeline;
+import com.circleci.connector.gitlab.singleorg.scheduler.JobScheduler;
+import java.util.List;
+import java.util.Optional;
+import javax.annotation.Nullable;
+import javax.validation.constraints.NotNull;
+import javax.ws.rs.ClientErrorException;
+import javax.ws.rs.NotFoundException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Turn a push hook into a CircleCI pipeline: fetch the config from GitLab, trigger the pipeline and
+ * start polling it. This is the slow part of handling a hook, so it may run either on the request
+ * thread or on a hook worker.
+ */
+public class PushHookProcessor {
+  private static final Logger LOGGER = LoggerFactory.getLogger(PushHookProcessor.class);
+  private static final String CIRCLECI_DIRECTORY = ".circleci/";
+
+  /** How many times to try a hook which GitLab has no chance to send again, before giving up. */
+  static final int MAX_ATTEMPTS = 5;
+
+  /** How long to wait before trying such a hook again, doubled after each further failure. */
+  static final long FIRST_RETRY_DELAY_MILLIS = 1000;
+
+  @NotNull private final CircleCi circleCiClient;
+
+  /** A configured GitLab API client. */
+  @NotNull private final GitLab gitLabClient;
+
+  /** The configuration for this service. */
+  @NotNull private final ConnectorConfiguration config;
+
+  /** Starts polling the pipelines we trigger. */
+  @NotNull private final PipelinePollers pollers;
+
+  /** Retries the hooks which failed in the background. */
+  @NotNull private final JobScheduler jobScheduler;
+
+  /** Where accepted hooks are recorded until they are processed, null if not configured. */
+  @Nullable private final HookJournal journal;
+
+  public PushHookProcessor(
+      GitLab gitLabClient,
+      CircleCi circleCiClient,
+      JobScheduler jobScheduler,
+      ConnectorConfiguration config) {
+    this(gitLabClient, circleCiClient, jobScheduler, null, config);
+  }
+
+  public PushHookProcessor(
+      GitLab gitLabClient,
+      CircleCi circleCiClient,
+      JobScheduler jobScheduler,
+      @Nullable HookJournal journal,
+      ConnectorConfiguration config) {
+    this(
+        gitLabClient,
+        circleCiClient,
+        jobScheduler,
+        new PipelinePollers(
+            circleCiClient,
+            gitLabClient,
+            jobScheduler,
+            config.getPolling().isConsolidated(),
+            null,
+            0),
+        journal,
+        config);
+  }
+
+  public PushHookProcessor(
+      GitLab gitLabClient,
+      CircleCi circleCiClient,
+      JobScheduler jobScheduler,
+      PipelinePollers pollers,
+      @Nullable HookJournal journal,
+      ConnectorConfiguration config) {
+    this.circleCiClient = circleCiClient;
+    this.gitLabClient = gitLabClient;
+    this.jobScheduler = jobScheduler;
+    this.pollers = pollers;
+    this.journal = journal;
+    this.config = config;
+  }
+
+  /**
+   * Find the slug for the GitHub project which we're using as a fake for the GitLab project
+   * referred to in the push hook.
+   *
+   * @throws NotFoundException If the GitLab project is not mapped to a CircleCI project.
+   */
+  String projectSlug(PushHook hook) {
+    int projectId = hook.project().id();
+    String projectSlug = config.getDomainMapping().getRepositories().getOrDefault(projectId, null);
+    if (projectSlug == null) {
+      throw new NotFoundException("No project found with ID " + projectId);
+    }
+    return projectSlug;
+  }
+
+  /**
+   * Record a hook in the journal, if there is one, so that it will be replayed after a restart if
+   * we don't get as far as processing it. Call this before acknowledging the hook to GitLab.
+   */
+  void accept(PushHook hook) {
+    if (journal != null) {
+      journal.append(hook);
+    }
+  }
+
+  /**
+   * Fetch the config, trigger a pipeline and start polling it, while GitLab waits for the outcome.
+   * The hook is marked as done in the journal however that turns out, since GitLab sees any failure
+   * and delivers the hook again under a new id.
+   */
+  public HookResponse process(PushHook hook) {
+    try {
+      return trigger(hook);
+    } finally {
+      markDone(hook);
+    }
+  }
+
+  /**
+   * Fetch the config, trigger a pipeline and start polling it, for a hook which GitLab has already
+   * been told we accepted and so won't send again. A failure which might succeed later is retried
+   * on the job scheduler, backing off, until we have made {@link #MAX_ATTEMPTS} attempts. The hook
+   * is marked as done in the journal once it succeeds or we give up on it.
+   */
+  public void processInBackground(PushHook hook) {
+    processInBackground(hook, 1);
+  }
+
+  private void processInBackground(PushHook hook, int attempt) {
+    try {
+      trigger(hook);
+    } catch (ClientErrorException e) {
+      LOGGER.error("Failed to process hook {}", hook.id(), e);
+    } catch (RuntimeException e) {
+      if (attempt < MAX_ATTEMPTS) {
+        long delayMillis = FIRST_RETRY_DELAY_MILLIS << (attempt - 1);
+        LOGGER.warn("Failed to process hook {}, trying again in {}ms", hook.id(), delayMillis, e);
+        jobScheduler.schedule(() -> processInBackground(hook, attempt + 1), delayMillis);
+        return;
+      }
+      LOGGER.error("Giving up on hook {} after {} attempts", hook.id(), attempt, e);
+    }
+    markDone(hook);
+  }
+
+  /** Mark a hook as done without processing it, because a newer push has superseded it. */
+  void discard(PushHook hook) {
+    markDone(hook);
+  }
+
+  private void markDone(PushHook hook) {
+    if (journal != null) {
+      journal.markDone(hook.id());
+    }
+  }
+
+  private HookResponse trigger(PushHook hook) {
+    int projectId = hook.project().id();
+
+    ImmutableHookResponse.Builder responseBuilder = ImmutableHookResponse.builder().id(hook.id());
+
+    String projectSlug = projectSlug(hook);
+    String sshFingerprint =
+        config.getDomainMapping().getSshFingerprints().getOrDefault(projectId, "");
+
+    // Fetch the config from GitLab, unless we know there isn't one. A new branch has no parent
+    // on it, only the all-zero sha GitLab also sends when a branch is deleted.
+    String unchangedSince =
+        hook.isBranchCreation() || mayChangeCircleCiConfig(hook) ? null : hook.before();
+    Optional<String> circleCiConfig =
+        gitLabClient.fetchCircleCiConfig(projectId, hook.ref(), hook.after(), unchangedSince);
+    if (circleCiConfig.isEmpty()) {
+      LOGGER.info("Ignoring hook referring to project id {} without config", projectId);
+      return responseBuilder.status(HookResponse.Status.IGNORED).build();
+    }
+
+    Pipeline pipeline =
+        ImmutablePipeline.of(null, projectId, hook.after(), hook.branch())
+            .withReceivedAtMillis(hook.receivedAtMillis());
+    // Trigger a Pipeline on CircleCI
+    pipeline =
+        circleCiClient.triggerPipeline(
+            pipeline,
+            circleCiConfig.get(),
+            Integer.toString(hook.userId()),
+            hook.userEmail(),
+            projectSlug,
+            sshFingerprint,
+            hook.project().gitSshUrl());
+
+    // Poll the CircleCI API for status updates to the pipeline and update GitLab appropriately
+    pollers.start(pipeline, config.getAutoCancel().isEnabledFor(projectId));
+
+    return responseBuilder.status(HookResponse.Status.SUBMITTED).pipeline(pipeline).build();
+  }
+
+  /**
+   * @return False only if we can see every commit in the push and none of them touch anything in
+   *     the .circleci directory.
+   */
+  private static boolean mayChangeCircleCiConfig(PushHook hook) {
+    List<PushHook.Commit> commits = hook.commits();
+    if (commits.isEmpty() || hook.totalCommitsCount() > commits.size()) {
+      return true;
+    }
+    for (PushHook.Commit commit : commits) {
+      if (anyUnderCircleCi(commit.added())
+          || anyUnderCircleCi(commit.modified())
+          || anyUnderCircleCi(commit.removed())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean anyUnderCircleCi(List<String> paths) {
+    for (String path : paths) {
+      if (path.startsWith(CIRCLECI_DIRECTORY)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,79 @@
+package com.circleci.connector.gitlab.singleorg.scheduler;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits how many tasks may be running or waiting to run on an executor which would otherwise take
+ * as many as it is given, such as one which starts a virtual thread for every task. Tasks beyond
+ * the limit are rejected, just as a thread pool with a full queue would reject them.
+ */
+public class BoundedExecutor extends AbstractExecutorService {
+  private final ExecutorService delegate;
+  private final int maxInFlight;
+  private final Semaphore permits;
+
+  /**
+   * @param delegate Runs the tasks.
+   * @param maxInFlight The most tasks to hold at once.
+   */
+  public BoundedExecutor(ExecutorService delegate, int maxInFlight) {
+    this.delegate = delegate;
+    this.maxInFlight = maxInFlight;
+    this.permits = new Semaphore(maxInFlight);
+  }
+
+  @Override
+  public void execute(Runnable task) {
+    if (!permits.tryAcquire()) {
+      throw new RejectedExecutionException("Too many tasks in flight");
+    }
+    try {
+      delegate.execute(
+          () -> {
+            try {
+              task.run();
+            } finally {
+              permits.release();
+            }
+          });
+    } catch (RejectedExecutionException e) {
+      permits.release();
+      throw e;
+    }
+  }
+
+  /** @return How many tasks are running or waiting to run. */
+  public int getInFlight() {
+    return maxInFlight - permits.availablePermits();
+  }
+
+  @Override
+  public void shutdown() {
+    delegate.shutdown();
+  }
+
+  @Override
+  public List<Runnable> shutdownNow() {
+    return delegate.shutdownNow();
+  }
+
+  @Override
+  public boolean isShutdown() {
+    return delegate.isShutdown();
+  }
+
+  @Override
+  public boolean isTerminated() {
+    return delegate.isTerminated();
+  }
+
+  @Override
+  public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+    return delegate.awaitTermination(timeout, unit);
+  }
+}
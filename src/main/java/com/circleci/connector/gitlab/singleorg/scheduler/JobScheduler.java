@@ -0,0 +1,209 @@
+package com.circleci.connector.gitlab.singleorg.scheduler;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.dropwizard.lifecycle.Managed;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.validation.constraints.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs delayed jobs which make blocking calls to remote APIs.
+ *
+ * <p>Jobs wait on a {@link TimingWheel}, so that holding a poller for every workflow in flight
+ * stays cheap however many there are. The wheel only ever hands due jobs over to the worker pool,
+ * so a slow call to CircleCI or GitLab can never delay the firing of another job. The difference
+ * between when a job was due and when a worker actually started it is recorded as the scheduler
+ * lag.
+ */
+public class JobScheduler implements Managed {
+  private static final Logger LOGGER = LoggerFactory.getLogger(JobScheduler.class);
+
+  /** How long to wait before offering a job to the workers again if their queue was full. */
+  private static final long REJECTED_RETRY_DELAY_MILLIS = 100;
+
+  /** Fires jobs when they are due. Its thread must never run anything which blocks. */
+  @NotNull private final TimingWheel<Job> timer;
+
+  /** Runs the jobs themselves. */
+  @NotNull private final ExecutorService workers;
+
+  /** The most due jobs to hand to a worker at once. They run one after another. */
+  private final int dispatchBatchSize;
+
+  /** The time between a job being due and the timer firing it. */
+  private final Timer timerLag;
+
+  /** The time between a job being due and a worker starting to run it. */
+  private final Timer workerLag;
+
+  /** Batches of jobs which could not be handed to a worker because the work queue was full. */
+  private final Meter rejected;
+
+  /**
+   * @param workers Runs the jobs.
+   * @param tickMillis How often to check for due jobs. Jobs run up to this much later than asked.
+   * @param ticksPerWheel How many ticks the timer holds before jobs have to go round it again.
+   * @param dispatchBatchSize The most due jobs to hand to a worker at once.
+   * @param metrics Where to report the scheduler lag and how busy the workers are.
+   */
+  public JobScheduler(
+      ExecutorService workers,
+      long tickMillis,
+      int ticksPerWheel,
+      int dispatchBatchSize,
+      MetricRegistry metrics) {
+    this(
+        new ThreadFactoryBuilder().setNameFormat("scheduled-job-%d").setDaemon(true).build(),
+        workers,
+        tickMillis,
+        ticksPerWheel,
+        dispatchBatchSize,
+        metrics);
+  }
+
+  @VisibleForTesting
+  JobScheduler(
+      ThreadFactory timerThreads,
+      ExecutorService workers,
+      long tickMillis,
+      int ticksPerWheel,
+      int dispatchBatchSize,
+      MetricRegistry metrics) {
+    this.timer = new TimingWheel<>(tickMillis, ticksPerWheel, timerThreads, this::dispatch);
+    this.workers = workers;
+    this.dispatchBatchSize = dispatchBatchSize;
+    timerLag = metrics.timer(MetricRegistry.name(JobScheduler.class, "timer-lag"));
+    workerLag = metrics.timer(MetricRegistry.name(JobScheduler.class, "worker-lag"));
+    rejected = metrics.meter(MetricRegistry.name(JobScheduler.class, "rejected"));
+    Gauge<Integer> pending = timer::size;
+    metrics.gauge(MetricRegistry.name(JobScheduler.class, "pending"), () -> pending);
+    if (workers instanceof ThreadPoolExecutor) {
+      ThreadPoolExecutor pool = (ThreadPoolExecutor) workers;
+      Gauge<Integer> queued = () -> pool.getQueue().size();
+      Gauge<Integer> active = pool::getActiveCount;
+      metrics.gauge(MetricRegistry.name(JobScheduler.class, "queued"), () -> queued);
+      metrics.gauge(MetricRegistry.name(JobScheduler.class, "active"), () -> active);
+    } else if (workers instanceof BoundedExecutor) {
+      Gauge<Integer> active = ((BoundedExecutor) workers)::getInFlight;
+      metrics.gauge(MetricRegistry.name(JobScheduler.class, "active"), () -> active);
+    }
+  }
+
+  @Override
+  public void start() {
+    timer.start();
+  }
+
+  @Override
+  public void stop() {
+    timer.stop();
+  }
+
+  /**
+   * Run a job once on a worker thread.
+   *
+   * @param job The job to run. It may block.
+   * @param delayMillis The number of milliseconds to delay before running the job.
+   * @return A handle for cancelling the job before it runs, however many times it has had to wait
+   *     for a worker.
+   */
+  public TimingWheel.Timeout schedule(Runnable job, long delayMillis) {
+    long dueNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+    Job scheduled = new Job(job, dueNanos);
+    scheduled.timeout = timer.add(scheduled, delayMillis);
+    return scheduled;
+  }
+
+  /** Hand due jobs over to the workers. This runs on the timer thread so it must not block. */
+  private void dispatch(List<Job> due) {
+    long now = System.nanoTime();
+    for (Job job : due) {
+      timerLag.update(now - job.dueNanos, NANOSECONDS);
+    }
+    for (int from = 0; from < due.size(); from += dispatchBatchSize) {
+      List<Job> batch = due.subList(from, Math.min(from + dispatchBatchSize, due.size()));
+      try {
+        workers.execute(() -> batch.forEach(this::run));
+      } catch (RejectedExecutionException e) {
+        if (workers.isShutdown()) {
+          return;
+        }
+        rejected.mark();
+        LOGGER.warn("Job queue is full, retrying in {}ms", REJECTED_RETRY_DELAY_MILLIS);
+        for (Job job : batch) {
+          job.timeout = timer.add(job, REJECTED_RETRY_DELAY_MILLIS);
+          // A cancel which raced with us may have cancelled the timeout we just replaced
+          if (job.isCancelled()) {
+            job.timeout.cancel();
+          }
+        }
+      }
+    }
+  }
+
+  private void run(Job job) {
+    if (!job.start()) {
+      return;
+    }
+    workerLag.update(System.nanoTime() - job.dueNanos, NANOSECONDS);
+    try {
+      job.job.run();
+    } catch (RuntimeException e) {
+      LOGGER.error("Uncaught error in scheduled job", e);
+    }
+  }
+
+  /**
+   * A job waiting to run, and when it was due. It is its own handle for cancelling it, as it may be
+   * put back on the timer more than once if the workers are too busy to take it.
+   */
+  private static final class Job implements TimingWheel.Timeout {
+    private static final int PENDING = 0;
+    private static final int CANCELLED = 1;
+    private static final int STARTED = 2;
+
+    private final Runnable job;
+    private final long dueNanos;
+    private final AtomicInteger state = new AtomicInteger(PENDING);
+
+    /** The job's latest place on the timer. */
+    private volatile TimingWheel.Timeout timeout;
+
+    Job(Runnable job, long dueNanos) {
+      this.job = job;
+      this.dueNanos = dueNanos;
+    }
+
+    @Override
+    public boolean cancel() {
+      if (!state.compareAndSet(PENDING, CANCELLED)) {
+        return false;
+      }
+      timeout.cancel();
+      return true;
+    }
+
+    boolean isCancelled() {
+      return state.get() == CANCELLED;
+    }
+
+    /** @return False if the job was cancelled, and so must not run. */
+    boolean start() {
+      return state.compareAndSet(PENDING, STARTED);
+    }
+  }
+}
@@ -0,0 +1,258 @@
+package com.circleci.connector.gitlab.singleorg.scheduler;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A hashed timing wheel, which holds a very large number of timeouts cheaply. Adding or cancelling
+ * a timeout is a constant time operation which never takes a lock, and firing them costs a constant
+ * amount per timeout rather than growing with how many are waiting.
+ *
+ * <p>Time is divided into ticks and a single thread visits one slot of the wheel every tick. A
+ * timeout goes in the slot it is due in, counting how many turns of the wheel to wait before it
+ * fires, so timeouts fire up to one tick late but never early. All of the timeouts which fire in a
+ * tick are handed over in one go.
+ *
+ * @param <T> What a timeout carries, to be handed over when it fires.
+ */
+public final class TimingWheel<T> {
+  private static final Logger LOGGER = LoggerFactory.getLogger(TimingWheel.class);
+
+  /** A timeout which can be cancelled before it fires. */
+  public interface Timeout {
+    /**
+     * @return True if the timeout was cancelled, false if it had already fired or been cancelled.
+     */
+    boolean cancel();
+  }
+
+  private static final int PENDING = 0;
+  private static final int CANCELLED = 1;
+  private static final int EXPIRED = 2;
+
+  private final long tickNanos;
+  private final Slot<T>[] wheel;
+  private final int mask;
+  private final Consumer<List<T>> onExpired;
+  private final Thread worker;
+
+  /** Timeouts which have been added, but not yet put in their slot by the wheel's thread. */
+  private final Queue<Entry<T>> added = new ConcurrentLinkedQueue<>();
+
+  /** Timeouts which have been cancelled, but not yet taken out of their slot. */
+  private final Queue<Entry<T>> cancelled = new ConcurrentLinkedQueue<>();
+
+  private final AtomicInteger size = new AtomicInteger();
+  private final long startNanos = System.nanoTime();
+  private volatile boolean running;
+
+  /** Only touched by the wheel's thread. */
+  private long tick;
+
+  /**
+   * @param tickMillis How often to check for timeouts which are due.
+   * @param ticksPerWheel How many slots to divide the wheel into, rounded up to a power of two.
+   *     Timeouts which are due in more than this many ticks go round the wheel more than once.
+   * @param threadFactory Makes the thread which turns the wheel.
+   * @param onExpired Given the timeouts which fire in each tick. It runs on the wheel's thread, so
+   *     it must not block.
+   */
+  public TimingWheel(
+      long tickMillis,
+      int ticksPerWheel,
+      ThreadFactory threadFactory,
+      Consumer<List<T>> onExpired) {
+    if (tickMillis < 1 || ticksPerWheel < 1 || ticksPerWheel > (1 << 30)) {
+      throw new IllegalArgumentException("The tick and the wheel must both be positive");
+    }
+    this.tickNanos = MILLISECONDS.toNanos(tickMillis);
+    int slots = Integer.highestOneBit(((ticksPerWheel - 1) << 1) | 1);
+    @SuppressWarnings("unchecked")
+    Slot<T>[] wheel = (Slot<T>[]) new Slot<?>[slots];
+    for (int i = 0; i < slots; i++) {
+      wheel[i] = new Slot<>();
+    }
+    this.wheel = wheel;
+    this.mask = slots - 1;
+    this.onExpired = onExpired;
+    this.worker = threadFactory.newThread(this::run);
+  }
+
+  /** Start turning the wheel. */
+  public void start() {
+    running = true;
+    worker.start();
+  }
+
+  /** Stop turning the wheel. Any timeouts which haven't fired yet never will. */
+  public void stop() {
+    running = false;
+    worker.interrupt();
+  }
+
+  /**
+   * Add a timeout. It may be called from any thread.
+   *
+   * @param task What to hand over when the timeout fires.
+   * @param delayMillis How long from now the timeout is due.
+   */
+  public Timeout add(T task, long delayMillis) {
+    long deadline = System.nanoTime() - startNanos + MILLISECONDS.toNanos(Math.max(0, delayMillis));
+    Entry<T> entry = new Entry<>(this, task, deadline);
+    size.incrementAndGet();
+    added.add(entry);
+    return entry;
+  }
+
+  /** @return How many timeouts are waiting to fire. */
+  public int size() {
+    return size.get();
+  }
+
+  private void run() {
+    while (running) {
+      if (!waitForNextTick()) {
+        return;
+      }
+      try {
+        removeCancelled();
+        addToSlots();
+        List<T> expired = expire(wheel[(int) (tick & mask)]);
+        if (!expired.isEmpty()) {
+          onExpired.accept(expired);
+        }
+      } catch (RuntimeException e) {
+        LOGGER.error("Uncaught error while firing timeouts", e);
+      }
+      tick++;
+    }
+  }
+
+  /** @return False if we were stopped while waiting. */
+  private boolean waitForNextTick() {
+    long deadline = (tick + 1) * tickNanos;
+    for (long now = System.nanoTime() - startNanos; now < deadline; ) {
+      try {
+        NANOSECONDS.sleep(deadline - now);
+      } catch (InterruptedException e) {
+        if (!running) {
+          return false;
+        }
+      }
+      now = System.nanoTime() - startNanos;
+    }
+    return true;
+  }
+
+  private void removeCancelled() {
+    for (Entry<T> entry = cancelled.poll(); entry != null; entry = cancelled.poll()) {
+      if (entry.slot != null) {
+        entry.slot.remove(entry);
+      }
+    }
+  }
+
+  private void addToSlots() {
+    for (Entry<T> entry = added.poll(); entry != null; entry = added.poll()) {
+      if (entry.state.get() == CANCELLED) {
+        continue;
+      }
+      // Anything which should already have fired goes in the current slot
+      long dueTick = Math.max(entry.deadline / tickNanos, tick);
+      entry.remainingRounds = (dueTick - tick) / wheel.length;
+      wheel[(int) (dueTick & mask)].add(entry);
+    }
+  }
+
+  /** Fire the timeouts in a slot which are due this time round the wheel. */
+  private List<T> expire(Slot<T> slot) {
+    List<T> expired = new ArrayList<>();
+    Entry<T> entry = slot.head;
+    while (entry != null) {
+      Entry<T> next = entry.next;
+      if (entry.remainingRounds <= 0) {
+        slot.remove(entry);
+        if (entry.state.compareAndSet(PENDING, EXPIRED)) {
+          size.decrementAndGet();
+          expired.add(entry.task);
+        }
+      } else {
+        entry.remainingRounds--;
+      }
+      entry = next;
+    }
+    return expired;
+  }
+
+  private static final class Entry<T> implements Timeout {
+    private final TimingWheel<T> owner;
+    private final T task;
+    private final long deadline;
+    private final AtomicInteger state = new AtomicInteger(PENDING);
+
+    // Only touched by the wheel's thread
+    private long remainingRounds;
+    private Slot<T> slot;
+    private Entry<T> prev;
+    private Entry<T> next;
+
+    Entry(TimingWheel<T> owner, T task, long deadline) {
+      this.owner = owner;
+      this.task = task;
+      this.deadline = deadline;
+    }
+
+    @Override
+    public boolean cancel() {
+      if (!state.compareAndSet(PENDING, CANCELLED)) {
+        return false;
+      }
+      owner.size.decrementAndGet();
+      owner.cancelled.add(this);
+      return true;
+    }
+  }
+
+  /** A doubly linked list of the timeouts in one slot of the wheel, so any can be unlinked. */
+  private static final class Slot<T> {
+    private Entry<T> head;
+    private Entry<T> tail;
+
+    void add(Entry<T> entry) {
+      entry.slot = this;
+      if (head == null) {
+        head = entry;
+      } else {
+        tail.next = entry;
+        entry.prev = tail;
+      }
+      tail = entry;
+    }
+
+    void remove(Entry<T> entry) {
+      if (entry.prev == null) {
+        head = entry.next;
+      } else {
+        entry.prev.next = entry.next;
+      }
+      if (entry.next == null) {
+        tail = entry.prev;
+      } else {
+        entry.next.prev = entry.prev;
+      }
+      entry.prev = null;
+      entry.next = null;
+      entry.slot = null;
+    }
+  }
+}
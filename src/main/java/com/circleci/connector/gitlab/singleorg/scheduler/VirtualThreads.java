@@ -0,0 +1,17 @@
+package com.circleci.connector.gitlab.singleorg.scheduler;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/** Makes executors which run each task on a virtual thread of its own. */
+public final class VirtualThreads {
+  private VirtualThreads() {}
+
+  /**
+   * @param namePrefix What to call the threads, followed by a number.
+   * @return An executor which starts a new virtual thread for every task.
+   */
+  public static ExecutorService newExecutor(String namePrefix) {
+    return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(namePrefix, 0).factory());
+  }
+}
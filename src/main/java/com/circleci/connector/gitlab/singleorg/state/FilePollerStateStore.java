@@ -0,0 +1,87 @@
+package com.circleci.connector.gitlab.singleorg.state;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.dropwizard.jackson.Jackson;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.validation.constraints.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps poller state on disk, one small JSON file per pipeline. A file is replaced by writing its
+ * new contents alongside it and moving them over it, so a crash leaves either the old state or the
+ * new one, never a mixture.
+ */
+public class FilePollerStateStore implements PollerStateStore {
+  private static final Logger LOGGER = LoggerFactory.getLogger(FilePollerStateStore.class);
+  private static final ObjectMapper MAPPER = Jackson.newObjectMapper();
+
+  private static final String SUFFIX = ".json";
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  @NotNull private final Path directory;
+
+  /** @param directory The directory to keep the files in. It will be created if necessary. */
+  public FilePollerStateStore(Path directory) throws IOException {
+    this.directory = Files.createDirectories(directory);
+  }
+
+  @Override
+  public void save(PollerState state) {
+    Path path = path(state.pipelineId());
+    Path temp = path.resolveSibling(path.getFileName() + TEMP_SUFFIX);
+    try {
+      Files.write(temp, MAPPER.writeValueAsBytes(state));
+      Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      LOGGER.error("Failed to save the polling state of pipeline {}", state.pipelineId(), e);
+    }
+  }
+
+  @Override
+  public void remove(UUID pipelineId) {
+    try {
+      Files.deleteIfExists(path(pipelineId));
+    } catch (IOException e) {
+      LOGGER.error("Failed to remove the polling state of pipeline {}", pipelineId, e);
+    }
+  }
+
+  /** Read every saved state, skipping any file which can't be read. */
+  @Override
+  public List<PollerState> loadAll() {
+    List<Path> paths;
+    try (Stream<Path> files = Files.list(directory)) {
+      paths =
+          files
+              .filter(p -> p.getFileName().toString().endsWith(SUFFIX))
+              .sorted()
+              .collect(Collectors.toList());
+    } catch (IOException e) {
+      LOGGER.error("Failed to list the polling states in {}", directory, e);
+      return List.of();
+    }
+
+    List<PollerState> states = new ArrayList<>();
+    for (Path path : paths) {
+      try {
+        states.add(MAPPER.readValue(path.toFile(), PollerState.class));
+      } catch (IOException e) {
+        LOGGER.error("Ignoring unreadable polling state {}", path, e);
+      }
+    }
+    return states;
+  }
+
+  private Path path(UUID pipelineId) {
+    return directory.resolve(pipelineId + SUFFIX);
+  }
+}
@@ -0,0 +1,26 @@
+package com.circleci.connector.gitlab.singleorg.state;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Keeps poller state on the heap, so it only survives as long as the process. */
+public class InMemoryPollerStateStore implements PollerStateStore {
+  private final Map<UUID, PollerState> states = new ConcurrentHashMap<>();
+
+  @Override
+  public void save(PollerState state) {
+    states.put(state.pipelineId(), state);
+  }
+
+  @Override
+  public void remove(UUID pipelineId) {
+    states.remove(pipelineId);
+  }
+
+  @Override
+  public List<PollerState> loadAll() {
+    return List.copyOf(states.values());
+  }
+}
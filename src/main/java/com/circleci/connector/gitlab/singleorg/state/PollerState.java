@@ -0,0 +1,42 @@
+package com.circleci.connector.gitlab.singleorg.state;
+
+import com.circleci.connector.gitlab.singleorg.model.ImmutablePipeline;
+import com.circleci.connector.gitlab.singleorg.model.Pipeline;
+import com.circleci.connector.gitlab.singleorg.model.Workflow;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import java.util.Map;
+import java.util.UUID;
+import org.immutables.value.Value;
+
+/** Everything we need to pick up polling a pipeline where we left off. */
+@Value.Immutable
+@JsonSerialize(as = ImmutablePollerState.class)
+@JsonDeserialize(as = ImmutablePollerState.class)
+public abstract class PollerState {
+  public abstract UUID pipelineId();
+
+  public abstract int projectId();
+
+  public abstract String revision();
+
+  public abstract String branch();
+
+  /** @return The state of each workflow as last reported to GitLab, by workflow id. */
+  public abstract Map<UUID, Workflow.State> reportedStates();
+
+  /** @return When the pipeline is next due to be polled, in milliseconds since the epoch. */
+  public abstract long nextPollMillis();
+
+  /** @return See {@link Pipeline#receivedAtMillis()}. 0 for states saved before we kept it. */
+  @Value.Default
+  public long receivedAtMillis() {
+    return 0;
+  }
+
+  /** @return The pipeline being polled, without its workflows. */
+  public Pipeline pipeline() {
+    return ImmutablePipeline.of(pipelineId(), projectId(), revision(), branch())
+        .withReceivedAtMillis(receivedAtMillis());
+  }
+}
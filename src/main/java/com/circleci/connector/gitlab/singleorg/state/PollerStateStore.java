@@ -0,0 +1,22 @@
+package com.circleci.connector.gitlab.singleorg.state;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Somewhere to keep the state of the pipelines we are polling, so that we can resume polling them
+ * after a restart rather than leaving their GitLab commit statuses running forever.
+ *
+ * <p>Implementations must be safe to call from any thread. They should not throw if they fail to
+ * save something, since that only costs us the ability to resume a poll.
+ */
+public interface PollerStateStore {
+  /** Record the state of a pipeline, replacing whatever was recorded for it before. */
+  void save(PollerState state);
+
+  /** Forget a pipeline which we have stopped polling. */
+  void remove(UUID pipelineId);
+
+  /** @return Every pipeline which was being polled when the store was last written to. */
+  List<PollerState> loadAll();
+}
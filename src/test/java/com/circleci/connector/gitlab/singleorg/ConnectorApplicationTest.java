@@ -29,6 +29,7 @@ class ConnectorApplicationTest {
   void setup() {
     when(environment.jersey()).thenReturn(jersey);
     when(environment.healthChecks()).thenReturn(healthCheckRegistry);
+    when(environment.metrics()).thenReturn(new MetricRegistry());
     when(environment.lifecycle()).thenReturn(new LifecycleEnvironment(metricRegistry));
   }
 
@@ -39,6 +40,16 @@ class ConnectorApplicationTest {
     verify(jersey).register(isA(HookResource.class));
   }
 
+  @Test
+  void buildsAHookResourceWithAsyncProcessing() throws Exception {
+    ObjectMapper mapper = Jackson.newObjectMapper();
+    ConnectorConfiguration cfg =
+        mapper.readValue("{\"hooks\":{\"asyncProcessing\":true}}", ConnectorConfiguration.class);
+    application.run(cfg, environment);
+
+    verify(jersey).register(isA(HookResource.class));
+  }
+
   @Test
   void canSetUpStatsDReporting() throws Exception {
     ObjectMapper mapper = Jackson.newObjectMapper();
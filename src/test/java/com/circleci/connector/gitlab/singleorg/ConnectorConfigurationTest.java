@@ -1,8 +1,11 @@
 package com.circleci.connector.gitlab.singleorg;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import io.dropwizard.configuration.FileConfigurationSourceProvider;
 import io.dropwizard.configuration.UndefinedEnvironmentVariableException;
@@ -10,6 +13,7 @@ import io.dropwizard.configuration.YamlConfigurationFactory;
 import io.dropwizard.jackson.Jackson;
 import io.dropwizard.jersey.validation.Validators;
 import io.dropwizard.util.Resources;
+import java.util.List;
 import java.util.Map;
 import org.junit.jupiter.api.Test;
 
@@ -18,22 +22,94 @@ class ConnectorConfigurationTest {
   void weDoNotNPEWhenSomePartsOfTheConfigAreMissing() {
     ConnectorConfiguration cfg = new ConnectorConfiguration();
     assertNotNull(cfg.getCircleCi());
+    assertNull(cfg.getCircleCi().getWebhookSecret());
     assertNotNull(cfg.getGitlab());
     assertNotNull(cfg.getStatsd());
     assertNotNull(cfg.getDomainMapping());
     assertNotNull(cfg.getDomainMapping().getRepositories());
     assertNotNull(cfg.getDomainMapping().getSshFingerprints());
+    assertNotNull(cfg.getScheduler());
+    assertNotNull(cfg.getHooks());
+    assertNotNull(cfg.getJournal());
+    assertNotNull(cfg.getRateLimits());
+    assertNotNull(cfg.getFilters().getDefaults());
+    assertTrue(cfg.getFilters().getDefaults().isHonorCiSkip());
+    assertFalse(cfg.getPolling().isConsolidated());
+    assertFalse(cfg.getPolling().isPredictive());
+    assertFalse(cfg.isVirtualThreads());
+    assertFalse(cfg.getAutoCancel().isEnabledFor(123));
+    assertEquals(0, cfg.getPolling().getPollsPerSecond());
+    assertEquals(0, cfg.getPolling().getJitterRatio());
+    assertEquals(ConnectorConfiguration.Polling.StateStore.NONE, cfg.getPolling().getStateStore());
+    assertEquals(0, cfg.getRateLimits().forProject(123).getHooksPerSecond());
   }
 
   @Test
   void weCanSetEverythingInAConfigFileAndItStillWorks() throws Exception {
     ConnectorConfiguration cfg = loadFromResources("complete-config.yml");
     assertEquals("super-secret", cfg.getGitlab().getSharedSecretForHooks());
+    assertEquals(1048576, cfg.getGitlab().getConfigCacheMaxBytes());
+    assertEquals(120, cfg.getGitlab().getMissingConfigTtlSeconds());
+    assertEquals(2000, cfg.getGitlab().getMissingConfigMaxEntries());
+    assertEquals(262144, cfg.getGitlab().getMaxConfigBytes());
     assertEquals("not-really-a-token", cfg.getCircleCi().getApiToken());
+    assertEquals(16, cfg.getCircleCi().getWorkflowFetchThreads());
+    assertEquals(6, cfg.getCircleCi().getWorkflowFetchesPerPipeline());
+    assertEquals(400, cfg.getCircleCi().getWorkflowReadTtlMillis());
+    assertEquals(8, cfg.getCircleCi().getMaxConnections());
+    assertEquals(2000, cfg.getCircleCi().getConnectTimeoutMillis());
+    assertEquals(10000, cfg.getCircleCi().getReadTimeoutMillis());
+    assertEquals(30, cfg.getCircleCi().getKeepAliveSeconds());
+    assertTrue(cfg.getCircleCi().isAsyncClient());
+    assertEquals(12, cfg.getCircleCi().getMaxConcurrentRefreshes());
+    assertEquals(3, cfg.getCircleCi().getBreakerFailureThreshold());
+    assertEquals(5000, cfg.getCircleCi().getBreakerOpenMillis());
+    assertEquals("circleci-secret", cfg.getCircleCi().getWebhookSecret());
+    assertEquals(30000, cfg.getCircleCi().getWebhookFallbackPollMillis());
     assertEquals(Map.of(123, "gh/ghorg/ghrepo"), cfg.getDomainMapping().getRepositories());
     assertEquals(
         Map.of(123, "aa:aa:aa:aa:aa:aa:aa:aa:aa:aa:aa:aa:aa:aa:aa:aa"),
         cfg.getDomainMapping().getSshFingerprints());
+    assertEquals(4, cfg.getScheduler().getWorkerThreads());
+    assertEquals(100, cfg.getScheduler().getWorkerQueueSize());
+    assertEquals(20, cfg.getScheduler().getTickMillis());
+    assertEquals(256, cfg.getScheduler().getTicksPerWheel());
+    assertEquals(8, cfg.getScheduler().getDispatchBatchSize());
+    assertTrue(cfg.getHooks().isAsyncProcessing());
+    assertEquals(2, cfg.getHooks().getWorkerThreads());
+    assertEquals(50, cfg.getHooks().getQueueSize());
+    assertEquals(60, cfg.getHooks().getDeduplicationWindowSeconds());
+    assertEquals(500, cfg.getHooks().getDeduplicationMaxEntries());
+    assertEquals(2000, cfg.getHooks().getCoalescingWindowMillis());
+    assertEquals(65536, cfg.getHooks().getMaxPayloadBytes());
+    assertEquals("/tmp/connector-journal", cfg.getJournal().getDirectory());
+    assertEquals(1048576, cfg.getJournal().getSegmentSizeBytes());
+    assertEquals(50, cfg.getRateLimits().getGlobal().getHooksPerSecond());
+    assertEquals(100, cfg.getRateLimits().getGlobal().getBurst());
+    assertEquals(2.5, cfg.getRateLimits().getPerProject().getHooksPerSecond());
+    assertEquals(20, cfg.getRateLimits().forProject(123).getBurst());
+    assertEquals(10, cfg.getRateLimits().forProject(456).getBurst());
+    assertEquals(List.of("wip/**"), cfg.getFilters().getDefaults().getExcludeBranches());
+    assertFalse(cfg.getFilters().getDefaults().isHonorCiSkip());
+    ConnectorConfiguration.FilterRules project = cfg.getFilters().getProjects().get(123);
+    assertEquals(List.of("master", "release/*"), project.getIncludeBranches());
+    assertEquals(List.of("docs/**"), project.getExcludePaths());
+    assertFalse(project.isSkipBranchDeletions());
+    assertTrue(cfg.getPolling().isConsolidated());
+    assertEquals(ConnectorConfiguration.Polling.StateStore.FILE, cfg.getPolling().getStateStore());
+    assertEquals("/var/lib/connector/pollers", cfg.getPolling().getStateDirectory());
+    assertEquals(60000, cfg.getPolling().getResumeSpreadMillis());
+    assertTrue(cfg.getPolling().isPredictive());
+    assertEquals(500, cfg.getPolling().getDurationHistoryMaxEntries());
+    assertEquals(0.5, cfg.getPolling().getDurationHistoryWeight());
+    assertEquals(20000, cfg.getPolling().getMaxPredictedDelayMillis());
+    assertEquals(20, cfg.getPolling().getPollsPerSecond());
+    assertEquals(5, cfg.getPolling().getPollBurst());
+    assertEquals(0.2, cfg.getPolling().getJitterRatio());
+    assertTrue(cfg.getAutoCancel().isEnabled());
+    assertTrue(cfg.getAutoCancel().isEnabledFor(456));
+    assertFalse(cfg.getAutoCancel().isEnabledFor(123));
+    assertTrue(cfg.isVirtualThreads());
   }
 
   @Test
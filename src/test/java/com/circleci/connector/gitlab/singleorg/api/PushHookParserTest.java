@@ -0,0 +1,102 @@
+package com.circleci.connector.gitlab.singleorg.api;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.dropwizard.jackson.Jackson;
+import io.dropwizard.testing.FixtureHelpers;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class PushHookParserTest {
+  private static final ObjectMapper MAPPER = Jackson.newObjectMapper();
+  private static final String GITLAB_DOCS_HOOK =
+      FixtureHelpers.fixture("gitlab-push-hook-from-docs.json");
+
+  private static InputStream stream(String body) {
+    return new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static ObjectNode docsHook() throws Exception {
+    return (ObjectNode) MAPPER.readTree(GITLAB_DOCS_HOOK);
+  }
+
+  @Test
+  void weReadTheSameHookAsDataBinding() throws Exception {
+    ImmutablePushHook expected = MAPPER.readValue(GITLAB_DOCS_HOOK, ImmutablePushHook.class);
+    PushHook actual = PushHookParser.parse(stream(GITLAB_DOCS_HOOK));
+    assertEquals(
+        expected.withId(actual.id()).withReceivedAtMillis(actual.receivedAtMillis()), actual);
+  }
+
+  @Test
+  void weReadOnlyTheCommitFieldsWeUse() throws Exception {
+    PushHook hook = PushHookParser.parse(stream(GITLAB_DOCS_HOOK));
+    assertEquals(4, hook.totalCommitsCount());
+    assertEquals(2, hook.commits().size());
+    PushHook.Commit head = hook.headCommit().orElseThrow();
+    assertEquals("fixed readme", head.message());
+    assertEquals(List.of("CHANGELOG"), head.added());
+    assertEquals(List.of("app/controller/application.rb"), head.modified());
+    assertEquals(List.of(), head.removed());
+  }
+
+  @Test
+  void fieldOrderDoesNotMatter() throws Exception {
+    ObjectNode reordered = MAPPER.createObjectNode();
+    reordered.set("project", docsHook().get("project"));
+    reordered.setAll(docsHook());
+    PushHook hook = PushHookParser.parse(stream(MAPPER.writeValueAsString(reordered)));
+    assertEquals(15, hook.project().id());
+    assertEquals("refs/heads/master", hook.ref());
+  }
+
+  @Test
+  void missingFieldsAreRejected() throws Exception {
+    ObjectNode hook = docsHook();
+    hook.remove("after");
+    assertThrows(
+        JsonMappingException.class,
+        () -> PushHookParser.parse(stream(MAPPER.writeValueAsString(hook))));
+  }
+
+  @Test
+  void nullFieldsAreTreatedAsMissing() throws Exception {
+    ObjectNode hook = docsHook();
+    hook.putNull("user_email");
+    assertThrows(
+        JsonMappingException.class,
+        () -> PushHookParser.parse(stream(MAPPER.writeValueAsString(hook))));
+  }
+
+  @Test
+  void fieldsOfTheWrongTypeAreRejected() throws Exception {
+    ObjectNode hook = docsHook();
+    hook.putObject("ref");
+    assertThrows(
+        JsonMappingException.class,
+        () -> PushHookParser.parse(stream(MAPPER.writeValueAsString(hook))));
+  }
+
+  @Test
+  void otherObjectKindsAreRejected() throws Exception {
+    ObjectNode hook = docsHook();
+    hook.put("object_kind", "tag_push");
+    assertThrows(
+        JsonMappingException.class,
+        () -> PushHookParser.parse(stream(MAPPER.writeValueAsString(hook))));
+  }
+
+  @Test
+  void invalidJsonIsRejected() {
+    assertThrows(JsonProcessingException.class, () -> PushHookParser.parse(stream("{\"ref\":")));
+    assertThrows(JsonMappingException.class, () -> PushHookParser.parse(stream("[]")));
+  }
+}
@@ -0,0 +1,242 @@
+package com.circleci.connector.gitlab.singleorg.client;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.circleci.client.v2.ApiException;
+import com.circleci.connector.gitlab.singleorg.model.ImmutablePipeline;
+import com.circleci.connector.gitlab.singleorg.model.ImmutableWorkflow;
+import com.circleci.connector.gitlab.singleorg.model.Pipeline;
+import com.circleci.connector.gitlab.singleorg.model.Workflow;
+import com.circleci.connector.gitlab.singleorg.model.Workflow.State;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Throwables;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpServer;
+import io.dropwizard.jackson.Jackson;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.http.HttpClient;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.ws.rs.ClientErrorException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class AsyncCircleCiTest {
+  private static final ObjectMapper MAPPER = Jackson.newObjectMapper();
+
+  private static final UUID PIPELINE_ID = UUID.randomUUID();
+  private static final UUID WORKFLOW_ID = UUID.randomUUID();
+  private static final UUID BROKEN_WORKFLOW_ID = UUID.randomUUID();
+
+  private static final Pipeline PIPELINE_WITHOUT_ID =
+      ImmutablePipeline.of(null, 1, "abc123", "master");
+  private static final Pipeline PIPELINE_WITH_ID =
+      ImmutablePipeline.copyOf(PIPELINE_WITHOUT_ID).withId(PIPELINE_ID);
+
+  private HttpServer server;
+  private AsyncCircleCi circleCi;
+
+  /** Canned responses by path, as status code and body. */
+  private final Map<String, Map.Entry<Integer, String>> responses = new ConcurrentHashMap<>();
+
+  /** The headers and body of the last request, by path. */
+  private final Map<String, Headers> requestHeaders = new ConcurrentHashMap<>();
+
+  private final Map<String, String> requestBodies = new ConcurrentHashMap<>();
+
+  @BeforeEach
+  void setUp() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext(
+        "/api/v2/",
+        exchange -> {
+          String path = exchange.getRequestURI().getPath();
+          requestHeaders.put(path, exchange.getRequestHeaders());
+          requestBodies.put(
+              path, new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+          Map.Entry<Integer, String> response =
+              responses.getOrDefault(path, Map.entry(404, "{\"message\":\"Not found\"}"));
+          byte[] body = response.getValue().getBytes(StandardCharsets.UTF_8);
+          exchange.sendResponseHeaders(response.getKey(), body.length);
+          exchange.getResponseBody().write(body);
+          exchange.close();
+        });
+    server.start();
+
+    circleCi =
+        new AsyncCircleCi(
+            HttpClient.newHttpClient(),
+            "http://localhost:" + server.getAddress().getPort() + "/api/v2",
+            "a-token",
+            Duration.ofSeconds(5));
+  }
+
+  @AfterEach
+  void tearDown() {
+    server.stop(0);
+  }
+
+  private void respond(String path, int status, String body) {
+    responses.put("/api/v2/" + path, Map.entry(status, body));
+  }
+
+  private static String workflowJson(UUID id, String status) {
+    return String.format(
+        "{\"id\":\"%s\",\"name\":\"my-workflow\",\"status\":\"%s\",\"stopped_at\":null}",
+        id, status);
+  }
+
+  private static Throwable failure(Runnable join) {
+    return assertThrows(CompletionException.class, join::run).getCause();
+  }
+
+  @Test
+  void refreshPipelineFetchesItsWorkflows() {
+    respond(
+        "pipeline/" + PIPELINE_ID,
+        200,
+        String.format(
+            "{\"id\":\"%s\",\"vcs\":{\"revision\":\"abc123\"},\"workflows\":[{\"id\":\"%s\"}]}",
+            PIPELINE_ID, WORKFLOW_ID));
+    respond("workflow/" + WORKFLOW_ID, 200, workflowJson(WORKFLOW_ID, "failing"));
+
+    Pipeline pipeline = circleCi.refreshPipeline(PIPELINE_WITH_ID).join();
+    assertEquals(
+        Set.of(ImmutableWorkflow.of(WORKFLOW_ID, "my-workflow", State.RUNNING)),
+        pipeline.workflows());
+    assertEquals(
+        "a-token", requestHeaders.get("/api/v2/pipeline/" + PIPELINE_ID).getFirst("Circle-Token"));
+  }
+
+  @Test
+  void refreshPipelineLeavesOutWorkflowsItFailedToFetch() {
+    respond(
+        "pipeline/" + PIPELINE_ID,
+        200,
+        String.format(
+            "{\"id\":\"%s\",\"vcs\":{\"revision\":\"abc123\"},"
+                + "\"workflows\":[{\"id\":\"%s\"},{\"id\":\"%s\"}]}",
+            PIPELINE_ID, WORKFLOW_ID, BROKEN_WORKFLOW_ID));
+    respond("workflow/" + WORKFLOW_ID, 200, workflowJson(WORKFLOW_ID, "success"));
+    respond("workflow/" + BROKEN_WORKFLOW_ID, 404, "{\"message\":\"Workflow not found\"}");
+
+    Pipeline pipeline = circleCi.refreshPipeline(PIPELINE_WITH_ID).join();
+    assertEquals(
+        Set.of(ImmutableWorkflow.of(WORKFLOW_ID, "my-workflow", State.SUCCESS)),
+        pipeline.workflows());
+  }
+
+  @Test
+  void refreshPipelineFailsIfCircleCiThrottlesAWorkflowFetch() {
+    respond(
+        "pipeline/" + PIPELINE_ID,
+        200,
+        String.format(
+            "{\"id\":\"%s\",\"vcs\":{\"revision\":\"abc123\"},"
+                + "\"workflows\":[{\"id\":\"%s\"},{\"id\":\"%s\"}]}",
+            PIPELINE_ID, WORKFLOW_ID, BROKEN_WORKFLOW_ID));
+    respond("workflow/" + WORKFLOW_ID, 200, workflowJson(WORKFLOW_ID, "success"));
+    respond("workflow/" + BROKEN_WORKFLOW_ID, 429, "Slow down");
+
+    Throwable e = failure(() -> circleCi.refreshPipeline(PIPELINE_WITH_ID).join());
+    assertEquals(429, ((ApiException) Throwables.getRootCause(e)).getCode());
+  }
+
+  @Test
+  void refreshPipelineFailsForTheWrongRevision() {
+    respond(
+        "pipeline/" + PIPELINE_ID,
+        200,
+        String.format(
+            "{\"id\":\"%s\",\"vcs\":{\"revision\":\"def456\"},\"workflows\":[]}", PIPELINE_ID));
+
+    Throwable e = failure(() -> circleCi.refreshPipeline(PIPELINE_WITH_ID).join());
+    assertTrue(e instanceof IllegalArgumentException);
+  }
+
+  @Test
+  void refreshPipelineIfCircleCiReturns500WeFail() {
+    respond("pipeline/" + PIPELINE_ID, 500, "CircleCI is broken");
+
+    Throwable e = failure(() -> circleCi.refreshPipeline(PIPELINE_WITH_ID).join());
+    assertTrue(e.getCause() instanceof ApiException);
+    assertEquals(500, ((ApiException) e.getCause()).getCode());
+  }
+
+  @Test
+  void refreshWorkflowIfCircleCiReturns4xxWeFail() {
+    Workflow workflow = ImmutableWorkflow.of(WORKFLOW_ID, "my-workflow", State.RUNNING);
+
+    Throwable e = failure(() -> circleCi.refreshWorkflow(workflow).join());
+    assertTrue(e.getCause() instanceof ApiException);
+    assertEquals(404, ((ApiException) e.getCause()).getCode());
+  }
+
+  @Test
+  void triggerPipelineSendsTheConfigAndAttribution() throws IOException {
+    respond("project/gh/org/repo/pipeline", 201, String.format("{\"id\":\"%s\"}", PIPELINE_ID));
+
+    Pipeline pipeline =
+        circleCi
+            .triggerPipeline(
+                PIPELINE_WITHOUT_ID, "version: 2.1", "1234", "jdoe", "gh/org/repo", "fp", "uri")
+            .join();
+    assertEquals(PIPELINE_ID, pipeline.id());
+
+    Headers headers = requestHeaders.get("/api/v2/project/gh/org/repo/pipeline");
+    assertEquals("jdoe", headers.getFirst("x-attribution-login"));
+    assertEquals("1234", headers.getFirst("x-attribution-actor-id"));
+    JsonNode body = MAPPER.readTree(requestBodies.get("/api/v2/project/gh/org/repo/pipeline"));
+    assertEquals("version: 2.1", body.get("config").asText());
+    assertEquals("master", body.get("branch").asText());
+    assertEquals("abc123", body.get("revision").asText());
+    assertEquals("uri", body.get("parameters").get("gitlab_git_uri").asText());
+  }
+
+  @Test
+  void triggerPipelineIfCircleCiReturns4xxWePassItOn() {
+    Throwable e =
+        failure(
+            () ->
+                circleCi
+                    .triggerPipeline(PIPELINE_WITHOUT_ID, "", "", "", "gh/org/repo", "", "")
+                    .join());
+    assertTrue(e instanceof ClientErrorException);
+    assertEquals(404, ((ClientErrorException) e).getResponse().getStatus());
+    assertEquals("Not found", e.getMessage());
+  }
+
+  @Test
+  void triggerPipelineIfCircleCiReturns500WeFailWithRuntimeException() {
+    respond("project/gh/org/repo/pipeline", 500, "CircleCI is broken");
+
+    Throwable e =
+        failure(
+            () ->
+                circleCi
+                    .triggerPipeline(PIPELINE_WITHOUT_ID, "", "", "", "gh/org/repo", "", "")
+                    .join());
+    assertTrue(e.getCause() instanceof ApiException);
+  }
+
+  @Test
+  void triggerPipelineIfPipelineAlreadyTriggeredWeFail() {
+    Throwable e =
+        failure(
+            () ->
+                circleCi
+                    .triggerPipeline(PIPELINE_WITH_ID, "", "", "", "gh/org/repo", "", "")
+                    .join());
+    assertTrue(e instanceof IllegalStateException);
+  }
+}
@@ -0,0 +1,130 @@
+package com.circleci.connector.gitlab.singleorg.client;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import io.dropwizard.util.Resources;
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import org.gitlab4j.api.GitLabApi;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.mockito.Mockito;
+
+class CircleCiConfigSplicerTest {
+  private static final ObjectMapper YAML_MAPPER = new ObjectMapper(new YAMLFactory());
+  private final GitLab gitLab = new GitLab(Mockito.mock(GitLabApi.class));
+
+  private static String fixture(String name) throws IOException {
+    return Resources.toString(
+        Resources.getResource("circleci-config/" + name), StandardCharsets.UTF_8);
+  }
+
+  private static ObjectNode tree(String yaml) throws IOException {
+    return (ObjectNode) YAML_MAPPER.readTree(yaml);
+  }
+
+  /** Splice the config and check we get the same thing as the tree transformation would. */
+  private String assertSplicesLikeTree(String yaml) throws IOException {
+    String spliced = CircleCiConfigSplicer.splice(yaml);
+    assertNotNull(spliced);
+    assertEquals(gitLab.extendCircleCiConfig(tree(yaml)), tree(spliced));
+    return spliced;
+  }
+
+  @ParameterizedTest
+  @ValueSource(strings = {"valid-simple", "valid-parameters", "valid-commands"})
+  void splicedConfigsMatchTheExpectedOutput(String name) throws IOException {
+    String spliced = assertSplicesLikeTree(fixture(name + ".input.yaml"));
+    assertEquals(tree(fixture(name + ".output.yaml")), tree(spliced));
+  }
+
+  @Test
+  void theRestOfTheConfigIsLeftAsItWas() throws IOException {
+    String yaml = fixture("valid-simple.input.yaml");
+    String spliced = assertSplicesLikeTree(yaml);
+    assertTrue(spliced.endsWith(yaml));
+  }
+
+  @Test
+  void existingSectionsKeepTheirIndentation() throws IOException {
+    assertSplicesLikeTree(
+        "# A comment about the config\n"
+            + "version: 2.1\n"
+            + "parameters:\n"
+            + "    # A comment about a parameter\n"
+            + "    deploy: {type: boolean, default: false}\n"
+            + "commands:\n"
+            + "      greet:\n"
+            + "        steps: [run: echo hello]\n"
+            + "workflows:\n"
+            + "  main:\n"
+            + "    jobs: [build]\n");
+  }
+
+  @Test
+  void textBeforeTheSplicePointMayContainAnyCharacters() throws IOException {
+    String spliced =
+        assertSplicesLikeTree(
+            "version: 2.1 # \uD83D\uDE80\n"
+                + "parameters:\n"
+                + "  emoji: {default: \"\uD83D\uDE80\"}\n");
+    assertTrue(spliced.contains("version: 2.1 # \uD83D\uDE80\nparameters:\n  gitlab_"));
+  }
+
+  @Test
+  void explicitDocumentsCanBeSpliced() throws IOException {
+    assertSplicesLikeTree("%YAML 1.1\n---\nversion: 2.1\n...\n");
+  }
+
+  @ParameterizedTest
+  @ValueSource(
+      strings = {
+        "{version: 2.1, jobs: {}}",
+        "version: 2.1\nparameters: {}\n",
+        "version: 2.1\ncommands: *shared\n",
+        "version: 2.1\nparameters:\n  gitlab_git_uri: {type: string}\n",
+        "version: 2.1\ncommands:\n  git-checkout: {steps: []}\n",
+        "version: 2.1\n? parameters\n: {}\n",
+        "version: 2.1\n---\nversion: 2.0\n",
+        "- not\n- a\n- mapping\n",
+        "",
+        "version: [2.1\n",
+      })
+  void unusualConfigsAreLeftToTheTreeTransformation(String yaml) {
+    assertNull(CircleCiConfigSplicer.splice(yaml));
+  }
+
+  @Test
+  void configsAreSplicedAsTheyAreReadFromAStream() throws IOException {
+    String yaml = fixture("valid-commands.input.yaml");
+    // A reader which hands over a character at a time, as a slow connection might
+    Reader trickle =
+        new FilterReader(new StringReader(yaml)) {
+          @Override
+          public int read(char[] cbuf, int off, int len) throws IOException {
+            return super.read(cbuf, off, Math.min(len, 1));
+          }
+        };
+    CircleCiConfigSplicer.Result read = CircleCiConfigSplicer.splice(trickle);
+    assertEquals(yaml, read.yaml);
+    assertEquals(CircleCiConfigSplicer.splice(yaml), read.spliced);
+  }
+
+  @Test
+  void configsWhichCannotBeSplicedAreStillReadToTheEnd() throws IOException {
+    String yaml = "version: 2.1\n---\nversion: 2.0\n# and the rest\n" + "x".repeat(10000);
+    CircleCiConfigSplicer.Result read = CircleCiConfigSplicer.splice(new StringReader(yaml));
+    assertNull(read.spliced);
+    assertEquals(yaml, read.yaml);
+  }
+}
@@ -0,0 +1,195 @@
+package com.circleci.connector.gitlab.singleorg.client;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.circleci.client.v2.ApiException;
+import com.circleci.connector.gitlab.singleorg.client.CircleCiLimiter.DeferredException;
+import com.circleci.connector.gitlab.singleorg.client.CircleCiLimiter.State;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Ticker;
+import java.net.SocketTimeoutException;
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class CircleCiLimiterTest {
+  private static final Duration OPEN_DURATION = Duration.ofSeconds(10);
+
+  private MetricRegistry metrics;
+  private FakeTicker ticker;
+  private CircleCiLimiter limiter;
+
+  private static class FakeTicker extends Ticker {
+    private long nanos;
+
+    @Override
+    public long read() {
+      return nanos;
+    }
+
+    void advance(long duration, TimeUnit unit) {
+      nanos += unit.toNanos(duration);
+    }
+  }
+
+  @BeforeEach
+  void setUp() {
+    metrics = new MetricRegistry();
+    ticker = new FakeTicker();
+    limiter = new CircleCiLimiter(8, 3, OPEN_DURATION, metrics, ticker);
+  }
+
+  private CompletableFuture<String> succeed() {
+    return limiter.call(() -> CompletableFuture.completedFuture("ok"));
+  }
+
+  private CompletableFuture<String> fail(Throwable e) {
+    return limiter.call(() -> CompletableFuture.failedFuture(e));
+  }
+
+  private static RuntimeException apiError(int code, Map<String, List<String>> headers) {
+    return new RuntimeException(new ApiException(code, "", headers, ""));
+  }
+
+  private static long deferral(CompletableFuture<?> result) {
+    assertTrue(result.isCompletedExceptionally());
+    DeferredException e = DeferredException.from(result.handle((v, t) -> t).join());
+    assertNotNull(e);
+    return e.getRetryAfterMillis();
+  }
+
+  private Object gauge(String name) {
+    return metrics.getGauges().get(MetricRegistry.name(CircleCiLimiter.class, name)).getValue();
+  }
+
+  @Test
+  void callsBeyondTheLimitAreDeferred() {
+    for (int i = 0; i < 8; i++) {
+      limiter.call(CompletableFuture::new);
+    }
+    assertEquals(8, limiter.getInFlight());
+    assertEquals(1000, deferral(succeed()));
+    assertEquals(
+        1, metrics.meter(MetricRegistry.name(CircleCiLimiter.class, "deferred")).getCount());
+  }
+
+  @Test
+  void theLimitIsHalvedOnFailureAndGrowsBackOnSuccess() {
+    fail(apiError(500, Map.of()));
+    assertEquals(4, limiter.getLimit());
+    fail(new RuntimeException(new SocketTimeoutException()));
+    assertEquals(2, limiter.getLimit());
+
+    for (int i = 0; i < 3; i++) {
+      succeed();
+    }
+    assertEquals(3, limiter.getLimit());
+    for (int i = 0; i < 100; i++) {
+      succeed();
+    }
+    assertEquals(8, limiter.getLimit());
+    assertEquals(8, gauge("limit"));
+  }
+
+  @Test
+  void clientErrorsAndOtherFailuresDoNotLowerTheLimit() {
+    fail(apiError(404, Map.of()));
+    fail(new IllegalArgumentException("Unexpected revision"));
+    assertEquals(8, limiter.getLimit());
+    assertEquals(State.CLOSED, limiter.getState());
+  }
+
+  @Test
+  void enoughFailuresInARowOpenTheCircuit() {
+    fail(apiError(502, Map.of()));
+    fail(apiError(502, Map.of()));
+    succeed();
+    fail(apiError(502, Map.of()));
+    fail(apiError(502, Map.of()));
+    assertEquals(State.CLOSED, limiter.getState());
+
+    fail(apiError(502, Map.of()));
+    assertEquals(State.OPEN, limiter.getState());
+    assertEquals(State.OPEN.ordinal(), gauge("state"));
+    assertEquals(10000, deferral(succeed()));
+  }
+
+  @Test
+  void aThrottledCallOpensTheCircuitForAsLongAsCircleCiAsks() {
+    fail(apiError(429, Map.of("retry-after", List.of("30"))));
+    assertEquals(State.OPEN, limiter.getState());
+    assertEquals(30000, deferral(succeed()));
+
+    ticker.advance(20, TimeUnit.SECONDS);
+    assertEquals(10000, deferral(succeed()));
+
+    ticker.advance(10, TimeUnit.SECONDS);
+    assertEquals(State.HALF_OPEN, limiter.getState());
+  }
+
+  @Test
+  void aThrottledCallWithoutRetryAfterOpensTheCircuitForTheDefaultTime() {
+    fail(apiError(429, Map.of()));
+    assertEquals(10000, deferral(succeed()));
+  }
+
+  @Test
+  void onlyOneCallIsLetThroughToSeeIfCircleCiHasRecovered() {
+    fail(apiError(429, Map.of()));
+    ticker.advance(10, TimeUnit.SECONDS);
+
+    CompletableFuture<String> probe = new CompletableFuture<>();
+    CompletableFuture<String> result = limiter.call(() -> probe);
+    assertEquals(1000, deferral(succeed()));
+
+    probe.complete("ok");
+    assertEquals("ok", result.join());
+    assertEquals(State.CLOSED, limiter.getState());
+    assertEquals("ok", succeed().join());
+  }
+
+  @Test
+  void aFailedProbeOpensTheCircuitAgain() {
+    fail(apiError(429, Map.of()));
+    ticker.advance(10, TimeUnit.SECONDS);
+
+    fail(apiError(503, Map.of()));
+    assertEquals(State.OPEN, limiter.getState());
+    assertEquals(10000, deferral(succeed()));
+  }
+
+  @Test
+  void failuresOfTheCallArePassedOn() {
+    RuntimeException failure = apiError(500, Map.of());
+    assertSame(failure, fail(failure).handle((v, t) -> t).join().getCause());
+    assertNull(DeferredException.from(failure));
+    assertEquals(0, limiter.getInFlight());
+  }
+
+  @Test
+  void retryAfterCanBeSecondsOrADate() {
+    assertEquals(
+        TimeUnit.SECONDS.toNanos(120),
+        CircleCiLimiter.retryAfterNanos(Map.of("Retry-After", List.of("120"))));
+    assertNull(CircleCiLimiter.retryAfterNanos(Map.of("Retry-After", List.of("soon"))));
+    assertNull(CircleCiLimiter.retryAfterNanos(Map.of()));
+    assertNull(CircleCiLimiter.retryAfterNanos(null));
+
+    String inAMinute =
+        DateTimeFormatter.RFC_1123_DATE_TIME.format(
+            ZonedDateTime.now(ZoneOffset.UTC).plusMinutes(1));
+    long nanos = CircleCiLimiter.retryAfterNanos(Map.of("Retry-After", List.of(inAMinute)));
+    assertTrue(nanos > TimeUnit.SECONDS.toNanos(50) && nanos <= TimeUnit.SECONDS.toNanos(60));
+  }
+}
@@ -4,6 +4,8 @@ import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import com.circleci.client.v2.ApiException;
@@ -18,13 +20,21 @@ import com.circleci.connector.gitlab.singleorg.model.ImmutablePipeline;
 import com.circleci.connector.gitlab.singleorg.model.ImmutableWorkflow;
 import com.circleci.connector.gitlab.singleorg.model.Pipeline;
 import com.circleci.connector.gitlab.singleorg.model.Workflow.State;
+import com.codahale.metrics.MetricRegistry;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import io.dropwizard.jackson.Jackson;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 import javax.ws.rs.ClientErrorException;
 import org.junit.jupiter.api.Test;
 
@@ -94,6 +104,8 @@ class CircleCiTest {
           .thenThrow(new ApiException(404, "No such pipeline"));
       when(CIRCLECI_404.getWorkflowById(any(UUID.class)))
           .thenThrow(new ApiException(404, "No such workflow"));
+      when(CIRCLECI_404.cancelWorkflow(any(UUID.class)))
+          .thenThrow(new ApiException(404, "No such workflow"));
 
       when(CIRCLECI_404_JSON.triggerPipeline(
               anyString(), anyString(), anyString(), any(TriggerPipelineParameters.class)))
@@ -175,6 +187,34 @@ class CircleCiTest {
     assertEquals(CIRCLECI_WORKFLOW.getId(), workflow.id());
   }
 
+  @Test
+  void cancelWorkflowIfCircleCiReturns4xxWeThrow() {
+    CircleCi circleCi = new CircleCi(CIRCLECI_404);
+    assertThrows(RuntimeException.class, () -> circleCi.cancelWorkflow(WORKFLOW));
+  }
+
+  @Test
+  void cancelWorkflowSuccess() throws ApiException {
+    DefaultApi circleCiApi = mock(DefaultApi.class);
+    new CircleCi(circleCiApi).cancelWorkflow(WORKFLOW);
+    verify(circleCiApi).cancelWorkflow(WORKFLOW_ID);
+  }
+
+  @Test
+  void refreshAsyncWithoutANonBlockingClientRefreshesOnTheCallingThread() {
+    CircleCi circleCi = new CircleCi(CIRCLECI_HAPPY);
+    assertEquals(WORKFLOW, circleCi.refreshWorkflowAsync(WORKFLOW).join());
+    assertEquals(
+        Set.of(WORKFLOW), circleCi.refreshPipelineAsync(PIPELINE_WITH_ID).join().workflows());
+  }
+
+  @Test
+  void refreshAsyncWithoutANonBlockingClientFailsTheFuture() {
+    CircleCi circleCi = new CircleCi(CIRCLECI_500);
+    assertTrue(circleCi.refreshWorkflowAsync(WORKFLOW).isCompletedExceptionally());
+    assertTrue(circleCi.refreshPipelineAsync(PIPELINE_WITH_ID).isCompletedExceptionally());
+  }
+
   @Test
   void triggerPipelineIfCircleCiReturns4xxWePassItOn() {
     CircleCi circleCi = new CircleCi(CIRCLECI_404);
@@ -215,4 +255,158 @@ class CircleCiTest {
     assertNotNull(pipeline);
     assertEquals(PIPELINE_LIGHT.getId(), pipeline.id());
   }
+
+  /**
+   * A CircleCI API with a pipeline of the given workflows, each of which takes a while to fetch.
+   * Fetching the failing workflow, if any, fails with the given status code.
+   */
+  private static DefaultApi slowPipeline(
+      List<UUID> workflowIds,
+      UUID failingId,
+      int failingCode,
+      AtomicInteger inFlight,
+      AtomicInteger maxInFlight)
+      throws ApiException {
+    DefaultApi api = mock(DefaultApi.class);
+    PipelineWithWorkflows pipeline = new PipelineWithWorkflows();
+    pipeline.setId(PIPELINE_ID);
+    pipeline.setVcs(PIPELINE_WITH_WORKFLOWS.getVcs());
+    List<PipelineWithWorkflowsWorkflows> workflows = new ArrayList<>();
+    for (UUID id : workflowIds) {
+      PipelineWithWorkflowsWorkflows workflow = new PipelineWithWorkflowsWorkflows();
+      workflow.setId(id);
+      workflows.add(workflow);
+    }
+    pipeline.setWorkflows(workflows);
+    when(api.getPipelineById(PIPELINE_ID)).thenReturn(pipeline);
+    when(api.getWorkflowById(any(UUID.class)))
+        .thenAnswer(
+            invocation -> {
+              UUID id = invocation.getArgument(0);
+              maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+              try {
+                Thread.sleep(20);
+              } finally {
+                inFlight.decrementAndGet();
+              }
+              if (id.equals(failingId)) {
+                throw new ApiException(failingCode, "CircleCI is broken");
+              }
+              var workflow = new com.circleci.client.v2.model.Workflow();
+              workflow.setId(id);
+              workflow.setName("workflow-" + id);
+              workflow.setStatus(StatusEnum.SUCCESS);
+              return workflow;
+            });
+    return api;
+  }
+
+  private static List<UUID> workflowIds(int count) {
+    List<UUID> ids = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      ids.add(UUID.randomUUID());
+    }
+    return ids;
+  }
+
+  private static Set<UUID> idsOf(Pipeline pipeline) {
+    return pipeline.workflows().stream()
+        .map(com.circleci.connector.gitlab.singleorg.model.Workflow::id)
+        .collect(Collectors.toSet());
+  }
+
+  @Test
+  void refreshPipelineFetchesWorkflowsConcurrentlyUpToTheLimit() throws Exception {
+    List<UUID> ids = workflowIds(12);
+    AtomicInteger maxInFlight = new AtomicInteger();
+    DefaultApi api = slowPipeline(ids, null, 0, new AtomicInteger(), maxInFlight);
+    ExecutorService fetchers = Executors.newFixedThreadPool(8);
+    try {
+      Pipeline pipeline =
+          new CircleCi(api, fetchers, 3, null, null, null).refreshPipeline(PIPELINE_WITH_ID);
+      assertEquals(Set.copyOf(ids), idsOf(pipeline));
+      assertTrue(maxInFlight.get() > 1);
+      assertTrue(maxInFlight.get() <= 3);
+    } finally {
+      fetchers.shutdownNow();
+    }
+  }
+
+  @Test
+  void refreshPipelineLeavesOutWorkflowsItFailedToFetch() throws Exception {
+    List<UUID> ids = workflowIds(5);
+    DefaultApi api = slowPipeline(ids, ids.get(2), 404, new AtomicInteger(), new AtomicInteger());
+    ExecutorService fetchers = Executors.newFixedThreadPool(4);
+    try {
+      Pipeline pipeline =
+          new CircleCi(api, fetchers, 4, null, null, null).refreshPipeline(PIPELINE_WITH_ID);
+      Set<UUID> expected = new HashSet<>(ids);
+      expected.remove(ids.get(2));
+      assertEquals(expected, idsOf(pipeline));
+    } finally {
+      fetchers.shutdownNow();
+    }
+  }
+
+  @Test
+  void refreshPipelineFailsIfCircleCiIsStrugglingToFetchAWorkflow() throws Exception {
+    List<UUID> ids = workflowIds(5);
+    DefaultApi api = slowPipeline(ids, ids.get(2), 503, new AtomicInteger(), new AtomicInteger());
+    ExecutorService fetchers = Executors.newFixedThreadPool(4);
+    try {
+      CircleCi circleCi = new CircleCi(api, fetchers, 4, null, null, null);
+      RuntimeException e =
+          assertThrows(RuntimeException.class, () -> circleCi.refreshPipeline(PIPELINE_WITH_ID));
+      assertEquals(503, ((ApiException) e.getCause()).getCode());
+    } finally {
+      fetchers.shutdownNow();
+    }
+  }
+
+  @Test
+  void workflowFetchesCircleCiThrottlesAreSeenByTheLimiter() throws Exception {
+    List<UUID> ids = workflowIds(2);
+    DefaultApi api = slowPipeline(ids, ids.get(1), 429, new AtomicInteger(), new AtomicInteger());
+    CircleCiLimiter limiter =
+        new CircleCiLimiter(4, 5, Duration.ofMinutes(1), new MetricRegistry());
+    CircleCi circleCi = new CircleCi(api, null, 1, null, null, limiter);
+
+    assertThrows(
+        CompletionException.class, () -> circleCi.refreshPipelineAsync(PIPELINE_WITH_ID).join());
+    assertEquals(CircleCiLimiter.State.OPEN, limiter.getState());
+  }
+
+  @Test
+  void refreshPipelineFetchesEverythingItselfIfTheFetchersAreBusy() throws Exception {
+    List<UUID> ids = workflowIds(4);
+    AtomicInteger maxInFlight = new AtomicInteger();
+    DefaultApi api = slowPipeline(ids, null, 0, new AtomicInteger(), maxInFlight);
+    ExecutorService fetchers = Executors.newSingleThreadExecutor();
+    fetchers.shutdown();
+
+    Pipeline pipeline =
+        new CircleCi(api, fetchers, 4, null, null, null).refreshPipeline(PIPELINE_WITH_ID);
+    assertEquals(Set.copyOf(ids), idsOf(pipeline));
+    assertEquals(1, maxInFlight.get());
+  }
+
+  @Test
+  void workflowReadsAreSharedBetweenPipelineAndWorkflowRefreshes() throws Exception {
+    List<UUID> ids = workflowIds(2);
+    DefaultApi api = slowPipeline(ids, null, 0, new AtomicInteger(), new AtomicInteger());
+    CircleCi circleCi =
+        new CircleCi(
+            api,
+            null,
+            1,
+            new SingleFlightCache<>("workflows", Duration.ofSeconds(10), new MetricRegistry()),
+            null,
+            null);
+
+    Pipeline pipeline = circleCi.refreshPipeline(PIPELINE_WITH_ID);
+    for (var workflow : pipeline.workflows()) {
+      assertEquals(workflow, circleCi.refreshWorkflow(workflow));
+    }
+    verify(api, times(2)).getWorkflowById(any(UUID.class));
+  }
 }
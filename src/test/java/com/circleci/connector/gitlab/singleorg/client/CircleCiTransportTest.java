@@ -0,0 +1,76 @@
+package com.circleci.connector.gitlab.singleorg.client;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.sun.net.httpserver.HttpServer;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.ws.rs.client.ClientRequestFilter;
+import org.glassfish.jersey.client.ClientConfig;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class CircleCiTransportTest {
+  private HttpServer server;
+  private final Set<Integer> clientPorts = ConcurrentHashMap.newKeySet();
+  private final MetricRegistry metrics = new MetricRegistry();
+  private CircleCiTransport transport;
+
+  @BeforeEach
+  void setUp() throws Exception {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext(
+        "/api/v2/me",
+        exchange -> {
+          clientPorts.add(exchange.getRemoteAddress().getPort());
+          byte[] body =
+              exchange.getRequestHeaders().getFirst("X-Test").getBytes(StandardCharsets.UTF_8);
+          exchange.sendResponseHeaders(200, body.length);
+          exchange.getResponseBody().write(body);
+          exchange.close();
+        });
+    server.start();
+
+    // Stands in for what the CircleCI library registers on its own client
+    ClientRequestFilter libraryFilter = request -> request.getHeaders().add("X-Test", "hello");
+    transport =
+        new CircleCiTransport(
+            new ClientConfig().register(libraryFilter), 4, 1000, 1000, 60, metrics);
+  }
+
+  @AfterEach
+  void tearDown() {
+    transport.stop();
+    server.stop(0);
+  }
+
+  private String get() {
+    return transport
+        .getClient()
+        .target("http://localhost:" + server.getAddress().getPort())
+        .path("/api/v2/me")
+        .request()
+        .get(String.class);
+  }
+
+  private Object gauge(String name) {
+    Gauge<?> gauge = metrics.getGauges().get(MetricRegistry.name(CircleCiTransport.class, name));
+    return gauge.getValue();
+  }
+
+  @Test
+  void connectionsAreReused() {
+    for (int i = 0; i < 5; i++) {
+      assertEquals("hello", get());
+    }
+    assertEquals(1, clientPorts.size());
+    assertEquals(0, gauge("leased"));
+    assertEquals(1, gauge("available"));
+    assertEquals(0.0, gauge("utilization"));
+  }
+}
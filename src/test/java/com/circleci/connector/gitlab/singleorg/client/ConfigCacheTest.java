@@ -0,0 +1,37 @@
+package com.circleci.connector.gitlab.singleorg.client;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Strings;
+import org.junit.jupiter.api.Test;
+
+class ConfigCacheTest {
+  @Test
+  void configsAreCachedByBlobId() {
+    MetricRegistry metrics = new MetricRegistry();
+    ConfigCache cache = new ConfigCache(1024, metrics);
+    assertNull(cache.get("blob1"));
+    cache.put("blob1", "version: 2.1");
+    assertEquals("version: 2.1", cache.get("blob1"));
+    assertEquals(1, metrics.meter(MetricRegistry.name(ConfigCache.class, "hits")).getCount());
+    assertEquals(1, metrics.meter(MetricRegistry.name(ConfigCache.class, "misses")).getCount());
+  }
+
+  @Test
+  void theCacheIsBoundedInBytes() {
+    MetricRegistry metrics = new MetricRegistry();
+    ConfigCache cache = new ConfigCache(64 * 1024, metrics);
+    String config = Strings.repeat("x", 1024);
+    for (int i = 0; i < 100; i++) {
+      cache.put("blob" + i, config);
+    }
+    long evictions = metrics.meter(MetricRegistry.name(ConfigCache.class, "evictions")).getCount();
+    assertTrue(evictions >= 68, "Only " + evictions + " evictions");
+    assertEquals(
+        100 - evictions,
+        metrics.getGauges().get(MetricRegistry.name(ConfigCache.class, "entries")).getValue());
+  }
+}
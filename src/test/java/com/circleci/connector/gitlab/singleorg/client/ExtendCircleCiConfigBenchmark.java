@@ -0,0 +1,85 @@
+package com.circleci.connector.gitlab.singleorg.client;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import io.dropwizard.util.Resources;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares splicing our additions into a CircleCI config with the tree round trip it replaced. Run
+ * {@link #main} from the test classpath, for example from an IDE.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExtendCircleCiConfigBenchmark {
+  private static final ObjectMapper YAML_MAPPER = new ObjectMapper(new YAMLFactory());
+
+  /** How many copies of a typical job the config defines. */
+  @Param({"1", "50", "500"})
+  public int jobs;
+
+  private String yaml;
+  private GitLab gitLab;
+
+  @Setup
+  public void setUp() throws IOException {
+    gitLab = new GitLab(null);
+    String job =
+        Resources.toString(
+            Resources.getResource("circleci-config/valid-simple.input.yaml"),
+            StandardCharsets.UTF_8);
+    String steps = job.substring(job.indexOf("    docker:"));
+    StringBuilder config = new StringBuilder("version: 2.1\n\n");
+    config.append("parameters:\n  deploy:\n    type: boolean\n    default: false\n\n");
+    config.append("jobs:\n");
+    for (int i = 0; i < jobs; i++) {
+      config.append("  build-").append(i).append(":\n").append(steps).append('\n');
+    }
+    config.append("\nworkflows:\n  main:\n    jobs:\n");
+    for (int i = 0; i < jobs; i++) {
+      config.append("      - build-").append(i).append('\n');
+    }
+    yaml = config.toString();
+  }
+
+  /** What {@code fetchCircleCiConfig} used to do with every config. */
+  @Benchmark
+  public String treeRoundTrip() throws IOException {
+    ObjectNode root = (ObjectNode) YAML_MAPPER.readTree(yaml);
+    return YAML_MAPPER.writeValueAsString(gitLab.extendCircleCiConfig(root));
+  }
+
+  @Benchmark
+  public String splice() {
+    return CircleCiConfigSplicer.splice(yaml);
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(
+            new OptionsBuilder()
+                .include(ExtendCircleCiConfigBenchmark.class.getSimpleName())
+                .build())
+        .run();
+  }
+}
@@ -9,19 +9,25 @@ import com.circleci.connector.gitlab.singleorg.model.ImmutableWorkflow;
 import com.circleci.connector.gitlab.singleorg.model.Pipeline;
 import com.circleci.connector.gitlab.singleorg.model.Workflow;
 import com.circleci.connector.gitlab.singleorg.model.Workflow.State;
+import com.codahale.metrics.MetricRegistry;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
 import io.dropwizard.util.Resources;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.Optional;
 import java.util.UUID;
 import org.gitlab4j.api.CommitsApi;
 import org.gitlab4j.api.Constants.CommitBuildState;
 import org.gitlab4j.api.GitLabApi;
 import org.gitlab4j.api.GitLabApiException;
+import org.gitlab4j.api.RepositoryApi;
 import org.gitlab4j.api.RepositoryFileApi;
 import org.gitlab4j.api.models.CommitStatus;
 import org.gitlab4j.api.models.RepositoryFile;
@@ -29,6 +35,7 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.ArgumentMatchers;
 import org.mockito.Mockito;
+import org.mockito.stubbing.OngoingStubbing;
 
 class GitLabTest {
   private static final ObjectMapper YAML_MAPPER = new ObjectMapper(new YAMLFactory());
@@ -37,6 +44,7 @@ class GitLabTest {
 
   private GitLabApi mockGitLabApi = Mockito.mock(GitLabApi.class);
   private RepositoryFileApi mockRepositoryFileApi = Mockito.mock(RepositoryFileApi.class);
+  private RepositoryApi mockRepositoryApi = Mockito.mock(RepositoryApi.class);
   private CommitsApi mockCommitsApi = Mockito.mock(CommitsApi.class);
   private GitLab gitLab = new GitLab(mockGitLabApi);
 
@@ -61,6 +69,7 @@ class GitLabTest {
   @BeforeEach
   void setUp() {
     Mockito.when(mockGitLabApi.getRepositoryFileApi()).thenReturn(mockRepositoryFileApi);
+    Mockito.when(mockGitLabApi.getRepositoryApi()).thenReturn(mockRepositoryApi);
     Mockito.when(mockGitLabApi.getCommitsApi()).thenReturn(mockCommitsApi);
   }
 
@@ -107,14 +116,42 @@ class GitLabTest {
     assertEquals(expected, result);
   }
 
+  private void stubRawConfig(String... contents) throws GitLabApiException {
+    OngoingStubbing<InputStream> stubbing =
+        Mockito.when(
+            mockRepositoryFileApi.getRawFile(PROJECT_ID, REF, GitLab.CIRCLECI_CONFIG_PATH));
+    for (String content : contents) {
+      stubbing =
+          stubbing.thenAnswer(
+              invocation -> new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)));
+    }
+  }
+
+  private void verifyRawConfigFetched(int times) throws GitLabApiException {
+    Mockito.verify(mockRepositoryFileApi, Mockito.times(times))
+        .getRawFile(
+            ArgumentMatchers.eq(PROJECT_ID),
+            ArgumentMatchers.anyString(),
+            ArgumentMatchers.eq(GitLab.CIRCLECI_CONFIG_PATH));
+  }
+
+  private void stubBlob(String blobId, String... contents) throws GitLabApiException {
+    OngoingStubbing<InputStream> stubbing =
+        Mockito.when(mockRepositoryApi.getRawBlobContent(PROJECT_ID, blobId));
+    for (String content : contents) {
+      stubbing =
+          stubbing.thenAnswer(
+              invocation -> new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)));
+    }
+  }
+
+  private void verifyBlobFetched(String blobId, int times) throws GitLabApiException {
+    Mockito.verify(mockRepositoryApi, Mockito.times(times)).getRawBlobContent(PROJECT_ID, blobId);
+  }
+
   @Test
   void fetchCircleCiConfigSuccessfully() throws GitLabApiException, IOException {
-    RepositoryFile mockRepositoryFile = Mockito.mock(RepositoryFile.class);
-
-    Mockito.when(mockRepositoryFileApi.getFile(PROJECT_ID, GitLab.CIRCLECI_CONFIG_PATH, REF))
-        .thenReturn(mockRepositoryFile);
-    Mockito.when(mockRepositoryFile.getDecodedContentAsString())
-        .thenReturn(readCircleCIConfigAsString("valid-simple.input.yaml"));
+    stubRawConfig(readCircleCIConfigAsString("valid-simple.input.yaml"));
 
     Optional<String> result = gitLab.fetchCircleCiConfig(PROJECT_ID, REF);
     assertFalse(result.isEmpty());
@@ -122,7 +159,7 @@ class GitLabTest {
 
   @Test
   void fetchCircleCiConfigError() throws GitLabApiException {
-    Mockito.when(mockRepositoryFileApi.getFile(PROJECT_ID, GitLab.CIRCLECI_CONFIG_PATH, REF))
+    Mockito.when(mockRepositoryFileApi.getRawFile(PROJECT_ID, REF, GitLab.CIRCLECI_CONFIG_PATH))
         .thenThrow(new GitLabApiException("Expected exception"));
 
     Optional<String> result = gitLab.fetchCircleCiConfig(PROJECT_ID, REF);
@@ -131,12 +168,7 @@ class GitLabTest {
 
   @Test
   void fetchInvalidYamlError() throws GitLabApiException, IOException {
-    RepositoryFile mockRepositoryFile = Mockito.mock(RepositoryFile.class);
-
-    Mockito.when(mockRepositoryFileApi.getFile(PROJECT_ID, GitLab.CIRCLECI_CONFIG_PATH, REF))
-        .thenReturn(mockRepositoryFile);
-    Mockito.when(mockRepositoryFile.getDecodedContentAsString())
-        .thenReturn(readCircleCIConfigAsString("bad-yaml.input.yaml"));
+    stubRawConfig(readCircleCIConfigAsString("bad-yaml.input.yaml"));
 
     Optional<String> result = gitLab.fetchCircleCiConfig(PROJECT_ID, REF);
     assertTrue(result.isEmpty());
@@ -144,12 +176,7 @@ class GitLabTest {
 
   @Test
   void fetchNonObjectYamlError() throws GitLabApiException, IOException {
-    RepositoryFile mockRepositoryFile = Mockito.mock(RepositoryFile.class);
-
-    Mockito.when(mockRepositoryFileApi.getFile(PROJECT_ID, GitLab.CIRCLECI_CONFIG_PATH, REF))
-        .thenReturn(mockRepositoryFile);
-    Mockito.when(mockRepositoryFile.getDecodedContentAsString())
-        .thenReturn(readCircleCIConfigAsString("non-object.input.yaml"));
+    stubRawConfig(readCircleCIConfigAsString("non-object.input.yaml"));
 
     Optional<String> result = gitLab.fetchCircleCiConfig(PROJECT_ID, REF);
     assertTrue(result.isEmpty());
@@ -157,18 +184,191 @@ class GitLabTest {
 
   @Test
   void fetchEmptyYamlError() throws GitLabApiException {
-    RepositoryFile mockRepositoryFile = Mockito.mock(RepositoryFile.class);
-
-    Mockito.when(mockRepositoryFileApi.getFile(PROJECT_ID, GitLab.CIRCLECI_CONFIG_PATH, REF))
-        .thenReturn(mockRepositoryFile);
-    Mockito.when(mockRepositoryFile.getDecodedContentAsString()).thenReturn("");
+    stubRawConfig("", "  \n \n");
 
     Optional<String> result = gitLab.fetchCircleCiConfig(PROJECT_ID, REF);
     assertTrue(result.isEmpty());
 
-    Mockito.when(mockRepositoryFile.getDecodedContentAsString()).thenReturn("  \n \n");
-
     result = gitLab.fetchCircleCiConfig(PROJECT_ID, REF);
     assertTrue(result.isEmpty());
   }
+
+  @Test
+  void oversizedConfigsAreNotRead() throws GitLabApiException {
+    GitLab limitedGitLab = new GitLab(mockGitLabApi, null, null, 1024);
+    stubRawConfig("version: 2.1\n# " + "x".repeat(2048) + "\n");
+
+    assertTrue(limitedGitLab.fetchCircleCiConfig(PROJECT_ID, REF).isEmpty());
+  }
+
+  @Test
+  void oversizedConfigsAreNotDownloadedWhenGitLabReportsTheirSize() throws GitLabApiException {
+    GitLab limitedGitLab =
+        new GitLab(
+            mockGitLabApi,
+            new ConfigCache(1024 * 1024, new MetricRegistry()),
+            new MissingConfigCache(Duration.ofMinutes(1), 100, new MetricRegistry()),
+            1024);
+    RepositoryFile info = new RepositoryFile();
+    info.setBlobId("blob1");
+    info.setSize(4096);
+    Mockito.when(mockRepositoryFileApi.getFileInfo(PROJECT_ID, GitLab.CIRCLECI_CONFIG_PATH, "a"))
+        .thenReturn(info);
+
+    assertTrue(limitedGitLab.fetchCircleCiConfig(PROJECT_ID, REF, "a", null).isEmpty());
+    assertTrue(limitedGitLab.fetchCircleCiConfig(PROJECT_ID, REF, "a", null).isEmpty());
+    Mockito.verify(mockRepositoryFileApi, Mockito.times(1))
+        .getFileInfo(PROJECT_ID, GitLab.CIRCLECI_CONFIG_PATH, "a");
+    verifyRawConfigFetched(0);
+  }
+
+  private RepositoryFile fileInfo(String blobId) {
+    RepositoryFile file = new RepositoryFile();
+    file.setBlobId(blobId);
+    return file;
+  }
+
+  @Test
+  void cachedConfigsAreNotDownloadedAgain() throws GitLabApiException, IOException {
+    MetricRegistry metrics = new MetricRegistry();
+    GitLab cachingGitLab = new GitLab(mockGitLabApi, new ConfigCache(1024 * 1024, metrics), null);
+    Mockito.when(mockRepositoryFileApi.getFileInfo(PROJECT_ID, GitLab.CIRCLECI_CONFIG_PATH, REF))
+        .thenReturn(fileInfo("blob1"));
+    stubBlob("blob1", readCircleCIConfigAsString("valid-simple.input.yaml"));
+
+    Optional<String> first = cachingGitLab.fetchCircleCiConfig(PROJECT_ID, REF);
+    Optional<String> second = cachingGitLab.fetchCircleCiConfig(PROJECT_ID, REF);
+
+    assertTrue(first.isPresent());
+    assertEquals(first, second);
+    verifyBlobFetched("blob1", 1);
+    assertEquals(1, metrics.meter(MetricRegistry.name(ConfigCache.class, "hits")).getCount());
+    assertEquals(1, metrics.meter(MetricRegistry.name(ConfigCache.class, "misses")).getCount());
+  }
+
+  @Test
+  void changedConfigsAreDownloadedAgain() throws GitLabApiException, IOException {
+    GitLab cachingGitLab =
+        new GitLab(mockGitLabApi, new ConfigCache(1024 * 1024, new MetricRegistry()), null);
+    Mockito.when(mockRepositoryFileApi.getFileInfo(PROJECT_ID, GitLab.CIRCLECI_CONFIG_PATH, REF))
+        .thenReturn(fileInfo("blob1"), fileInfo("blob2"));
+    stubBlob("blob1", readCircleCIConfigAsString("valid-simple.input.yaml"));
+    stubBlob("blob2", readCircleCIConfigAsString("valid-commands.input.yaml"));
+
+    Optional<String> first = cachingGitLab.fetchCircleCiConfig(PROJECT_ID, REF);
+    Optional<String> second = cachingGitLab.fetchCircleCiConfig(PROJECT_ID, REF);
+
+    assertEquals(
+        readCircleCIConfigAsObjectNode("valid-commands.output.yaml"),
+        readYamlAsObject(second.orElseThrow()));
+    assertFalse(first.equals(second));
+    verifyBlobFetched("blob1", 1);
+    verifyBlobFetched("blob2", 1);
+  }
+
+  @Test
+  void configsAreReadFromTheBlobTheyAreCachedUnder() throws GitLabApiException, IOException {
+    GitLab cachingGitLab =
+        new GitLab(mockGitLabApi, new ConfigCache(1024 * 1024, new MetricRegistry()), null);
+    Mockito.when(mockRepositoryFileApi.getFileInfo(PROJECT_ID, GitLab.CIRCLECI_CONFIG_PATH, REF))
+        .thenReturn(fileInfo("blob1"));
+    stubBlob("blob1", readCircleCIConfigAsString("valid-simple.input.yaml"));
+    // The branch has moved on to another config since we asked for the blob id
+    stubRawConfig(readCircleCIConfigAsString("valid-commands.input.yaml"));
+
+    Optional<String> config = cachingGitLab.fetchCircleCiConfig(PROJECT_ID, REF);
+
+    assertEquals(
+        readCircleCIConfigAsObjectNode("valid-simple.output.yaml"),
+        readYamlAsObject(config.orElseThrow()));
+    verifyRawConfigFetched(0);
+  }
+
+  @Test
+  void invalidConfigsAreNotCached() throws GitLabApiException, IOException {
+    GitLab cachingGitLab =
+        new GitLab(mockGitLabApi, new ConfigCache(1024 * 1024, new MetricRegistry()), null);
+    Mockito.when(mockRepositoryFileApi.getFileInfo(PROJECT_ID, GitLab.CIRCLECI_CONFIG_PATH, REF))
+        .thenReturn(fileInfo("blob1"));
+    String badYaml = readCircleCIConfigAsString("bad-yaml.input.yaml");
+    stubBlob("blob1", badYaml, badYaml);
+
+    assertTrue(cachingGitLab.fetchCircleCiConfig(PROJECT_ID, REF).isEmpty());
+    assertTrue(cachingGitLab.fetchCircleCiConfig(PROJECT_ID, REF).isEmpty());
+    verifyBlobFetched("blob1", 2);
+  }
+
+  @Test
+  void missingConfigsAreRemembered() throws GitLabApiException {
+    MetricRegistry metrics = new MetricRegistry();
+    GitLab cachingGitLab =
+        new GitLab(
+            mockGitLabApi, null, new MissingConfigCache(Duration.ofMinutes(1), 100, metrics));
+    Mockito.when(mockRepositoryFileApi.getRawFile(PROJECT_ID, "a", GitLab.CIRCLECI_CONFIG_PATH))
+        .thenThrow(new GitLabApiException("Not found", 404));
+
+    assertTrue(cachingGitLab.fetchCircleCiConfig(PROJECT_ID, REF, "a", null).isEmpty());
+    // A redelivery of the same push
+    assertTrue(cachingGitLab.fetchCircleCiConfig(PROJECT_ID, REF, "a", null).isEmpty());
+    // A later push which didn't touch the config, and then one after that
+    assertTrue(cachingGitLab.fetchCircleCiConfig(PROJECT_ID, REF, "b", "a").isEmpty());
+    assertTrue(cachingGitLab.fetchCircleCiConfig(PROJECT_ID, REF, "c", "b").isEmpty());
+
+    verifyRawConfigFetched(1);
+    assertEquals(
+        3, metrics.meter(MetricRegistry.name(MissingConfigCache.class, "hits")).getCount());
+  }
+
+  @Test
+  void pushesWhichMayChangeTheConfigAreFetched() throws GitLabApiException, IOException {
+    GitLab cachingGitLab =
+        new GitLab(
+            mockGitLabApi,
+            null,
+            new MissingConfigCache(Duration.ofMinutes(1), 100, new MetricRegistry()));
+    String config = readCircleCIConfigAsString("valid-simple.input.yaml");
+    Mockito.when(mockRepositoryFileApi.getRawFile(PROJECT_ID, "a", GitLab.CIRCLECI_CONFIG_PATH))
+        .thenThrow(new GitLabApiException("Not found", 404));
+    Mockito.when(mockRepositoryFileApi.getRawFile(PROJECT_ID, "b", GitLab.CIRCLECI_CONFIG_PATH))
+        .thenAnswer(
+            invocation -> new ByteArrayInputStream(config.getBytes(StandardCharsets.UTF_8)));
+
+    assertTrue(cachingGitLab.fetchCircleCiConfig(PROJECT_ID, REF, "a", null).isEmpty());
+    assertTrue(cachingGitLab.fetchCircleCiConfig(PROJECT_ID, REF, "b", null).isPresent());
+  }
+
+  @Test
+  void otherErrorsAreNotRemembered() throws GitLabApiException {
+    GitLab cachingGitLab =
+        new GitLab(
+            mockGitLabApi,
+            null,
+            new MissingConfigCache(Duration.ofMinutes(1), 100, new MetricRegistry()));
+    Mockito.when(mockRepositoryFileApi.getRawFile(PROJECT_ID, "a", GitLab.CIRCLECI_CONFIG_PATH))
+        .thenThrow(new GitLabApiException("Bad gateway", 502));
+
+    cachingGitLab.fetchCircleCiConfig(PROJECT_ID, REF, "a", null);
+    cachingGitLab.fetchCircleCiConfig(PROJECT_ID, REF, "a", null);
+    verifyRawConfigFetched(2);
+  }
+
+  @Test
+  void configsAreReadAtTheCommitTheyAreRememberedFor() throws GitLabApiException, IOException {
+    GitLab cachingGitLab =
+        new GitLab(
+            mockGitLabApi,
+            null,
+            new MissingConfigCache(Duration.ofMinutes(1), 100, new MetricRegistry()));
+    String config = readCircleCIConfigAsString("valid-simple.input.yaml");
+    // The branch has moved on to a commit which added a config since "a" was pushed
+    Mockito.when(mockRepositoryFileApi.getRawFile(PROJECT_ID, REF, GitLab.CIRCLECI_CONFIG_PATH))
+        .thenAnswer(
+            invocation -> new ByteArrayInputStream(config.getBytes(StandardCharsets.UTF_8)));
+    Mockito.when(mockRepositoryFileApi.getRawFile(PROJECT_ID, "a", GitLab.CIRCLECI_CONFIG_PATH))
+        .thenThrow(new GitLabApiException("Not found", 404));
+
+    assertTrue(cachingGitLab.fetchCircleCiConfig(PROJECT_ID, REF, "a", null).isEmpty());
+    assertTrue(cachingGitLab.fetchCircleCiConfig(PROJECT_ID, REF, "b", "a").isEmpty());
+    assertTrue(cachingGitLab.fetchCircleCiConfig(PROJECT_ID, REF).isPresent());
+  }
 }
@@ -1,8 +1,18 @@
 package com.circleci.connector.gitlab.singleorg.client;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import com.circleci.client.v2.ApiException;
@@ -11,15 +21,24 @@ import com.circleci.connector.gitlab.singleorg.model.ImmutableWorkflow;
 import com.circleci.connector.gitlab.singleorg.model.Pipeline;
 import com.circleci.connector.gitlab.singleorg.model.Workflow;
 import com.circleci.connector.gitlab.singleorg.model.Workflow.State;
+import com.circleci.connector.gitlab.singleorg.scheduler.JobScheduler;
+import com.circleci.connector.gitlab.singleorg.scheduler.TimingWheel;
+import com.circleci.connector.gitlab.singleorg.state.ImmutablePollerState;
+import com.circleci.connector.gitlab.singleorg.state.InMemoryPollerStateStore;
+import com.circleci.connector.gitlab.singleorg.state.PollerState;
+import com.codahale.metrics.MetricRegistry;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.CompletableFuture;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 
 class PipelinePollerTest {
   private static final CircleCi CIRCLECI = mock(CircleCi.class);
   private static final GitLab GITLAB = mock(GitLab.class);
-  private static final ScheduledExecutorService JOB_RUNNER = mock(ScheduledExecutorService.class);
+  private static final JobScheduler JOB_RUNNER = mock(JobScheduler.class);
   private static final Workflow WORKFLOW =
       ImmutableWorkflow.of(UUID.randomUUID(), "workflow", State.RUNNING);
 
@@ -30,9 +49,22 @@ class PipelinePollerTest {
 
     Pipeline pipeline = ImmutablePipeline.of(pipelineId, projectId, "", "master");
 
-    when(CIRCLECI.refreshPipeline(pipeline)).thenThrow(new RuntimeException());
+    when(CIRCLECI.refreshPipelineAsync(pipeline))
+        .thenReturn(CompletableFuture.failedFuture(new RuntimeException()));
     PipelinePoller poller = new PipelinePoller(pipeline, CIRCLECI, GITLAB, JOB_RUNNER);
-    assertTrue(poller.poll() > 0);
+    assertTrue(poller.poll().join() > 0);
+  }
+
+  @Test
+  void pollWaitsAsLongAsItIsToldWhenThePollIsDeferred() {
+    Pipeline pipeline = ImmutablePipeline.of(UUID.randomUUID(), 123456, "", "master");
+
+    when(CIRCLECI.refreshPipelineAsync(pipeline))
+        .thenReturn(CompletableFuture.failedFuture(new CircleCiLimiter.DeferredException(4321)));
+    PipelinePoller poller = new PipelinePoller(pipeline, CIRCLECI, GITLAB, JOB_RUNNER);
+    for (int i = 0; i < 20; i++) {
+      assertEquals(4321, poller.poll().join());
+    }
   }
 
   @Test
@@ -42,9 +74,10 @@ class PipelinePollerTest {
 
     Pipeline pipeline = ImmutablePipeline.of(pipelineId, 123456, sha1, "master");
 
-    when(CIRCLECI.refreshPipeline(pipeline)).thenReturn(pipeline);
+    when(CIRCLECI.refreshPipelineAsync(pipeline))
+        .thenReturn(CompletableFuture.completedFuture(pipeline));
     PipelinePoller poller = new PipelinePoller(pipeline, CIRCLECI, GITLAB, JOB_RUNNER);
-    assertTrue(poller.poll() > 0);
+    assertTrue(poller.poll().join() > 0);
   }
 
   @Test
@@ -55,12 +88,119 @@ class PipelinePollerTest {
     Pipeline pipeline =
         ImmutablePipeline.of(pipelineId, 123456, sha1, "master").withWorkflows(Set.of(WORKFLOW));
 
-    when(CIRCLECI.refreshPipeline(pipeline)).thenReturn(pipeline);
+    when(CIRCLECI.refreshPipelineAsync(pipeline))
+        .thenReturn(CompletableFuture.completedFuture(pipeline));
     PipelinePoller poller = new PipelinePoller(pipeline, CIRCLECI, GITLAB, JOB_RUNNER);
-    assertTrue(poller.poll() > 0);
+    assertTrue(poller.poll().join() > 0);
     assertTrue(poller.getWorkflowPollers().containsKey(WORKFLOW.id()));
   }
 
+  @Test
+  void cancellingStopsTheWorkflowPollersAndAnyPollInFlight() {
+    JobScheduler jobScheduler = mock(JobScheduler.class);
+    ImmutablePipeline pipeline =
+        ImmutablePipeline.of(UUID.randomUUID(), 123456, "abc123", "master")
+            .withWorkflows(Set.of(WORKFLOW));
+    when(CIRCLECI.refreshPipelineAsync(pipeline))
+        .thenReturn(CompletableFuture.completedFuture(pipeline));
+    PipelinePoller poller = new PipelinePoller(pipeline, CIRCLECI, GITLAB, jobScheduler);
+    poller.poll().join();
+    WorkflowPoller workflowPoller = poller.getWorkflowPollers().get(WORKFLOW.id());
+    assertFalse(poller.isFinished());
+
+    poller.cancel();
+    assertTrue(workflowPoller.isStopped());
+    assertTrue(poller.isFinished());
+    verify(jobScheduler).schedule(any(), eq(0L));
+
+    // A poll which completes afterwards neither reschedules nor starts more workflow pollers
+    Workflow another = ImmutableWorkflow.of(UUID.randomUUID(), "another", State.RUNNING);
+    when(CIRCLECI.refreshPipelineAsync(pipeline))
+        .thenReturn(
+            CompletableFuture.completedFuture(pipeline.withWorkflows(Set.of(WORKFLOW, another))));
+    assertEquals(-1, poller.poll().join());
+    assertEquals(1, poller.getWorkflowPollers().size());
+  }
+
+  @Test
+  void cancellingCancelsOnlyTheWorkflowsWhichAreStillRunning() {
+    CircleCi circleCi = mock(CircleCi.class);
+    GitLab gitLab = mock(GitLab.class);
+    Workflow running = ImmutableWorkflow.of(UUID.randomUUID(), "build", State.RUNNING);
+    Workflow stuck = ImmutableWorkflow.of(UUID.randomUUID(), "deploy", State.RUNNING);
+    Workflow done = ImmutableWorkflow.of(UUID.randomUUID(), "lint", State.SUCCESS);
+    ImmutablePipeline pipeline =
+        ImmutablePipeline.of(UUID.randomUUID(), 123456, "abc123", "master");
+    when(circleCi.refreshPipelineAsync(pipeline))
+        .thenReturn(
+            CompletableFuture.completedFuture(
+                pipeline.withWorkflows(Set.of(running, stuck, done))));
+    doThrow(new RuntimeException()).when(circleCi).cancelWorkflow(stuck);
+
+    new PipelinePoller(pipeline, circleCi, gitLab, JOB_RUNNER).cancelWorkflows();
+
+    verify(circleCi).cancelWorkflow(running);
+    verify(circleCi, never()).cancelWorkflow(done);
+    // GitLab hears about the workflow we managed to cancel, and the one which had finished
+    verify(gitLab)
+        .updateCommitStatus(pipeline, ImmutableWorkflow.copyOf(running).withState(State.CANCELED));
+    verify(gitLab).updateCommitStatus(pipeline, done);
+    verify(gitLab, times(2)).updateCommitStatus(any(), any());
+  }
+
+  @Test
+  void workflowsWhichFinishedSinceTheLastPollHaveTheirStateReportedOnCancel() {
+    GitLab gitLab = reportingGitLab();
+    JobScheduler jobScheduler = mock(JobScheduler.class);
+    Workflow finishing = ImmutableWorkflow.of(UUID.randomUUID(), "build", State.RUNNING);
+    Workflow failed = ImmutableWorkflow.of(UUID.randomUUID(), "lint", State.FAILED);
+    Workflow finished = ImmutableWorkflow.copyOf(finishing).withState(State.SUCCESS);
+    ImmutablePipeline pipeline =
+        ImmutablePipeline.of(UUID.randomUUID(), 123456, "abc123", "master");
+    when(CIRCLECI.refreshPipelineAsync(pipeline))
+        .thenReturn(
+            CompletableFuture.completedFuture(pipeline.withWorkflows(Set.of(finishing, failed))))
+        .thenReturn(
+            CompletableFuture.completedFuture(pipeline.withWorkflows(Set.of(finished, failed))));
+    PipelinePoller poller = new PipelinePoller(pipeline, consolidated(gitLab, jobScheduler));
+    poller.poll().join();
+
+    // The workflow succeeds after that poll, just before a newer push cancels the pipeline
+    poller.cancel();
+    poller.cancelWorkflows();
+
+    verify(CIRCLECI, never()).cancelWorkflow(any());
+    verify(gitLab).updateCommitStatus(pipeline, finished);
+    verify(gitLab, times(1)).updateCommitStatus(pipeline, failed);
+  }
+
+  @Test
+  void nothingIsCancelledIfTheWorkflowsCannotBeFetched() {
+    CircleCi circleCi = mock(CircleCi.class);
+    Pipeline pipeline = ImmutablePipeline.of(UUID.randomUUID(), 123456, "abc123", "master");
+    when(circleCi.refreshPipelineAsync(pipeline))
+        .thenReturn(CompletableFuture.failedFuture(new RuntimeException()));
+
+    new PipelinePoller(pipeline, circleCi, GITLAB, JOB_RUNNER).cancelWorkflows();
+
+    verify(circleCi, never()).cancelWorkflow(any());
+  }
+
+  @Test
+  void cancellingWaitsForTheLimiterIfItHoldsTheRefreshBack() {
+    CircleCi circleCi = mock(CircleCi.class);
+    JobScheduler jobScheduler = mock(JobScheduler.class);
+    Pipeline pipeline = ImmutablePipeline.of(UUID.randomUUID(), 123456, "abc123", "master");
+    when(circleCi.refreshPipelineAsync(pipeline))
+        .thenReturn(CompletableFuture.failedFuture(new CircleCiLimiter.DeferredException(4321)));
+
+    new PipelinePoller(pipeline, circleCi, GITLAB, jobScheduler).cancelWorkflows();
+
+    verify(circleCi, never()).refreshPipeline(any());
+    verify(circleCi, never()).cancelWorkflow(any());
+    verify(jobScheduler).schedule(any(), eq(4321L));
+  }
+
   @Test
   void retryPolicyStopsAfterConsecutiveUnchangedWorkflows() {
     Set<Workflow> workflows = Set.of(WORKFLOW);
@@ -104,4 +244,385 @@ class PipelinePollerTest {
     assertEquals(10000, policy.delayFor(workflows));
     assertEquals(-1, policy.delayFor(workflows));
   }
+
+  @Test
+  void consolidatedPollReportsOnlyTheWorkflowsWhichChanged() {
+    GitLab gitLab = mock(GitLab.class);
+    when(gitLab.updateCommitStatus(any(), any()))
+        .thenAnswer(i -> i.<Workflow>getArgument(1).state());
+    Workflow other = ImmutableWorkflow.of(UUID.randomUUID(), "other", State.RUNNING);
+    ImmutablePipeline pipeline =
+        ImmutablePipeline.of(UUID.randomUUID(), 123456, "abc123", "master")
+            .withWorkflows(Set.of(WORKFLOW, other));
+    Workflow finished = ImmutableWorkflow.copyOf(other).withState(State.SUCCESS);
+
+    when(CIRCLECI.refreshPipelineAsync(pipeline))
+        .thenReturn(CompletableFuture.completedFuture(pipeline))
+        .thenReturn(CompletableFuture.completedFuture(pipeline))
+        .thenReturn(
+            CompletableFuture.completedFuture(pipeline.withWorkflows(Set.of(WORKFLOW, finished))));
+    PipelinePoller poller = new PipelinePoller(pipeline, consolidated(gitLab, JOB_RUNNER));
+
+    assertEquals(1000, poller.poll().join());
+    assertEquals(2000, poller.poll().join());
+    assertEquals(1000, poller.poll().join());
+    verify(gitLab, times(1)).updateCommitStatus(pipeline, WORKFLOW);
+    verify(gitLab, times(1)).updateCommitStatus(pipeline, other);
+    verify(gitLab, times(1)).updateCommitStatus(pipeline, finished);
+    assertTrue(poller.getWorkflowPollers().isEmpty());
+  }
+
+  @Test
+  void consolidatedPollStopsOnceEveryWorkflowHasFinished() {
+    GitLab gitLab = mock(GitLab.class);
+    when(gitLab.updateCommitStatus(any(), any()))
+        .thenAnswer(i -> i.<Workflow>getArgument(1).state());
+    Workflow finished = ImmutableWorkflow.copyOf(WORKFLOW).withState(State.FAILED);
+    ImmutablePipeline pipeline =
+        ImmutablePipeline.of(UUID.randomUUID(), 123456, "abc123", "master");
+
+    when(CIRCLECI.refreshPipelineAsync(pipeline))
+        .thenReturn(CompletableFuture.completedFuture(pipeline.withWorkflows(Set.of(WORKFLOW))))
+        .thenReturn(CompletableFuture.completedFuture(pipeline.withWorkflows(Set.of(finished))));
+    PipelinePoller poller = new PipelinePoller(pipeline, consolidated(gitLab, JOB_RUNNER));
+
+    assertEquals(1000, poller.poll().join());
+    assertEquals(-1, poller.poll().join());
+  }
+
+  @Test
+  void consolidatedPollKeepsPollingUntilGitLabHasBeenTold() {
+    GitLab gitLab = mock(GitLab.class);
+    Workflow finished = ImmutableWorkflow.copyOf(WORKFLOW).withState(State.SUCCESS);
+    when(gitLab.updateCommitStatus(any(), any())).thenReturn(null).thenReturn(State.SUCCESS);
+    Pipeline pipeline =
+        ImmutablePipeline.of(UUID.randomUUID(), 123456, "abc123", "master")
+            .withWorkflows(Set.of(finished));
+
+    when(CIRCLECI.refreshPipelineAsync(pipeline))
+        .thenReturn(CompletableFuture.completedFuture(pipeline));
+    PipelinePoller poller = new PipelinePoller(pipeline, consolidated(gitLab, JOB_RUNNER));
+
+    assertEquals(1000, poller.poll().join());
+    assertEquals(-1, poller.poll().join());
+    verify(gitLab, times(2)).updateCommitStatus(pipeline, finished);
+  }
+
+  @Test
+  void consolidatedPollKeepsPollingForAWorkflowMissingFromARefresh() {
+    GitLab gitLab = mock(GitLab.class);
+    when(gitLab.updateCommitStatus(any(), any()))
+        .thenAnswer(i -> i.<Workflow>getArgument(1).state());
+    Workflow other = ImmutableWorkflow.of(UUID.randomUUID(), "other", State.SUCCESS);
+    ImmutablePipeline pipeline =
+        ImmutablePipeline.of(UUID.randomUUID(), 123456, "abc123", "master");
+
+    when(CIRCLECI.refreshPipelineAsync(pipeline))
+        .thenReturn(
+            CompletableFuture.completedFuture(pipeline.withWorkflows(Set.of(WORKFLOW, other))))
+        .thenReturn(CompletableFuture.completedFuture(pipeline.withWorkflows(Set.of(other))));
+    PipelinePoller poller = new PipelinePoller(pipeline, consolidated(gitLab, JOB_RUNNER));
+
+    assertEquals(1000, poller.poll().join());
+    assertTrue(poller.poll().join() > 0);
+  }
+
+  @Test
+  void retryPolicyBacksOffUntilTheWorkflowsFinish() {
+    var policy = new PipelinePoller.RetryPolicy();
+    assertEquals(1000, policy.delayUntilFinished(true, false));
+    assertEquals(2000, policy.delayUntilFinished(false, false));
+    assertEquals(4000, policy.delayUntilFinished(false, false));
+    assertEquals(8000, policy.delayUntilFinished(false, false));
+    assertEquals(10000, policy.delayUntilFinished(false, false));
+    assertEquals(10000, policy.delayUntilFinished(false, false));
+    assertEquals(1000, policy.delayUntilFinished(true, false));
+    assertEquals(-1, policy.delayUntilFinished(true, true));
+  }
+
+  @Test
+  void consolidatedPollerRecordsItsStateUntilItStops() {
+    GitLab gitLab = reportingGitLab();
+    JobScheduler jobScheduler = mock(JobScheduler.class);
+    InMemoryPollerStateStore store = new InMemoryPollerStateStore();
+    PipelinePollers pollers = new PipelinePollers(CIRCLECI, gitLab, jobScheduler, true, store, 0);
+    Workflow finished = ImmutableWorkflow.copyOf(WORKFLOW).withState(State.SUCCESS);
+    ImmutablePipeline pipeline =
+        ImmutablePipeline.of(UUID.randomUUID(), 123456, "abc123", "master");
+
+    when(CIRCLECI.refreshPipelineAsync(pipeline))
+        .thenReturn(CompletableFuture.completedFuture(pipeline.withWorkflows(Set.of(WORKFLOW))))
+        .thenReturn(CompletableFuture.completedFuture(pipeline.withWorkflows(Set.of(finished))));
+    long before = System.currentTimeMillis();
+    pollers.start(pipeline);
+    PollerState started = store.loadAll().get(0);
+    assertEquals(pipeline, started.pipeline());
+    assertTrue(started.reportedStates().isEmpty());
+    assertTrue(started.nextPollMillis() >= before + 1000);
+
+    ArgumentCaptor<Runnable> job = ArgumentCaptor.forClass(Runnable.class);
+    verify(jobScheduler).schedule(job.capture(), any(Long.class));
+    job.getValue().run();
+    assertEquals(Map.of(WORKFLOW.id(), State.RUNNING), store.loadAll().get(0).reportedStates());
+    assertNotNull(pollers.get(pipeline.id()));
+
+    verify(jobScheduler, times(2)).schedule(job.capture(), any(Long.class));
+    job.getValue().run();
+    assertTrue(store.loadAll().isEmpty());
+    assertNull(pollers.get(pipeline.id()));
+  }
+
+  @Test
+  void perWorkflowPollingRecordsNothing() {
+    InMemoryPollerStateStore store = new InMemoryPollerStateStore();
+    Pipeline pipeline = ImmutablePipeline.of(UUID.randomUUID(), 123456, "abc123", "master");
+
+    new PipelinePollers(CIRCLECI, GITLAB, mock(JobScheduler.class), false, store, 0)
+        .start(pipeline);
+    assertTrue(store.loadAll().isEmpty());
+  }
+
+  @Test
+  void aResumedPollerOnlyReportsWorkflowsWhichChangedWhileWeWereDown() {
+    GitLab gitLab = reportingGitLab();
+    Workflow other = ImmutableWorkflow.of(UUID.randomUUID(), "other", State.SUCCESS);
+    PollerState state =
+        ImmutablePollerState.builder()
+            .pipelineId(UUID.randomUUID())
+            .projectId(123456)
+            .revision("abc123")
+            .branch("master")
+            .putReportedStates(WORKFLOW.id(), State.RUNNING)
+            .putReportedStates(other.id(), State.RUNNING)
+            .nextPollMillis(0)
+            .build();
+    ImmutablePipeline pipeline = ImmutablePipeline.copyOf(state.pipeline());
+
+    when(CIRCLECI.refreshPipelineAsync(pipeline))
+        .thenReturn(
+            CompletableFuture.completedFuture(pipeline.withWorkflows(Set.of(WORKFLOW, other))));
+    PipelinePollers pollers = consolidated(gitLab, mock(JobScheduler.class));
+    pollers.resume(List.of(state), 0);
+    PipelinePoller poller = pollers.get(state.pipelineId());
+
+    assertEquals(1000, poller.poll().join());
+    verify(gitLab).updateCommitStatus(pipeline, other);
+    verify(gitLab, never()).updateCommitStatus(pipeline, WORKFLOW);
+  }
+
+  @Test
+  void reportedWorkflowsAreOnlyPassedOnToGitLabIfTheyChanged() {
+    GitLab gitLab = reportingGitLab();
+    Pipeline pipeline = ImmutablePipeline.of(UUID.randomUUID(), 123456, "abc123", "master");
+    PipelinePoller poller = new PipelinePoller(pipeline, consolidated(gitLab, JOB_RUNNER));
+
+    assertTrue(poller.report(WORKFLOW));
+    assertFalse(poller.report(WORKFLOW));
+    verify(gitLab, times(1)).updateCommitStatus(pipeline, WORKFLOW);
+  }
+
+  @Test
+  void reportingTheLastWorkflowToFinishStopsThePoller() {
+    GitLab gitLab = reportingGitLab();
+    JobScheduler jobScheduler = mock(JobScheduler.class);
+    TimingWheel.Timeout nextPoll = mock(TimingWheel.Timeout.class);
+    when(jobScheduler.schedule(any(), any(Long.class))).thenReturn(nextPoll);
+    InMemoryPollerStateStore store = new InMemoryPollerStateStore();
+    PipelinePollers pollers = new PipelinePollers(CIRCLECI, gitLab, jobScheduler, true, store, 0);
+    Pipeline pipeline = ImmutablePipeline.of(UUID.randomUUID(), 123456, "abc123", "master");
+    Workflow other = ImmutableWorkflow.of(UUID.randomUUID(), "other", State.RUNNING);
+
+    PipelinePoller poller = pollers.start(pipeline);
+    assertTrue(poller.report(WORKFLOW));
+    assertTrue(poller.report(ImmutableWorkflow.copyOf(other).withState(State.FAILED)));
+    assertNotNull(pollers.get(pipeline.id()));
+    assertEquals(1, store.loadAll().size());
+
+    assertTrue(poller.report(ImmutableWorkflow.copyOf(WORKFLOW).withState(State.SUCCESS)));
+    verify(nextPoll).cancel();
+    assertNull(pollers.get(pipeline.id()));
+    assertTrue(store.loadAll().isEmpty());
+    assertFalse(poller.report(WORKFLOW));
+  }
+
+  @Test
+  void aStaleRefreshDoesNotUndoAReportedFinish() {
+    GitLab gitLab = reportingGitLab();
+    Workflow other = ImmutableWorkflow.of(UUID.randomUUID(), "other", State.RUNNING);
+    ImmutablePipeline pipeline =
+        ImmutablePipeline.of(UUID.randomUUID(), 123456, "abc123", "master");
+    Workflow finished = ImmutableWorkflow.copyOf(WORKFLOW).withState(State.SUCCESS);
+
+    when(CIRCLECI.refreshPipelineAsync(pipeline))
+        .thenReturn(
+            CompletableFuture.completedFuture(pipeline.withWorkflows(Set.of(WORKFLOW, other))));
+    PipelinePoller poller = new PipelinePoller(pipeline, consolidated(gitLab, JOB_RUNNER));
+    poller.report(finished);
+
+    poller.poll().join();
+    verify(gitLab, never()).updateCommitStatus(pipeline, WORKFLOW);
+    verify(gitLab).updateCommitStatus(pipeline, other);
+  }
+
+  @Test
+  void perWorkflowPollersIgnoreReports() {
+    Pipeline pipeline = ImmutablePipeline.of(UUID.randomUUID(), 123456, "abc123", "master");
+    PipelinePoller poller = new PipelinePoller(pipeline, CIRCLECI, GITLAB, JOB_RUNNER);
+
+    assertFalse(poller.report(WORKFLOW));
+  }
+
+  @Test
+  void pollsAreNoMoreFrequentThanTheMinimumWhileWebhooksArrive() {
+    GitLab gitLab = reportingGitLab();
+    JobScheduler jobScheduler = mock(JobScheduler.class);
+    ImmutablePipeline pipeline =
+        ImmutablePipeline.of(UUID.randomUUID(), 123456, "abc123", "master");
+    when(CIRCLECI.refreshPipelineAsync(pipeline))
+        .thenReturn(CompletableFuture.completedFuture(pipeline.withWorkflows(Set.of(WORKFLOW))));
+
+    new PipelinePollers(CIRCLECI, gitLab, jobScheduler, true, null, 60000).start(pipeline);
+    ArgumentCaptor<Runnable> job = ArgumentCaptor.forClass(Runnable.class);
+    verify(jobScheduler).schedule(job.capture(), eq(1000L));
+    job.getValue().run();
+    verify(jobScheduler).schedule(any(), eq(60000L));
+  }
+
+  @Test
+  void consolidatedPollsArePredictedFromHowLongTheWorkflowsUsuallyTake() {
+    GitLab gitLab = reportingGitLab();
+    WorkflowDurations durations = new WorkflowDurations(100, 1, 30000, new MetricRegistry());
+    durations.record(123456, WORKFLOW.name(), 600000);
+    durations.record(123456, WORKFLOW.name(), 600000);
+    Workflow other = ImmutableWorkflow.of(UUID.randomUUID(), "other", State.RUNNING);
+    ImmutablePipeline pipeline =
+        ImmutablePipeline.of(UUID.randomUUID(), 123456, "abc123", "master");
+
+    when(CIRCLECI.refreshPipelineAsync(pipeline))
+        .thenReturn(CompletableFuture.completedFuture(pipeline.withWorkflows(Set.of(WORKFLOW))))
+        .thenReturn(
+            CompletableFuture.completedFuture(pipeline.withWorkflows(Set.of(WORKFLOW, other))))
+        .thenReturn(
+            CompletableFuture.completedFuture(
+                pipeline.withWorkflows(
+                    Set.of(WORKFLOW, ImmutableWorkflow.copyOf(other).withState(State.SUCCESS)))));
+    PipelinePoller poller =
+        new PipelinePoller(
+            pipeline,
+            new PipelinePollers(CIRCLECI, gitLab, JOB_RUNNER, true, null, 0, durations, null));
+
+    assertEquals(30000, poller.poll().join());
+    // We know nothing about how long the other workflow takes, so it is polled as usual
+    assertEquals(1000, poller.poll().join());
+    // Until it succeeds, which is remembered for next time
+    assertEquals(30000, poller.poll().join());
+    assertTrue(durations.delayMillis(123456, "other", 0) > 0);
+  }
+
+  @Test
+  void pollsOverTheBudgetAreDeferredRatherThanDropped() {
+    GitLab gitLab = reportingGitLab();
+    JobScheduler jobScheduler = mock(JobScheduler.class);
+    // One poll every 1000s, so the second poll has to wait for the next slot
+    PollBudget budget = new PollBudget(0.001, 1, 0, new MetricRegistry());
+    PipelinePollers pollers =
+        new PipelinePollers(CIRCLECI, gitLab, jobScheduler, true, null, 0, null, budget);
+    ImmutablePipeline first = ImmutablePipeline.of(UUID.randomUUID(), 123456, "abc123", "master");
+    ImmutablePipeline second = ImmutablePipeline.of(UUID.randomUUID(), 123456, "def456", "master");
+    when(CIRCLECI.refreshPipelineAsync(any()))
+        .thenAnswer(
+            i ->
+                CompletableFuture.completedFuture(
+                    i.<ImmutablePipeline>getArgument(0).withWorkflows(Set.of(WORKFLOW))));
+
+    pollers.start(first);
+    pollers.start(second);
+    ArgumentCaptor<Runnable> jobs = ArgumentCaptor.forClass(Runnable.class);
+    verify(jobScheduler, times(2)).schedule(jobs.capture(), eq(1000L));
+    jobs.getAllValues().get(0).run();
+    jobs.getAllValues().get(1).run();
+    verify(CIRCLECI).refreshPipelineAsync(first);
+    verify(CIRCLECI, never()).refreshPipelineAsync(second);
+
+    ArgumentCaptor<Long> delay = ArgumentCaptor.forClass(Long.class);
+    verify(jobScheduler, times(4)).schedule(jobs.capture(), delay.capture());
+    // The deferred poll waits for its slot, and doesn't have to ask for another when it runs
+    long deferral = delay.getAllValues().get(3);
+    assertTrue(deferral > 990000 && deferral <= 1000000, "Deferred for " + deferral + "ms");
+    jobs.getAllValues().get(5).run();
+    verify(CIRCLECI).refreshPipelineAsync(second);
+  }
+
+  @Test
+  void reschedulesAreJittered() {
+    JobScheduler jobScheduler = mock(JobScheduler.class);
+    PollBudget budget = new PollBudget(0, 1, 0.5, new MetricRegistry());
+    PipelinePollers pollers =
+        new PipelinePollers(CIRCLECI, GITLAB, jobScheduler, true, null, 0, null, budget);
+    for (int i = 0; i < 20; i++) {
+      pollers.start(ImmutablePipeline.of(UUID.randomUUID(), 123456, "abc123", "master"));
+    }
+
+    ArgumentCaptor<Long> delays = ArgumentCaptor.forClass(Long.class);
+    verify(jobScheduler, times(20)).schedule(any(), delays.capture());
+    assertTrue(delays.getAllValues().stream().allMatch(d -> d >= 500 && d <= 1500));
+    assertTrue(delays.getAllValues().stream().distinct().count() > 1);
+  }
+
+  @Test
+  void pollsTheLimiterDefersAreNeverJitteredEarlier() {
+    JobScheduler jobScheduler = mock(JobScheduler.class);
+    PollBudget budget = new PollBudget(0, 1, 0.5, new MetricRegistry());
+    PipelinePollers pollers =
+        new PipelinePollers(CIRCLECI, GITLAB, jobScheduler, true, null, 0, null, budget);
+    when(CIRCLECI.refreshPipelineAsync(any()))
+        .thenReturn(CompletableFuture.failedFuture(new CircleCiLimiter.DeferredException(4000)));
+    for (int i = 0; i < 20; i++) {
+      pollers.start(ImmutablePipeline.of(UUID.randomUUID(), 123456, "abc123", "master"));
+    }
+    ArgumentCaptor<Runnable> jobs = ArgumentCaptor.forClass(Runnable.class);
+    verify(jobScheduler, times(20)).schedule(jobs.capture(), anyLong());
+    jobs.getAllValues().forEach(Runnable::run);
+
+    ArgumentCaptor<Long> delays = ArgumentCaptor.forClass(Long.class);
+    verify(jobScheduler, times(40)).schedule(any(), delays.capture());
+    List<Long> deferrals = delays.getAllValues().subList(20, 40);
+    assertTrue(deferrals.stream().allMatch(d -> d >= 4000 && d <= 6000), "" + deferrals);
+    assertTrue(deferrals.stream().distinct().count() > 1);
+  }
+
+  @Test
+  void pollsRaisedToTheMinimumIntervalAreNeverJitteredEarlier() {
+    JobScheduler jobScheduler = mock(JobScheduler.class);
+    PollBudget budget = new PollBudget(0, 1, 0.5, new MetricRegistry());
+    CircleCi circleCi = mock(CircleCi.class);
+    PipelinePollers pollers =
+        new PipelinePollers(circleCi, GITLAB, jobScheduler, true, null, 5000, null, budget);
+    when(circleCi.refreshPipelineAsync(any()))
+        .thenAnswer(i -> CompletableFuture.completedFuture(i.getArgument(0)));
+    for (int i = 0; i < 20; i++) {
+      pollers.start(ImmutablePipeline.of(UUID.randomUUID(), 123456, "abc123", "master"));
+    }
+    ArgumentCaptor<Runnable> jobs = ArgumentCaptor.forClass(Runnable.class);
+    verify(jobScheduler, times(20)).schedule(jobs.capture(), anyLong());
+    jobs.getAllValues().forEach(Runnable::run);
+
+    ArgumentCaptor<Long> delays = ArgumentCaptor.forClass(Long.class);
+    verify(jobScheduler, times(40)).schedule(any(), delays.capture());
+    List<Long> polls = delays.getAllValues().subList(20, 40);
+    assertTrue(polls.stream().allMatch(d -> d >= 5000 && d <= 7500), "" + polls);
+    assertTrue(polls.stream().distinct().count() > 1);
+  }
+
+  private static PipelinePollers consolidated(GitLab gitLab, JobScheduler jobScheduler) {
+    return new PipelinePollers(CIRCLECI, gitLab, jobScheduler, true, null, 0);
+  }
+
+  /** A GitLab which successfully reports whatever it is given. */
+  private static GitLab reportingGitLab() {
+    GitLab gitLab = mock(GitLab.class);
+    when(gitLab.updateCommitStatus(any(), any()))
+        .thenAnswer(i -> i.<Workflow>getArgument(1).state());
+    return gitLab;
+  }
 }
@@ -0,0 +1,173 @@
+package com.circleci.connector.gitlab.singleorg.client;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import com.circleci.connector.gitlab.singleorg.model.ImmutablePipeline;
+import com.circleci.connector.gitlab.singleorg.model.Pipeline;
+import com.circleci.connector.gitlab.singleorg.scheduler.JobScheduler;
+import com.circleci.connector.gitlab.singleorg.state.ImmutablePollerState;
+import com.circleci.connector.gitlab.singleorg.state.PollerState;
+import java.util.List;
+import java.util.UUID;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+class PipelinePollersTest {
+  private static PollerState state(long nextPollMillis) {
+    return ImmutablePollerState.builder()
+        .pipelineId(UUID.randomUUID())
+        .projectId(123456)
+        .revision("abc123")
+        .branch("master")
+        .nextPollMillis(nextPollMillis)
+        .build();
+  }
+
+  private static Pipeline pipeline(String branch, long receivedAtMillis) {
+    return ImmutablePipeline.of(UUID.randomUUID(), 123456, "abc123", branch)
+        .withReceivedAtMillis(receivedAtMillis);
+  }
+
+  private static PipelinePollers pollers(JobScheduler jobScheduler) {
+    return new PipelinePollers(
+        mock(CircleCi.class), mock(GitLab.class), jobScheduler, true, null, 0);
+  }
+
+  @Test
+  void resumedPollsAreSpreadOut() {
+    // Overdue polls are spread over the whole window
+    assertEquals(0, PipelinePollers.resumeDelayMillis(1000, 5000, 0, 4, 8000));
+    assertEquals(2000, PipelinePollers.resumeDelayMillis(1000, 5000, 1, 4, 8000));
+    assertEquals(6000, PipelinePollers.resumeDelayMillis(1000, 5000, 3, 4, 8000));
+    // Polls which aren't due yet keep their delay, plus their share of the spread
+    assertEquals(3000, PipelinePollers.resumeDelayMillis(8000, 5000, 0, 4, 8000));
+    assertEquals(7000, PipelinePollers.resumeDelayMillis(8000, 5000, 2, 4, 8000));
+    assertEquals(0, PipelinePollers.resumeDelayMillis(0, 5000, 0, 1, 0));
+  }
+
+  @Test
+  void resumedPollersCanBeFoundUntilTheyStop() {
+    JobScheduler jobScheduler = mock(JobScheduler.class);
+    PipelinePollers pollers =
+        new PipelinePollers(mock(CircleCi.class), mock(GitLab.class), jobScheduler, true, null, 0);
+    PollerState later = state(System.currentTimeMillis() + 60000);
+    PollerState overdue = state(0);
+
+    pollers.resume(List.of(later, overdue), 0);
+    assertEquals(2, pollers.size());
+    assertEquals(later.pipeline(), pollers.get(later.pipelineId()).getPipeline());
+
+    // The overdue poll is made straight away and the other waits until it is due
+    ArgumentCaptor<Long> delays = ArgumentCaptor.forClass(Long.class);
+    verify(jobScheduler, times(2)).schedule(any(), delays.capture());
+    assertEquals(0, delays.getAllValues().get(0));
+    assertTrue(delays.getAllValues().get(1) > 50000);
+
+    pollers.get(overdue.pipelineId()).stop();
+    assertEquals(1, pollers.size());
+  }
+
+  @Test
+  void aNewPipelineCancelsTheUnfinishedOneItSupersedes() {
+    JobScheduler jobScheduler = mock(JobScheduler.class);
+    PipelinePollers pollers = pollers(jobScheduler);
+    Pipeline first = pipeline("master", 1000);
+    Pipeline other = pipeline("feature", 2000);
+    Pipeline second = pipeline("master", 3000);
+
+    pollers.start(first);
+    pollers.start(other, true);
+    pollers.start(second, true);
+
+    // The first stops polling straight away, and its workflows are cancelled on the scheduler
+    assertNull(pollers.get(first.id()));
+    assertNotNull(pollers.get(other.id()));
+    assertNotNull(pollers.get(second.id()));
+    verify(jobScheduler).schedule(any(), eq(0L));
+  }
+
+  @Test
+  void supersededPipelinesAreLeftAloneUnlessAutoCancelIsOn() {
+    JobScheduler jobScheduler = mock(JobScheduler.class);
+    PipelinePollers pollers = pollers(jobScheduler);
+    Pipeline first = pipeline("master", 1000);
+    Pipeline second = pipeline("master", 2000);
+
+    pollers.start(first);
+    pollers.start(second);
+
+    assertEquals(2, pollers.size());
+    verify(jobScheduler, never()).schedule(any(), eq(0L));
+  }
+
+  @Test
+  void aPipelineStartedAfterANewerOneIsTheOneCancelled() {
+    JobScheduler jobScheduler = mock(JobScheduler.class);
+    PipelinePollers pollers = pollers(jobScheduler);
+    Pipeline newer = pipeline("master", 2000);
+    Pipeline older = pipeline("master", 1000);
+    Pipeline newest = pipeline("master", 3000);
+
+    pollers.start(newer, true);
+    pollers.start(older, true);
+    assertNotNull(pollers.get(newer.id()));
+    assertNull(pollers.get(older.id()));
+
+    // The newer pipeline is still the latest on the branch, so the next push supersedes it
+    pollers.start(newest, true);
+    assertNull(pollers.get(newer.id()));
+    assertNotNull(pollers.get(newest.id()));
+    verify(jobScheduler, times(2)).schedule(any(), eq(0L));
+  }
+
+  @Test
+  void pipelinesWhoseOrderIsUnknownAreNotCancelled() {
+    JobScheduler jobScheduler = mock(JobScheduler.class);
+    PipelinePollers pollers = pollers(jobScheduler);
+    Pipeline resumed = pipeline("master", 0);
+    Pipeline sameTime = pipeline("master", 1000);
+
+    pollers.start(resumed, true);
+    pollers.start(pipeline("master", 1000), true);
+    pollers.start(sameTime, true);
+
+    assertEquals(3, pollers.size());
+    verify(jobScheduler, never()).schedule(any(), eq(0L));
+  }
+
+  @Test
+  void resumedPipelinesKeepTheirPlaceOnTheBranch() {
+    JobScheduler jobScheduler = mock(JobScheduler.class);
+    PipelinePollers pollers = pollers(jobScheduler);
+    PollerState resumed = ImmutablePollerState.copyOf(state(0)).withReceivedAtMillis(2000);
+    assertEquals(2000, resumed.pipeline().receivedAtMillis());
+
+    pollers.resume(List.of(resumed), 0);
+    Pipeline older = pipeline("master", 1000);
+    pollers.start(older, true);
+
+    assertNotNull(pollers.get(resumed.pipelineId()));
+    assertNull(pollers.get(older.id()));
+  }
+
+  @Test
+  void finishedPipelinesAreNotCancelled() {
+    JobScheduler jobScheduler = mock(JobScheduler.class);
+    PipelinePollers pollers = pollers(jobScheduler);
+    Pipeline first = pipeline("master", 1000);
+
+    pollers.start(first).stop();
+    pollers.start(pipeline("master", 2000), true);
+
+    verify(jobScheduler, never()).schedule(any(), eq(0L));
+  }
+}
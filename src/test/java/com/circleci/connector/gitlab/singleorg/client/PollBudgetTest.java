@@ -0,0 +1,115 @@
+package com.circleci.connector.gitlab.singleorg.client;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Ticker;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class PollBudgetTest {
+  private MetricRegistry metrics;
+  private FakeTicker ticker;
+
+  private static class FakeTicker extends Ticker {
+    private long nanos;
+
+    @Override
+    public long read() {
+      return nanos;
+    }
+
+    void advance(long duration, TimeUnit unit) {
+      nanos += unit.toNanos(duration);
+    }
+  }
+
+  @BeforeEach
+  void setUp() {
+    metrics = new MetricRegistry();
+    ticker = new FakeTicker();
+  }
+
+  private PollBudget budget(double pollsPerSecond, int burst, double jitterRatio) {
+    return new PollBudget(pollsPerSecond, burst, jitterRatio, metrics, ticker, new Random(42));
+  }
+
+  @Test
+  void withoutALimitPollsAreNeverDeferred() {
+    PollBudget budget = budget(0, 1, 0);
+    for (int i = 0; i < 100; i++) {
+      assertEquals(0, budget.reserve());
+    }
+  }
+
+  @Test
+  void pollsOverTheBudgetAreDeferredToTheirOwnSlot() {
+    PollBudget budget = budget(10, 1, 0);
+    assertEquals(0, budget.reserve());
+    assertEquals(100, budget.reserve());
+    assertEquals(200, budget.reserve());
+    assertEquals(2, metrics.meter(MetricRegistry.name(PollBudget.class, "deferred")).getCount());
+
+    // The deferred polls still hold their slots
+    ticker.advance(250, TimeUnit.MILLISECONDS);
+    assertEquals(50, budget.reserve());
+  }
+
+  @Test
+  void aBurstMayGoAheadAfterAQuietSpell() {
+    PollBudget budget = budget(10, 3, 0);
+    assertEquals(0, budget.reserve());
+    assertEquals(0, budget.reserve());
+    assertEquals(0, budget.reserve());
+    assertEquals(100, budget.reserve());
+
+    ticker.advance(1, TimeUnit.MINUTES);
+    assertEquals(0, budget.reserve());
+    assertEquals(0, budget.reserve());
+    assertEquals(0, budget.reserve());
+    assertEquals(100, budget.reserve());
+  }
+
+  @Test
+  void delaysAreMovedByUpToTheJitterEitherWay() {
+    PollBudget budget = budget(0, 1, 0.2);
+    Set<Long> delays = new HashSet<>();
+    for (int i = 0; i < 100; i++) {
+      long delay = budget.jitter(10000);
+      assertTrue(delay >= 8000 && delay <= 12000, "Delay " + delay + " is out of range");
+      delays.add(delay);
+    }
+    assertTrue(delays.size() > 1);
+    assertEquals(0, budget.jitter(0));
+  }
+
+  @Test
+  void delaysWeMustWaitAreOnlyEverLengthened() {
+    PollBudget budget = budget(0, 1, 0.2);
+    Set<Long> delays = new HashSet<>();
+    for (int i = 0; i < 100; i++) {
+      long delay = budget.jitterUp(10000);
+      assertTrue(delay >= 10000 && delay <= 12000, "Delay " + delay + " is out of range");
+      delays.add(delay);
+    }
+    assertTrue(delays.size() > 1);
+  }
+
+  @Test
+  void delaysAreLeftAloneWithoutJitter() {
+    assertEquals(10000, budget(10, 1, 0).jitter(10000));
+  }
+
+  @Test
+  void nonsenseSettingsAreRejected() {
+    assertThrows(IllegalArgumentException.class, () -> budget(-1, 1, 0));
+    assertThrows(IllegalArgumentException.class, () -> budget(1, 0, 0));
+    assertThrows(IllegalArgumentException.class, () -> budget(1, 1, 1));
+  }
+}
@@ -0,0 +1,144 @@
+package com.circleci.connector.gitlab.singleorg.client;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.circleci.client.v2.ApiException;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.Uninterruptibles;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class SingleFlightCacheTest {
+  private static final Duration TTL = Duration.ofMillis(250);
+
+  private MetricRegistry metrics;
+  private FakeTicker ticker;
+  private SingleFlightCache<String, String> cache;
+  private AtomicInteger calls;
+
+  private static class FakeTicker extends Ticker {
+    private long nanos;
+
+    @Override
+    public long read() {
+      return nanos;
+    }
+
+    void advance(long duration, TimeUnit unit) {
+      nanos += unit.toNanos(duration);
+    }
+  }
+
+  @BeforeEach
+  void setUp() {
+    metrics = new MetricRegistry();
+    ticker = new FakeTicker();
+    cache = new SingleFlightCache<>("things", TTL, metrics, ticker);
+    calls = new AtomicInteger();
+  }
+
+  private String read(String key) throws ApiException {
+    return cache.get(key, () -> key + "-" + calls.incrementAndGet());
+  }
+
+  private long count(String meter) {
+    return metrics.meter(MetricRegistry.name(SingleFlightCache.class, "things", meter)).getCount();
+  }
+
+  @Test
+  void concurrentReadsShareOneCall() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    ExecutorService readers = Executors.newFixedThreadPool(5);
+    try {
+      List<Future<String>> results = new ArrayList<>();
+      for (int i = 0; i < 5; i++) {
+        results.add(
+            readers.submit(
+                () ->
+                    cache.get(
+                        "a",
+                        () -> {
+                          Uninterruptibles.awaitUninterruptibly(release);
+                          return "a-" + calls.incrementAndGet();
+                        })));
+      }
+      while (count("requests") < 5) {
+        Thread.sleep(1);
+      }
+      release.countDown();
+
+      for (Future<String> result : results) {
+        assertEquals("a-1", result.get(5, TimeUnit.SECONDS));
+      }
+      assertEquals(1, calls.get());
+      assertEquals(5, count("requests"));
+      assertEquals(1, count("calls"));
+    } finally {
+      readers.shutdownNow();
+    }
+  }
+
+  @Test
+  void repeatsAreServedUntilTheResultExpires() throws Exception {
+    assertEquals("a-1", read("a"));
+    ticker.advance(200, TimeUnit.MILLISECONDS);
+    assertEquals("a-1", read("a"));
+    ticker.advance(100, TimeUnit.MILLISECONDS);
+    assertEquals("a-2", read("a"));
+    assertEquals(3, count("requests"));
+    assertEquals(2, count("calls"));
+  }
+
+  @Test
+  void differentReadsAreNotShared() throws Exception {
+    assertEquals("a-1", read("a"));
+    assertEquals("b-2", read("b"));
+  }
+
+  @Test
+  void failuresAreNotRemembered() throws Exception {
+    ApiException failure = new ApiException(500, "CircleCI is broken");
+    ApiException thrown =
+        assertThrows(
+            ApiException.class,
+            () ->
+                cache.get(
+                    "a",
+                    () -> {
+                      throw failure;
+                    }));
+    assertSame(failure, thrown);
+    assertEquals("a-1", read("a"));
+  }
+
+  @Test
+  void expiredResultsAreForgotten() throws Exception {
+    read("a");
+    read("b");
+    assertEquals(2, cache.size());
+    ticker.advance(2, TimeUnit.SECONDS);
+    read("c");
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  void theDedupRatioIsReported() {
+    assertNotNull(
+        metrics
+            .getGauges()
+            .get(MetricRegistry.name(SingleFlightCache.class, "things", "dedupRatio")));
+  }
+}
@@ -0,0 +1,115 @@
+package com.circleci.connector.gitlab.singleorg.client;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.circleci.connector.gitlab.singleorg.model.Workflow.State;
+import com.codahale.metrics.MetricRegistry;
+import org.junit.jupiter.api.Test;
+
+class WorkflowDurationsTest {
+  private static WorkflowDurations durations(double weight) {
+    return new WorkflowDurations(100, weight, 30000, new MetricRegistry());
+  }
+
+  @Test
+  void workflowsWithoutAHistoryAreNotPredicted() {
+    WorkflowDurations durations = durations(0.25);
+    durations.record(1, "build", 60000);
+
+    assertEquals(-1, durations.delayMillis(1, "deploy", 0));
+    assertEquals(-1, durations.delayMillis(2, "build", 0));
+  }
+
+  @Test
+  void pollsGetDenserAsTheExpectedFinishApproaches() {
+    WorkflowDurations durations = durations(1);
+    durations.record(1, "build", 60000);
+    durations.record(1, "build", 60000);
+
+    assertEquals(30000, durations.delayMillis(1, "build", 0));
+    assertEquals(10000, durations.delayMillis(1, "build", 40000));
+    assertEquals(1000, durations.delayMillis(1, "build", 59000));
+    assertEquals(1000, durations.delayMillis(1, "build", 60000));
+  }
+
+  @Test
+  void workflowsWhichOverrunAreLeftToTheRetryPolicy() {
+    WorkflowDurations durations = durations(1);
+    durations.record(1, "build", 60000);
+    durations.record(1, "build", 60000);
+
+    assertEquals(-1, durations.delayMillis(1, "build", 60001));
+  }
+
+  @Test
+  void theWindowWidensWithTheVariationBetweenRuns() {
+    WorkflowDurations durations = durations(1);
+    durations.record(1, "build", 60000);
+    durations.record(1, "build", 80000);
+
+    // Expected to finish within 40s of 80s, so polled every 80s / 8
+    assertEquals(10000, durations.delayMillis(1, "build", 40000));
+    assertEquals(10000, durations.delayMillis(1, "build", 120000));
+    assertEquals(-1, durations.delayMillis(1, "build", 120001));
+  }
+
+  @Test
+  void aSingleRunIsAssumedToVaryLittle() {
+    WorkflowDurations durations = durations(0.25);
+    durations.record(1, "build", 60000);
+
+    // Expected to finish within 12s of 60s
+    assertEquals(24000, durations.delayMillis(1, "build", 0));
+    assertEquals(3000, durations.delayMillis(1, "build", 48000));
+    assertEquals(3000, durations.delayMillis(1, "build", 72000));
+    assertEquals(-1, durations.delayMillis(1, "build", 72001));
+  }
+
+  @Test
+  void eachRunMovesTheAverageByTheWeight() {
+    WorkflowDurations durations = durations(0.5);
+    durations.record(1, "build", 400000);
+    durations.record(1, "build", 500000);
+
+    // The average is now 450s, give or take 2 * 70s
+    assertEquals(30000, durations.delayMillis(1, "build", 0));
+    assertEquals(10000, durations.delayMillis(1, "build", 290000));
+    assertEquals(30000, durations.delayMillis(1, "build", 590000));
+    assertEquals(-1, durations.delayMillis(1, "build", 590001));
+  }
+
+  @Test
+  void aSteadyWorkloadIsPolledLessThanWithoutAHistory() {
+    WorkflowDurations durations = durations(0.25);
+    long[] runs = {600000, 590000, 615000, 605000, 595000, 600000};
+    for (long run : runs) {
+      durations.record(1, "build", run);
+    }
+
+    for (long run : runs) {
+      int predicted = pollsUntilFinished(durations, run);
+      int baseline = pollsUntilFinished(null, run);
+      assertTrue(predicted < baseline, predicted + " polls is not fewer than " + baseline);
+    }
+  }
+
+  /** Count the polls a workflow poller makes of a workflow which runs for the given time. */
+  private static int pollsUntilFinished(WorkflowDurations durations, long durationMillis) {
+    WorkflowPoller.RetryPolicy retryPolicy = new WorkflowPoller.RetryPolicy();
+    int polls = 0;
+    for (long elapsed = 0; elapsed < durationMillis; polls++) {
+      long delay = retryPolicy.delayFor(State.RUNNING);
+      long predicted = durations == null ? -1 : durations.delayMillis(1, "build", elapsed);
+      elapsed += predicted >= 0 ? predicted : delay;
+    }
+    return polls + 1;
+  }
+
+  @Test
+  void theWeightMustBeAFraction() {
+    assertThrows(IllegalArgumentException.class, () -> durations(0));
+    assertThrows(IllegalArgumentException.class, () -> durations(1.5));
+  }
+}
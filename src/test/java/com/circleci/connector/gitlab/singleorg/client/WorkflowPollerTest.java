@@ -1,8 +1,11 @@
 package com.circleci.connector.gitlab.singleorg.client;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -13,14 +16,18 @@ import com.circleci.connector.gitlab.singleorg.model.ImmutableWorkflow;
 import com.circleci.connector.gitlab.singleorg.model.Pipeline;
 import com.circleci.connector.gitlab.singleorg.model.Workflow;
 import com.circleci.connector.gitlab.singleorg.model.Workflow.State;
+import com.circleci.connector.gitlab.singleorg.scheduler.JobScheduler;
+import com.codahale.metrics.MetricRegistry;
 import java.util.UUID;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import org.junit.jupiter.api.Test;
 
 class WorkflowPollerTest {
   private static final CircleCi CIRCLECI = mock(CircleCi.class);
   private static final GitLab GITLAB = mock(GitLab.class);
-  private static final ScheduledExecutorService JOB_RUNNER = mock(ScheduledExecutorService.class);
+  private static final JobScheduler JOB_RUNNER = mock(JobScheduler.class);
 
   @Test
   void pollSleepsWhenTheCircleCiApiCallFails() throws ApiException {
@@ -30,9 +37,23 @@ class WorkflowPollerTest {
     Pipeline pipeline = ImmutablePipeline.of(pipelineId, projectId, "", "master");
     Workflow workflow = ImmutableWorkflow.of(UUID.randomUUID(), "my-workflow", State.RUNNING);
 
-    when(CIRCLECI.refreshWorkflow(workflow)).thenThrow(new RuntimeException());
+    when(CIRCLECI.refreshWorkflowAsync(workflow))
+        .thenReturn(CompletableFuture.failedFuture(new RuntimeException()));
     WorkflowPoller poller = new WorkflowPoller(pipeline, workflow, CIRCLECI, GITLAB, JOB_RUNNER);
-    assertTrue(poller.poll() > 0);
+    assertTrue(poller.poll().join() > 0);
+  }
+
+  @Test
+  void pollWaitsAsLongAsItIsToldWhenThePollIsDeferred() {
+    Pipeline pipeline = ImmutablePipeline.of(UUID.randomUUID(), 123456, "", "master");
+    Workflow workflow = ImmutableWorkflow.of(UUID.randomUUID(), "my-workflow", State.RUNNING);
+
+    when(CIRCLECI.refreshWorkflowAsync(workflow))
+        .thenReturn(CompletableFuture.failedFuture(new CircleCiLimiter.DeferredException(4321)));
+    WorkflowPoller poller = new WorkflowPoller(pipeline, workflow, CIRCLECI, GITLAB, JOB_RUNNER);
+    for (int i = 0; i < 20; i++) {
+      assertEquals(4321, poller.poll().join());
+    }
   }
 
   @Test
@@ -44,10 +65,11 @@ class WorkflowPollerTest {
     Workflow workflow = ImmutableWorkflow.of(UUID.randomUUID(), "my-workflow", State.RUNNING);
     Workflow newWorkflow = ImmutableWorkflow.copyOf(workflow).withState(State.FAILED);
 
-    when(CIRCLECI.refreshWorkflow(workflow)).thenReturn(newWorkflow);
+    when(CIRCLECI.refreshWorkflowAsync(workflow))
+        .thenReturn(CompletableFuture.completedFuture(newWorkflow));
     when(GITLAB.updateCommitStatus(pipeline, workflow)).thenReturn(State.FAILED);
     WorkflowPoller poller = new WorkflowPoller(pipeline, workflow, CIRCLECI, GITLAB, JOB_RUNNER);
-    assertTrue(poller.poll() > 0);
+    assertTrue(poller.poll().join() > 0);
     verify(GITLAB, times(1)).updateCommitStatus(pipeline, newWorkflow);
   }
 
@@ -59,13 +81,65 @@ class WorkflowPollerTest {
     Pipeline pipeline = ImmutablePipeline.of(pipelineId, 123456, sha1, "master");
     Workflow workflow = ImmutableWorkflow.of(UUID.randomUUID(), "my-workflow", State.RUNNING);
 
-    when(CIRCLECI.refreshWorkflow(workflow))
-        .thenReturn(ImmutableWorkflow.copyOf(workflow).withState(State.RUNNING));
+    when(CIRCLECI.refreshWorkflowAsync(workflow))
+        .thenReturn(
+            CompletableFuture.completedFuture(
+                ImmutableWorkflow.copyOf(workflow).withState(State.RUNNING)));
     WorkflowPoller poller = new WorkflowPoller(pipeline, workflow, CIRCLECI, GITLAB, JOB_RUNNER);
-    assertTrue(poller.poll() > 0);
+    assertTrue(poller.poll().join() > 0);
     verify(GITLAB, times(1)).updateCommitStatus(pipeline, workflow);
   }
 
+  @Test
+  void aStoppedPollerDoesNotTellGitLabWhatAPollInFlightFound() {
+    Pipeline pipeline = ImmutablePipeline.of(UUID.randomUUID(), 123456, "", "master");
+    Workflow workflow = ImmutableWorkflow.of(UUID.randomUUID(), "my-workflow", State.RUNNING);
+    GitLab gitLab = mock(GitLab.class);
+    Runnable onStop = mock(Runnable.class);
+
+    when(CIRCLECI.refreshWorkflowAsync(workflow))
+        .thenReturn(CompletableFuture.completedFuture(workflow));
+    WorkflowPoller poller = new WorkflowPoller(pipeline, workflow, CIRCLECI, gitLab, JOB_RUNNER);
+    poller.onStop(onStop);
+    poller.stop();
+    poller.stop();
+
+    assertTrue(poller.isStopped());
+    verify(onStop, times(1)).run();
+    assertEquals(-1, poller.poll().join());
+    verify(gitLab, never()).updateCommitStatus(any(), any());
+  }
+
+  @Test
+  void stoppingWaitsForAnUpdateOfGitLabInFlight() throws Exception {
+    Pipeline pipeline = ImmutablePipeline.of(UUID.randomUUID(), 123456, "", "master");
+    Workflow workflow = ImmutableWorkflow.of(UUID.randomUUID(), "my-workflow", State.RUNNING);
+    GitLab gitLab = mock(GitLab.class);
+    CountDownLatch updating = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    when(gitLab.updateCommitStatus(any(), any()))
+        .thenAnswer(
+            i -> {
+              updating.countDown();
+              release.await();
+              return State.RUNNING;
+            });
+    when(CIRCLECI.refreshWorkflowAsync(workflow))
+        .thenReturn(CompletableFuture.completedFuture(workflow));
+    WorkflowPoller poller = new WorkflowPoller(pipeline, workflow, CIRCLECI, gitLab, JOB_RUNNER);
+
+    CompletableFuture<Long> poll = CompletableFuture.supplyAsync(() -> poller.poll().join());
+    assertTrue(updating.await(5, TimeUnit.SECONDS));
+    CompletableFuture<Void> stop = CompletableFuture.runAsync(poller::stop);
+    Thread.sleep(100);
+    assertFalse(stop.isDone());
+
+    release.countDown();
+    stop.get(5, TimeUnit.SECONDS);
+    assertTrue(poll.get(5, TimeUnit.SECONDS) > 0);
+    assertTrue(poller.isStopped());
+  }
+
   @Test
   void retryPolicyCoversAllGitLabStatuses() {
     for (var state : State.values()) {
@@ -108,4 +182,41 @@ class WorkflowPollerTest {
     assertEquals(10000, policy.delayFor(null));
     assertEquals(-1, policy.delayFor(null));
   }
+
+  @Test
+  void workflowsWithAHistoryArePolledWhenTheyAreExpectedToFinish() {
+    Pipeline pipeline = ImmutablePipeline.of(UUID.randomUUID(), 123456, "", "master");
+    Workflow workflow = ImmutableWorkflow.of(UUID.randomUUID(), "predicted", State.RUNNING);
+    GitLab gitLab = mock(GitLab.class);
+    when(gitLab.updateCommitStatus(any(), any()))
+        .thenAnswer(i -> i.<Workflow>getArgument(1).state());
+    WorkflowDurations durations = new WorkflowDurations(100, 1, 30000, new MetricRegistry());
+    durations.record(123456, "predicted", 600000);
+    durations.record(123456, "predicted", 600000);
+
+    when(CIRCLECI.refreshWorkflowAsync(workflow))
+        .thenReturn(CompletableFuture.completedFuture(workflow));
+    WorkflowPoller poller =
+        new WorkflowPoller(pipeline, workflow, CIRCLECI, gitLab, JOB_RUNNER, durations, null);
+    assertEquals(30000, poller.poll().join());
+  }
+
+  @Test
+  void successfulWorkflowsAreAddedToTheHistory() {
+    Pipeline pipeline = ImmutablePipeline.of(UUID.randomUUID(), 123456, "", "master");
+    Workflow workflow = ImmutableWorkflow.of(UUID.randomUUID(), "recorded", State.RUNNING);
+    GitLab gitLab = mock(GitLab.class);
+    when(gitLab.updateCommitStatus(any(), any()))
+        .thenAnswer(i -> i.<Workflow>getArgument(1).state());
+    WorkflowDurations durations = new WorkflowDurations(100, 1, 30000, new MetricRegistry());
+
+    when(CIRCLECI.refreshWorkflowAsync(workflow))
+        .thenReturn(
+            CompletableFuture.completedFuture(
+                ImmutableWorkflow.copyOf(workflow).withState(State.SUCCESS)));
+    WorkflowPoller poller =
+        new WorkflowPoller(pipeline, workflow, CIRCLECI, gitLab, JOB_RUNNER, durations, null);
+    assertEquals(-1, poller.poll().join());
+    assertTrue(durations.delayMillis(123456, "recorded", 0) > 0);
+  }
 }
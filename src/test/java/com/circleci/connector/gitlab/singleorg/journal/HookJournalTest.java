@@ -0,0 +1,193 @@
+package com.circleci.connector.gitlab.singleorg.journal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.circleci.connector.gitlab.singleorg.api.ImmutablePushHook;
+import com.circleci.connector.gitlab.singleorg.api.PushHook;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.dropwizard.jackson.Jackson;
+import io.dropwizard.testing.FixtureHelpers;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class HookJournalTest {
+  private static final ObjectMapper MAPPER = Jackson.newObjectMapper();
+  private static final int SEGMENT_SIZE = 4096;
+
+  @TempDir Path directory;
+
+  private static PushHook hook() throws IOException {
+    return MAPPER.readValue(
+        FixtureHelpers.fixture("gitlab-push-hook-from-docs.json"), ImmutablePushHook.class);
+  }
+
+  private HookJournal open() throws IOException {
+    HookJournal journal = new HookJournal(directory, SEGMENT_SIZE);
+    journal.recover();
+    return journal;
+  }
+
+  private List<PushHook> reopen(HookJournal journal) throws IOException {
+    journal.stop();
+    return new HookJournal(directory, SEGMENT_SIZE).recover();
+  }
+
+  private long segmentCount() throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files.count();
+    }
+  }
+
+  @Test
+  void anEmptyDirectoryHasNothingToRecover() throws IOException {
+    assertEquals(List.of(), new HookJournal(directory, SEGMENT_SIZE).recover());
+  }
+
+  @Test
+  void unfinishedHooksAreRecoveredWithTheirIds() throws IOException {
+    HookJournal journal = open();
+    PushHook hook = ImmutablePushHook.copyOf(hook()).withReceivedAtMillis(12345);
+    journal.append(hook);
+
+    List<PushHook> recovered = reopen(journal);
+    assertEquals(1, recovered.size());
+    assertEquals(hook.id(), recovered.get(0).id());
+    assertEquals(hook.after(), recovered.get(0).after());
+    assertEquals(hook.project().id(), recovered.get(0).project().id());
+    assertEquals(12345, recovered.get(0).receivedAtMillis());
+  }
+
+  @Test
+  void finishedHooksAreNotRecovered() throws IOException {
+    HookJournal journal = open();
+    PushHook done = hook();
+    PushHook notDone = hook();
+    journal.append(done);
+    journal.append(notDone);
+    journal.markDone(done.id());
+
+    List<PushHook> recovered = reopen(journal);
+    assertEquals(1, recovered.size());
+    assertEquals(notDone.id(), recovered.get(0).id());
+  }
+
+  @Test
+  void recoveredHooksAreStillTrackedUntilDone() throws IOException {
+    HookJournal journal = open();
+    journal.append(hook());
+
+    journal.stop();
+    journal = new HookJournal(directory, SEGMENT_SIZE);
+    PushHook recovered = journal.recover().get(0);
+    journal.markDone(recovered.id());
+
+    assertEquals(List.of(), reopen(journal));
+  }
+
+  @Test
+  void finishedSegmentsAreDeleted() throws IOException {
+    HookJournal journal = open();
+    for (int i = 0; i < 50; i++) {
+      PushHook hook = hook();
+      journal.append(hook);
+      journal.markDone(hook.id());
+    }
+    assertTrue(segmentCount() <= 2);
+    assertEquals(List.of(), reopen(journal));
+  }
+
+  @Test
+  void segmentsWithUnfinishedHooksAreKept() throws IOException {
+    HookJournal journal = open();
+    PushHook first = hook();
+    journal.append(first);
+    for (int i = 0; i < 50; i++) {
+      PushHook hook = hook();
+      journal.append(hook);
+      journal.markDone(hook.id());
+    }
+
+    List<PushHook> recovered = reopen(journal);
+    assertEquals(1, recovered.size());
+    assertEquals(first.id(), recovered.get(0).id());
+    assertEquals(1, segmentCount());
+  }
+
+  @Test
+  void aDamagedRecordEndsTheSegment() throws IOException {
+    HookJournal journal = open();
+    PushHook good = hook();
+    journal.append(good);
+    journal.append(hook());
+    journal.stop();
+
+    // Flip a byte near the end of the second record's payload
+    Path segment;
+    try (Stream<Path> files = Files.list(directory)) {
+      segment = files.findFirst().orElseThrow();
+    }
+    byte[] bytes = Files.readAllBytes(segment);
+    int end = bytes.length - 1;
+    while (bytes[end] == 0) {
+      end--;
+    }
+    bytes[end - 10] ^= 0xff;
+    Files.write(segment, bytes, StandardOpenOption.TRUNCATE_EXISTING);
+
+    List<PushHook> recovered = new HookJournal(directory, SEGMENT_SIZE).recover();
+    assertEquals(1, recovered.size());
+    assertEquals(good.id(), recovered.get(0).id());
+  }
+
+  @Test
+  void hooksTooBigForASegmentAreRejected() throws IOException {
+    HookJournal journal = new HookJournal(directory, 128);
+    journal.recover();
+    assertThrows(UncheckedIOException.class, () -> journal.append(hook()));
+  }
+
+  @Test
+  void concurrentAppendsAreAllDurable() throws Exception {
+    HookJournal journal = new HookJournal(directory, 64 * 1024);
+    journal.recover();
+    ExecutorService threads = Executors.newFixedThreadPool(8);
+    List<Future<UUID>> futures = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      futures.add(
+          threads.submit(
+              () -> {
+                PushHook hook = hook();
+                journal.append(hook);
+                return hook.id();
+              }));
+    }
+    Set<UUID> ids = new HashSet<>();
+    for (Future<UUID> future : futures) {
+      ids.add(future.get());
+    }
+    threads.shutdown();
+
+    journal.stop();
+    Set<UUID> recovered =
+        new HookJournal(directory, 64 * 1024)
+            .recover().stream().map(PushHook::id).collect(Collectors.toSet());
+    assertEquals(ids, recovered);
+  }
+}
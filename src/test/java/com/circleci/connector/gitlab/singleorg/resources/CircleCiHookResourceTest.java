@@ -0,0 +1,143 @@
+package com.circleci.connector.gitlab.singleorg.resources;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.circleci.connector.gitlab.singleorg.api.CircleCiWebhook;
+import com.circleci.connector.gitlab.singleorg.api.HookResponse;
+import com.circleci.connector.gitlab.singleorg.api.ImmutableCircleCiWebhook;
+import com.circleci.connector.gitlab.singleorg.api.ImmutableHookPipeline;
+import com.circleci.connector.gitlab.singleorg.api.ImmutableHookWorkflow;
+import com.circleci.connector.gitlab.singleorg.client.PipelinePoller;
+import com.circleci.connector.gitlab.singleorg.client.PipelinePollers;
+import com.circleci.connector.gitlab.singleorg.model.ImmutableWorkflow;
+import com.circleci.connector.gitlab.singleorg.model.Workflow;
+import com.google.common.hash.Hashing;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class CircleCiHookResourceTest {
+  private static final String SECRET = "circleci-secret";
+  private static final UUID PIPELINE_ID = UUID.randomUUID();
+  private static final UUID WORKFLOW_ID = UUID.randomUUID();
+
+  private PipelinePollers pollers;
+  private PipelinePoller poller;
+  private CircleCiHookResource resource;
+
+  @BeforeEach
+  void setUp() {
+    pollers = mock(PipelinePollers.class);
+    poller = mock(PipelinePoller.class);
+    when(pollers.get(PIPELINE_ID)).thenReturn(poller);
+    when(poller.report(any())).thenReturn(true);
+    resource = new CircleCiHookResource(pollers, SECRET, 65536);
+  }
+
+  private static String hook(String type, UUID pipelineId, String status) {
+    return String.format(
+        "{\"id\":\"%s\",\"type\":\"%s\",\"happened_at\":\"2019-10-17T10:00:00Z\","
+            + "\"workflow\":{\"id\":\"%s\",\"name\":\"build\",\"status\":%s},"
+            + "\"pipeline\":{\"id\":\"%s\",\"number\":42}}",
+        UUID.randomUUID(),
+        type,
+        WORKFLOW_ID,
+        status == null ? "null" : "\"" + status + "\"",
+        pipelineId);
+  }
+
+  private static String sign(String body) {
+    return "v1="
+        + Hashing.hmacSha256(SECRET.getBytes(StandardCharsets.UTF_8))
+            .hashString(body, StandardCharsets.UTF_8);
+  }
+
+  private HookResponse.Status post(String body, String signature) throws Exception {
+    Response response =
+        resource.processHook(
+            new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)), signature);
+    return ((HookResponse) response.getEntity()).status();
+  }
+
+  private static CircleCiWebhook webhook(String type, String status) {
+    return ImmutableCircleCiWebhook.builder()
+        .id(UUID.randomUUID())
+        .type(type)
+        .workflow(
+            ImmutableHookWorkflow.builder().id(WORKFLOW_ID).name("build").status(status).build())
+        .pipeline(ImmutableHookPipeline.builder().id(PIPELINE_ID).build())
+        .build();
+  }
+
+  @Test
+  void aSignedWebhookIsReportedToThePipelinesPoller() throws Exception {
+    String body = hook(CircleCiWebhook.WORKFLOW_COMPLETED, PIPELINE_ID, "success");
+
+    assertEquals(HookResponse.Status.SUBMITTED, post(body, "v0=abc, " + sign(body)));
+    verify(poller).report(ImmutableWorkflow.of(WORKFLOW_ID, "build", Workflow.State.SUCCESS));
+  }
+
+  @Test
+  void webhooksWithoutAValidSignatureAreForbidden() {
+    String body = hook(CircleCiWebhook.WORKFLOW_COMPLETED, PIPELINE_ID, "success");
+
+    for (String signature : new String[] {null, "", sign(body + " "), sign(body).substring(3)}) {
+      WebApplicationException e =
+          assertThrows(WebApplicationException.class, () -> post(body, signature));
+      assertEquals(403, e.getResponse().getStatus());
+    }
+    verify(poller, never()).report(any());
+  }
+
+  @Test
+  void webhooksLargerThanTheLimitAreRejectedWith413() {
+    resource = new CircleCiHookResource(pollers, SECRET, 64);
+    String body = hook(CircleCiWebhook.WORKFLOW_COMPLETED, PIPELINE_ID, "success");
+
+    WebApplicationException e =
+        assertThrows(WebApplicationException.class, () -> post(body, sign(body)));
+    assertEquals(413, e.getResponse().getStatus());
+    verify(poller, never()).report(any());
+  }
+
+  @Test
+  void webhooksForPipelinesWeAreNotPollingAreIgnored() throws Exception {
+    String body = hook(CircleCiWebhook.WORKFLOW_COMPLETED, UUID.randomUUID(), "failed");
+
+    assertEquals(HookResponse.Status.IGNORED, post(body, sign(body)));
+  }
+
+  @Test
+  void webhooksWhichChangeNothingAreIgnored() throws Exception {
+    when(poller.report(any())).thenReturn(false);
+    String body = hook(CircleCiWebhook.JOB_COMPLETED, PIPELINE_ID, null);
+
+    assertEquals(HookResponse.Status.IGNORED, post(body, sign(body)));
+  }
+
+  @Test
+  void webhooksAreTurnedIntoWorkflows() {
+    assertEquals(
+        Workflow.State.FAILED,
+        CircleCiHookResource.toWorkflow(webhook(CircleCiWebhook.WORKFLOW_COMPLETED, "failed"))
+            .state());
+    assertEquals(
+        Workflow.State.RUNNING,
+        CircleCiHookResource.toWorkflow(webhook(CircleCiWebhook.JOB_COMPLETED, null)).state());
+    assertNull(
+        CircleCiHookResource.toWorkflow(webhook(CircleCiWebhook.WORKFLOW_COMPLETED, "exploded")));
+    assertNull(CircleCiHookResource.toWorkflow(webhook(CircleCiWebhook.WORKFLOW_COMPLETED, null)));
+    assertNull(CircleCiHookResource.toWorkflow(webhook("ping", null)));
+  }
+}
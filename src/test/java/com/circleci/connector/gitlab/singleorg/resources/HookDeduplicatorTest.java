@@ -0,0 +1,95 @@
+package com.circleci.connector.gitlab.singleorg.resources;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.circleci.connector.gitlab.singleorg.api.HookResponse;
+import com.circleci.connector.gitlab.singleorg.api.ImmutableHookResponse;
+import com.circleci.connector.gitlab.singleorg.api.ImmutablePushHook;
+import com.circleci.connector.gitlab.singleorg.api.PushHook;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.dropwizard.jackson.Jackson;
+import io.dropwizard.testing.FixtureHelpers;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.ws.rs.NotFoundException;
+import org.junit.jupiter.api.Test;
+
+class HookDeduplicatorTest {
+  private static final ObjectMapper MAPPER = Jackson.newObjectMapper();
+
+  private static PushHook hook() throws Exception {
+    return MAPPER.readValue(
+        FixtureHelpers.fixture("gitlab-push-hook-from-docs.json"), ImmutablePushHook.class);
+  }
+
+  private static HookResponse respond(PushHook hook, AtomicInteger calls) {
+    calls.incrementAndGet();
+    return ImmutableHookResponse.builder()
+        .id(hook.id())
+        .status(HookResponse.Status.SUBMITTED)
+        .build();
+  }
+
+  @Test
+  void redeliveriesGetTheOriginalResponse() throws Exception {
+    HookDeduplicator deduplicator = new HookDeduplicator(Duration.ofMinutes(1), 100);
+    AtomicInteger calls = new AtomicInteger();
+    PushHook first = hook();
+    PushHook redelivery = hook();
+    assertNotEquals(first.id(), redelivery.id());
+
+    HookResponse original = deduplicator.deduplicate(first, () -> respond(first, calls));
+    HookResponse duplicate = deduplicator.deduplicate(redelivery, () -> respond(redelivery, calls));
+
+    assertEquals(original, duplicate);
+    assertEquals(first.id(), duplicate.id());
+    assertEquals(1, calls.get());
+  }
+
+  @Test
+  void differentPushesAreNotDuplicates() throws Exception {
+    HookDeduplicator deduplicator = new HookDeduplicator(Duration.ofMinutes(1), 100);
+    AtomicInteger calls = new AtomicInteger();
+    PushHook first = hook();
+    PushHook second = ImmutablePushHook.copyOf(hook()).withAfter("another-sha");
+
+    deduplicator.deduplicate(first, () -> respond(first, calls));
+    deduplicator.deduplicate(second, () -> respond(second, calls));
+
+    assertEquals(2, calls.get());
+  }
+
+  @Test
+  void pushesAreForgottenAfterTheWindow() throws Exception {
+    HookDeduplicator deduplicator = new HookDeduplicator(Duration.ofMillis(1), 100);
+    AtomicInteger calls = new AtomicInteger();
+    PushHook first = hook();
+
+    deduplicator.deduplicate(first, () -> respond(first, calls));
+    Thread.sleep(10);
+    deduplicator.deduplicate(first, () -> respond(first, calls));
+
+    assertEquals(2, calls.get());
+  }
+
+  @Test
+  void failuresAreRethrownAndNotRemembered() throws Exception {
+    HookDeduplicator deduplicator = new HookDeduplicator(Duration.ofMinutes(1), 100);
+    AtomicInteger calls = new AtomicInteger();
+    PushHook first = hook();
+
+    assertThrows(
+        NotFoundException.class,
+        () ->
+            deduplicator.deduplicate(
+                first,
+                () -> {
+                  throw new NotFoundException();
+                }));
+    deduplicator.deduplicate(first, () -> respond(first, calls));
+
+    assertEquals(1, calls.get());
+  }
+}
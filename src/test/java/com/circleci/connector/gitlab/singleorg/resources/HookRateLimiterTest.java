@@ -0,0 +1,149 @@
+package com.circleci.connector.gitlab.singleorg.resources;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.circleci.connector.gitlab.singleorg.ConnectorConfiguration;
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Ticker;
+import io.dropwizard.jackson.Jackson;
+import java.util.concurrent.TimeUnit;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.HttpHeaders;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class HookRateLimiterTest {
+  private static final ObjectMapper MAPPER = Jackson.newObjectMapper();
+
+  private MetricRegistry metrics;
+  private FakeTicker ticker;
+
+  private static class FakeTicker extends Ticker {
+    private long nanos;
+
+    @Override
+    public long read() {
+      return nanos;
+    }
+
+    void advance(long duration, TimeUnit unit) {
+      nanos += unit.toNanos(duration);
+    }
+  }
+
+  private static ConnectorConfiguration.RateLimits limits(String json) throws Exception {
+    return MAPPER.readValue(json, ConnectorConfiguration.RateLimits.class);
+  }
+
+  private HookRateLimiter limiter(String json) throws Exception {
+    return new HookRateLimiter(limits(json), metrics, ticker);
+  }
+
+  private static WebApplicationException rejected(HookRateLimiter limiter, int projectId) {
+    WebApplicationException e =
+        assertThrows(WebApplicationException.class, () -> limiter.admit(projectId));
+    assertEquals(429, e.getResponse().getStatus());
+    return e;
+  }
+
+  @BeforeEach
+  void setUp() {
+    metrics = new MetricRegistry();
+    ticker = new FakeTicker();
+  }
+
+  @Test
+  void thereIsNoLimitByDefault() throws Exception {
+    HookRateLimiter limiter = limiter("{}");
+    for (int i = 0; i < 1000; i++) {
+      limiter.admit(15);
+    }
+  }
+
+  @Test
+  void aProjectMayBurstAndIsThenLimitedToItsRate() throws Exception {
+    HookRateLimiter limiter = limiter("{\"perProject\":{\"hooksPerSecond\":0.5,\"burst\":3}}");
+    limiter.admit(15);
+    limiter.admit(15);
+    limiter.admit(15);
+
+    WebApplicationException e = rejected(limiter, 15);
+    assertEquals("2", e.getResponse().getHeaderString(HttpHeaders.RETRY_AFTER));
+    assertEquals(
+        1,
+        metrics
+            .meter(MetricRegistry.name(HookRateLimiter.class, "rejected", "project", "15"))
+            .getCount());
+
+    ticker.advance(2, TimeUnit.SECONDS);
+    limiter.admit(15);
+    rejected(limiter, 15);
+  }
+
+  @Test
+  void projectsAreLimitedSeparately() throws Exception {
+    HookRateLimiter limiter = limiter("{\"perProject\":{\"hooksPerSecond\":1,\"burst\":1}}");
+    limiter.admit(15);
+    rejected(limiter, 15);
+    limiter.admit(16);
+  }
+
+  @Test
+  void projectsMayHaveTheirOwnLimit() throws Exception {
+    HookRateLimiter limiter =
+        limiter(
+            "{"
+                + "\"perProject\":{\"hooksPerSecond\":1,\"burst\":1},"
+                + "\"projects\":{\"15\":{\"hooksPerSecond\":1,\"burst\":5}}"
+                + "}");
+    for (int i = 0; i < 5; i++) {
+      limiter.admit(15);
+    }
+    rejected(limiter, 15);
+    limiter.admit(16);
+    rejected(limiter, 16);
+  }
+
+  @Test
+  void theGlobalLimitAppliesAcrossProjects() throws Exception {
+    HookRateLimiter limiter = limiter("{\"global\":{\"hooksPerSecond\":10,\"burst\":2}}");
+    limiter.admit(15);
+    limiter.admit(16);
+
+    WebApplicationException e = rejected(limiter, 17);
+    assertEquals("1", e.getResponse().getHeaderString(HttpHeaders.RETRY_AFTER));
+    assertEquals(
+        1,
+        metrics.meter(MetricRegistry.name(HookRateLimiter.class, "rejected", "global")).getCount());
+
+    ticker.advance(100, TimeUnit.MILLISECONDS);
+    limiter.admit(17);
+  }
+
+  @Test
+  void hooksTheGlobalLimitRejectsDoNotCountAgainstTheirProject() throws Exception {
+    HookRateLimiter limiter =
+        limiter(
+            "{"
+                + "\"global\":{\"hooksPerSecond\":1,\"burst\":1},"
+                + "\"perProject\":{\"hooksPerSecond\":1,\"burst\":1}"
+                + "}");
+    limiter.admit(16);
+    rejected(limiter, 15);
+
+    // Project 15 still has the token it would have lost
+    ticker.advance(1, TimeUnit.SECONDS);
+    limiter.admit(15);
+  }
+
+  @Test
+  void tokensDoNotAccumulateBeyondTheBurst() throws Exception {
+    HookRateLimiter limiter = limiter("{\"global\":{\"hooksPerSecond\":1,\"burst\":2}}");
+    ticker.advance(1, TimeUnit.HOURS);
+    limiter.admit(15);
+    limiter.admit(15);
+    rejected(limiter, 15);
+  }
+}
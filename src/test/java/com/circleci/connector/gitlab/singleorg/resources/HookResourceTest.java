@@ -1,32 +1,61 @@
 package com.circleci.connector.gitlab.singleorg.resources;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import com.circleci.connector.gitlab.singleorg.ConnectorConfiguration;
 import com.circleci.connector.gitlab.singleorg.api.HookResponse;
+import com.circleci.connector.gitlab.singleorg.api.ImmutablePushHook;
+import com.circleci.connector.gitlab.singleorg.api.PushHook;
+import com.circleci.connector.gitlab.singleorg.api.PushHookParser;
 import com.circleci.connector.gitlab.singleorg.client.CircleCi;
 import com.circleci.connector.gitlab.singleorg.client.GitLab;
+import com.circleci.connector.gitlab.singleorg.client.MissingConfigCache;
+import com.circleci.connector.gitlab.singleorg.journal.HookJournal;
 import com.circleci.connector.gitlab.singleorg.model.ImmutablePipeline;
 import com.circleci.connector.gitlab.singleorg.model.Pipeline;
+import com.circleci.connector.gitlab.singleorg.scheduler.JobScheduler;
+import com.codahale.metrics.MetricRegistry;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.util.concurrent.MoreExecutors;
 import io.dropwizard.jackson.Jackson;
 import io.dropwizard.testing.FixtureHelpers;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import javax.ws.rs.NotFoundException;
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import org.gitlab4j.api.GitLabApi;
+import org.gitlab4j.api.GitLabApiException;
+import org.gitlab4j.api.RepositoryFileApi;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
 
 class HookResourceTest {
   private static final ObjectMapper MAPPER = Jackson.newObjectMapper();
@@ -39,7 +68,7 @@ class HookResourceTest {
   private static GitLab GITLAB_SAD;
   private static CircleCi CIRCLECI_HAPPY;
   private static CircleCi CIRCLECI_SAD;
-  private static ScheduledExecutorService JOB_RUNNER;
+  private static JobScheduler JOB_RUNNER;
 
   static {
     EMPTY_CONFIG = configFromString("{}");
@@ -72,10 +101,12 @@ class HookResourceTest {
   void setUp() {
 
     GITLAB_HAPPY = mock(GitLab.class);
-    when(GITLAB_HAPPY.fetchCircleCiConfig(anyInt(), anyString())).thenReturn(Optional.of("config"));
+    when(GITLAB_HAPPY.fetchCircleCiConfig(anyInt(), anyString(), anyString(), any()))
+        .thenReturn(Optional.of("config"));
 
     GITLAB_SAD = mock(GitLab.class);
-    when(GITLAB_SAD.fetchCircleCiConfig(anyInt(), anyString())).thenReturn(Optional.empty());
+    when(GITLAB_SAD.fetchCircleCiConfig(anyInt(), anyString(), anyString(), any()))
+        .thenReturn(Optional.empty());
 
     CIRCLECI_HAPPY = mock(CircleCi.class);
     CIRCLECI_SAD = mock(CircleCi.class);
@@ -98,7 +129,7 @@ class HookResourceTest {
             anyString()))
         .thenThrow(new RuntimeException("bad things happened"));
 
-    JOB_RUNNER = mock(ScheduledExecutorService.class);
+    JOB_RUNNER = mock(JobScheduler.class);
   }
 
   private static ConnectorConfiguration configFromString(String config) {
@@ -109,10 +140,19 @@ class HookResourceTest {
     }
   }
 
+  private static HookResponse process(HookResource hr, String body, String type, String token)
+      throws Exception {
+    return (HookResponse) hr.processHook(stream(body), type, token).getEntity();
+  }
+
+  private static InputStream stream(String body) {
+    return new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8));
+  }
+
   @Test
   void wePassTheRightArgumentsToTriggerPipelineWhenProcessingHook() throws Exception {
     HookResource hr = new HookResource(GITLAB_HAPPY, CIRCLECI_HAPPY, JOB_RUNNER, MINIMAL_CONFIG);
-    hr.processHook(GITLAB_DOCS_HOOK, "Push Hook", null);
+    process(hr, GITLAB_DOCS_HOOK, "Push Hook", null);
     verify(CIRCLECI_HAPPY)
         .triggerPipeline(
             any(Pipeline.class),
@@ -127,7 +167,7 @@ class HookResourceTest {
   @Test
   void weCanProcessTheHookFromGitlabDocs() throws Exception {
     HookResource hr = new HookResource(GITLAB_HAPPY, CIRCLECI_HAPPY, JOB_RUNNER, MINIMAL_CONFIG);
-    HookResponse response = hr.processHook(GITLAB_DOCS_HOOK, "Push Hook", null);
+    HookResponse response = process(hr, GITLAB_DOCS_HOOK, "Push Hook", null);
     assertEquals(HookResponse.Status.SUBMITTED, response.status());
   }
 
@@ -135,21 +175,21 @@ class HookResourceTest {
   void weCanProcessTheHookFromGitlabDocsWhenItSuppliesATokenAndWeAgree() throws Exception {
     HookResource hr =
         new HookResource(GITLAB_HAPPY, CIRCLECI_HAPPY, JOB_RUNNER, CONFIG_WITH_SECRET);
-    HookResponse response = hr.processHook(GITLAB_DOCS_HOOK, "Push Hook", "super-secret");
+    HookResponse response = process(hr, GITLAB_DOCS_HOOK, "Push Hook", "super-secret");
     assertEquals(HookResponse.Status.SUBMITTED, response.status());
   }
 
   @Test
   void weCanProcessTheHookFromGitlabDocsWhenItSuppliesATokenAndWeDoNotCare() throws Exception {
     HookResource hr = new HookResource(GITLAB_HAPPY, CIRCLECI_HAPPY, JOB_RUNNER, MINIMAL_CONFIG);
-    HookResponse response = hr.processHook(GITLAB_DOCS_HOOK, "Push Hook", "token-for-us-to-ignore");
+    HookResponse response = process(hr, GITLAB_DOCS_HOOK, "Push Hook", "token-for-us-to-ignore");
     assertEquals(HookResponse.Status.SUBMITTED, response.status());
   }
 
   @Test
   void ignoreTheHookWhenWeCannotFindACircleCIConfig() throws Exception {
     HookResource hr = new HookResource(GITLAB_SAD, CIRCLECI_HAPPY, JOB_RUNNER, MINIMAL_CONFIG);
-    HookResponse response = hr.processHook(GITLAB_DOCS_HOOK, "Push Hook", "token-for-us-to-ignore");
+    HookResponse response = process(hr, GITLAB_DOCS_HOOK, "Push Hook", "token-for-us-to-ignore");
     assertEquals(HookResponse.Status.IGNORED, response.status());
   }
 
@@ -158,7 +198,8 @@ class HookResourceTest {
     HookResource hr =
         new HookResource(GITLAB_HAPPY, CIRCLECI_HAPPY, JOB_RUNNER, CONFIG_WITH_SECRET);
     assertThrows(
-        WebApplicationException.class, () -> hr.processHook(GITLAB_DOCS_HOOK, "Push Hook", null));
+        WebApplicationException.class,
+        () -> hr.processHook(stream(GITLAB_DOCS_HOOK), "Push Hook", null));
   }
 
   @Test
@@ -167,7 +208,7 @@ class HookResourceTest {
         new HookResource(GITLAB_HAPPY, CIRCLECI_HAPPY, JOB_RUNNER, CONFIG_WITH_SECRET);
     assertThrows(
         WebApplicationException.class,
-        () -> hr.processHook(GITLAB_DOCS_HOOK, "Push Hook", "wrong-token"));
+        () -> hr.processHook(stream(GITLAB_DOCS_HOOK), "Push Hook", "wrong-token"));
   }
 
   @Test
@@ -183,7 +224,7 @@ class HookResourceTest {
             "Pipeline Hook",
             "Job Hook");
     for (String nonPushHookType : nonPushHookTypes) {
-      HookResponse response = hr.processHook("{}", nonPushHookType, null);
+      HookResponse response = process(hr, "{}", nonPushHookType, null);
       assertEquals(HookResponse.Status.IGNORED, response.status());
     }
   }
@@ -191,6 +232,342 @@ class HookResourceTest {
   @Test
   void ifThereIsNoGitlabEventHeaderWeThrow400() throws Exception {
     HookResource hr = new HookResource(GITLAB_HAPPY, CIRCLECI_HAPPY, JOB_RUNNER, MINIMAL_CONFIG);
-    assertThrows(WebApplicationException.class, () -> hr.processHook("{}", null, null));
+    assertThrows(WebApplicationException.class, () -> hr.processHook(stream("{}"), null, null));
+  }
+
+  @Test
+  void asyncProcessingReturns202AndTriggersOnAWorker() throws Exception {
+    HookResource hr =
+        new HookResource(
+            new PushHookProcessor(GITLAB_HAPPY, CIRCLECI_HAPPY, JOB_RUNNER, MINIMAL_CONFIG),
+            MoreExecutors.newDirectExecutorService(),
+            JOB_RUNNER,
+            new MetricRegistry(),
+            MINIMAL_CONFIG);
+    Response response = hr.processHook(stream(GITLAB_DOCS_HOOK), "Push Hook", null);
+    assertEquals(202, response.getStatus());
+    assertEquals(HookResponse.Status.QUEUED, ((HookResponse) response.getEntity()).status());
+    verify(CIRCLECI_HAPPY)
+        .triggerPipeline(
+            any(Pipeline.class),
+            anyString(),
+            anyString(),
+            anyString(),
+            anyString(),
+            anyString(),
+            anyString());
+  }
+
+  @Test
+  void asyncProcessingSurvivesFailuresOnTheWorker() throws Exception {
+    HookResource hr =
+        new HookResource(
+            new PushHookProcessor(GITLAB_HAPPY, CIRCLECI_SAD, JOB_RUNNER, MINIMAL_CONFIG),
+            MoreExecutors.newDirectExecutorService(),
+            JOB_RUNNER,
+            new MetricRegistry(),
+            MINIMAL_CONFIG);
+    Response response = hr.processHook(stream(GITLAB_DOCS_HOOK), "Push Hook", null);
+    assertEquals(202, response.getStatus());
+  }
+
+  @Test
+  void asyncProcessingReturns503WhenTheQueueIsFull() {
+    ExecutorService full = mock(ExecutorService.class);
+    doThrow(new RejectedExecutionException()).when(full).execute(any(Runnable.class));
+    HookResource hr =
+        new HookResource(
+            new PushHookProcessor(GITLAB_HAPPY, CIRCLECI_HAPPY, JOB_RUNNER, MINIMAL_CONFIG),
+            full,
+            JOB_RUNNER,
+            new MetricRegistry(),
+            MINIMAL_CONFIG);
+    WebApplicationException e =
+        assertThrows(
+            WebApplicationException.class,
+            () -> hr.processHook(stream(GITLAB_DOCS_HOOK), "Push Hook", null));
+    assertEquals(503, e.getResponse().getStatus());
+    assertNotNull(e.getResponse().getHeaderString(HttpHeaders.RETRY_AFTER));
+  }
+
+  @Test
+  void asyncProcessingStillRejectsUnknownProjectsSynchronously() {
+    HookResource hr =
+        new HookResource(
+            new PushHookProcessor(GITLAB_HAPPY, CIRCLECI_HAPPY, JOB_RUNNER, EMPTY_CONFIG),
+            MoreExecutors.newDirectExecutorService(),
+            JOB_RUNNER,
+            new MetricRegistry(),
+            EMPTY_CONFIG);
+    assertThrows(
+        NotFoundException.class, () -> hr.processHook(stream(GITLAB_DOCS_HOOK), "Push Hook", null));
+  }
+
+  @Test
+  void journaledHooksAreMarkedDoneOnceTriggered(@TempDir Path directory) throws Exception {
+    HookJournal journal = new HookJournal(directory, 64 * 1024);
+    journal.recover();
+    HookResource hr =
+        new HookResource(
+            new PushHookProcessor(
+                GITLAB_HAPPY, CIRCLECI_HAPPY, JOB_RUNNER, journal, MINIMAL_CONFIG),
+            null,
+            JOB_RUNNER,
+            new MetricRegistry(),
+            MINIMAL_CONFIG);
+    process(hr, GITLAB_DOCS_HOOK, "Push Hook", null);
+    journal.stop();
+
+    assertEquals(List.of(), new HookJournal(directory, 64 * 1024).recover());
+  }
+
+  @Test
+  void journaledHooksAreMarkedDoneIfTheTriggerFailsWhileGitLabWaits(@TempDir Path directory)
+      throws Exception {
+    HookJournal journal = new HookJournal(directory, 64 * 1024);
+    journal.recover();
+    HookResource hr =
+        new HookResource(
+            new PushHookProcessor(GITLAB_HAPPY, CIRCLECI_SAD, JOB_RUNNER, journal, MINIMAL_CONFIG),
+            null,
+            JOB_RUNNER,
+            new MetricRegistry(),
+            MINIMAL_CONFIG);
+    // GitLab sees the failure and delivers the hook again, so there is nothing to replay
+    assertThrows(
+        RuntimeException.class, () -> hr.processHook(stream(GITLAB_DOCS_HOOK), "Push Hook", null));
+    journal.stop();
+
+    assertEquals(List.of(), new HookJournal(directory, 64 * 1024).recover());
+  }
+
+  @Test
+  void queuedHooksAreRetriedAndThenGivenUpOn(@TempDir Path directory) throws Exception {
+    HookJournal journal = new HookJournal(directory, 64 * 1024);
+    journal.recover();
+    PushHookProcessor processor =
+        new PushHookProcessor(GITLAB_HAPPY, CIRCLECI_SAD, JOB_RUNNER, journal, MINIMAL_CONFIG);
+    PushHook hook = PushHookParser.parse(stream(GITLAB_DOCS_HOOK));
+    processor.accept(hook);
+
+    processor.processInBackground(hook);
+    ArgumentCaptor<Runnable> retry = ArgumentCaptor.forClass(Runnable.class);
+    for (int i = 1; i < PushHookProcessor.MAX_ATTEMPTS; i++) {
+      verify(JOB_RUNNER, times(i)).schedule(retry.capture(), anyLong());
+      retry.getValue().run();
+    }
+    ArgumentCaptor<Long> delays = ArgumentCaptor.forClass(Long.class);
+    verify(JOB_RUNNER, times(PushHookProcessor.MAX_ATTEMPTS - 1)).schedule(any(), delays.capture());
+    assertEquals(List.of(1000L, 2000L, 4000L, 8000L), delays.getAllValues());
+    journal.stop();
+
+    assertEquals(List.of(), new HookJournal(directory, 64 * 1024).recover());
+  }
+
+  @Test
+  void replayedHooksAreCoalescedInTheOrderTheyArrived() throws Exception {
+    ConnectorConfiguration config =
+        configFromString(
+            "{"
+                + "\"hooks\":{\"coalescingWindowMillis\":1000},"
+                + "\"domainMapping\":{\"repositories\":{\"15\": \"gh/foo/bar\"}}"
+                + "}");
+    PushHookProcessor processor = mock(PushHookProcessor.class);
+    HookResource hr = new HookResource(processor, null, JOB_RUNNER, new MetricRegistry(), config);
+    PushHook older = PushHookParser.parse(stream(GITLAB_DOCS_HOOK));
+    PushHook newer =
+        ImmutablePushHook.copyOf(older)
+            .withBefore(older.after())
+            .withAfter("ffffffffffffffffffffffffffffffffffffffff");
+
+    hr.replay(List.of(older, newer));
+    // They are already in the journal, and the older push is superseded
+    verify(processor, never()).accept(any());
+    verify(processor).discard(older);
+    ArgumentCaptor<Runnable> flush = ArgumentCaptor.forClass(Runnable.class);
+    verify(JOB_RUNNER).schedule(flush.capture(), eq(1000L));
+    flush.getValue().run();
+    verify(processor).processInBackground(newer);
+    verify(processor, never()).processInBackground(older);
+  }
+
+  @Test
+  void redeliveredHooksAreNotProcessedAgain() throws Exception {
+    HookResource hr = new HookResource(GITLAB_HAPPY, CIRCLECI_HAPPY, JOB_RUNNER, MINIMAL_CONFIG);
+    HookResponse first = process(hr, GITLAB_DOCS_HOOK, "Push Hook", null);
+    HookResponse second = process(hr, GITLAB_DOCS_HOOK, "Push Hook", null);
+    assertEquals(first, second);
+    verify(GITLAB_HAPPY, times(1)).fetchCircleCiConfig(anyInt(), anyString(), anyString(), any());
+    verify(CIRCLECI_HAPPY, times(1))
+        .triggerPipeline(
+            any(Pipeline.class),
+            anyString(),
+            anyString(),
+            anyString(),
+            anyString(),
+            anyString(),
+            anyString());
+  }
+
+  @Test
+  void redeliveredHooksAreProcessedAgainIfDeduplicationIsOff() throws Exception {
+    ConnectorConfiguration config =
+        configFromString(
+            "{"
+                + "\"hooks\":{\"deduplicationWindowSeconds\":0},"
+                + "\"domainMapping\":{\"repositories\":{\"15\": \"gh/foo/bar\"}}"
+                + "}");
+    HookResource hr = new HookResource(GITLAB_HAPPY, CIRCLECI_HAPPY, JOB_RUNNER, config);
+    process(hr, GITLAB_DOCS_HOOK, "Push Hook", null);
+    process(hr, GITLAB_DOCS_HOOK, "Push Hook", null);
+    verify(GITLAB_HAPPY, times(2)).fetchCircleCiConfig(anyInt(), anyString(), anyString(), any());
+  }
+
+  @Test
+  void coalescedPushesReturn202AndTriggerWhenTheWindowCloses() throws Exception {
+    ConnectorConfiguration config =
+        configFromString(
+            "{"
+                + "\"hooks\":{\"coalescingWindowMillis\":1000},"
+                + "\"domainMapping\":{\"repositories\":{\"15\": \"gh/foo/bar\"}}"
+                + "}");
+    HookResource hr = new HookResource(GITLAB_HAPPY, CIRCLECI_HAPPY, JOB_RUNNER, config);
+    Response response = hr.processHook(stream(GITLAB_DOCS_HOOK), "Push Hook", null);
+    assertEquals(202, response.getStatus());
+    verify(GITLAB_HAPPY, never()).fetchCircleCiConfig(anyInt(), anyString(), anyString(), any());
+
+    ArgumentCaptor<Runnable> flush = ArgumentCaptor.forClass(Runnable.class);
+    verify(JOB_RUNNER).schedule(flush.capture(), eq(1000L));
+    flush.getValue().run();
+    verify(GITLAB_HAPPY, times(1)).fetchCircleCiConfig(anyInt(), anyString(), anyString(), any());
+  }
+
+  @Test
+  void hooksLargerThanTheLimitAreRejectedWith413() {
+    ConnectorConfiguration config =
+        configFromString(
+            "{"
+                + "\"hooks\":{\"maxPayloadBytes\":1024},"
+                + "\"domainMapping\":{\"repositories\":{\"15\": \"gh/foo/bar\"}}"
+                + "}");
+    HookResource hr = new HookResource(GITLAB_HAPPY, CIRCLECI_HAPPY, JOB_RUNNER, config);
+    WebApplicationException e =
+        assertThrows(
+            WebApplicationException.class,
+            () -> hr.processHook(stream(GITLAB_DOCS_HOOK), "Push Hook", null));
+    assertEquals(413, e.getResponse().getStatus());
+    verify(GITLAB_HAPPY, never()).fetchCircleCiConfig(anyInt(), anyString(), anyString(), any());
+  }
+
+  @Test
+  void hooksOverTheRateLimitAreRejectedWith429() throws Exception {
+    ConnectorConfiguration config =
+        configFromString(
+            "{"
+                + "\"hooks\":{\"deduplicationWindowSeconds\":0},"
+                + "\"rateLimits\":{\"perProject\":{\"hooksPerSecond\":0.001,\"burst\":1}},"
+                + "\"domainMapping\":{\"repositories\":{\"15\": \"gh/foo/bar\"}}"
+                + "}");
+    HookResource hr = new HookResource(GITLAB_HAPPY, CIRCLECI_HAPPY, JOB_RUNNER, config);
+    process(hr, GITLAB_DOCS_HOOK, "Push Hook", null);
+    WebApplicationException e =
+        assertThrows(
+            WebApplicationException.class,
+            () -> hr.processHook(stream(GITLAB_DOCS_HOOK), "Push Hook", null));
+    assertEquals(429, e.getResponse().getStatus());
+    assertNotNull(e.getResponse().getHeaderString(HttpHeaders.RETRY_AFTER));
+    verify(GITLAB_HAPPY, times(1)).fetchCircleCiConfig(anyInt(), anyString(), anyString(), any());
+  }
+
+  @Test
+  void redeliveriesAreAnsweredWithoutUsingUpTheRateLimit() throws Exception {
+    ConnectorConfiguration config =
+        configFromString(
+            "{"
+                + "\"rateLimits\":{\"perProject\":{\"hooksPerSecond\":0.001,\"burst\":1}},"
+                + "\"domainMapping\":{\"repositories\":{\"15\": \"gh/foo/bar\"}}"
+                + "}");
+    HookResource hr = new HookResource(GITLAB_HAPPY, CIRCLECI_HAPPY, JOB_RUNNER, config);
+    HookResponse first = process(hr, GITLAB_DOCS_HOOK, "Push Hook", null);
+    HookResponse second = process(hr, GITLAB_DOCS_HOOK, "Push Hook", null);
+    assertEquals(first, second);
+  }
+
+  @Test
+  void filteredPushesAreIgnoredWithoutCallingGitLab() throws Exception {
+    ConnectorConfiguration config =
+        configFromString(
+            "{"
+                + "\"filters\":{\"defaults\":{\"excludeBranches\":[\"master\"]}},"
+                + "\"domainMapping\":{\"repositories\":{\"15\": \"gh/foo/bar\"}}"
+                + "}");
+    HookResource hr = new HookResource(GITLAB_HAPPY, CIRCLECI_HAPPY, JOB_RUNNER, config);
+    HookResponse response = process(hr, GITLAB_DOCS_HOOK, "Push Hook", null);
+    assertEquals(HookResponse.Status.IGNORED, response.status());
+    verify(GITLAB_HAPPY, never()).fetchCircleCiConfig(anyInt(), anyString(), anyString(), any());
+  }
+
+  @Test
+  void theParentCommitIsPassedOnOnlyIfTheConfigCannotHaveChanged() throws Exception {
+    ObjectNode hook = (ObjectNode) MAPPER.readTree(GITLAB_DOCS_HOOK);
+    hook.put("total_commits_count", 2);
+    HookResource hr = new HookResource(GITLAB_HAPPY, CIRCLECI_HAPPY, JOB_RUNNER, MINIMAL_CONFIG);
+    process(hr, MAPPER.writeValueAsString(hook), "Push Hook", null);
+    verify(GITLAB_HAPPY)
+        .fetchCircleCiConfig(
+            15,
+            "refs/heads/master",
+            "da1560886d4f094c3e6c9ef40349f7d38b5d27d7",
+            "95790bf891e76fee5e1747ab589903a6a1f80f22");
+
+    ((ArrayNode) hook.get("commits").get(0).get("modified")).add(".circleci/config.yml");
+    hook.put("after", "ffffffffffffffffffffffffffffffffffffffff");
+    process(hr, MAPPER.writeValueAsString(hook), "Push Hook", null);
+    verify(GITLAB_HAPPY)
+        .fetchCircleCiConfig(
+            15, "refs/heads/master", "ffffffffffffffffffffffffffffffffffffffff", null);
+  }
+
+  @Test
+  void aBranchRecreatedAfterItWasDeletedHasItsConfigFetched() throws Exception {
+    ConnectorConfiguration config =
+        configFromString(
+            "{"
+                + "\"filters\":{\"defaults\":{\"skipBranchDeletions\":false}},"
+                + "\"domainMapping\":{\"repositories\":{\"15\": \"gh/foo/bar\"}}"
+                + "}");
+    String zeros = "0000000000000000000000000000000000000000";
+    GitLabApi gitLabApi = mock(GitLabApi.class);
+    RepositoryFileApi files = mock(RepositoryFileApi.class);
+    when(gitLabApi.getRepositoryFileApi()).thenReturn(files);
+    when(files.getRawFile(15, zeros, ".circleci/config.yml"))
+        .thenThrow(new GitLabApiException("Not found", 404));
+    when(files.getRawFile(15, "da1560886d4f094c3e6c9ef40349f7d38b5d27d7", ".circleci/config.yml"))
+        .thenAnswer(
+            invocation ->
+                stream(FixtureHelpers.fixture("circleci-config/valid-simple.input.yaml")));
+    GitLab gitLab =
+        new GitLab(
+            gitLabApi,
+            null,
+            new MissingConfigCache(Duration.ofMinutes(1), 100, new MetricRegistry()));
+    HookResource hr = new HookResource(gitLab, CIRCLECI_HAPPY, JOB_RUNNER, config);
+
+    ObjectNode deletion = (ObjectNode) MAPPER.readTree(GITLAB_DOCS_HOOK);
+    deletion.put("before", "da1560886d4f094c3e6c9ef40349f7d38b5d27d7");
+    deletion.put("after", zeros);
+    deletion.put("total_commits_count", 0);
+    deletion.putArray("commits");
+    assertEquals(
+        HookResponse.Status.IGNORED,
+        process(hr, MAPPER.writeValueAsString(deletion), "Push Hook", null).status());
+
+    // Pushing the branch again, with commits which don't touch the config
+    ObjectNode creation = (ObjectNode) MAPPER.readTree(GITLAB_DOCS_HOOK);
+    creation.put("before", zeros);
+    creation.put("total_commits_count", 2);
+    assertEquals(
+        HookResponse.Status.SUBMITTED,
+        process(hr, MAPPER.writeValueAsString(creation), "Push Hook", null).status());
   }
 }
@@ -0,0 +1,111 @@
+package com.circleci.connector.gitlab.singleorg.resources;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import com.circleci.connector.gitlab.singleorg.api.ImmutablePushHook;
+import com.circleci.connector.gitlab.singleorg.api.PushHook;
+import com.circleci.connector.gitlab.singleorg.scheduler.JobScheduler;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.dropwizard.jackson.Jackson;
+import io.dropwizard.testing.FixtureHelpers;
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+class PushCoalescerTest {
+  private static final ObjectMapper MAPPER = Jackson.newObjectMapper();
+  private static final long WINDOW = 5000;
+
+  private PushHookProcessor processor;
+  private JobScheduler jobScheduler;
+  private PushCoalescer coalescer;
+
+  private static ImmutablePushHook hook() throws Exception {
+    return MAPPER.readValue(
+        FixtureHelpers.fixture("gitlab-push-hook-from-docs.json"), ImmutablePushHook.class);
+  }
+
+  private static PushHook push(String before, String after) throws Exception {
+    return hook().withBefore(before).withAfter(after);
+  }
+
+  @BeforeEach
+  void setUp() {
+    processor = mock(PushHookProcessor.class);
+    jobScheduler = mock(JobScheduler.class);
+    coalescer = new PushCoalescer(processor, jobScheduler, WINDOW);
+  }
+
+  private List<Runnable> scheduledJobs(int expected) {
+    ArgumentCaptor<Runnable> jobs = ArgumentCaptor.forClass(Runnable.class);
+    verify(jobScheduler, times(expected)).schedule(jobs.capture(), eq(WINDOW));
+    return jobs.getAllValues();
+  }
+
+  @Test
+  void onlyTheNewestPushInTheWindowIsProcessed() throws Exception {
+    PushHook first = push("a", "b");
+    PushHook second = push("b", "c");
+    PushHook third = push("c", "d");
+
+    coalescer.submit(first);
+    coalescer.submit(second);
+    coalescer.submit(third);
+    verify(processor, never()).processInBackground(any(PushHook.class));
+    verify(processor).discard(first);
+    verify(processor).discard(second);
+
+    scheduledJobs(1).get(0).run();
+    verify(processor).processInBackground(third);
+    verify(processor, times(1)).processInBackground(any(PushHook.class));
+  }
+
+  @Test
+  void anOlderPushDeliveredLateIsDiscarded() throws Exception {
+    PushHook older = push("a", "b");
+    PushHook newer = push("b", "c");
+
+    coalescer.submit(newer);
+    coalescer.submit(older);
+    verify(processor).discard(older);
+
+    scheduledJobs(1).get(0).run();
+    verify(processor).processInBackground(newer);
+  }
+
+  @Test
+  void branchesAreCoalescedSeparately() throws Exception {
+    PushHook master = push("a", "b");
+    PushHook feature = hook().withRef("refs/heads/feature").withBefore("x").withAfter("y");
+
+    coalescer.submit(master);
+    coalescer.submit(feature);
+    verify(processor, never()).discard(any(PushHook.class));
+
+    scheduledJobs(2).forEach(Runnable::run);
+    verify(processor).processInBackground(master);
+    verify(processor).processInBackground(feature);
+  }
+
+  @Test
+  void aNewWindowOpensAfterTheLastOneCloses() throws Exception {
+    PushHook first = push("a", "b");
+    PushHook second = push("b", "c");
+
+    coalescer.submit(first);
+    scheduledJobs(1).get(0).run();
+    coalescer.submit(second);
+
+    List<Runnable> jobs = scheduledJobs(2);
+    jobs.get(1).run();
+    verify(processor).processInBackground(first);
+    verify(processor).processInBackground(second);
+    verify(processor, never()).discard(any(PushHook.class));
+  }
+}
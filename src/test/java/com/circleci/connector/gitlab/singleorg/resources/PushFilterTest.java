@@ -0,0 +1,140 @@
+package com.circleci.connector.gitlab.singleorg.resources;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.circleci.connector.gitlab.singleorg.ConnectorConfiguration;
+import com.circleci.connector.gitlab.singleorg.api.ImmutableCommit;
+import com.circleci.connector.gitlab.singleorg.api.ImmutableProject;
+import com.circleci.connector.gitlab.singleorg.api.ImmutablePushHook;
+import com.circleci.connector.gitlab.singleorg.api.PushHook;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.dropwizard.jackson.Jackson;
+import io.dropwizard.testing.FixtureHelpers;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class PushFilterTest {
+  private static final ObjectMapper MAPPER = Jackson.newObjectMapper();
+
+  private static ImmutablePushHook hook() throws Exception {
+    return MAPPER.readValue(
+        FixtureHelpers.fixture("gitlab-push-hook-from-docs.json"), ImmutablePushHook.class);
+  }
+
+  private static PushFilter filter(String json) throws Exception {
+    return new PushFilter(MAPPER.readValue(json, ConnectorConfiguration.Filters.class));
+  }
+
+  private static ImmutableCommit commit(String id, String message, String... modified) {
+    return ImmutableCommit.builder().id(id).message(message).addModified(modified).build();
+  }
+
+  private static ImmutablePushHook pushChanging(String... modified) throws Exception {
+    return hook()
+        .withCommits(
+            List.of(commit("da1560886d4f094c3e6c9ef40349f7d38b5d27d7", "change", modified)))
+        .withTotalCommitsCount(1);
+  }
+
+  @Test
+  void byDefaultOrdinaryPushesAreBuilt() throws Exception {
+    assertNull(filter("{}").skipReason(hook()));
+  }
+
+  @Test
+  void byDefaultBranchDeletionsAreSkipped() throws Exception {
+    PushHook deletion =
+        hook().withAfter("0000000000000000000000000000000000000000").withCommits(List.of());
+    assertTrue(deletion.isBranchDeletion());
+    assertNotNull(filter("{}").skipReason(deletion));
+    assertNull(filter("{\"defaults\":{\"skipBranchDeletions\":false}}").skipReason(deletion));
+  }
+
+  @Test
+  void byDefaultCiSkipInTheHeadCommitIsHonored() throws Exception {
+    String head = "da1560886d4f094c3e6c9ef40349f7d38b5d27d7";
+    PushFilter filter = filter("{}");
+    assertNotNull(
+        filter.skipReason(hook().withCommits(List.of(commit(head, "Fix typo [ci skip]")))));
+    assertNotNull(
+        filter.skipReason(hook().withCommits(List.of(commit(head, "[SKIP CI] docs only")))));
+    assertNull(filter.skipReason(hook().withCommits(List.of(commit(head, "Fix [ci] skip")))));
+
+    // Only the head commit counts
+    assertNull(
+        filter.skipReason(
+            hook()
+                .withCommits(
+                    List.of(commit("earlier", "WIP [ci skip]"), commit(head, "Finish it")))));
+
+    assertNull(
+        filter("{\"defaults\":{\"honorCiSkip\":false}}")
+            .skipReason(hook().withCommits(List.of(commit(head, "Fix typo [ci skip]")))));
+  }
+
+  @Test
+  void branchesMustBeIncludedAndNotExcluded() throws Exception {
+    PushFilter filter =
+        filter(
+            "{\"defaults\":{"
+                + "\"includeBranches\":[\"master\",\"release/*\"],"
+                + "\"excludeBranches\":[\"release/old-*\"]"
+                + "}}");
+    assertNull(filter.skipReason(hook()));
+    assertNull(filter.skipReason(hook().withRef("refs/heads/release/1.0")));
+    assertNotNull(filter.skipReason(hook().withRef("refs/heads/feature")));
+    assertNotNull(filter.skipReason(hook().withRef("refs/heads/release/1.0/hotfix")));
+    assertNotNull(filter.skipReason(hook().withRef("refs/heads/release/old-1")));
+  }
+
+  @Test
+  void pushesMustChangeAnIncludedPath() throws Exception {
+    PushFilter filter = filter("{\"defaults\":{\"includePaths\":[\"src/**\",\".circleci/*\"]}}");
+    assertNull(filter.skipReason(pushChanging("README.md", "src/main/App.java")));
+    assertNull(filter.skipReason(pushChanging(".circleci/config.yml")));
+    assertNotNull(filter.skipReason(pushChanging("README.md", "docs/index.md")));
+  }
+
+  @Test
+  void pushesWhichOnlyChangeExcludedPathsAreSkipped() throws Exception {
+    PushFilter filter = filter("{\"defaults\":{\"excludePaths\":[\"**/*.md\",\"docs/**\"]}}");
+    assertNotNull(filter.skipReason(pushChanging("README.md", "docs/img/logo.png")));
+    assertNotNull(filter.skipReason(pushChanging("src/NOTES.md")));
+    assertNull(filter.skipReason(pushChanging("README.md", "pom.xml")));
+  }
+
+  @Test
+  void pathsAreNotCheckedIfSomeCommitsAreMissing() throws Exception {
+    PushFilter filter = filter("{\"defaults\":{\"includePaths\":[\"src/**\"]}}");
+    PushHook truncated = pushChanging("README.md").withTotalCommitsCount(25);
+    assertNull(filter.skipReason(truncated));
+  }
+
+  @Test
+  void projectsMayHaveTheirOwnRules() throws Exception {
+    PushFilter filter =
+        filter(
+            "{"
+                + "\"defaults\":{\"includeBranches\":[\"main\"]},"
+                + "\"projects\":{\"15\":{\"includeBranches\":[\"master\"]}}"
+                + "}");
+    assertNull(filter.skipReason(hook()));
+    assertNotNull(
+        filter.skipReason(
+            hook().withProject(ImmutableProject.copyOf(hook().project()).withId(16))));
+  }
+
+  @Test
+  void globsTranslateToRegularExpressions() {
+    assertEquals("[^/]*\\.md", PushFilter.globToRegex("*.md"));
+    assertEquals("(?:.*/)?[^/]*\\.md", PushFilter.globToRegex("**/*.md"));
+    assertEquals("docs/.*", PushFilter.globToRegex("docs/**"));
+    assertEquals("v[^/]\\.x", PushFilter.globToRegex("v?.x"));
+    assertTrue("a/b/c.md".matches(PushFilter.globToRegex("**/*.md")));
+    assertFalse("a/b/c.mdx".matches(PushFilter.globToRegex("**/*.md")));
+  }
+}
@@ -0,0 +1,69 @@
+package com.circleci.connector.gitlab.singleorg.scheduler;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class BoundedExecutorTest {
+  private final ExecutorService threads = Executors.newCachedThreadPool();
+  private final BoundedExecutor executor = new BoundedExecutor(threads, 2);
+
+  @AfterEach
+  void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  void tasksBeyondTheLimitAreRejectedUntilOthersFinish() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch finished = new CountDownLatch(2);
+    Runnable blocked =
+        () -> {
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          finished.countDown();
+        };
+    executor.execute(blocked);
+    executor.execute(blocked);
+    assertEquals(2, executor.getInFlight());
+    assertThrows(RejectedExecutionException.class, () -> executor.execute(() -> {}));
+
+    release.countDown();
+    assertTrue(finished.await(5, TimeUnit.SECONDS));
+    // The permits are given back after each task has run
+    for (int i = 0; i < 100 && executor.getInFlight() > 0; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(0, executor.getInFlight());
+    assertEquals("done", executor.submit(() -> "done").get(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  void aTaskWhichFailsStillGivesBackItsPermit() throws Exception {
+    executor.execute(
+        () -> {
+          throw new IllegalStateException("Oops");
+        });
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+    assertEquals(0, executor.getInFlight());
+  }
+
+  @Test
+  void tasksRejectedByTheDelegateDoNotHoldAPermit() {
+    threads.shutdown();
+    assertThrows(RejectedExecutionException.class, () -> executor.execute(() -> {}));
+    assertEquals(0, executor.getInFlight());
+  }
+}
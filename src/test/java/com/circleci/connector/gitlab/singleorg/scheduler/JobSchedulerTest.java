@@ -0,0 +1,213 @@
+package com.circleci.connector.gitlab.singleorg.scheduler;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.codahale.metrics.MetricRegistry;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class JobSchedulerTest {
+  private final MetricRegistry metrics = new MetricRegistry();
+  private final AtomicReference<Thread> timerThread = new AtomicReference<>();
+  private final ThreadFactory timerThreads =
+      runnable -> {
+        Thread thread = new Thread(runnable, "test-timer");
+        thread.setDaemon(true);
+        timerThread.set(thread);
+        return thread;
+      };
+  private ExecutorService workers = Executors.newFixedThreadPool(2);
+  private JobScheduler scheduler;
+
+  @AfterEach
+  void tearDown() {
+    if (scheduler != null) {
+      scheduler.stop();
+    }
+    workers.shutdownNow();
+  }
+
+  private JobScheduler start(int dispatchBatchSize) {
+    scheduler = new JobScheduler(timerThreads, workers, 1, 64, dispatchBatchSize, metrics);
+    scheduler.start();
+    return scheduler;
+  }
+
+  @Test
+  void jobsRunOnAWorkerThreadRatherThanTheTimer() throws Exception {
+    JobScheduler scheduler = start(1);
+
+    AtomicReference<Thread> jobThread = new AtomicReference<>();
+    CountDownLatch done = new CountDownLatch(1);
+    scheduler.schedule(
+        () -> {
+          jobThread.set(Thread.currentThread());
+          done.countDown();
+        },
+        10);
+
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertNotEquals(timerThread.get(), jobThread.get());
+  }
+
+  @Test
+  void aBlockingJobDoesNotDelayOtherJobs() throws Exception {
+    JobScheduler scheduler = start(1);
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(1);
+
+    scheduler.schedule(
+        () -> {
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        },
+        0);
+    scheduler.schedule(done::countDown, 10);
+
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    release.countDown();
+  }
+
+  @Test
+  void lagIsRecordedForEveryJob() throws Exception {
+    JobScheduler scheduler = start(1);
+    CountDownLatch done = new CountDownLatch(3);
+    for (int i = 0; i < 3; i++) {
+      scheduler.schedule(done::countDown, 1);
+    }
+
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertEquals(3, metrics.timer(MetricRegistry.name(JobScheduler.class, "timer-lag")).getCount());
+    assertEquals(
+        3, metrics.timer(MetricRegistry.name(JobScheduler.class, "worker-lag")).getCount());
+  }
+
+  @Test
+  void jobsRejectedByAFullQueueAreRetried() throws Exception {
+    workers = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(1));
+    JobScheduler scheduler = start(1);
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(3);
+
+    Runnable blocked =
+        () -> {
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          done.countDown();
+        };
+    scheduler.schedule(blocked, 0);
+    scheduler.schedule(blocked, 0);
+    scheduler.schedule(blocked, 0);
+
+    Thread.sleep(200);
+    assertTrue(metrics.meter(MetricRegistry.name(JobScheduler.class, "rejected")).getCount() > 0);
+    release.countDown();
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  void aJobCanStillBeCancelledAfterTheWorkersRejectedIt() throws Exception {
+    workers = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(1));
+    JobScheduler scheduler = start(1);
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch cancelled = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(1);
+
+    Runnable blocked =
+        () -> {
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        };
+    scheduler.schedule(blocked, 0);
+    scheduler.schedule(blocked, 0);
+    TimingWheel.Timeout timeout = scheduler.schedule(cancelled::countDown, 0);
+
+    Thread.sleep(200);
+    assertTrue(metrics.meter(MetricRegistry.name(JobScheduler.class, "rejected")).getCount() > 0);
+    assertTrue(timeout.cancel());
+    release.countDown();
+    scheduler.schedule(done::countDown, 200);
+
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertEquals(1, cancelled.getCount());
+    assertFalse(timeout.cancel());
+    assertEquals(
+        0, metrics.getGauges().get(MetricRegistry.name(JobScheduler.class, "pending")).getValue());
+  }
+
+  @Test
+  void anUncaughtErrorInAJobDoesNotKillTheWorker() throws Exception {
+    workers = Executors.newSingleThreadExecutor();
+    JobScheduler scheduler = start(1);
+    CountDownLatch done = new CountDownLatch(1);
+    scheduler.schedule(
+        () -> {
+          throw new RuntimeException("boom");
+        },
+        0);
+    scheduler.schedule(done::countDown, 10);
+
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  void aCancelledJobNeverRuns() throws Exception {
+    JobScheduler scheduler = start(1);
+    CountDownLatch cancelled = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(1);
+
+    TimingWheel.Timeout timeout = scheduler.schedule(cancelled::countDown, 50);
+    assertTrue(timeout.cancel());
+    scheduler.schedule(done::countDown, 100);
+
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertEquals(1, cancelled.getCount());
+    assertFalse(timeout.cancel());
+    assertEquals(
+        0, metrics.getGauges().get(MetricRegistry.name(JobScheduler.class, "pending")).getValue());
+  }
+
+  @Test
+  void jobsDueTogetherAreHandedToTheWorkersInBatches() throws Exception {
+    workers = Executors.newFixedThreadPool(4);
+    JobScheduler scheduler = new JobScheduler(timerThreads, workers, 1, 64, 4, metrics);
+    Set<Thread> threads = ConcurrentHashMap.newKeySet();
+    CountDownLatch done = new CountDownLatch(4);
+    // Scheduling them all before the timer starts means they all fall due in its first tick
+    for (int i = 0; i < 4; i++) {
+      scheduler.schedule(
+          () -> {
+            threads.add(Thread.currentThread());
+            done.countDown();
+          },
+          0);
+    }
+    this.scheduler = scheduler;
+    scheduler.start();
+
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertEquals(1, threads.size());
+  }
+}
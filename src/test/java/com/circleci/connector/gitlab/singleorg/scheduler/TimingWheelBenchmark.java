@@ -0,0 +1,95 @@
+package com.circleci.connector.gitlab.singleorg.scheduler;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the {@link TimingWheel} with the scheduled executor it replaced while both are holding a
+ * poll for every one of a large number of workflows in flight. Each operation is what a poller does
+ * on every poll: drop its oldest timeout and schedule the next one. Run {@link #main} from the test
+ * classpath, for example from an IDE.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TimingWheelBenchmark {
+  /** How many workflows are being tracked at once. */
+  @Param({"1000", "100000"})
+  public int tracked;
+
+  /** Far enough ahead that nothing fires while we measure. */
+  private static final long DELAY_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+  private static final Runnable NOTHING = () -> {};
+
+  private TimingWheel<Runnable> wheel;
+  private final Deque<TimingWheel.Timeout> wheelTimeouts = new ArrayDeque<>();
+
+  private ScheduledThreadPoolExecutor executor;
+  private final Deque<Future<?>> executorTimeouts = new ArrayDeque<>();
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    wheel = new TimingWheel<>(10, 1024, Thread::new, expired -> {});
+    wheel.start();
+    executor = new ScheduledThreadPoolExecutor(1);
+    executor.setRemoveOnCancelPolicy(true);
+    for (int i = 0; i < tracked; i++) {
+      wheelTimeouts.add(wheel.add(NOTHING, delay()));
+      executorTimeouts.add(executor.schedule(NOTHING, delay(), TimeUnit.MILLISECONDS));
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    wheel.stop();
+    executor.shutdownNow();
+  }
+
+  /** Spread the polls out, as they are in practice. */
+  private static long delay() {
+    return DELAY_MILLIS + ThreadLocalRandom.current().nextLong(60_000);
+  }
+
+  @Benchmark
+  public boolean timingWheel() {
+    boolean cancelled = wheelTimeouts.removeFirst().cancel();
+    wheelTimeouts.addLast(wheel.add(NOTHING, delay()));
+    return cancelled;
+  }
+
+  @Benchmark
+  public boolean scheduledExecutor() {
+    boolean cancelled = executorTimeouts.removeFirst().cancel(false);
+    executorTimeouts.addLast(executor.schedule(NOTHING, delay(), TimeUnit.MILLISECONDS));
+    return cancelled;
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder().include(TimingWheelBenchmark.class.getSimpleName()).build())
+        .run();
+  }
+}
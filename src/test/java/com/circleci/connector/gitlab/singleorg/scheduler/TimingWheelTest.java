@@ -0,0 +1,121 @@
+package com.circleci.connector.gitlab.singleorg.scheduler;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class TimingWheelTest {
+  /** Each batch of timeouts which fired together, and when. */
+  private final BlockingQueue<List<Integer>> fired = new LinkedBlockingQueue<>();
+
+  private final BlockingQueue<Long> firedAt = new LinkedBlockingQueue<>();
+
+  private TimingWheel<Integer> wheel;
+
+  @AfterEach
+  void tearDown() {
+    if (wheel != null) {
+      wheel.stop();
+    }
+  }
+
+  private TimingWheel<Integer> wheel(long tickMillis, int ticksPerWheel) {
+    wheel =
+        new TimingWheel<>(
+            tickMillis,
+            ticksPerWheel,
+            runnable -> {
+              Thread thread = new Thread(runnable, "test-wheel");
+              thread.setDaemon(true);
+              return thread;
+            },
+            expired -> {
+              firedAt.add(System.nanoTime());
+              fired.add(List.copyOf(expired));
+            });
+    return wheel;
+  }
+
+  private List<Integer> nextBatch() throws InterruptedException {
+    List<Integer> batch = fired.poll(5, TimeUnit.SECONDS);
+    assertTrue(batch != null, "Nothing fired");
+    return batch;
+  }
+
+  @Test
+  void timeoutsFireInOrderAndNeverEarly() throws Exception {
+    TimingWheel<Integer> wheel = wheel(5, 16);
+    wheel.start();
+    long start = System.nanoTime();
+    wheel.add(2, 60);
+    wheel.add(1, 20);
+
+    assertEquals(List.of(1), nextBatch());
+    assertTrue(firedAt.take() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+    assertEquals(List.of(2), nextBatch());
+    assertTrue(firedAt.take() - start >= TimeUnit.MILLISECONDS.toNanos(60));
+    assertEquals(0, wheel.size());
+  }
+
+  @Test
+  void timeoutsDueFurtherAheadThanTheWheelGoRoundItAgain() throws Exception {
+    // The wheel only covers 4 * 5ms, so this goes round it several times
+    TimingWheel<Integer> wheel = wheel(5, 4);
+    wheel.start();
+    long start = System.nanoTime();
+    wheel.add(1, 75);
+
+    assertEquals(List.of(1), nextBatch());
+    assertTrue(firedAt.take() - start >= TimeUnit.MILLISECONDS.toNanos(75));
+  }
+
+  @Test
+  void aCancelledTimeoutNeverFires() throws Exception {
+    TimingWheel<Integer> wheel = wheel(5, 16);
+    wheel.start();
+    TimingWheel.Timeout cancelled = wheel.add(1, 20);
+    wheel.add(2, 40);
+    assertEquals(2, wheel.size());
+
+    assertTrue(cancelled.cancel());
+    assertFalse(cancelled.cancel());
+    assertEquals(1, wheel.size());
+    assertEquals(List.of(2), nextBatch());
+  }
+
+  @Test
+  void aTimeoutCannotBeCancelledOnceItHasFired() throws Exception {
+    TimingWheel<Integer> wheel = wheel(5, 16);
+    wheel.start();
+    TimingWheel.Timeout timeout = wheel.add(1, 0);
+
+    assertEquals(List.of(1), nextBatch());
+    assertFalse(timeout.cancel());
+    assertEquals(0, wheel.size());
+  }
+
+  @Test
+  void timeoutsDueInTheSameTickFireTogether() throws Exception {
+    TimingWheel<Integer> wheel = wheel(5, 16);
+    for (int i = 0; i < 100; i++) {
+      wheel.add(i, 0);
+    }
+    wheel.start();
+
+    assertEquals(100, nextBatch().size());
+  }
+
+  @Test
+  void theTickAndTheWheelMustBePositive() {
+    assertThrows(IllegalArgumentException.class, () -> wheel(0, 16));
+    assertThrows(IllegalArgumentException.class, () -> wheel(5, 0));
+  }
+}
@@ -0,0 +1,92 @@
+package com.circleci.connector.gitlab.singleorg.scheduler;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares running jobs on virtual threads with the pool of platform threads they would otherwise
+ * run on. Each job blocks for about as long as a call to CircleCI or GitLab takes, and each
+ * operation is a burst of them, such as the polls which fall due after a batch of pushes. Run
+ * {@link #main} from the test classpath, for example from an IDE.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class VirtualThreadBenchmark {
+  /** How many jobs fall due at once. */
+  @Param({"100", "1000", "10000"})
+  public int jobs;
+
+  /** The default number of job workers. */
+  private static final int PLATFORM_THREADS = 16;
+
+  /** About as long as a call to CircleCI or GitLab takes. */
+  private static final long CALL_MILLIS = 20;
+
+  private ExecutorService platformThreads;
+  private ExecutorService virtualThreads;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    platformThreads = Executors.newFixedThreadPool(PLATFORM_THREADS);
+    virtualThreads = VirtualThreads.newExecutor("benchmark-");
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    platformThreads.shutdownNow();
+    virtualThreads.shutdownNow();
+  }
+
+  private void runBurst(ExecutorService executor) throws InterruptedException {
+    CountDownLatch done = new CountDownLatch(jobs);
+    for (int i = 0; i < jobs; i++) {
+      executor.execute(
+          () -> {
+            try {
+              Thread.sleep(CALL_MILLIS);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+            done.countDown();
+          });
+    }
+    done.await();
+  }
+
+  @Benchmark
+  public void platformThreads() throws InterruptedException {
+    runBurst(platformThreads);
+  }
+
+  @Benchmark
+  public void virtualThreads() throws InterruptedException {
+    runBurst(virtualThreads);
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder().include(VirtualThreadBenchmark.class.getSimpleName()).build())
+        .run();
+  }
+}
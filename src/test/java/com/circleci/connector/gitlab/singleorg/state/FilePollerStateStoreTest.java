@@ -0,0 +1,82 @@
+package com.circleci.connector.gitlab.singleorg.state;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.circleci.connector.gitlab.singleorg.model.Workflow.State;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class FilePollerStateStoreTest {
+  @TempDir Path directory;
+
+  private static PollerState state(UUID pipelineId, State workflowState) {
+    return ImmutablePollerState.builder()
+        .pipelineId(pipelineId)
+        .projectId(123)
+        .revision("abc123")
+        .branch("master")
+        .putReportedStates(UUID.randomUUID(), workflowState)
+        .nextPollMillis(1234567890L)
+        .build();
+  }
+
+  @Test
+  void savedStatesAreLoadedByANewStore() throws IOException {
+    PollerState first = state(UUID.randomUUID(), State.RUNNING);
+    PollerState second = state(UUID.randomUUID(), State.SUCCESS);
+    FilePollerStateStore store = new FilePollerStateStore(directory.resolve("pollers"));
+    store.save(first);
+    store.save(second);
+
+    assertEquals(
+        Set.of(first, second),
+        Set.copyOf(new FilePollerStateStore(directory.resolve("pollers")).loadAll()));
+  }
+
+  @Test
+  void savingAPipelineAgainReplacesItsState() throws IOException {
+    UUID pipelineId = UUID.randomUUID();
+    PollerState newer = state(pipelineId, State.FAILED);
+    FilePollerStateStore store = new FilePollerStateStore(directory);
+    store.save(state(pipelineId, State.RUNNING));
+    store.save(newer);
+
+    assertEquals(List.of(newer), store.loadAll());
+  }
+
+  @Test
+  void removedStatesAreNotLoaded() throws IOException {
+    PollerState kept = state(UUID.randomUUID(), State.RUNNING);
+    PollerState removed = state(UUID.randomUUID(), State.RUNNING);
+    FilePollerStateStore store = new FilePollerStateStore(directory);
+    store.save(kept);
+    store.save(removed);
+    store.remove(removed.pipelineId());
+    store.remove(UUID.randomUUID());
+
+    assertEquals(List.of(kept), store.loadAll());
+  }
+
+  @Test
+  void unreadableStatesAreSkipped() throws IOException {
+    PollerState state = state(UUID.randomUUID(), State.RUNNING);
+    FilePollerStateStore store = new FilePollerStateStore(directory);
+    store.save(state);
+    Files.writeString(directory.resolve(UUID.randomUUID() + ".json"), "{\"pipelineId\":");
+    Files.writeString(directory.resolve("left-over.json.tmp"), "{}");
+
+    assertEquals(List.of(state), store.loadAll());
+  }
+
+  @Test
+  void anEmptyStoreLoadsNothing() throws IOException {
+    assertTrue(new FilePollerStateStore(directory).loadAll().isEmpty());
+  }
+}